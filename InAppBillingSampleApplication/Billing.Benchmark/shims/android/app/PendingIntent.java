@@ -0,0 +1,43 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Parcelable;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. The fake Market hands one out for every
+ * purchase request; it only identifies the buy page it stands for.
+ */
+public final class PendingIntent implements Parcelable {
+	private final long mRequestId;
+
+	public PendingIntent(long requestId) {
+		mRequestId = requestId;
+	}
+
+	public long getRequestId() {
+		return mRequestId;
+	}
+
+	public IntentSender getIntentSender() {
+		return new IntentSender();
+	}
+
+	/**
+	 * Does nothing; the fake Market finishes the buy page by itself.
+	 */
+	public void send(Context context, int code, Intent intent) throws CanceledException {
+	}
+
+	public static class CanceledException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public CanceledException() {
+		}
+
+		public CanceledException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package android.app;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.IBinder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. Whoever starts the service attaches its
+ * context and calls {@link #onStart(Intent, int)}; stopping it has no effect other than being remembered.
+ */
+public abstract class Service extends ContextWrapper {
+	private final List<Integer> mStoppedStartIds = new ArrayList<Integer>();
+
+	public Service() {
+		super(null);
+	}
+
+	public void onCreate() {
+	}
+
+	public void onStart(Intent intent, int startId) {
+	}
+
+	public void onDestroy() {
+	}
+
+	public abstract IBinder onBind(Intent intent);
+
+	public final void stopSelf() {
+	}
+
+	public final void stopSelf(int startId) {
+		synchronized (mStoppedStartIds) {
+			mStoppedStartIds.add(startId);
+		}
+	}
+
+	/**
+	 * Not in the framework.
+	 *
+	 * @return the start IDs passed to {@link #stopSelf(int)} so far, oldest first
+	 */
+	public final List<Integer> getStoppedStartIds() {
+		synchronized (mStoppedStartIds) {
+			return new ArrayList<Integer>(mStoppedStartIds);
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public abstract class BroadcastReceiver {
+	public abstract void onReceive(Context context, Intent intent);
+}
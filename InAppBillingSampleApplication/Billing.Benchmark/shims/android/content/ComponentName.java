@@ -0,0 +1,31 @@
+package android.content;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public final class ComponentName {
+	private final String mPackage;
+	private final String mClass;
+
+	public ComponentName(String pkg, String cls) {
+		mPackage = pkg;
+		mClass = cls;
+	}
+
+	public ComponentName(Context pkg, Class<?> cls) {
+		this(pkg.getPackageName(), cls.getName());
+	}
+
+	public String getPackageName() {
+		return mPackage;
+	}
+
+	public String getClassName() {
+		return mClass;
+	}
+
+	@Override
+	public String toString() {
+		return "ComponentName{" + mPackage + "/" + mClass + "}";
+	}
+}
@@ -0,0 +1,34 @@
+package android.content;
+
+import java.util.HashMap;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public final class ContentValues {
+	private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+
+	public void put(String key, String value) {
+		mValues.put(key, value);
+	}
+
+	public void put(String key, Integer value) {
+		mValues.put(key, value);
+	}
+
+	public void put(String key, Long value) {
+		mValues.put(key, value);
+	}
+
+	public void putNull(String key) {
+		mValues.put(key, null);
+	}
+
+	public Object get(String key) {
+		return mValues.get(key);
+	}
+
+	public int size() {
+		return mValues.size();
+	}
+}
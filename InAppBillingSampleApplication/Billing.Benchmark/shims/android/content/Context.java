@@ -0,0 +1,28 @@
+package android.content;
+
+import android.os.Looper;
+
+import java.io.File;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM, with only the methods the library calls.
+ */
+public abstract class Context {
+	public static final int BIND_AUTO_CREATE = 0x0001;
+
+	public abstract Context getApplicationContext();
+
+	public abstract String getPackageName();
+
+	public abstract Looper getMainLooper();
+
+	public abstract File getFilesDir();
+
+	public abstract File getDatabasePath(String name);
+
+	public abstract ComponentName startService(Intent service);
+
+	public abstract boolean bindService(Intent service, ServiceConnection conn, int flags);
+
+	public abstract void unbindService(ServiceConnection conn);
+}
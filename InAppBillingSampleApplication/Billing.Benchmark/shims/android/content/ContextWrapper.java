@@ -0,0 +1,67 @@
+package android.content;
+
+import android.os.Looper;
+
+import java.io.File;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public class ContextWrapper extends Context {
+	private Context mBase;
+
+	public ContextWrapper(Context base) {
+		mBase = base;
+	}
+
+	protected void attachBaseContext(Context base) {
+		if (mBase != null) {
+			throw new IllegalStateException("Base context already set");
+		}
+		mBase = base;
+	}
+
+	public Context getBaseContext() {
+		return mBase;
+	}
+
+	@Override
+	public Context getApplicationContext() {
+		return mBase.getApplicationContext();
+	}
+
+	@Override
+	public String getPackageName() {
+		return mBase.getPackageName();
+	}
+
+	@Override
+	public Looper getMainLooper() {
+		return mBase.getMainLooper();
+	}
+
+	@Override
+	public File getFilesDir() {
+		return mBase.getFilesDir();
+	}
+
+	@Override
+	public File getDatabasePath(String name) {
+		return mBase.getDatabasePath(name);
+	}
+
+	@Override
+	public ComponentName startService(Intent service) {
+		return mBase.startService(service);
+	}
+
+	@Override
+	public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+		return mBase.bindService(service, conn, flags);
+	}
+
+	@Override
+	public void unbindService(ServiceConnection conn) {
+		mBase.unbindService(conn);
+	}
+}
@@ -0,0 +1,79 @@
+package android.content;
+
+import android.os.Bundle;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. It carries an action, the component it
+ * is for and the extras.
+ */
+public class Intent {
+	private String mAction;
+	private ComponentName mComponent;
+	private final Bundle mExtras = new Bundle();
+
+	public Intent() {
+	}
+
+	public Intent(String action) {
+		mAction = action;
+	}
+
+	public String getAction() {
+		return mAction;
+	}
+
+	public Intent setAction(String action) {
+		mAction = action;
+		return this;
+	}
+
+	public ComponentName getComponent() {
+		return mComponent;
+	}
+
+	public Intent setClass(Context packageContext, Class<?> cls) {
+		mComponent = new ComponentName(packageContext, cls);
+		return this;
+	}
+
+	public Intent putExtra(String name, String value) {
+		mExtras.putString(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, int value) {
+		mExtras.putInt(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, long value) {
+		mExtras.putLong(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, String[] value) {
+		mExtras.putStringArray(name, value);
+		return this;
+	}
+
+	public String getStringExtra(String name) {
+		return mExtras.getString(name);
+	}
+
+	public int getIntExtra(String name, int defaultValue) {
+		return mExtras.getInt(name, defaultValue);
+	}
+
+	public long getLongExtra(String name, long defaultValue) {
+		return mExtras.getLong(name, defaultValue);
+	}
+
+	public String[] getStringArrayExtra(String name) {
+		return mExtras.getStringArray(name);
+	}
+
+	@Override
+	public String toString() {
+		return "Intent{act=" + mAction + " cmp=" + mComponent + " " + mExtras + "}";
+	}
+}
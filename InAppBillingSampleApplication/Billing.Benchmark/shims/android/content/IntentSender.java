@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. It is never sent.
+ */
+public final class IntentSender {
+}
@@ -0,0 +1,12 @@
+package android.content;
+
+import android.os.IBinder;
+
+/**
+ * Stands in for the framework interface when the library runs on a desktop JVM.
+ */
+public interface ServiceConnection {
+	void onServiceConnected(ComponentName name, IBinder service);
+
+	void onServiceDisconnected(ComponentName name);
+}
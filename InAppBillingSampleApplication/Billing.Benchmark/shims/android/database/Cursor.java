@@ -0,0 +1,18 @@
+package android.database;
+
+/**
+ * Stands in for the framework interface when the library runs on a desktop JVM. Columns are numbered from 0.
+ */
+public interface Cursor {
+	boolean moveToNext();
+
+	boolean isNull(int columnIndex);
+
+	String getString(int columnIndex);
+
+	int getInt(int columnIndex);
+
+	long getLong(int columnIndex);
+
+	void close();
+}
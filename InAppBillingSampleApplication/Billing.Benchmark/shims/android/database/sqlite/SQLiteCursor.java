@@ -0,0 +1,75 @@
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. It reads a JDBC result set, forward only.
+ */
+public class SQLiteCursor implements Cursor {
+	private final Statement mStatement;
+	private final ResultSet mResultSet;
+
+	SQLiteCursor(Statement statement, ResultSet resultSet) {
+		mStatement = statement;
+		mResultSet = resultSet;
+	}
+
+	@Override
+	public boolean moveToNext() {
+		try {
+			return mResultSet.next();
+		} catch (SQLException e) {
+			throw new SQLiteException("moveToNext failed", e);
+		}
+	}
+
+	@Override
+	public boolean isNull(int columnIndex) {
+		try {
+			return mResultSet.getObject(columnIndex + 1) == null;
+		} catch (SQLException e) {
+			throw new SQLiteException("isNull failed", e);
+		}
+	}
+
+	@Override
+	public String getString(int columnIndex) {
+		try {
+			return mResultSet.getString(columnIndex + 1);
+		} catch (SQLException e) {
+			throw new SQLiteException("getString failed", e);
+		}
+	}
+
+	@Override
+	public int getInt(int columnIndex) {
+		try {
+			return mResultSet.getInt(columnIndex + 1);
+		} catch (SQLException e) {
+			throw new SQLiteException("getInt failed", e);
+		}
+	}
+
+	@Override
+	public long getLong(int columnIndex) {
+		try {
+			return mResultSet.getLong(columnIndex + 1);
+		} catch (SQLException e) {
+			throw new SQLiteException("getLong failed", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			mResultSet.close();
+			mStatement.close();
+		} catch (SQLException e) {
+			throw new SQLiteException("close failed", e);
+		}
+	}
+}
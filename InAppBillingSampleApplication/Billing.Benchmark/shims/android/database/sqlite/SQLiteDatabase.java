@@ -0,0 +1,159 @@
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM, over a sqlite-jdbc connection, so the
+ * database file is the same SQLite file a device would write. Transactions nest the way they do on a device: the
+ * outermost one commits only if every nested one was marked successful.
+ * <p/>
+ * Not thread safe; the library only uses a database from its writer thread.
+ */
+public final class SQLiteDatabase {
+	private final Connection mConnection;
+	private final String mPath;
+	private int mTransactionDepth;
+	private boolean mTransactionSuccessful;
+	private boolean mTransactionFailed;
+
+	private SQLiteDatabase(Connection connection, String path) {
+		mConnection = connection;
+		mPath = path;
+	}
+
+	public static SQLiteDatabase openOrCreateDatabase(File file, CursorFactory factory) {
+		try {
+			return new SQLiteDatabase(DriverManager.getConnection("jdbc:sqlite:" + file.getPath()), file.getPath());
+		} catch (SQLException e) {
+			throw new SQLiteException("failed to open " + file, e);
+		}
+	}
+
+	public String getPath() {
+		return mPath;
+	}
+
+	public int getVersion() {
+		Statement statement = null;
+		try {
+			statement = mConnection.createStatement();
+			ResultSet resultSet = statement.executeQuery("PRAGMA user_version");
+			return resultSet.next() ? resultSet.getInt(1) : 0;
+		} catch (SQLException e) {
+			throw new SQLiteException("failed to read the version", e);
+		} finally {
+			closeQuietly(statement);
+		}
+	}
+
+	public void setVersion(int version) {
+		execSQL("PRAGMA user_version = " + version);
+	}
+
+	public void execSQL(String sql) {
+		Statement statement = null;
+		try {
+			statement = mConnection.createStatement();
+			statement.executeUpdate(sql);
+		} catch (SQLException e) {
+			throw new SQLiteException(sql, e);
+		} finally {
+			closeQuietly(statement);
+		}
+	}
+
+	public Cursor rawQuery(String sql, String[] selectionArgs) {
+		try {
+			PreparedStatement statement = mConnection.prepareStatement(sql);
+			if (selectionArgs != null) {
+				for (int i = 0; i < selectionArgs.length; i++) {
+					statement.setString(i + 1, selectionArgs[i]);
+				}
+			}
+			return new SQLiteCursor(statement, statement.executeQuery());
+		} catch (SQLException e) {
+			throw new SQLiteException(sql, e);
+		}
+	}
+
+	public SQLiteStatement compileStatement(String sql) {
+		try {
+			return new SQLiteStatement(mConnection.prepareStatement(sql));
+		} catch (SQLException e) {
+			throw new SQLiteException(sql, e);
+		}
+	}
+
+	public void beginTransaction() {
+		try {
+			if (mTransactionDepth == 0) {
+				mConnection.setAutoCommit(false);
+				mTransactionFailed = false;
+			}
+			mTransactionDepth++;
+			mTransactionSuccessful = false;
+		} catch (SQLException e) {
+			throw new SQLiteException("beginTransaction failed", e);
+		}
+	}
+
+	public void setTransactionSuccessful() {
+		if (mTransactionDepth == 0) {
+			throw new IllegalStateException("no transaction pending");
+		}
+		mTransactionSuccessful = true;
+	}
+
+	public void endTransaction() {
+		if (mTransactionDepth == 0) {
+			throw new IllegalStateException("no transaction pending");
+		}
+		if (!mTransactionSuccessful) {
+			mTransactionFailed = true;
+		}
+		mTransactionSuccessful = false;
+		if (--mTransactionDepth > 0) {
+			return;
+		}
+		try {
+			if (mTransactionFailed) {
+				mConnection.rollback();
+			}
+			else {
+				mConnection.commit();
+			}
+			mConnection.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw new SQLiteException("endTransaction failed", e);
+		}
+	}
+
+	public void close() {
+		try {
+			mConnection.close();
+		} catch (SQLException e) {
+			throw new SQLiteException("close failed", e);
+		}
+	}
+
+	private static void closeQuietly(Statement statement) {
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// Nothing was left to release.
+			}
+		}
+	}
+
+	public interface CursorFactory {
+	}
+}
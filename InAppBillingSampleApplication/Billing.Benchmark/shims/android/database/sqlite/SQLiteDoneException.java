@@ -0,0 +1,16 @@
+package android.database.sqlite;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. Thrown when a simple query returns no
+ * row.
+ */
+public class SQLiteDoneException extends SQLiteException {
+	private static final long serialVersionUID = 1L;
+
+	public SQLiteDoneException() {
+	}
+
+	public SQLiteDoneException(String message) {
+		super(message);
+	}
+}
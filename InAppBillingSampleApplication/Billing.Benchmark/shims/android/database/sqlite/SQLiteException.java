@@ -0,0 +1,20 @@
+package android.database.sqlite;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. It wraps the JDBC exception that caused
+ * it.
+ */
+public class SQLiteException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public SQLiteException() {
+	}
+
+	public SQLiteException(String message) {
+		super(message);
+	}
+
+	public SQLiteException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
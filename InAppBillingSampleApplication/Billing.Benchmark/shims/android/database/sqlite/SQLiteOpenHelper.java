@@ -0,0 +1,76 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. The database is kept where
+ * {@link Context#getDatabasePath(String)} says, and created or upgraded in a transaction the first time it is opened.
+ */
+public abstract class SQLiteOpenHelper {
+	private final Context mContext;
+	private final String mName;
+	private final SQLiteDatabase.CursorFactory mFactory;
+	private final int mNewVersion;
+	private SQLiteDatabase mDatabase;
+
+	public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+		if (version < 1) {
+			throw new IllegalArgumentException("Version must be >= 1, was " + version);
+		}
+		mContext = context;
+		mName = name;
+		mFactory = factory;
+		mNewVersion = version;
+	}
+
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		if (mDatabase != null) {
+			return mDatabase;
+		}
+		File file = mContext.getDatabasePath(mName);
+		File dir = file.getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new SQLiteException("could not create " + dir);
+		}
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, mFactory);
+		int version = db.getVersion();
+		if (version != mNewVersion) {
+			db.beginTransaction();
+			try {
+				if (version == 0) {
+					onCreate(db);
+				}
+				else {
+					onUpgrade(db, version, mNewVersion);
+				}
+				db.setVersion(mNewVersion);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+		onOpen(db);
+		mDatabase = db;
+		return db;
+	}
+
+	public SQLiteDatabase getReadableDatabase() {
+		return getWritableDatabase();
+	}
+
+	public synchronized void close() {
+		if (mDatabase != null) {
+			mDatabase.close();
+			mDatabase = null;
+		}
+	}
+
+	public abstract void onCreate(SQLiteDatabase db);
+
+	public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+	public void onOpen(SQLiteDatabase db) {
+	}
+}
@@ -0,0 +1,93 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM, over a JDBC prepared statement. Like the
+ * real one, the bound arguments are kept from one execution to the next.
+ */
+public final class SQLiteStatement {
+	private final PreparedStatement mStatement;
+
+	SQLiteStatement(PreparedStatement statement) {
+		mStatement = statement;
+	}
+
+	public void bindNull(int index) {
+		try {
+			mStatement.setNull(index, Types.NULL);
+		} catch (SQLException e) {
+			throw new SQLiteException("bindNull failed", e);
+		}
+	}
+
+	public void bindLong(int index, long value) {
+		try {
+			mStatement.setLong(index, value);
+		} catch (SQLException e) {
+			throw new SQLiteException("bindLong failed", e);
+		}
+	}
+
+	public void bindString(int index, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("the bind value at index " + index + " is null");
+		}
+		try {
+			mStatement.setString(index, value);
+		} catch (SQLException e) {
+			throw new SQLiteException("bindString failed", e);
+		}
+	}
+
+	public void clearBindings() {
+		try {
+			mStatement.clearParameters();
+		} catch (SQLException e) {
+			throw new SQLiteException("clearBindings failed", e);
+		}
+	}
+
+	public void execute() {
+		try {
+			mStatement.executeUpdate();
+		} catch (SQLException e) {
+			throw new SQLiteException("execute failed", e);
+		}
+	}
+
+	/**
+	 * @return -1; the row ID is not looked up, since nothing in the library uses it
+	 */
+	public long executeInsert() {
+		execute();
+		return -1;
+	}
+
+	public long simpleQueryForLong() {
+		try {
+			ResultSet resultSet = mStatement.executeQuery();
+			try {
+				if (!resultSet.next()) {
+					throw new SQLiteDoneException("expected 1 row from this query but query returned no data");
+				}
+				return resultSet.getLong(1);
+			} finally {
+				resultSet.close();
+			}
+		} catch (SQLException e) {
+			throw new SQLiteException("simpleQueryForLong failed", e);
+		}
+	}
+
+	public void close() {
+		try {
+			mStatement.close();
+		} catch (SQLException e) {
+			throw new SQLiteException("close failed", e);
+		}
+	}
+}
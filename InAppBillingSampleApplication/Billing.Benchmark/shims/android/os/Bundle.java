@@ -0,0 +1,79 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. Like the real one, a getter returns the
+ * default value when the key is missing or holds a value of another type.
+ */
+public final class Bundle {
+	private final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+	public boolean containsKey(String key) {
+		return mMap.containsKey(key);
+	}
+
+	public Set<String> keySet() {
+		return mMap.keySet();
+	}
+
+	public void putString(String key, String value) {
+		mMap.put(key, value);
+	}
+
+	public void putInt(String key, int value) {
+		mMap.put(key, value);
+	}
+
+	public void putLong(String key, long value) {
+		mMap.put(key, value);
+	}
+
+	public void putStringArray(String key, String[] value) {
+		mMap.put(key, value);
+	}
+
+	public void putParcelable(String key, Parcelable value) {
+		mMap.put(key, value);
+	}
+
+	public String getString(String key) {
+		Object value = mMap.get(key);
+		return value instanceof String ? (String) value : null;
+	}
+
+	public int getInt(String key) {
+		return getInt(key, 0);
+	}
+
+	public int getInt(String key, int defaultValue) {
+		Object value = mMap.get(key);
+		return value instanceof Integer ? (Integer) value : defaultValue;
+	}
+
+	public long getLong(String key) {
+		return getLong(key, 0L);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		Object value = mMap.get(key);
+		return value instanceof Long ? (Long) value : defaultValue;
+	}
+
+	public String[] getStringArray(String key) {
+		Object value = mMap.get(key);
+		return value instanceof String[] ? (String[]) value : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T extends Parcelable> T getParcelable(String key) {
+		Object value = mMap.get(key);
+		return value instanceof Parcelable ? (T) value : null;
+	}
+
+	@Override
+	public String toString() {
+		return "Bundle" + mMap;
+	}
+}
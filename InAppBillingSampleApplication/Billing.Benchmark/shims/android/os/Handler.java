@@ -0,0 +1,42 @@
+package android.os;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. Only posting runnables is supported.
+ */
+public class Handler {
+	private final Looper mLooper;
+
+	public Handler() {
+		mLooper = Looper.myLooper();
+		if (mLooper == null) {
+			throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+		}
+	}
+
+	public Handler(Looper looper) {
+		if (looper == null) {
+			throw new NullPointerException("looper is null");
+		}
+		mLooper = looper;
+	}
+
+	public final Looper getLooper() {
+		return mLooper;
+	}
+
+	public final boolean post(Runnable r) {
+		return mLooper.enqueue(this, r, SystemClock.uptimeMillis());
+	}
+
+	public final boolean postDelayed(Runnable r, long delayMillis) {
+		return mLooper.enqueue(this, r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+	}
+
+	public final boolean postAtTime(Runnable r, long uptimeMillis) {
+		return mLooper.enqueue(this, r, uptimeMillis);
+	}
+
+	public final void removeCallbacks(Runnable r) {
+		mLooper.remove(this, r);
+	}
+}
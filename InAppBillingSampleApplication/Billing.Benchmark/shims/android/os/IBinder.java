@@ -0,0 +1,8 @@
+package android.os;
+
+/**
+ * Stands in for the framework interface when the library runs on a desktop JVM. There is no binder; a remote object
+ * is called directly.
+ */
+public interface IBinder {
+}
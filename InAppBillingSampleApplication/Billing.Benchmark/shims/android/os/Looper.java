@@ -0,0 +1,147 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. It runs the messages posted through
+ * {@link Handler}s on the thread that called {@link #loop()}, in the order they are due, the way the main thread of an
+ * application does.
+ */
+public final class Looper {
+	private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+	private static Looper sMainLooper;
+
+	private final Thread mThread = Thread.currentThread();
+	private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>();
+	private long mNextSequence;
+	private boolean mQuitting;
+
+	private Looper() {
+	}
+
+	public static void prepare() {
+		if (sThreadLocal.get() != null) {
+			throw new RuntimeException("Only one Looper may be created per thread");
+		}
+		sThreadLocal.set(new Looper());
+	}
+
+	public static void prepareMainLooper() {
+		prepare();
+		synchronized (Looper.class) {
+			if (sMainLooper != null) {
+				throw new IllegalStateException("The main Looper has already been prepared.");
+			}
+			sMainLooper = myLooper();
+		}
+	}
+
+	public static synchronized Looper getMainLooper() {
+		return sMainLooper;
+	}
+
+	public static Looper myLooper() {
+		return sThreadLocal.get();
+	}
+
+	/**
+	 * Runs the messages until {@link #quit()} is called.
+	 */
+	public static void loop() {
+		Looper me = myLooper();
+		if (me == null) {
+			throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+		}
+		Message message;
+		while ((message = me.next()) != null) {
+			message.mCallback.run();
+		}
+	}
+
+	public Thread getThread() {
+		return mThread;
+	}
+
+	/**
+	 * Stops the loop once the message that is running has finished. Messages that have not run are dropped.
+	 */
+	public void quit() {
+		synchronized (mQueue) {
+			mQuitting = true;
+			mQueue.clear();
+			mQueue.notifyAll();
+		}
+	}
+
+	boolean enqueue(Handler handler, Runnable callback, long uptimeMillis) {
+		synchronized (mQueue) {
+			if (mQuitting) {
+				return false;
+			}
+			mQueue.add(new Message(handler, callback, uptimeMillis, mNextSequence++));
+			mQueue.notifyAll();
+			return true;
+		}
+	}
+
+	void remove(Handler handler, Runnable callback) {
+		synchronized (mQueue) {
+			Iterator<Message> iterator = mQueue.iterator();
+			while (iterator.hasNext()) {
+				Message message = iterator.next();
+				if (message.mHandler == handler && message.mCallback == callback) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private Message next() {
+		synchronized (mQueue) {
+			while (true) {
+				if (mQuitting) {
+					return null;
+				}
+				Message message = mQueue.peek();
+				long now = SystemClock.uptimeMillis();
+				if (message != null && message.mWhen <= now) {
+					return mQueue.poll();
+				}
+				try {
+					if (message == null) {
+						mQueue.wait();
+					}
+					else {
+						mQueue.wait(message.mWhen - now);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+		}
+	}
+
+	private static final class Message implements Comparable<Message> {
+		final Handler mHandler;
+		final Runnable mCallback;
+		final long mWhen;
+		final long mSequence;
+
+		Message(Handler handler, Runnable callback, long when, long sequence) {
+			mHandler = handler;
+			mCallback = callback;
+			mWhen = when;
+			mSequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Message other) {
+			if (mWhen != other.mWhen) {
+				return mWhen < other.mWhen ? -1 : 1;
+			}
+			return mSequence < other.mSequence ? -1 : mSequence == other.mSequence ? 0 : 1;
+		}
+	}
+}
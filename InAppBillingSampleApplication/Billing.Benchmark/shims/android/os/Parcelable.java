@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * Stands in for the framework interface when the library runs on a desktop JVM. Nothing is ever parcelled.
+ */
+public interface Parcelable {
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public class RemoteException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public RemoteException() {
+	}
+
+	public RemoteException(String message) {
+		super(message);
+	}
+}
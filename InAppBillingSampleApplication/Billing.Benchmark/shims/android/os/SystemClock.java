@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public final class SystemClock {
+	private SystemClock() {
+	}
+
+	public static long uptimeMillis() {
+		return System.nanoTime() / 1000000;
+	}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,13 @@
+package android.text;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM.
+ */
+public final class TextUtils {
+	private TextUtils() {
+	}
+
+	public static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+}
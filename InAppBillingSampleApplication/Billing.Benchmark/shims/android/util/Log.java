@@ -0,0 +1,38 @@
+package android.util;
+
+/**
+ * Stands in for the framework class when the library runs on a desktop JVM. Messages are dropped so that they do not
+ * show up in the measurements.
+ */
+public final class Log {
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+}
@@ -0,0 +1,23 @@
+package com.android.vending.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+/**
+ * Stands in for the interface generated from IMarketBillingService.aidl when the library runs on a desktop JVM, without
+ * the binder plumbing.
+ */
+public interface IMarketBillingService {
+	/** Given the arguments in bundle form, returns a bundle for results. */
+	Bundle sendBillingRequest(Bundle bundle) throws RemoteException;
+
+	/**
+	 * The service side. The object handed to a ServiceConnection is the service itself.
+	 */
+	abstract class Stub implements IMarketBillingService, IBinder {
+		public static IMarketBillingService asInterface(IBinder obj) {
+			return obj instanceof IMarketBillingService ? (IMarketBillingService) obj : null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays the part of Android for the benchmarks that only need storage, such as opening a {@link PurchaseDatabase}.
+ * Files and databases are kept in a temporary directory of their own, which {@link #delete()} removes again.
+ */
+class BenchmarkContext extends Context {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final File mDir;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	BenchmarkContext() throws IOException {
+		mDir = File.createTempFile("billing-benchmark", "");
+		if (!mDir.delete() || !mDir.mkdir()) {
+			throw new IOException("could not create " + mDir);
+		}
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	@Override
+	public String getPackageName() {
+		return "com.trust5.billing.benchmark";
+	}
+
+	@Override
+	public Looper getMainLooper() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public File getFilesDir() {
+		File dir = new File(mDir, "files");
+		dir.mkdirs();
+		return dir;
+	}
+
+	@Override
+	public File getDatabasePath(String name) {
+		return new File(new File(mDir, "databases"), name);
+	}
+
+	@Override
+	public ComponentName startService(Intent service) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void unbindService(ServiceConnection conn) {
+		throw new UnsupportedOperationException();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Deletes the files and databases. Close anything that has them open first.
+	 */
+	void delete() {
+		delete(mDir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
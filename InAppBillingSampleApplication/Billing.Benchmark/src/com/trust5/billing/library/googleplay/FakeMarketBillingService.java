@@ -0,0 +1,648 @@
+package com.trust5.billing.library.googleplay;
+
+import android.app.PendingIntent;
+import android.os.Bundle;
+import android.os.RemoteException;
+import com.android.vending.billing.IMarketBillingService;
+import com.trust5.billing.library.util.Base64;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Answers the IMarketBillingService protocol the way Android Market does, so the library can be driven on a desktop
+ * JVM without a device. It handles CHECK_BILLING_SUPPORTED, REQUEST_PURCHASE, GET_PURCHASE_INFORMATION,
+ * CONFIRM_NOTIFICATIONS and RESTORE_TRANSACTIONS: each call is answered straight away with a response bundle, and the
+ * broadcasts Android Market would send afterwards are handed to the {@link Receiver} on a thread of their own.
+ * <p/>
+ * The buy page of every purchase request is completed as soon as it is handed out, so each REQUEST_PURCHASE leads to a
+ * RESPONSE_CODE and then an IN_APP_NOTIFY, the same as a user buying the item. {@link #pushPurchases} sends purchases
+ * nobody asked for, as Android Market does for purchases made on another device. The orders are signed with a key
+ * generated for the instance; {@link #getBase64PublicKey()} is the key to verify them with.
+ * <p/>
+ * How long calls and broadcasts take and which of them fail is set by the {@link Profile}. The random choices come
+ * from a seeded generator, so a run can be repeated. Thread safe.
+ */
+class FakeMarketBillingService implements IMarketBillingService {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	private static final int KEY_SIZE = 2048;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final Profile mProfile;
+	private final Receiver mReceiver;
+	private final Random mRandom;
+	private final PrivateKey mPrivateKey;
+	private final String mBase64PublicKey;
+	private final ScheduledExecutorService mBroadcaster;
+
+	private final AtomicLong mNextRequestId = new AtomicLong(1);
+	private final AtomicLong mNextOrderId = new AtomicLong(1);
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mFailedRequestCount = new AtomicLong();
+	private final AtomicLong mBroadcastCount = new AtomicLong();
+
+	/**
+	 * The orders whose notification has not been confirmed, by notification ID.
+	 */
+	private final ConcurrentHashMap<String, Order> mUnconfirmed = new ConcurrentHashMap<String, Order>();
+
+	/**
+	 * Every order, by notification ID.
+	 */
+	private final ConcurrentHashMap<String, Order> mOrdersByNotifyId = new ConcurrentHashMap<String, Order>();
+
+	/**
+	 * Every order, in the order it was made, for RESTORE_TRANSACTIONS.
+	 */
+	private final List<Order> mOrders = new ArrayList<Order>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pProfile  - How calls and broadcasts behave
+	 * @param pReceiver - Gets the broadcasts
+	 * @param pSeed     - Seeds the random choices the profile asks for
+	 */
+	FakeMarketBillingService(Profile pProfile, Receiver pReceiver, long pSeed) throws GeneralSecurityException {
+		mProfile = pProfile;
+		mReceiver = pReceiver;
+		mRandom = new Random(pSeed);
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(KEY_SIZE);
+		KeyPair keyPair = generator.generateKeyPair();
+		mPrivateKey = keyPair.getPrivate();
+		mBase64PublicKey = Base64.encode(keyPair.getPublic().getEncoded());
+
+		// One thread delivers the broadcasts in order, as the main thread of the application gets them.
+		mBroadcaster = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FakeMarketBroadcaster");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the public key the orders are signed for, encoded the way it is pasted into {@link Security}
+	 */
+	String getBase64PublicKey() {
+		return mBase64PublicKey;
+	}
+
+	/**
+	 * @return the number of calls to {@link #sendBillingRequest}
+	 */
+	long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/**
+	 * @return the number of calls that were failed on purpose, either with an error code or a RemoteException
+	 */
+	long getFailedRequestCount() {
+		return mFailedRequestCount.get();
+	}
+
+	/**
+	 * @return the number of broadcasts handed to the receiver
+	 */
+	long getBroadcastCount() {
+		return mBroadcastCount.get();
+	}
+
+	/**
+	 * @return the number of orders whose notification has not been confirmed yet
+	 */
+	int getUnconfirmedCount() {
+		return mUnconfirmed.size();
+	}
+
+	/**
+	 * @return the number of orders made
+	 */
+	int getOrderCount() {
+		synchronized (mOrders) {
+			return mOrders.size();
+		}
+	}
+
+	/**
+	 * @return the order the notification is about, or null if no such notification was sent
+	 */
+	Order getOrder(String notifyId) {
+		return mOrdersByNotifyId.get(notifyId);
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public Bundle sendBillingRequest(Bundle request) throws RemoteException {
+		mRequestCount.incrementAndGet();
+		if (mProfile.mCallNanos > 0) {
+			LockSupport.parkNanos(mProfile.mCallNanos);
+		}
+		if (chance(mProfile.mDeadBinderRate)) {
+			mFailedRequestCount.incrementAndGet();
+			throw new RemoteException("injected binder failure");
+		}
+
+		String method = request.getString(Consts.BILLING_REQUEST_METHOD);
+		if (request.getInt(Consts.BILLING_REQUEST_API_VERSION) < 1 ||
+				request.getString(Consts.BILLING_REQUEST_PACKAGE_NAME) == null) {
+			return response(Consts.ResponseCode.RESULT_DEVELOPER_ERROR);
+		}
+		if (chance(mProfile.mErrorRate)) {
+			mFailedRequestCount.incrementAndGet();
+			return response(mProfile.mErrorCode);
+		}
+
+		if ("CHECK_BILLING_SUPPORTED".equals(method)) {
+			return checkBillingSupported(request);
+		}
+		else if ("REQUEST_PURCHASE".equals(method)) {
+			return requestPurchase(request);
+		}
+		else if ("GET_PURCHASE_INFORMATION".equals(method)) {
+			return getPurchaseInformation(request);
+		}
+		else if ("CONFIRM_NOTIFICATIONS".equals(method)) {
+			return confirmNotifications(request);
+		}
+		else if ("RESTORE_TRANSACTIONS".equals(method)) {
+			return restoreTransactions(request);
+		}
+		return response(Consts.ResponseCode.RESULT_DEVELOPER_ERROR);
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Makes purchases nobody asked for and sends an IN_APP_NOTIFY for each, the first one after the usual broadcast
+	 * delay and the others the interval after the one before.
+	 *
+	 * @param count         the number of purchases
+	 * @param packageName   the application the items belong to
+	 * @param productId     the item bought
+	 * @param intervalNanos the time between two notifications, or 0 to send them all at once
+	 */
+	void pushPurchases(int count, String packageName, String productId, long intervalNanos) {
+		long delayNanos = TimeUnit.MILLISECONDS.toNanos(broadcastDelayMillis());
+		for (int i = 0; i < count; i++) {
+			final Order order = newOrder(packageName, productId, Consts.PurchaseState.PURCHASED, null);
+			mBroadcaster.schedule(new Runnable() {
+				@Override
+				public void run() {
+					inAppNotify(order);
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+			delayNanos += intervalNanos;
+		}
+	}
+
+	/**
+	 * Stops sending broadcasts. The ones not sent yet are dropped.
+	 */
+	void shutdown() {
+		mBroadcaster.shutdownNow();
+	}
+
+	private Bundle checkBillingSupported(Bundle request) {
+		String itemType = request.getString(Consts.BILLING_REQUEST_ITEM_TYPE);
+		if (Consts.ITEM_TYPE_SUBSCRIPTION.equals(itemType) && !mProfile.mSubscriptionsSupported) {
+			return response(Consts.ResponseCode.RESULT_BILLING_UNAVAILABLE);
+		}
+		return response(Consts.ResponseCode.RESULT_OK);
+	}
+
+	private Bundle requestPurchase(Bundle request) {
+		String productId = request.getString(Consts.BILLING_REQUEST_ITEM_ID);
+		if (productId == null) {
+			return response(Consts.ResponseCode.RESULT_DEVELOPER_ERROR);
+		}
+		final long requestId = mNextRequestId.getAndIncrement();
+		final boolean canceled = chance(mProfile.mCancelRate);
+		final Order order = canceled ? null : newOrder(request.getString(Consts.BILLING_REQUEST_PACKAGE_NAME), productId,
+				Consts.PurchaseState.PURCHASED, request.getString(Consts.BILLING_REQUEST_DEVELOPER_PAYLOAD));
+		// The buy page is finished straight away; Android Market answers once it is closed.
+		broadcast(new Runnable() {
+			@Override
+			public void run() {
+				responseCode(requestId, canceled ? Consts.ResponseCode.RESULT_USER_CANCELED :
+						Consts.ResponseCode.RESULT_OK);
+				if (order != null) {
+					inAppNotify(order);
+				}
+			}
+		});
+		Bundle response = response(requestId, Consts.ResponseCode.RESULT_OK);
+		response.putParcelable(Consts.BILLING_RESPONSE_PURCHASE_INTENT, new PendingIntent(requestId));
+		return response;
+	}
+
+	private Bundle getPurchaseInformation(Bundle request) {
+		String[] notifyIds = request.getStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS);
+		if (notifyIds == null || !request.containsKey(Consts.BILLING_REQUEST_NONCE)) {
+			return response(Consts.ResponseCode.RESULT_DEVELOPER_ERROR);
+		}
+		final long nonce = request.getLong(Consts.BILLING_REQUEST_NONCE);
+		final List<Order> orders = new ArrayList<Order>(notifyIds.length);
+		for (String notifyId : notifyIds) {
+			Order order = mUnconfirmed.get(notifyId);
+			if (order != null) {
+				orders.add(order);
+			}
+		}
+		final long requestId = mNextRequestId.getAndIncrement();
+		broadcast(new Runnable() {
+			@Override
+			public void run() {
+				responseCode(requestId, Consts.ResponseCode.RESULT_OK);
+				purchaseStateChanged(nonce, orders);
+			}
+		});
+		return response(requestId, Consts.ResponseCode.RESULT_OK);
+	}
+
+	private Bundle confirmNotifications(Bundle request) {
+		String[] notifyIds = request.getStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS);
+		if (notifyIds == null) {
+			return response(Consts.ResponseCode.RESULT_DEVELOPER_ERROR);
+		}
+		for (String notifyId : notifyIds) {
+			mUnconfirmed.remove(notifyId);
+		}
+		final long requestId = mNextRequestId.getAndIncrement();
+		broadcast(new Runnable() {
+			@Override
+			public void run() {
+				responseCode(requestId, Consts.ResponseCode.RESULT_OK);
+			}
+		});
+		return response(requestId, Consts.ResponseCode.RESULT_OK);
+	}
+
+	/**
+	 * Sends every order, split over as many PURCHASE_STATE_CHANGED broadcasts as the profile's order limit needs.
+	 */
+	private Bundle restoreTransactions(Bundle request) {
+		if (!request.containsKey(Consts.BILLING_REQUEST_NONCE)) {
+			return response(Consts.ResponseCode.RESULT_DEVELOPER_ERROR);
+		}
+		final long nonce = request.getLong(Consts.BILLING_REQUEST_NONCE);
+		final List<Order> orders;
+		synchronized (mOrders) {
+			orders = new ArrayList<Order>(mOrders);
+		}
+		final long requestId = mNextRequestId.getAndIncrement();
+		broadcast(new Runnable() {
+			@Override
+			public void run() {
+				responseCode(requestId, Consts.ResponseCode.RESULT_OK);
+				int limit = mProfile.mOrdersPerMessage;
+				for (int start = 0; start < orders.size(); start += limit) {
+					purchaseStateChanged(nonce, orders.subList(start, Math.min(start + limit, orders.size())));
+				}
+			}
+		});
+		return response(requestId, Consts.ResponseCode.RESULT_OK);
+	}
+
+	private Order newOrder(String packageName, String productId, Consts.PurchaseState state, String developerPayload) {
+		long id = mNextOrderId.getAndIncrement();
+		Order order = new Order(String.valueOf(1000000000000000000L + id), "12999763169054705758." + id, packageName,
+				productId, System.currentTimeMillis(), state, developerPayload);
+		mUnconfirmed.put(order.mNotificationId, order);
+		mOrdersByNotifyId.put(order.mNotificationId, order);
+		synchronized (mOrders) {
+			mOrders.add(order);
+		}
+		return order;
+	}
+
+	private void broadcast(Runnable broadcast) {
+		mBroadcaster.schedule(broadcast, broadcastDelayMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private void responseCode(long requestId, Consts.ResponseCode responseCode) {
+		mBroadcastCount.incrementAndGet();
+		mReceiver.onResponseCode(requestId, responseCode);
+	}
+
+	/**
+	 * Sends an IN_APP_NOTIFY, and sends it again every redelivery interval until the notification is confirmed.
+	 */
+	private void inAppNotify(final Order order) {
+		mBroadcastCount.incrementAndGet();
+		mReceiver.onNotify(order.mNotificationId);
+		if (mProfile.mRedeliveryMillis > 0) {
+			mBroadcaster.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (mUnconfirmed.containsKey(order.mNotificationId)) {
+						inAppNotify(order);
+					}
+				}
+			}, mProfile.mRedeliveryMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void purchaseStateChanged(long nonce, List<Order> orders) {
+		String signedData = toJson(nonce, orders);
+		String signature = sign(signedData);
+		if (chance(mProfile.mBadSignatureRate)) {
+			// Sign something else, so the signature is well formed but does not match.
+			signature = sign(signedData + ' ');
+		}
+		mBroadcastCount.incrementAndGet();
+		mReceiver.onPurchaseStateChanged(signedData, signature);
+	}
+
+	private String sign(String signedData) {
+		try {
+			Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+			signer.initSign(mPrivateKey);
+			signer.update(signedData.getBytes());
+			return Base64.encode(signer.sign());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private long broadcastDelayMillis() {
+		long min = mProfile.mMinBroadcastDelayMillis;
+		long max = mProfile.mMaxBroadcastDelayMillis;
+		if (max <= min) {
+			return min;
+		}
+		synchronized (mRandom) {
+			return min + (long) (mRandom.nextDouble() * (max - min));
+		}
+	}
+
+	private boolean chance(double rate) {
+		if (rate <= 0) {
+			return false;
+		}
+		synchronized (mRandom) {
+			return mRandom.nextDouble() < rate;
+		}
+	}
+
+	private static Bundle response(Consts.ResponseCode responseCode) {
+		Bundle response = new Bundle();
+		response.putInt(Consts.BILLING_RESPONSE_RESPONSE_CODE, responseCode.ordinal());
+		return response;
+	}
+
+	private static Bundle response(long requestId, Consts.ResponseCode responseCode) {
+		Bundle response = response(responseCode);
+		response.putLong(Consts.BILLING_RESPONSE_REQUEST_ID, requestId);
+		return response;
+	}
+
+	/**
+	 * Writes the orders the way Android Market does, as the signed data of a PURCHASE_STATE_CHANGED broadcast.
+	 */
+	static String toJson(long nonce, List<Order> orders) {
+		StringBuilder builder = new StringBuilder(64 + orders.size() * 256);
+		builder.append("{\"nonce\":").append(nonce).append(",\"orders\":[");
+		for (int i = 0; i < orders.size(); i++) {
+			Order order = orders.get(i);
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append("{\"notificationId\":");
+			quote(builder, order.mNotificationId);
+			builder.append(",\"orderId\":");
+			quote(builder, order.mOrderId);
+			builder.append(",\"packageName\":");
+			quote(builder, order.mPackageName);
+			builder.append(",\"productId\":");
+			quote(builder, order.mProductId);
+			builder.append(",\"purchaseTime\":").append(order.mPurchaseTime);
+			builder.append(",\"purchaseState\":").append(order.mState.ordinal());
+			if (order.mDeveloperPayload != null) {
+				builder.append(",\"developerPayload\":");
+				quote(builder, order.mDeveloperPayload);
+			}
+			builder.append('}');
+		}
+		return builder.append("]}").toString();
+	}
+
+	private static void quote(StringBuilder builder, String value) {
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * Gets the broadcasts Android Market would send to {@link PlayBillingReceiver}, one at a time.
+	 */
+	interface Receiver {
+		/**
+		 * A RESPONSE_CODE broadcast.
+		 */
+		void onResponseCode(long requestId, Consts.ResponseCode responseCode);
+
+		/**
+		 * An IN_APP_NOTIFY broadcast.
+		 */
+		void onNotify(String notifyId);
+
+		/**
+		 * A PURCHASE_STATE_CHANGED broadcast.
+		 */
+		void onPurchaseStateChanged(String signedData, String signature);
+	}
+
+	/**
+	 * How the fake Market behaves. The setters return the profile, so one can be written as a chain.
+	 */
+	static final class Profile {
+		private long mCallNanos;
+		private long mMinBroadcastDelayMillis;
+		private long mMaxBroadcastDelayMillis;
+		private double mErrorRate;
+		private Consts.ResponseCode mErrorCode = Consts.ResponseCode.RESULT_SERVICE_UNAVAILABLE;
+		private double mDeadBinderRate;
+		private double mCancelRate;
+		private double mBadSignatureRate;
+		private int mOrdersPerMessage = 100;
+		private long mRedeliveryMillis;
+		private boolean mSubscriptionsSupported = true;
+
+		/**
+		 * @return a Market that answers at once and never fails, to measure the library on its own
+		 */
+		static Profile instant() {
+			return new Profile();
+		}
+
+		/**
+		 * @return a Market that takes about as long as a phone does, and never fails
+		 */
+		static Profile typical() {
+			return new Profile().setCallNanos(TimeUnit.MICROSECONDS.toNanos(500)).setBroadcastDelay(20, 200);
+		}
+
+		/**
+		 * @return a typical Market that also fails a few calls, loses the binder now and then and sends some orders
+		 *         with a bad signature; notifications are sent again until they are confirmed
+		 */
+		static Profile flaky() {
+			return typical().setErrors(0.02, Consts.ResponseCode.RESULT_SERVICE_UNAVAILABLE).setDeadBinderRate(0.005)
+					.setCancelRate(0.05).setBadSignatureRate(0.01).setRedeliveryMillis(2000);
+		}
+
+		/**
+		 * @param pCallNanos how long each call to sendBillingRequest blocks, like a binder transaction
+		 */
+		Profile setCallNanos(long pCallNanos) {
+			mCallNanos = pCallNanos;
+			return this;
+		}
+
+		/**
+		 * @param pMinMillis the shortest time between a call and the broadcasts it leads to
+		 * @param pMaxMillis the longest time; the delay is spread evenly in between
+		 */
+		Profile setBroadcastDelay(long pMinMillis, long pMaxMillis) {
+			mMinBroadcastDelayMillis = pMinMillis;
+			mMaxBroadcastDelayMillis = pMaxMillis;
+			return this;
+		}
+
+		/**
+		 * @param pRate the fraction of calls answered with the error code instead of being carried out
+		 * @param pCode the error code
+		 */
+		Profile setErrors(double pRate, Consts.ResponseCode pCode) {
+			mErrorRate = pRate;
+			mErrorCode = pCode;
+			return this;
+		}
+
+		/**
+		 * @param pRate the fraction of calls that throw a RemoteException, as a call to a crashed service does
+		 */
+		Profile setDeadBinderRate(double pRate) {
+			mDeadBinderRate = pRate;
+			return this;
+		}
+
+		/**
+		 * @param pRate the fraction of purchase requests the user cancels on the buy page
+		 */
+		Profile setCancelRate(double pRate) {
+			mCancelRate = pRate;
+			return this;
+		}
+
+		/**
+		 * @param pRate the fraction of PURCHASE_STATE_CHANGED broadcasts whose signature does not match
+		 */
+		Profile setBadSignatureRate(double pRate) {
+			mBadSignatureRate = pRate;
+			return this;
+		}
+
+		/**
+		 * @param pOrdersPerMessage the most orders a RESTORE_TRANSACTIONS broadcast carries
+		 */
+		Profile setOrdersPerMessage(int pOrdersPerMessage) {
+			if (pOrdersPerMessage < 1) {
+				throw new IllegalArgumentException("ordersPerMessage < 1: " + pOrdersPerMessage);
+			}
+			mOrdersPerMessage = pOrdersPerMessage;
+			return this;
+		}
+
+		/**
+		 * @param pRedeliveryMillis how long after an IN_APP_NOTIFY it is sent again if the notification has not been
+		 *                          confirmed, as Android Market does; 0 sends each notification once
+		 */
+		Profile setRedeliveryMillis(long pRedeliveryMillis) {
+			mRedeliveryMillis = pRedeliveryMillis;
+			return this;
+		}
+
+		/**
+		 * @param pSupported whether CHECK_BILLING_SUPPORTED reports subscriptions as supported
+		 */
+		Profile setSubscriptionsSupported(boolean pSupported) {
+			mSubscriptionsSupported = pSupported;
+			return this;
+		}
+	}
+
+	/**
+	 * One order, as Android Market keeps it.
+	 */
+	static final class Order {
+		final String mNotificationId;
+		final String mOrderId;
+		final String mPackageName;
+		final String mProductId;
+		final long mPurchaseTime;
+		final Consts.PurchaseState mState;
+		final String mDeveloperPayload;
+
+		Order(String pNotificationId, String pOrderId, String pPackageName, String pProductId, long pPurchaseTime,
+			  Consts.PurchaseState pState, String pDeveloperPayload) {
+			mNotificationId = pNotificationId;
+			mOrderId = pOrderId;
+			mPackageName = pPackageName;
+			mProductId = pProductId;
+			mPurchaseTime = pPurchaseTime;
+			mState = pState;
+			mDeveloperPayload = pDeveloperPayload;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import com.android.vending.billing.IMarketBillingService;
+
+import java.io.File;
+
+/**
+ * Plays the part of Android for {@link PurchasePipelineLoadTest}. Broadcasts go to a {@link PlayBillingReceiver} on the
+ * main thread, started services run {@link PlayBillingService#onStart(Intent, int)} there, and binding to the
+ * MarketBillingService connects to the given one on the next turn of the main loop, as on a device.
+ * <p/>
+ * The listener sees every command the service runs and every call made to the MarketBillingService, which is how the
+ * load test times the stages of the pipeline without changing it.
+ */
+class LoadTestContext extends Context {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	static final String PACKAGE_NAME = "com.trust5.billing.loadtest";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final File mDir;
+	private final Looper mMainLooper;
+	private final Handler mMainHandler;
+	private final Listener mListener;
+	private final IMarketBillingService.Stub mBinder;
+
+	/**
+	 * Only touched on the main thread.
+	 */
+	private PlayBillingService mService;
+	private int mLastStartId;
+	private long mBroadcastNanos;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pDir        - Holds the files and databases
+	 * @param pMainLooper - The main thread
+	 * @param pMarket     - What binding to the MarketBillingService connects to
+	 * @param pListener   - Sees the commands and the calls to the MarketBillingService
+	 */
+	LoadTestContext(File pDir, Looper pMainLooper, final IMarketBillingService pMarket, Listener pListener) {
+		mDir = pDir;
+		mMainLooper = pMainLooper;
+		mMainHandler = new Handler(pMainLooper);
+		mListener = pListener;
+		mBinder = new IMarketBillingService.Stub() {
+			@Override
+			public Bundle sendBillingRequest(Bundle request) throws RemoteException {
+				long startNanos = System.nanoTime();
+				Bundle response = null;
+				try {
+					response = pMarket.sendBillingRequest(request);
+					return response;
+				} finally {
+					mListener.onBillingRequest(request, response, startNanos);
+				}
+			}
+		};
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	Handler getMainHandler() {
+		return mMainHandler;
+	}
+
+	/**
+	 * Creates the service the first time it is needed. Must be called on the main thread.
+	 */
+	PlayBillingService getService() {
+		if (mService == null) {
+			mService = new PlayBillingService();
+			mService.setContext(this);
+			mService.onCreate();
+		}
+		return mService;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	@Override
+	public String getPackageName() {
+		return PACKAGE_NAME;
+	}
+
+	@Override
+	public Looper getMainLooper() {
+		return mMainLooper;
+	}
+
+	@Override
+	public File getFilesDir() {
+		File dir = new File(mDir, "files");
+		dir.mkdirs();
+		return dir;
+	}
+
+	@Override
+	public File getDatabasePath(String name) {
+		return new File(new File(mDir, "databases"), name);
+	}
+
+	/**
+	 * Runs the command on the main thread. A command started by a broadcast counts as queued from the moment the
+	 * broadcast was sent.
+	 */
+	@Override
+	public ComponentName startService(final Intent service) {
+		final long queuedNanos = mBroadcastNanos != 0 ? mBroadcastNanos : System.nanoTime();
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				PlayBillingService playBillingService = getService();
+				long startNanos = System.nanoTime();
+				playBillingService.onStart(service, ++mLastStartId);
+				mListener.onCommand(service, queuedNanos, startNanos, System.nanoTime());
+			}
+		});
+		return service.getComponent();
+	}
+
+	@Override
+	public boolean bindService(Intent service, final ServiceConnection conn, int flags) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				conn.onServiceConnected(new ComponentName(PACKAGE_NAME, "MarketBillingService"), mBinder);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public void unbindService(ServiceConnection conn) {
+		// An unbound connection is simply not called again.
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Delivers a broadcast from Android Market to the {@link PlayBillingReceiver}, on the main thread.
+	 */
+	void sendBroadcast(final Intent intent) {
+		final long sentNanos = System.nanoTime();
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mBroadcastNanos = sentNanos;
+				try {
+					new PlayBillingReceiver().onReceive(LoadTestContext.this, intent);
+				} finally {
+					mBroadcastNanos = 0;
+				}
+			}
+		});
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	interface Listener {
+		/**
+		 * Called on the calling thread after each call to the MarketBillingService.
+		 *
+		 * @param response   the response, or null if the call threw
+		 * @param startNanos when the call was made
+		 */
+		void onBillingRequest(Bundle request, Bundle response, long startNanos);
+
+		/**
+		 * Called on the main thread after the service has run a command.
+		 *
+		 * @param queuedNanos when the command was started, or when the broadcast that started it was sent
+		 * @param startNanos  when the service started running it
+		 * @param endNanos    when the service had run it
+		 */
+		void onCommand(Intent intent, long queuedNanos, long startNanos, long endNanos);
+	}
+}
@@ -0,0 +1,222 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import com.trust5.billing.library.BillingFuture;
+import com.trust5.billing.library.BillingResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs requests against a {@link FakeMarketBillingService} whose every call throws a RemoteException, and checks that
+ * once {@link MarketBillingConnection} gives up on it, after {@link Consts#MARKET_BILLING_RECONNECT_MAX_ATTEMPTS}
+ * attempts, each request waiting for it is failed with RESULT_SERVICE_UNAVAILABLE: the futures complete, the observer
+ * hears about the purchase, and the service is stopped for the start ID of the request that started it.
+ * <p/>
+ * The backoff is not shortened for the test, so it takes about as long as the delays add up to. The process exits
+ * with 1 if a check fails.
+ */
+public class MarketUnavailableTest {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final long TIMEOUT_MILLIS = 3 * 60 * 1000;
+	private static final String PRODUCT_ID = LoadTestContext.PACKAGE_NAME + ".item";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private LoadTestContext mContext;
+	private Handler mMainHandler;
+	private final List<String> mFailures = new ArrayList<String>();
+
+	/**
+	 * The response codes the observer was told for purchase requests.
+	 */
+	private final List<Consts.ResponseCode> mPurchaseResponses =
+			Collections.synchronizedList(new ArrayList<Consts.ResponseCode>());
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public static void main(String[] args) throws Exception {
+		List<String> failures = new MarketUnavailableTest().run();
+		for (String failure : failures) {
+			System.out.println("FAILED: " + failure);
+		}
+		if (failures.isEmpty()) {
+			System.out.println("every waiting request was failed once the connection was given up on");
+		}
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * @return what went wrong, empty if nothing did
+	 */
+	List<String> run() throws Exception {
+		File dir = createTempDir();
+		Looper mainLooper = startMainThread();
+		mMainHandler = new Handler(mainLooper);
+
+		FakeMarketBillingService market = new FakeMarketBillingService(
+				FakeMarketBillingService.Profile.instant().setDeadBinderRate(1.0), new SilentReceiver(), 42);
+		mContext = new LoadTestContext(dir, mainLooper, market, new SilentListener());
+
+		// Started like the receiver starts it, so the request holds a start ID. It runs on the main thread before the
+		// requests below, so they all wait for the same connection.
+		Intent confirm = new Intent(Consts.ACTION_CONFIRM_NOTIFICATION);
+		confirm.putExtra(Consts.NOTIFICATION_ID, new String[]{"1"});
+		mContext.startService(confirm);
+		final List<BillingFuture<Boolean>> supported = new ArrayList<BillingFuture<Boolean>>(1);
+		final List<BillingFuture<BillingResult>> restored = new ArrayList<BillingFuture<BillingResult>>(1);
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				ResponseHandler.register(new Observer());
+				PlayBillingService service = mContext.getService();
+				supported.add(service.checkBillingSupportedAsync(Consts.ITEM_TYPE_INAPP));
+				restored.add(service.restoreTransactionsAsync());
+				service.requestPurchase(PRODUCT_ID, Consts.ITEM_TYPE_INAPP, null);
+			}
+		});
+
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+		while ((!supported.get(0).isDone() || !restored.get(0).isDone() || mPurchaseResponses.isEmpty() ||
+				mContext.getService().getStoppedStartIds().isEmpty()) && System.nanoTime() < deadline) {
+			Thread.sleep(100);
+		}
+		System.out.println(String.format("gave up after %.1f s and %d calls", (System.nanoTime() - start) / 1e9,
+				market.getRequestCount()));
+
+		check("billing supported", Boolean.FALSE, supported.get(0).getNow());
+		BillingResult restoreResult = restored.get(0).getNow();
+		check("restore transactions", BillingResult.Status.SERVICE_UNAVAILABLE,
+				restoreResult == null ? null : restoreResult.getStatus());
+		check("purchase responses", Collections.singletonList(Consts.ResponseCode.RESULT_SERVICE_UNAVAILABLE),
+				new ArrayList<Consts.ResponseCode>(mPurchaseResponses));
+		check("stopped start IDs", Collections.singletonList(1), mContext.getService().getStoppedStartIds());
+		check("pending requests", 0, PlayBillingService.getPendingRequestCount());
+		// One call on the first connection and one on each reconnect, all of which failed.
+		check("calls to the Market", (long) Consts.MARKET_BILLING_RECONNECT_MAX_ATTEMPTS + 1,
+				market.getRequestCount());
+
+		market.shutdown();
+		mainLooper.quit();
+		return mFailures;
+	}
+
+	private void check(String what, Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			mFailures.add(what + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	private static Looper startMainThread() throws InterruptedException {
+		final Looper[] looper = new Looper[1];
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Looper.prepareMainLooper();
+				looper[0] = Looper.myLooper();
+				started.countDown();
+				Looper.loop();
+			}
+		}, "main");
+		thread.setDaemon(true);
+		thread.start();
+		started.await();
+		return looper[0];
+	}
+
+	private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runnable.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		done.await();
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("billing-unavailable", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("could not create " + dir);
+		}
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * No call gets through, so no broadcast is ever sent.
+	 */
+	private static class SilentReceiver implements FakeMarketBillingService.Receiver {
+		@Override
+		public void onResponseCode(long requestId, Consts.ResponseCode responseCode) {
+		}
+
+		@Override
+		public void onNotify(String notifyId) {
+		}
+
+		@Override
+		public void onPurchaseStateChanged(String signedData, String signature) {
+		}
+	}
+
+	private static class SilentListener implements LoadTestContext.Listener {
+		@Override
+		public void onBillingRequest(Bundle request, Bundle response, long startNanos) {
+		}
+
+		@Override
+		public void onCommand(Intent intent, long queuedNanos, long startNanos, long endNanos) {
+		}
+	}
+
+	private class Observer extends PurchaseObserver {
+		Observer() {
+			super(mContext, PurchaseObserver.DIRECT_DISPATCHER);
+		}
+
+		@Override
+		public void onBillingSupported(boolean supported, String type) {
+		}
+
+		@Override
+		public void onPurchaseStateChange(Consts.PurchaseState purchaseState, String itemId, int quantity,
+										  long purchaseTime, String developerPayload) {
+		}
+
+		@Override
+		public void onRequestPurchaseResponse(PlayBillingService.RequestPurchase request,
+											  Consts.ResponseCode responseCode) {
+			mPurchaseResponses.add(responseCode);
+		}
+
+		@Override
+		public void onRestoreTransactionsResponse(PlayBillingService.RestoreTransactions request,
+												  Consts.ResponseCode responseCode) {
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.trust5.billing.library.googleplay;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a GET_PURCHASE_INFORMATION round trip against the {@link FakeMarketBillingService}: the call, waiting for
+ * the PURCHASE_STATE_CHANGED broadcast and verifying it, for a batch of notifications like the one
+ * {@link PurchaseInformationBatcher} sends. With the typical profile most of the time is the simulated Market, which
+ * shows how much of a round trip the library's own work is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PurchaseInformationRoundTripBenchmark {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String PACKAGE_NAME = "com.trust5.billing.sample";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	@Param({"instant", "typical"})
+	String mProfile;
+
+	@Param({"1", "20"})
+	int mBatchSize;
+
+	private FakeMarketBillingService mMarket;
+	private SignatureVerifier mVerifier;
+	private String[] mNotifyIds;
+	private final SynchronousQueue<String[]> mMessages = new SynchronousQueue<String[]>();
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	@Setup
+	public void setUp() throws GeneralSecurityException, InterruptedException {
+		final SynchronousQueue<String> notifyIds = new SynchronousQueue<String>();
+		FakeMarketBillingService.Profile profile = "typical".equals(mProfile) ?
+				FakeMarketBillingService.Profile.typical() : FakeMarketBillingService.Profile.instant();
+		mMarket = new FakeMarketBillingService(profile, new FakeMarketBillingService.Receiver() {
+			@Override
+			public void onResponseCode(long requestId, Consts.ResponseCode responseCode) {
+			}
+
+			@Override
+			public void onNotify(String notifyId) {
+				notifyIds.offer(notifyId);
+			}
+
+			@Override
+			public void onPurchaseStateChanged(String signedData, String signature) {
+				try {
+					mMessages.put(new String[]{signedData, signature});
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 42);
+		mVerifier = new SignatureVerifier(mMarket.getBase64PublicKey());
+
+		// The notifications are never confirmed, so the same ones can be asked for again and again.
+		mNotifyIds = new String[mBatchSize];
+		mMarket.pushPurchases(mBatchSize, PACKAGE_NAME, PACKAGE_NAME + ".item", 0);
+		for (int i = 0; i < mBatchSize; i++) {
+			mNotifyIds[i] = notifyIds.take();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mMarket.shutdown();
+	}
+
+	@Benchmark
+	public boolean getPurchaseInformation() throws RemoteException, InterruptedException {
+		long nonce = Security.generateNonce();
+		Bundle request = new Bundle();
+		request.putString(Consts.BILLING_REQUEST_METHOD, "GET_PURCHASE_INFORMATION");
+		request.putInt(Consts.BILLING_REQUEST_API_VERSION, 2);
+		request.putString(Consts.BILLING_REQUEST_PACKAGE_NAME, PACKAGE_NAME);
+		request.putLong(Consts.BILLING_REQUEST_NONCE, nonce);
+		request.putStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS, mNotifyIds);
+		mMarket.sendBillingRequest(request);
+
+		String[] message = mMessages.take();
+		return Security.verifyPurchase(mVerifier, message[0], message[1], new Security.PurchaseConsumer() {
+			@Override
+			public void onPurchase(Security.VerifiedPurchase purchase) {
+			}
+		});
+	}
+}
@@ -0,0 +1,136 @@
+package com.trust5.billing.library.googleplay;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rebuilding a purchase store from the {@link PurchaseJournal}, which stands in for a RESTORE_TRANSACTIONS
+ * round trip, and what journaling adds to each batch of purchases.
+ * <p/>
+ * Every order in the journal goes through two states, PURCHASED and then, for some, REFUNDED or CANCELED, the way a
+ * real history does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PurchaseJournalBenchmark {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final int PRODUCT_COUNT = 20;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	/**
+	 * The number of orders in the journal.
+	 */
+	@Param({"1000", "10000"})
+	int mOrderCount;
+
+	/**
+	 * The number of purchases journaled together.
+	 */
+	@Param({"1", "100"})
+	int mBatchSize;
+
+	private File mJournalFile;
+	private File mStoreFile;
+	private PurchaseJournal mJournal;
+	private List<Security.VerifiedPurchase> mBatch;
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	@Setup
+	public void setUp() throws IOException {
+		mJournalFile = File.createTempFile("purchases", ".journal");
+		mJournalFile.delete();
+		mStoreFile = File.createTempFile("purchases", ".log");
+		mJournal = new PurchaseJournal(mJournalFile);
+		List<Security.VerifiedPurchase> purchases = new ArrayList<Security.VerifiedPurchase>();
+		for (int state = 0; state < 2; state++) {
+			for (int i = 0; i < mOrderCount; i++) {
+				purchases.add(purchase(i, state == 0 ? Consts.PurchaseState.PURCHASED :
+						i % 7 == 0 ? Consts.PurchaseState.REFUNDED : i % 11 == 0 ? Consts.PurchaseState.CANCELED :
+								Consts.PurchaseState.PURCHASED));
+				if (purchases.size() == Consts.PURCHASE_INGEST_CHUNK_SIZE) {
+					mJournal.appendPurchases(purchases);
+					purchases.clear();
+				}
+			}
+		}
+		mJournal.appendPurchases(purchases);
+
+		mBatch = new ArrayList<Security.VerifiedPurchase>(mBatchSize);
+		for (int i = 0; i < mBatchSize; i++) {
+			mBatch.add(purchase(i, Consts.PurchaseState.PURCHASED));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mJournal.close();
+		mJournalFile.delete();
+		mStoreFile.delete();
+	}
+
+	/**
+	 * Reads the whole journal and writes the latest state of each order to an empty store.
+	 */
+	@Benchmark
+	public int rebuild() throws IOException {
+		mStoreFile.delete();
+		PurchaseLogStore store = new PurchaseLogStore(mStoreFile);
+		try {
+			return mJournal.rebuild(store);
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Opening reads the whole journal to check it.
+	 */
+	@Benchmark
+	public long open() throws IOException {
+		mJournal.close();
+		mJournal = new PurchaseJournal(mJournalFile);
+		return mJournal.getPurchaseCount();
+	}
+
+	/**
+	 * The journal grows while this runs, which does not change what an append costs.
+	 */
+	@Benchmark
+	public long append() {
+		mJournal.appendPurchases(mBatch);
+		return mJournal.getPurchaseCount();
+	}
+
+	private static Security.VerifiedPurchase purchase(int order, Consts.PurchaseState state) {
+		return new Security.VerifiedPurchase(state, null, "item_" + order % PRODUCT_COUNT,
+				"12999763169054705758." + (1371000000000000L + order), 1290000000000L + order * 1000L, null);
+	}
+}
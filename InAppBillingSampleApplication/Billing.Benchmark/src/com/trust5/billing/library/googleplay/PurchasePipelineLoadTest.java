@@ -0,0 +1,793 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import com.trust5.billing.library.util.Histogram;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes purchases through the whole pipeline, {@link PlayBillingReceiver} to {@link PlayBillingService} to
+ * {@link Security#verifyPurchase} to {@link ResponseHandler} to the {@link PurchaseDatabase} and back to a
+ * {@link PurchaseObserver}, against a {@link FakeMarketBillingService}, and fails if it lost purchases, could not keep
+ * up with the rate they were requested at, or got bigger than the stored baseline.
+ * <p/>
+ * Purchases are requested at a steady rate from the main thread, the way a user would, and halfway through a burst of
+ * purchases made on another device arrives as well. Each requested purchase carries its own developer payload, which
+ * is how the stages it goes through are told apart:
+ * <ul>
+ * <li>request: asked for, until REQUEST_PURCHASE is sent</li>
+ * <li>market: until Android Market sends the IN_APP_NOTIFY (the fake's delay; reported, not checked)</li>
+ * <li>batch: until the notification is sent in a GET_PURCHASE_INFORMATION request</li>
+ * <li>receive: from any broadcast until the service starts on the command it leads to</li>
+ * <li>verify: the service reading a PURCHASE_STATE_CHANGED message, which verifies and parses it</li>
+ * <li>persist: until the purchase is journaled, stored and reported to the observer</li>
+ * <li>dispatch: until the observer's callback runs on the main thread</li>
+ * <li>end-to-end: from asking for the purchase until the callback</li>
+ * </ul>
+ * The rate is meant to be well below what the machine can take, so the stage latencies measure the pipeline rather than
+ * a queue in front of it. They are still wall-clock times on whatever machine runs the test, so they are printed next
+ * to the baseline's but never fail the check. What is checked is that every purchase was reported, that they were
+ * reported at no less than {@link #MIN_THROUGHPUT_FRACTION} of the requested rate, and that peak thread count, heap
+ * growth after a full collection and the size of the stored purchases did not grow past the baseline.
+ * <p/>
+ * Settings are system properties: load.rate (purchases a second), load.seconds, load.warmupSeconds, load.burst,
+ * load.profile (instant, typical or flaky), load.seed, load.baseline (the baseline file) and load.updateBaseline,
+ * which writes the results as the new baseline instead of checking them. A baseline also records the settings it was
+ * measured with, and a check runs with those; setting one of them to something else fails, since the results could
+ * not be compared. The process exits with 1 on a regression, if
+ * any purchase was lost, if the pipeline fell behind, or if there is no baseline to check against and none is being
+ * recorded. A baseline is not recorded from a run that lost purchases or fell behind.
+ */
+public class PurchasePipelineLoadTest {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final int PRODUCT_COUNT = 50;
+	private static final long DRAIN_TIMEOUT_MILLIS = 60 * 1000;
+
+	// The share of the requested rate that must be reported over the measured phase, which also includes draining
+	// the last purchases. Below that the pipeline fell behind, and its latencies are mostly time spent queueing.
+	private static final double MIN_THROUGHPUT_FRACTION = 0.8;
+
+	private static final String TOLERANCE_KEY = "tolerance";
+	private static final double DEFAULT_TOLERANCE = 0.5;
+
+	// Values ending in this are wall-clock latencies, which are reported against the baseline but not checked.
+	private static final String LATENCY_SUFFIX = ".micros";
+
+	// Small values are noisy, so each kind of value may also grow by a fixed amount before it counts as a regression.
+	private static final long SLACK_MICROS = 500;
+	private static final long SLACK_THREADS = 2;
+	private static final long SLACK_BYTES = 1024 * 1024;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final int mRate;
+	private final int mSeconds;
+	private final int mWarmupSeconds;
+	private final int mBurst;
+	private final String mProfile;
+	private final long mSeed;
+
+	private LoadTestContext mContext;
+	private Handler mMainHandler;
+	private FakeMarketBillingService mMarket;
+	private PurchaseObserver mObserver;
+
+	private final ConcurrentHashMap<String, Trace> mTraces = new ConcurrentHashMap<String, Trace>();
+	private final ConcurrentHashMap<Long, List<Trace>> mTracesByNonce = new ConcurrentHashMap<Long, List<Trace>>();
+
+	/**
+	 * Only touched on the main thread.
+	 */
+	private final LongList mReceiveNanos = new LongList();
+	private final LongList mVerifyNanos = new LongList();
+	private boolean mMeasuring;
+
+	private double mReportedPerSecond;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	PurchasePipelineLoadTest(int pRate, int pSeconds, int pWarmupSeconds, int pBurst, String pProfile, long pSeed) {
+		mRate = pRate;
+		mSeconds = pSeconds;
+		mWarmupSeconds = pWarmupSeconds;
+		mBurst = pBurst;
+		mProfile = pProfile;
+		mSeed = pSeed;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return how many requested purchases a second were reported during the measured phase, including draining it
+	 */
+	double getReportedPerSecond() {
+		return mReportedPerSecond;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public static void main(String[] args) throws Exception {
+		String profile = System.getProperty("load.profile", "typical");
+		File baseline = new File(System.getProperty("load.baseline", "load-test-baseline-" + profile + ".properties"));
+		boolean updateBaseline = Boolean.getBoolean("load.updateBaseline");
+		Properties recorded = updateBaseline || !baseline.exists() ? new Properties() : readBaseline(baseline);
+
+		Map<String, Long> settings = new LinkedHashMap<String, Long>();
+		settings.put("load.rate", setting(recorded, "load.rate", 100));
+		settings.put("load.seconds", setting(recorded, "load.seconds", 20));
+		settings.put("load.warmupSeconds", setting(recorded, "load.warmupSeconds", 3));
+		settings.put("load.burst", setting(recorded, "load.burst", 500));
+		settings.put("load.seed", setting(recorded, "load.seed", 42));
+		PurchasePipelineLoadTest test = new PurchasePipelineLoadTest(
+				settings.get("load.rate").intValue(),
+				settings.get("load.seconds").intValue(),
+				settings.get("load.warmupSeconds").intValue(),
+				settings.get("load.burst").intValue(),
+				profile,
+				settings.get("load.seed"));
+
+		Map<String, Long> results = new LinkedHashMap<String, Long>();
+		int lost = test.run(results);
+
+		boolean failed = lost > 0;
+		if (lost > 0) {
+			File trace = new File("load-test-trace.bin");
+			int events = BillingTrace.dump(trace);
+			System.out.println("FAILED: " + lost + " purchases were not reported to the observer; the last " + events +
+					" billing events are in " + trace);
+		}
+		double required = settings.get("load.rate") * MIN_THROUGHPUT_FRACTION;
+		if (test.getReportedPerSecond() < required) {
+			System.out.println(String.format("FAILED: %.0f purchases a second were reported, at least %.0f were " +
+					"needed; lower load.rate until the pipeline keeps up", test.getReportedPerSecond(), required));
+			failed = true;
+		}
+		if (updateBaseline) {
+			if (!failed) {
+				String tolerance = baseline.exists() ?
+						readBaseline(baseline).getProperty(TOLERANCE_KEY, String.valueOf(DEFAULT_TOLERANCE)) :
+						String.valueOf(DEFAULT_TOLERANCE);
+				writeBaseline(baseline, tolerance.trim(), settings, results);
+				System.out.println("wrote " + baseline);
+			}
+		}
+		else if (baseline.exists()) {
+			if (check(recorded, results)) {
+				System.out.println("no regressions against " + baseline);
+			}
+			else {
+				failed = true;
+			}
+		}
+		else {
+			System.out.println("FAILED: no baseline at " + baseline +
+					"; run with -Dload.updateBaseline=true to record one");
+			failed = true;
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * Runs the warm-up and the measured load, and fills in the results.
+	 *
+	 * @return the number of requested purchases that were neither reported nor failed by the Market
+	 */
+	int run(Map<String, Long> results) throws Exception {
+		File dir = createTempDir();
+		Looper mainLooper = startMainThread();
+		mMainHandler = new Handler(mainLooper);
+
+		mMarket = new FakeMarketBillingService(toProfile(mProfile), new MarketReceiver(), mSeed);
+		Security.setVerifier(new SignatureVerifier(mMarket.getBase64PublicKey()));
+		mContext = new LoadTestContext(dir, mainLooper, mMarket, new Probe());
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				mObserver = new Observer();
+				ResponseHandler.register(mObserver);
+				ResponseHandler.loadEntitlements(mContext, System.nanoTime());
+			}
+		});
+
+		Phase warmup = new Phase("warmup");
+		drive(warmup, mWarmupSeconds, false);
+		int lost = await(warmup);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long heapBefore = usedHeapAfterGc(memory);
+		threads.resetPeakThreadCount();
+		BillingMetrics.reset();
+		setMeasuring(true);
+
+		Phase load = new Phase("load");
+		long start = System.nanoTime();
+		drive(load, mSeconds, true);
+		lost += await(load);
+		long elapsedNanos = System.nanoTime() - start;
+		awaitConfirmed();
+
+		setMeasuring(false);
+		int peakThreads = threads.getPeakThreadCount();
+		long heapGrowth = usedHeapAfterGc(memory) - heapBefore;
+		long storageBytes = size(dir);
+
+		report(load, elapsedNanos, results);
+		results.put("threads.peak", (long) peakThreads);
+		results.put("heap.growth.bytes", heapGrowth);
+		results.put("storage.bytes", storageBytes);
+		System.out.println(String.format("peak threads %d, heap growth %d KB, storage %d KB", peakThreads,
+				heapGrowth / 1024, storageBytes / 1024));
+
+		mMarket.shutdown();
+		mainLooper.quit();
+		return lost;
+	}
+
+	/**
+	 * Requests purchases at the rate for the given time, from the main thread.
+	 */
+	private void drive(final Phase phase, int seconds, boolean burst) {
+		long total = (long) mRate * seconds;
+		long burstAt = burst && mBurst > 0 ? total / 2 : -1;
+		long start = System.nanoTime();
+		long requested = 0;
+		while (requested < total) {
+			long due = Math.min(total, (System.nanoTime() - start) * mRate / TimeUnit.SECONDS.toNanos(1));
+			for (; requested < due; requested++) {
+				final String productId = LoadTestContext.PACKAGE_NAME + ".item_" + (requested % PRODUCT_COUNT);
+				final Trace trace = new Trace(phase);
+				mTraces.put(trace.mPayload, trace);
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						mContext.getService().requestPurchase(productId, Consts.ITEM_TYPE_INAPP, trace.mPayload);
+					}
+				});
+				if (requested == burstAt) {
+					mMarket.pushPurchases(mBurst, LoadTestContext.PACKAGE_NAME, LoadTestContext.PACKAGE_NAME + ".burst",
+							0);
+				}
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Waits until every purchase of the phase has been reported or failed.
+	 *
+	 * @return the number that were neither
+	 */
+	private int await(Phase phase) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+		while (phase.mFinished.get() < phase.mStarted.get() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		return phase.mStarted.get() - phase.mFinished.get();
+	}
+
+	/**
+	 * Waits until the Market has every notification confirmed, so the database holds the burst too.
+	 */
+	private void awaitConfirmed() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+		while (mMarket.getUnconfirmedCount() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		// Whatever was handed to the database writer before now is written once this runs.
+		final CountDownLatch written = new CountDownLatch(1);
+		PurchasePersistenceExecutor.getInstance(mContext).execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				written.countDown();
+			}
+		});
+		written.await(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private void setMeasuring(final boolean measuring) throws InterruptedException {
+		runOnMainThread(new Runnable() {
+			@Override
+			public void run() {
+				mMeasuring = measuring;
+			}
+		});
+	}
+
+	private void report(Phase phase, long elapsedNanos, Map<String, Long> results) {
+		LongList request = new LongList();
+		LongList market = new LongList();
+		LongList batch = new LongList();
+		LongList persist = new LongList();
+		LongList dispatch = new LongList();
+		LongList endToEnd = new LongList();
+		int completed = 0;
+		for (Trace trace : mTraces.values()) {
+			if (trace.mPhase != phase || trace.mDispatched == 0) {
+				continue;
+			}
+			completed++;
+			request.add(trace.mRequestSent - trace.mRequested);
+			market.add(trace.mNotified - trace.mRequestSent);
+			batch.add(trace.mInfoSent - trace.mNotified);
+			persist.add(trace.mPersisted - trace.mVerified);
+			dispatch.add(trace.mDispatched - trace.mPersisted);
+			endToEnd.add(trace.mDispatched - trace.mRequested);
+		}
+
+		mReportedPerSecond = completed * 1e9 / elapsedNanos;
+		System.out.println(String.format("%d purchases reported in %.1f s (%.0f a second of %d requested), profile %s",
+				completed, elapsedNanos / 1e9, mReportedPerSecond, mRate, mProfile));
+		System.out.println(String.format("%-24s %8s %10s %10s %10s", "stage", "count", "p50 us", "p99 us", "max us"));
+		printStage("request", request, true, results);
+		printStage("market", market, false, results);
+		printStage("batch", batch, true, results);
+		printStage("receive", mReceiveNanos, true, results);
+		printStage("verify", mVerifyNanos, true, results);
+		printStage("persist", persist, true, results);
+		printStage("dispatch", dispatch, true, results);
+		printStage("end-to-end", endToEnd, true, results);
+
+		// What the library measured itself; printed for comparison, not checked.
+		for (BillingMetrics.Timer timer : BillingMetrics.Timer.values()) {
+			Histogram histogram = BillingMetrics.getTimer(timer);
+			if (histogram.getCount() > 0) {
+				System.out.println(String.format("%-24s %8d %10d %10d %10d", timer.name().toLowerCase(Locale.US),
+						histogram.getCount(), histogram.getValueAtPercentile(50) / 1000,
+						histogram.getValueAtPercentile(99) / 1000, histogram.getMax() / 1000));
+			}
+		}
+	}
+
+	private static void printStage(String name, LongList nanos, boolean checked, Map<String, Long> results) {
+		long[] sorted = nanos.toSortedArray();
+		long p50 = percentile(sorted, 0.50) / 1000;
+		long p99 = percentile(sorted, 0.99) / 1000;
+		long max = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000;
+		System.out.println(String.format("%-24s %8d %10d %10d %10d", name, sorted.length, p50, p99, max));
+		if (checked) {
+			results.put(name + ".p50.micros", p50);
+			results.put(name + ".p99.micros", p99);
+		}
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * @return the system property, or else the value the baseline was recorded with, or else the default
+	 * @throws IllegalArgumentException if the system property and the baseline disagree
+	 */
+	private static long setting(Properties baseline, String key, long defaultValue) {
+		String recorded = baseline.getProperty(key);
+		Long value = Long.getLong(key);
+		if (value == null) {
+			return recorded == null ? defaultValue : Long.parseLong(recorded.trim());
+		}
+		if (recorded != null && value.longValue() != Long.parseLong(recorded.trim())) {
+			throw new IllegalArgumentException(key + " is " + value + ", but the baseline was recorded with " +
+					recorded.trim() + "; run with -Dload.updateBaseline=true to record a new one");
+		}
+		return value;
+	}
+
+	private static Properties readBaseline(File file) throws IOException {
+		Properties baseline = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			baseline.load(in);
+		} finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	/**
+	 * Compares the results with the baseline. A value regresses if it is larger than the baseline by more than the
+	 * baseline's tolerance and by more than the fixed slack for its kind. Latencies over that limit are only reported.
+	 *
+	 * @return true if nothing regressed
+	 */
+	private static boolean check(Properties baseline, Map<String, Long> results) {
+		double tolerance = Double.parseDouble(baseline.getProperty(TOLERANCE_KEY, String.valueOf(DEFAULT_TOLERANCE)));
+		boolean passed = true;
+		for (String key : baseline.stringPropertyNames()) {
+			if (key.equals(TOLERANCE_KEY) || key.startsWith("load.")) {
+				continue;
+			}
+			Long actual = results.get(key);
+			if (actual == null) {
+				System.out.println("baseline has " + key + ", which is no longer measured");
+				continue;
+			}
+			long expected = Long.parseLong(baseline.getProperty(key).trim());
+			long limit = Math.max((long) (expected * (1 + tolerance)), expected + slack(key));
+			if (actual > limit && key.endsWith(LATENCY_SUFFIX)) {
+				System.out.println(String.format("slower: %s is %d, baseline %d (reported, not checked)", key, actual,
+						expected));
+			}
+			else if (actual > limit) {
+				System.out.println(String.format("REGRESSION: %s is %d, baseline %d, limit %d", key, actual, expected,
+						limit));
+				passed = false;
+			}
+		}
+		return passed;
+	}
+
+	private static long slack(String key) {
+		if (key.endsWith(LATENCY_SUFFIX)) {
+			return SLACK_MICROS;
+		}
+		if (key.endsWith(".bytes")) {
+			return SLACK_BYTES;
+		}
+		return SLACK_THREADS;
+	}
+
+	/**
+	 * Writes the results in the order they were measured rather than in hash order, so a new baseline diffs cleanly.
+	 *
+	 * @param tolerance the tolerance to write, which is kept from the baseline this replaces
+	 */
+	private static void writeBaseline(File file, String tolerance, Map<String, Long> settings,
+									  Map<String, Long> results) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+		try {
+			out.println("# Recorded by PurchasePipelineLoadTest; checked by ant load-test, which runs with these settings");
+			out.println("# Values ending in " + LATENCY_SUFFIX +
+					" are wall-clock latencies, printed next to a run's but not checked");
+			for (Map.Entry<String, Long> entry : settings.entrySet()) {
+				out.println(entry.getKey() + "=" + entry.getValue());
+			}
+			out.println(TOLERANCE_KEY + "=" + tolerance);
+			for (Map.Entry<String, Long> entry : results.entrySet()) {
+				out.println(entry.getKey() + "=" + entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static FakeMarketBillingService.Profile toProfile(String name) {
+		if ("instant".equals(name)) {
+			return FakeMarketBillingService.Profile.instant();
+		}
+		if ("flaky".equals(name)) {
+			return FakeMarketBillingService.Profile.flaky();
+		}
+		if ("typical".equals(name)) {
+			return FakeMarketBillingService.Profile.typical();
+		}
+		throw new IllegalArgumentException("unknown profile: " + name);
+	}
+
+	private static Looper startMainThread() throws InterruptedException {
+		final Looper[] looper = new Looper[1];
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Looper.prepareMainLooper();
+				looper[0] = Looper.myLooper();
+				started.countDown();
+				Looper.loop();
+			}
+		}, "main");
+		thread.setDaemon(true);
+		thread.start();
+		started.await();
+		return looper[0];
+	}
+
+	private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runnable.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		done.await();
+	}
+
+	private static long usedHeapAfterGc(MemoryMXBean memory) {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("billing-load", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("could not create " + dir);
+		}
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static long size(File file) {
+		if (file.isFile()) {
+			return file.length();
+		}
+		long size = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				size += size(child);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Reads the nonce at the start of the signed data, without parsing the rest of it.
+	 */
+	private static long readNonce(String signedData) {
+		int start = signedData.indexOf("\"nonce\":");
+		if (start < 0) {
+			return 0;
+		}
+		start += "\"nonce\":".length();
+		int end = start;
+		while (end < signedData.length() && (signedData.charAt(end) == '-' || Character.isDigit(signedData.charAt(end)))) {
+			end++;
+		}
+		return Long.parseLong(signedData.substring(start, end));
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * One run of requested purchases.
+	 */
+	private static final class Phase {
+		final String mName;
+		final AtomicInteger mStarted = new AtomicInteger();
+		final AtomicInteger mFinished = new AtomicInteger();
+
+		Phase(String pName) {
+			mName = pName;
+		}
+	}
+
+	/**
+	 * When a requested purchase passed each stage, in System.nanoTime(). Only the first time counts for a stage a
+	 * purchase goes through again, as it does when a notification is sent again.
+	 */
+	private static final class Trace {
+		final Phase mPhase;
+		final String mPayload;
+		final long mRequested = System.nanoTime();
+		volatile long mRequestSent;
+		volatile long mNotified;
+		volatile long mInfoSent;
+		volatile long mVerified;
+		volatile long mPersisted;
+		volatile long mDispatched;
+		private final AtomicBoolean mFinished = new AtomicBoolean();
+
+		Trace(Phase pPhase) {
+			mPhase = pPhase;
+			mPayload = pPhase.mName + "-" + pPhase.mStarted.getAndIncrement();
+		}
+
+		/**
+		 * Counts the purchase as done, once.
+		 */
+		void finish() {
+			if (mFinished.compareAndSet(false, true)) {
+				mPhase.mFinished.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A growable array of primitive longs, so recording a sample does not box it.
+	 */
+	private static final class LongList {
+		private long[] mValues = new long[1024];
+		private int mSize;
+
+		void add(long value) {
+			if (mSize == mValues.length) {
+				mValues = Arrays.copyOf(mValues, mSize * 2);
+			}
+			mValues[mSize++] = value;
+		}
+
+		long[] toSortedArray() {
+			long[] sorted = Arrays.copyOf(mValues, mSize);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/**
+	 * Turns the fake Market's broadcasts into intents for the receiver, and notes when each notification was sent.
+	 */
+	private class MarketReceiver implements FakeMarketBillingService.Receiver {
+		@Override
+		public void onResponseCode(long requestId, Consts.ResponseCode responseCode) {
+			Intent intent = new Intent(Consts.ACTION_RESPONSE_CODE);
+			intent.putExtra(Consts.INAPP_REQUEST_ID, requestId);
+			intent.putExtra(Consts.INAPP_RESPONSE_CODE, responseCode.ordinal());
+			mContext.sendBroadcast(intent);
+		}
+
+		@Override
+		public void onNotify(String notifyId) {
+			Trace trace = findTrace(notifyId);
+			if (trace != null && trace.mNotified == 0) {
+				trace.mNotified = System.nanoTime();
+			}
+			Intent intent = new Intent(Consts.ACTION_NOTIFY);
+			intent.putExtra(Consts.NOTIFICATION_ID, notifyId);
+			mContext.sendBroadcast(intent);
+		}
+
+		@Override
+		public void onPurchaseStateChanged(String signedData, String signature) {
+			Intent intent = new Intent(Consts.ACTION_PURCHASE_STATE_CHANGED);
+			intent.putExtra(Consts.INAPP_SIGNED_DATA, signedData);
+			intent.putExtra(Consts.INAPP_SIGNATURE, signature);
+			mContext.sendBroadcast(intent);
+		}
+	}
+
+	private Trace findTrace(String notifyId) {
+		FakeMarketBillingService.Order order = mMarket.getOrder(notifyId);
+		return order == null || order.mDeveloperPayload == null ? null : mTraces.get(order.mDeveloperPayload);
+	}
+
+	/**
+	 * Notes the calls to the MarketBillingService and the commands the service runs.
+	 */
+	private class Probe implements LoadTestContext.Listener {
+		@Override
+		public void onBillingRequest(Bundle request, Bundle response, long startNanos) {
+			String method = request.getString(Consts.BILLING_REQUEST_METHOD);
+			if ("REQUEST_PURCHASE".equals(method)) {
+				Trace trace = mTraces.get(request.getString(Consts.BILLING_REQUEST_DEVELOPER_PAYLOAD));
+				if (trace == null) {
+					return;
+				}
+				if (trace.mRequestSent == 0) {
+					trace.mRequestSent = startNanos;
+				}
+				// A call that threw is sent again once the service is back, but an error code is final.
+				if (response != null && response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE) !=
+						Consts.ResponseCode.RESULT_OK.ordinal()) {
+					trace.finish();
+				}
+			}
+			else if ("GET_PURCHASE_INFORMATION".equals(method) && response != null) {
+				List<Trace> traces = new ArrayList<Trace>();
+				for (String notifyId : request.getStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS)) {
+					Trace trace = findTrace(notifyId);
+					if (trace != null) {
+						if (trace.mInfoSent == 0) {
+							trace.mInfoSent = startNanos;
+						}
+						traces.add(trace);
+					}
+				}
+				mTracesByNonce.put(request.getLong(Consts.BILLING_REQUEST_NONCE), traces);
+			}
+		}
+
+		@Override
+		public void onCommand(Intent intent, long queuedNanos, long startNanos, long endNanos) {
+			if (mMeasuring) {
+				mReceiveNanos.add(startNanos - queuedNanos);
+			}
+			if (Consts.ACTION_PURCHASE_STATE_CHANGED.equals(intent.getAction())) {
+				if (mMeasuring) {
+					mVerifyNanos.add(endNanos - startNanos);
+				}
+				List<Trace> traces = mTracesByNonce.remove(readNonce(intent.getStringExtra(Consts.INAPP_SIGNED_DATA)));
+				if (traces != null) {
+					for (Trace trace : traces) {
+						if (trace.mVerified == 0) {
+							trace.mVerified = endNanos;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports purchases on the main thread, as an application's observer does.
+	 */
+	private class Observer extends PurchaseObserver {
+		Observer() {
+			super(mContext, mMainHandler);
+		}
+
+		@Override
+		void postPurchaseStateChange(Consts.PurchaseState purchaseState, String itemId, int quantity,
+									 long purchaseTime, String developerPayload) {
+			Trace trace = developerPayload == null ? null : mTraces.get(developerPayload);
+			if (trace != null && trace.mPersisted == 0) {
+				trace.mPersisted = System.nanoTime();
+			}
+			super.postPurchaseStateChange(purchaseState, itemId, quantity, purchaseTime, developerPayload);
+		}
+
+		@Override
+		public void onPurchaseStateChange(Consts.PurchaseState purchaseState, String itemId, int quantity,
+										  long purchaseTime, String developerPayload) {
+			Trace trace = developerPayload == null ? null : mTraces.get(developerPayload);
+			if (trace != null && trace.mDispatched == 0) {
+				trace.mDispatched = System.nanoTime();
+				trace.finish();
+			}
+		}
+
+		@Override
+		public void onBillingSupported(boolean supported, String type) {
+		}
+
+		@Override
+		public void onRequestPurchaseResponse(PlayBillingService.RequestPurchase request,
+											  Consts.ResponseCode responseCode) {
+			// A purchase the user backed out of never reaches the observer.
+			Trace trace = mTraces.get(request.mDeveloperPayload);
+			if (trace != null && responseCode != Consts.ResponseCode.RESULT_OK) {
+				trace.finish();
+			}
+		}
+
+		@Override
+		public void onRestoreTransactionsResponse(PlayBillingService.RestoreTransactions request,
+												  Consts.ResponseCode responseCode) {
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.trust5.billing.library.googleplay;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link PurchaseDatabase} keeps the "purchased" quantities up to date when orders arrive, through the
+ * SQLite shims on top of sqlite-jdbc.
+ * <p/>
+ * Each invocation delivers the same orders again, the way RESTORE_TRANSACTIONS delivers orders that are already in the
+ * history, so the tables keep the same size from one invocation to the next.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PurchaseQuantityBenchmark {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final int PRODUCT_COUNT = 20;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	/**
+	 * The number of orders already in the history table.
+	 */
+	@Param({"100", "1000", "10000"})
+	int mHistorySize;
+
+	/**
+	 * The number of orders delivered together.
+	 */
+	@Param({"1", "100"})
+	int mBatchSize;
+
+	private BenchmarkContext mContext;
+	private PurchaseDatabase mDatabase;
+	private List<Security.VerifiedPurchase> mBatch;
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	@Setup
+	public void setUp() throws IOException {
+		mContext = new BenchmarkContext();
+		mDatabase = new PurchaseDatabase(mContext);
+		List<Security.VerifiedPurchase> history = new ArrayList<Security.VerifiedPurchase>(mHistorySize);
+		for (int i = 0; i < mHistorySize; i++) {
+			Consts.PurchaseState state = i % 7 == 0 ? Consts.PurchaseState.REFUNDED :
+					i % 11 == 0 ? Consts.PurchaseState.CANCELED : Consts.PurchaseState.PURCHASED;
+			history.add(new Security.VerifiedPurchase(state, null, "item_" + (i % PRODUCT_COUNT),
+					"12999763169054705758." + (1371000000000000L + i), 1290000000000L + i * 1000L, null));
+		}
+		for (int i = 0; i < mHistorySize; i += Consts.PURCHASE_INGEST_CHUNK_SIZE) {
+			mDatabase.updatePurchases(history.subList(i, Math.min(i + Consts.PURCHASE_INGEST_CHUNK_SIZE, mHistorySize)));
+		}
+		mBatch = new ArrayList<Security.VerifiedPurchase>(history.subList(mHistorySize - mBatchSize, mHistorySize));
+	}
+
+	@TearDown
+	public void tearDown() {
+		mDatabase.close();
+		mContext.delete();
+	}
+
+	/**
+	 * Every order on its own, in a transaction of its own, the way a single purchase arrives.
+	 */
+	@Benchmark
+	public int perOrder() {
+		int total = 0;
+		for (Security.VerifiedPurchase purchase : mBatch) {
+			total += mDatabase.updatePurchase(purchase.orderId, purchase.productId, purchase.purchaseState,
+					purchase.purchaseTime, purchase.developerPayload);
+		}
+		return total;
+	}
+
+	/**
+	 * The whole batch in one transaction, with each product's quantity written once.
+	 */
+	@Benchmark
+	public int[] batch() {
+		return mDatabase.updatePurchases(mBatch);
+	}
+}
@@ -0,0 +1,145 @@
+package com.trust5.billing.library.googleplay;
+
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.PurchaseRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same purchases through each {@link PurchaseStore}: {@link PurchaseDatabase} through the SQLite shims on top
+ * of sqlite-jdbc, and {@link PurchaseLogStore}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PurchaseStoreBenchmark {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final int PRODUCT_COUNT = 20;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	@Param({"sqlite", "log"})
+	String mStoreType;
+
+	/**
+	 * The number of orders already in the store.
+	 */
+	@Param({"1000", "10000"})
+	int mHistorySize;
+
+	/**
+	 * The number of orders delivered together.
+	 */
+	@Param({"1", "100"})
+	int mBatchSize;
+
+	private BenchmarkContext mContext;
+	private File mFile;
+	private PurchaseStore mStore;
+	private List<Security.VerifiedPurchase> mHistory;
+	private long mNextOrder;
+	private int mRedeliveryOffset;
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	@Setup
+	public void setUp() throws IOException {
+		mContext = new BenchmarkContext();
+		mFile = new File(mContext.getFilesDir(), PurchaseLogStore.FILE_NAME);
+		mStore = open();
+		mHistory = new ArrayList<Security.VerifiedPurchase>(mHistorySize);
+		for (int i = 0; i < mHistorySize; i++) {
+			mHistory.add(newPurchase());
+		}
+		for (int i = 0; i < mHistorySize; i += Consts.PURCHASE_INGEST_CHUNK_SIZE) {
+			mStore.updatePurchases(mHistory.subList(i, Math.min(i + Consts.PURCHASE_INGEST_CHUNK_SIZE, mHistorySize)));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mStore.close();
+		mContext.delete();
+	}
+
+	/**
+	 * Orders that have not been seen before, the way they arrive while an application sells unmanaged items.
+	 */
+	@Benchmark
+	public int[] newOrders() {
+		List<Security.VerifiedPurchase> batch = new ArrayList<Security.VerifiedPurchase>(mBatchSize);
+		for (int i = 0; i < mBatchSize; i++) {
+			batch.add(newPurchase());
+		}
+		return mStore.updatePurchases(batch);
+	}
+
+	/**
+	 * Orders that are already in the store, the way RESTORE_TRANSACTIONS delivers them. The log store compacts while
+	 * this runs.
+	 */
+	@Benchmark
+	public int[] redeliveredOrders() {
+		int start = mRedeliveryOffset;
+		mRedeliveryOffset = (mRedeliveryOffset + mBatchSize) % (mHistorySize - mBatchSize + 1);
+		return mStore.updatePurchases(mHistory.subList(start, start + mBatchSize));
+	}
+
+	@Benchmark
+	public List<Entitlement> queryAllPurchasedItems() {
+		return mStore.queryAllPurchasedItems();
+	}
+
+	/**
+	 * The first page of the purchase history, newest orders first.
+	 */
+	@Benchmark
+	public List<PurchaseRecord> queryPurchaseHistoryPage() {
+		return mStore.queryPurchaseHistory(null, Consts.OWNED_ITEMS_PAGE_SIZE);
+	}
+
+	/**
+	 * Opening includes reading the whole file back for the log store.
+	 */
+	@Benchmark
+	public List<Entitlement> reopen() {
+		mStore.close();
+		mStore = open();
+		return mStore.queryAllPurchasedItems();
+	}
+
+	private PurchaseStore open() {
+		return "log".equals(mStoreType) ? new PurchaseLogStore(mFile) : new PurchaseDatabase(mContext);
+	}
+
+	private Security.VerifiedPurchase newPurchase() {
+		long order = mNextOrder++;
+		return new Security.VerifiedPurchase(Consts.PurchaseState.PURCHASED, null, "item_" + order % PRODUCT_COUNT,
+				"12999763169054705758." + (1371000000000000L + order), 1290000000000L + order * 1000L, null);
+	}
+}
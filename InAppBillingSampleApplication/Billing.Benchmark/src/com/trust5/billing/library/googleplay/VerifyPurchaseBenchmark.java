@@ -0,0 +1,131 @@
+package com.trust5.billing.library.googleplay;
+
+import com.trust5.billing.library.util.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Security#verifyPurchase} on signed data shaped like a PURCHASE_STATE_CHANGED message, from a single
+ * purchase up to the thousands of orders a RESTORE_TRANSACTIONS response can carry. The data is signed with a key
+ * generated for the run, the same way the Market signs it with the application's key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VerifyPurchaseBenchmark {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String PACKAGE_NAME = "com.trust5.billing.sample";
+	private static final int PRODUCT_COUNT = 20;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	@Param({"1", "10", "100", "1000", "5000"})
+	int mOrderCount;
+
+	private SignatureVerifier mVerifier;
+	private long mNonce;
+	private String mSignedData;
+	private String mSignature;
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	@Setup
+	public void setUp() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+		mVerifier = new SignatureVerifier(Base64.encode(keyPair.getPublic().getEncoded()));
+
+		mNonce = Security.generateNonce();
+		mSignedData = buildSignedData(mNonce, mOrderCount);
+		Signature signer = Signature.getInstance("SHA1withRSA");
+		signer.initSign(keyPair.getPrivate());
+		signer.update(mSignedData.getBytes());
+		mSignature = Base64.encode(signer.sign());
+	}
+
+	/**
+	 * Verifies and reads the message the way {@link PlayBillingService} does, handing each order on as it is read.
+	 */
+	@Benchmark
+	public boolean verifyPurchase(final Blackhole blackhole) {
+		// A successful verification forgets the nonce.
+		Security.getNonces().add(mNonce);
+		return Security.verifyPurchase(mVerifier, mSignedData, mSignature, new Security.PurchaseConsumer() {
+			@Override
+			public void onPurchase(Security.VerifiedPurchase purchase) {
+				blackhole.consume(purchase);
+			}
+		});
+	}
+
+	/**
+	 * Verifies the message and collects the orders into a list, as callers of the list returning method do.
+	 */
+	@Benchmark
+	public ArrayList<Security.VerifiedPurchase> verifyPurchaseList() {
+		Security.getNonces().add(mNonce);
+		final ArrayList<Security.VerifiedPurchase> purchases = new ArrayList<Security.VerifiedPurchase>();
+		Security.verifyPurchase(mVerifier, mSignedData, mSignature, new Security.PurchaseConsumer() {
+			@Override
+			public void onPurchase(Security.VerifiedPurchase purchase) {
+				purchases.add(purchase);
+			}
+		});
+		return purchases;
+	}
+
+	/**
+	 * The signature check on its own, to tell hashing the data apart from parsing it.
+	 */
+	@Benchmark
+	public boolean verifySignature() {
+		return mVerifier.verify(mSignedData, mSignature);
+	}
+
+	private static String buildSignedData(long nonce, int orderCount) {
+		StringBuilder builder = new StringBuilder(orderCount * 256);
+		builder.append("{\"nonce\":").append(nonce).append(",\"orders\":[");
+		for (int i = 0; i < orderCount; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append("{\"notificationId\":\"").append(1000000000000000000L + i).append('"')
+					.append(",\"orderId\":\"12999763169054705758.").append(1371000000000000L + i).append('"')
+					.append(",\"packageName\":\"").append(PACKAGE_NAME).append('"')
+					.append(",\"productId\":\"").append(PACKAGE_NAME).append(".item_").append(i % PRODUCT_COUNT)
+					.append('"')
+					.append(",\"purchaseTime\":").append(1290000000000L + i * 1000L)
+					.append(",\"purchaseState\":").append(i % 7 == 0 ? 2 : 0)
+					.append(",\"developerPayload\":\"payload-").append(i).append('"')
+					.append('}');
+		}
+		builder.append("]}");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,85 @@
+package com.trust5.billing.library.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Base64} on the sizes it sees in practice: every purchase notification carries one RSA signature,
+ * which is 128, 256 or 512 bytes for a 1024, 2048 or 4096 bit key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	@Param({"128", "256", "512"})
+	int mSize;
+
+	private byte[] mRaw;
+	private String mEncoded;
+	private byte[] mEncodedBytes;
+	private byte[] mEncodeBuffer;
+	private Base64.Decoder mDecoder;
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	@Setup
+	public void setUp() {
+		mRaw = new byte[mSize];
+		new Random(mSize).nextBytes(mRaw);
+		mEncoded = Base64.encode(mRaw);
+		mEncodedBytes = mEncoded.getBytes();
+		mEncodeBuffer = new byte[Base64.encodedLength(mSize)];
+		mDecoder = new Base64.Decoder();
+	}
+
+	/**
+	 * The allocating call the library made for every signature before it kept a decoder per thread.
+	 */
+	@Benchmark
+	public byte[] decodeString() throws Base64DecoderException {
+		return Base64.decode(mEncoded);
+	}
+
+	@Benchmark
+	public byte[] decodeBytes() throws Base64DecoderException {
+		return Base64.decode(mEncodedBytes);
+	}
+
+	/**
+	 * What {@code SignatureVerifier} does: decode into a reused buffer.
+	 */
+	@Benchmark
+	public int decodeIntoBuffer() throws Base64DecoderException {
+		return mDecoder.decode(mEncoded);
+	}
+
+	@Benchmark
+	public String encodeString() {
+		return Base64.encode(mRaw);
+	}
+
+	@Benchmark
+	public int encodeIntoBuffer() {
+		return Base64.encode(mRaw, 0, mRaw.length, true, mEncodeBuffer, 0);
+	}
+}
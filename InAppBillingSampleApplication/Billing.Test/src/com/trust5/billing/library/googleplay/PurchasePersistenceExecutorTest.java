@@ -0,0 +1,134 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that submitting to a {@link PurchasePersistenceExecutor} whose queue is full neither waits nor loses or
+ * reorders a task.
+ */
+public class PurchasePersistenceExecutorTest extends AndroidTestCase {
+
+	Context mContext;
+	PurchasePersistenceExecutor mExecutor;
+	List<Integer> mApplied = Collections.synchronizedList(new ArrayList<Integer>());
+	int mMergedRuns;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "executor.");
+		mContext.deleteDatabase("purchase.db");
+		mExecutor = new PurchasePersistenceExecutor(mContext);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		final CountDownLatch closed = new CountDownLatch(1);
+		mExecutor.execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				store.close();
+				closed.countDown();
+			}
+		});
+		closed.await(10, TimeUnit.SECONDS);
+		mContext.deleteDatabase("purchase.db");
+		super.tearDown();
+	}
+
+	@MediumTest
+	public void testFullQueueOverflowsWithoutWaiting() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		mExecutor.execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		final int capacity = Consts.PURCHASE_PERSISTENCE_QUEUE_CAPACITY;
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < capacity; i++) {
+					mExecutor.execute(new Applied(i));
+				}
+				mExecutor.execute(new MergedApplied(capacity));
+				mExecutor.execute(new MergedApplied(capacity + 1));
+				mExecutor.execute(new MergedApplied(capacity + 2));
+				mExecutor.execute(new Applied(capacity + 3));
+				mExecutor.execute(new MergedApplied(capacity + 4));
+				mExecutor.execute(new MergedApplied(capacity + 5));
+			}
+		};
+		submitter.start();
+		submitter.join(10000);
+		assertFalse("submitting waited for the writer", submitter.isAlive());
+		assertEquals(capacity + 3, mExecutor.getPendingCount());
+
+		final CountDownLatch done = new CountDownLatch(1);
+		mExecutor.execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				done.countDown();
+			}
+		});
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(capacity + 6, mApplied.size());
+		for (int i = 0; i < mApplied.size(); i++) {
+			assertEquals(i, mApplied.get(i).intValue());
+		}
+		assertEquals(2, mMergedRuns);
+		assertEquals(0, mExecutor.getPendingCount());
+	}
+
+	private class Applied implements PurchasePersistenceExecutor.Task {
+		final List<Integer> mIds = new ArrayList<Integer>();
+
+		Applied(int id) {
+			mIds.add(id);
+		}
+
+		@Override
+		public void run(PurchaseStore store) {
+			mApplied.addAll(mIds);
+		}
+	}
+
+	private class MergedApplied extends Applied implements PurchasePersistenceExecutor.MergeableTask {
+
+		MergedApplied(int id) {
+			super(id);
+		}
+
+		@Override
+		public boolean merge(PurchasePersistenceExecutor.MergeableTask next) {
+			mIds.addAll(((MergedApplied) next).mIds);
+			return true;
+		}
+
+		@Override
+		public void run(PurchaseStore store) {
+			mMergedRuns++;
+			super.run(store);
+		}
+	}
+}
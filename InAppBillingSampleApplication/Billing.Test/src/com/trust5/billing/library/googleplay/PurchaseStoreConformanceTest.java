@@ -0,0 +1,403 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import com.trust5.billing.library.BillingResult;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.PurchaseRecord;
+import com.trust5.billing.library.util.Base64;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the same purchases through every {@link PurchaseStore} and checks that each one reports what the contract on
+ * {@link PurchaseStore} says, and that they all report the same thing.
+ */
+public class PurchaseStoreConformanceTest extends AndroidTestCase {
+
+	private static final String SQLITE = "sqlite";
+	private static final String LOG = "log";
+	private static final String[] STORE_TYPES = {SQLITE, LOG};
+
+	Context mContext;
+	File mLogFile;
+	List<PurchaseStore> mOpenStores = new ArrayList<PurchaseStore>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "conformance.");
+		mContext.deleteDatabase("purchase.db");
+		mLogFile = new File(getContext().getCacheDir(), "conformance." + PurchaseLogStore.FILE_NAME);
+		mLogFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (PurchaseStore store : mOpenStores) {
+			store.close();
+		}
+		mContext.deleteDatabase("purchase.db");
+		mLogFile.delete();
+		super.tearDown();
+	}
+
+	@SmallTest
+	public void testPurchasedAndRefundedOrdersAreCounted() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			assertEquals(type, 1, store.updatePurchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000, null));
+			assertEquals(type, 2, store.updatePurchase("2", "gas", Consts.PurchaseState.REFUNDED, 2000, null));
+			assertEquals(type, 2, store.updatePurchase("3", "gas", Consts.PurchaseState.CANCELED, 3000, null));
+			assertEquals(type, 0, store.updatePurchase("4", "potion", Consts.PurchaseState.CANCELED, 4000, null));
+		}
+	}
+
+	@SmallTest
+	public void testRecordingAnOrderAgainReplacesIt() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			assertEquals(type, 1, store.updatePurchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000, null));
+			assertEquals(type, 1, store.updatePurchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000, "again"));
+			assertEquals(type, 0, store.updatePurchase("1", "gas", Consts.PurchaseState.CANCELED, 1000, null));
+			assertEquals(type, 0, store.queryAllPurchasedItems().size());
+		}
+	}
+
+	@SmallTest
+	public void testBatchReturnsTheQuantityAfterEachPurchase() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			int[] quantities = store.updatePurchases(Arrays.asList(
+					purchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000),
+					purchase("2", "potion", Consts.PurchaseState.PURCHASED, 2000),
+					purchase("3", "gas", Consts.PurchaseState.PURCHASED, 3000),
+					purchase("1", "gas", Consts.PurchaseState.CANCELED, 1000)));
+			assertEquals(type, "[1, 1, 2, 1]", Arrays.toString(quantities));
+		}
+	}
+
+	@SmallTest
+	public void testPurchasedItemsAreSortedWithTheLatestState() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			store.updatePurchases(Arrays.asList(
+					purchase("1", "potion", Consts.PurchaseState.PURCHASED, 1000),
+					purchase("2", "gas", Consts.PurchaseState.REFUNDED, 3000),
+					purchase("3", "gas", Consts.PurchaseState.PURCHASED, 2000),
+					purchase("4", "sword", Consts.PurchaseState.CANCELED, 4000)));
+			List<Entitlement> items = store.queryAllPurchasedItems();
+			assertEquals(type, Arrays.asList(
+					new Entitlement("gas", 2, BillingResult.PurchaseState.REFUNDED),
+					new Entitlement("potion", 1, BillingResult.PurchaseState.PURCHASED)), items);
+		}
+	}
+
+	@SmallTest
+	public void testPurchasedItemsArePagedByProductId() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			store.updatePurchases(Arrays.asList(
+					purchase("1", "e", Consts.PurchaseState.PURCHASED, 1000),
+					purchase("2", "a", Consts.PurchaseState.PURCHASED, 2000),
+					purchase("3", "d", Consts.PurchaseState.PURCHASED, 3000),
+					purchase("4", "b", Consts.PurchaseState.CANCELED, 4000),
+					purchase("5", "c", Consts.PurchaseState.PURCHASED, 5000)));
+			assertEquals(type, "[a, c]", skus(store.queryPurchasedItems(null, 2)));
+			assertEquals(type, "[d, e]", skus(store.queryPurchasedItems("c", 2)));
+			assertEquals(type, "[d, e]", skus(store.queryPurchasedItems("b", 10)));
+			assertEquals(type, "[]", skus(store.queryPurchasedItems("e", 2)));
+		}
+	}
+
+	@SmallTest
+	public void testHistoryIsPagedNewestFirst() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			store.updatePurchases(Arrays.asList(
+					purchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000),
+					purchase("2", "gas", Consts.PurchaseState.PURCHASED, 3000),
+					purchase("3", "potion", Consts.PurchaseState.PURCHASED, 2000),
+					purchase("4", "potion", Consts.PurchaseState.PURCHASED, 3000),
+					purchase("1", "gas", Consts.PurchaseState.REFUNDED, 1000)));
+			List<PurchaseRecord> first = store.queryPurchaseHistory(null, 3);
+			assertEquals(type, "[4, 2, 3]", orderIds(first));
+			List<PurchaseRecord> second = store.queryPurchaseHistory(first.get(2), 3);
+			assertEquals(type, Arrays.asList(
+					new PurchaseRecord("1", "gas", BillingResult.PurchaseState.REFUNDED, 1000, null)), second);
+			assertEquals(type, "[2, 3, 1]", orderIds(store.queryPurchaseHistory(first.get(0), 10)));
+		}
+	}
+
+	@SmallTest
+	public void testPurchasesSurviveReopening() {
+		for (String type : STORE_TYPES) {
+			PurchaseStore store = open(type);
+			store.updatePurchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000, "payload");
+			store.updatePurchase("2", "gas", Consts.PurchaseState.PURCHASED, 2000, null);
+			List<Entitlement> before = store.queryAllPurchasedItems();
+			store.close();
+			mOpenStores.remove(store);
+
+			store = open(type);
+			assertEquals(type, before, store.queryAllPurchasedItems());
+			assertEquals(type, 1, store.updatePurchase("2", "gas", Consts.PurchaseState.CANCELED, 2000, null));
+		}
+	}
+
+	@MediumTest
+	public void testRebuildingFromTheJournalRestoresEveryStore() throws Exception {
+		File journalFile = new File(getContext().getCacheDir(), "conformance." + PurchaseJournal.FILE_NAME);
+		journalFile.delete();
+		PurchaseJournal journal = new PurchaseJournal(journalFile);
+		try {
+			List<Security.VerifiedPurchase> purchases = Arrays.asList(
+					purchase("1", "gas", Consts.PurchaseState.PURCHASED, 1000),
+					purchase("2", "potion", Consts.PurchaseState.PURCHASED, 2000),
+					purchase("1", "gas", Consts.PurchaseState.REFUNDED, 1000),
+					purchase("3", "potion", Consts.PurchaseState.PURCHASED, 3000),
+					purchase("2", "potion", Consts.PurchaseState.CANCELED, 2000));
+			journal.appendPurchases(purchases);
+			journal.appendResponseCode(7, "RequestPurchase", Consts.ResponseCode.RESULT_OK);
+			assertEquals(5, journal.getPurchaseCount());
+
+			for (String type : STORE_TYPES) {
+				PurchaseStore expected = open(type);
+				expected.updatePurchases(purchases);
+				List<Entitlement> items = expected.queryAllPurchasedItems();
+				expected.close();
+				mOpenStores.remove(expected);
+				if (SQLITE.equals(type)) {
+					mContext.deleteDatabase("purchase.db");
+				}
+				else {
+					mLogFile.delete();
+				}
+
+				PurchaseStore rebuilt = open(type);
+				assertEquals(type, 3, journal.rebuild(rebuilt));
+				assertEquals(type, items, rebuilt.queryAllPurchasedItems());
+			}
+		} finally {
+			journal.close();
+			journalFile.delete();
+		}
+	}
+
+	@MediumTest
+	public void testRotatedJournalStillRestoresEveryStore() throws Exception {
+		File journalFile = new File(getContext().getCacheDir(), "conformance." + PurchaseJournal.FILE_NAME);
+		File previousFile = new File(journalFile.getPath() + PurchaseJournal.PREVIOUS_FILE_SUFFIX);
+		journalFile.delete();
+		previousFile.delete();
+		PurchaseJournal journal = new PurchaseJournal(journalFile);
+		try {
+			// Every order is journaled three times, so the journal rotates once it has enough entries.
+			List<Security.VerifiedPurchase> purchases = new ArrayList<Security.VerifiedPurchase>();
+			Consts.PurchaseState[] states = Consts.PurchaseState.values();
+			int orders = Consts.PURCHASE_JOURNAL_ROTATION_MIN_ENTRIES / 2;
+			for (int i = 0; i < 3 * orders; i++) {
+				int order = i % orders;
+				purchases.add(purchase(String.valueOf(order), "item_" + order % 13, states[i / orders], 1000L * order));
+			}
+			for (int i = 0; i < purchases.size(); i += Consts.PURCHASE_INGEST_CHUNK_SIZE) {
+				journal.appendPurchases(purchases.subList(i,
+						Math.min(i + Consts.PURCHASE_INGEST_CHUNK_SIZE, purchases.size())));
+			}
+			assertTrue(previousFile.exists());
+			assertTrue(journal.getPurchaseCount() < purchases.size());
+			journal.close();
+			journal = new PurchaseJournal(journalFile);
+
+			for (String type : STORE_TYPES) {
+				PurchaseStore expected = open(type);
+				expected.updatePurchases(purchases);
+				List<Entitlement> items = expected.queryAllPurchasedItems();
+				expected.close();
+				mOpenStores.remove(expected);
+				if (SQLITE.equals(type)) {
+					mContext.deleteDatabase("purchase.db");
+				}
+				else {
+					mLogFile.delete();
+				}
+
+				PurchaseStore rebuilt = open(type);
+				assertEquals(type, orders, journal.rebuild(rebuilt));
+				assertEquals(type, items, rebuilt.queryAllPurchasedItems());
+			}
+		} finally {
+			journal.close();
+			journalFile.delete();
+			previousFile.delete();
+		}
+	}
+
+	/**
+	 * A message that turns out to be malformed after some of its chunks were stored is sent again by Market, since its
+	 * notifications were not confirmed. Storing it again must leave every store as if it had only been received once.
+	 */
+	@MediumTest
+	public void testRedeliveryAfterAMalformedMessageIsIdempotent() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		KeyPair keyPair = generator.generateKeyPair();
+		SignatureVerifier verifier = new SignatureVerifier(Base64.encode(keyPair.getPublic().getEncoded()));
+		int orders = Consts.PURCHASE_INGEST_CHUNK_SIZE * 5 / 2;
+
+		for (String type : STORE_TYPES) {
+			long nonce = Security.generateNonce();
+			String malformed = signedData(nonce, orders, orders - 10);
+			String wellFormed = signedData(nonce, orders, -1);
+
+			PurchaseStore store = open(type);
+			ChunkedIngest ingest = new ChunkedIngest(store);
+			assertFalse(type, Security.verifyPurchase(verifier, malformed, sign(keyPair, malformed), ingest));
+			assertEquals(type, 2 * Consts.PURCHASE_INGEST_CHUNK_SIZE, ingest.mStored);
+			assertTrue(type, Security.isNonceKnown(nonce));
+
+			ingest = new ChunkedIngest(store);
+			assertTrue(type, Security.verifyPurchase(verifier, wellFormed, sign(keyPair, wellFormed), ingest));
+			ingest.flush();
+			assertEquals(type, orders, ingest.mStored);
+			assertFalse(type, Security.isNonceKnown(nonce));
+			List<Entitlement> items = store.queryAllPurchasedItems();
+			List<PurchaseRecord> history = store.queryPurchaseHistory(null, Integer.MAX_VALUE);
+			store.close();
+			mOpenStores.remove(store);
+			if (SQLITE.equals(type)) {
+				mContext.deleteDatabase("purchase.db");
+			}
+			else {
+				mLogFile.delete();
+			}
+
+			PurchaseStore once = open(type);
+			ingest = new ChunkedIngest(once);
+			String sameOrders = signedData(Security.generateNonce(), orders, -1);
+			assertTrue(type, Security.verifyPurchase(verifier, sameOrders, sign(keyPair, sameOrders), ingest));
+			ingest.flush();
+			assertEquals(type, once.queryAllPurchasedItems(), items);
+			assertEquals(type, once.queryPurchaseHistory(null, Integer.MAX_VALUE), history);
+		}
+	}
+
+	/**
+	 * Enough orders, most of them recorded more than once, to make the log store compact several times.
+	 */
+	@MediumTest
+	public void testStoresAgreeOnARandomHistory() {
+		PurchaseStore database = open(SQLITE);
+		PurchaseStore log = open(LOG);
+		Random random = new Random(42);
+		Consts.PurchaseState[] states = Consts.PurchaseState.values();
+		for (int batch = 0; batch < 200; batch++) {
+			List<Security.VerifiedPurchase> purchases = new ArrayList<Security.VerifiedPurchase>();
+			int size = 1 + random.nextInt(Consts.PURCHASE_INGEST_CHUNK_SIZE);
+			for (int i = 0; i < size; i++) {
+				int order = random.nextInt(500);
+				purchases.add(purchase(String.valueOf(order), "item_" + order % 13,
+						states[random.nextInt(states.length)], 1000L * order));
+			}
+			assertEquals("batch " + batch, Arrays.toString(database.updatePurchases(purchases)),
+					Arrays.toString(log.updatePurchases(purchases)));
+		}
+		assertEquals(database.queryAllPurchasedItems(), log.queryAllPurchasedItems());
+		PurchaseRecord last = null;
+		do {
+			List<PurchaseRecord> page = database.queryPurchaseHistory(last, 37);
+			assertEquals(page, log.queryPurchaseHistory(last, 37));
+			last = page.isEmpty() ? null : page.get(page.size() - 1);
+		} while (last != null);
+		assertTrue(((PurchaseLogStore) log).getRecordCount() < 200 * Consts.PURCHASE_INGEST_CHUNK_SIZE / 2);
+	}
+
+	/**
+	 * Builds a PURCHASE_STATE_CHANGED message in which some orders are refunded after being bought earlier in the same
+	 * message. If {@code malformedAt} is an order index, that order's purchase time is not a valid number.
+	 */
+	private static String signedData(long nonce, int orders, int malformedAt) {
+		StringBuilder data = new StringBuilder("{\"nonce\":").append(nonce).append(",\"orders\":[");
+		for (int i = 0; i < orders; i++) {
+			int order = i % (orders - 30);
+			data.append(i == 0 ? "" : ",").append("{\"notificationId\":\"n").append(i)
+					.append("\",\"orderId\":\"").append(order)
+					.append("\",\"packageName\":\"com.example\",\"productId\":\"item_").append(order % 13)
+					.append("\",\"purchaseState\":").append(i == order ? 0 : 2)
+					.append(",\"purchaseTime\":").append(1000L * order).append(i == malformedAt ? "x" : "")
+					.append('}');
+		}
+		return data.append("]}").toString();
+	}
+
+	private static String sign(KeyPair keyPair, String data) throws Exception {
+		Signature signature = Signature.getInstance("SHA1withRSA");
+		signature.initSign(keyPair.getPrivate());
+		signature.update(data.getBytes());
+		return Base64.encode(signature.sign());
+	}
+
+	/**
+	 * Stores verified purchases in chunks the way the service does, and counts the orders it has stored.
+	 */
+	private static class ChunkedIngest implements Security.PurchaseConsumer {
+		private final PurchaseStore mStore;
+		private final List<Security.VerifiedPurchase> mChunk = new ArrayList<Security.VerifiedPurchase>();
+		int mStored;
+
+		ChunkedIngest(PurchaseStore store) {
+			mStore = store;
+		}
+
+		@Override
+		public void onPurchase(Security.VerifiedPurchase purchase) {
+			mChunk.add(purchase);
+			if (mChunk.size() >= Consts.PURCHASE_INGEST_CHUNK_SIZE) {
+				flush();
+			}
+		}
+
+		void flush() {
+			mStore.updatePurchases(mChunk);
+			mStored += mChunk.size();
+			mChunk.clear();
+		}
+	}
+
+	private PurchaseStore open(String type) {
+		PurchaseStore store = SQLITE.equals(type) ? new PurchaseDatabase(mContext) : new PurchaseLogStore(mLogFile);
+		mOpenStores.add(store);
+		return store;
+	}
+
+	private static String skus(List<Entitlement> items) {
+		List<String> skus = new ArrayList<String>();
+		for (Entitlement item : items) {
+			skus.add(item.getSku());
+		}
+		return skus.toString();
+	}
+
+	private static String orderIds(List<PurchaseRecord> records) {
+		List<String> orderIds = new ArrayList<String>();
+		for (PurchaseRecord record : records) {
+			orderIds.add(record.getOrderId());
+		}
+		return orderIds.toString();
+	}
+
+	private static Security.VerifiedPurchase purchase(String orderId, String productId, Consts.PurchaseState state,
+													  long purchaseTime) {
+		return new Security.VerifiedPurchase(state, null, productId, orderId, purchaseTime, null);
+	}
+}
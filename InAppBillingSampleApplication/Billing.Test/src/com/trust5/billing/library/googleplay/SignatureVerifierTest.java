@@ -0,0 +1,68 @@
+package com.trust5.billing.library.googleplay;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.trust5.billing.library.util.Base64;
+import junit.framework.TestCase;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+/**
+ * Checks that a {@link SignatureVerifier} gives the same answer for a message however the messages before it on the
+ * same thread went.
+ */
+public class SignatureVerifierTest extends TestCase {
+
+	private static final String SIGNED_DATA = "{\"nonce\":1,\"orders\":[{\"productId\":\"gas\",\"purchaseState\":0}]}";
+
+	KeyPair mKeyPair;
+	SignatureVerifier mVerifier;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		mKeyPair = generator.generateKeyPair();
+		mVerifier = new SignatureVerifier(Base64.encode(mKeyPair.getPublic().getEncoded()));
+	}
+
+	@SmallTest
+	public void testMalformedSignatureDoesNotAffectTheNextVerification() throws Exception {
+		String signature = sign(SIGNED_DATA);
+		assertTrue(mVerifier.verify(SIGNED_DATA, signature));
+		assertFalse(mVerifier.verify(SIGNED_DATA, "not*base64!"));
+		assertTrue(mVerifier.verify(SIGNED_DATA, signature));
+	}
+
+	@SmallTest
+	public void testWrongSignatureDoesNotAffectTheNextVerification() throws Exception {
+		String signature = sign(SIGNED_DATA);
+		assertTrue(mVerifier.verify(SIGNED_DATA, signature));
+		assertFalse(mVerifier.verify(SIGNED_DATA, sign("something else")));
+		assertTrue(mVerifier.verify(SIGNED_DATA, signature));
+	}
+
+	@SmallTest
+	public void testMessagesAboveTheReusedBufferAreVerified() throws Exception {
+		StringBuilder large = new StringBuilder("{\"nonce\":1,\"orders\":[");
+		while (large.length() <= SignatureVerifier.MAX_REUSED_DATA_LENGTH) {
+			large.append("{\"productId\":\"gas\",\"purchaseState\":0},");
+		}
+		large.append("{}]}");
+		String largeData = large.toString();
+		String signature = sign(SIGNED_DATA);
+		assertTrue(mVerifier.verify(SIGNED_DATA, signature));
+		assertTrue(mVerifier.verify(largeData, sign(largeData)));
+		assertFalse(mVerifier.verify(largeData, signature));
+		assertTrue(mVerifier.verify(SIGNED_DATA, signature));
+	}
+
+	private String sign(String data) throws Exception {
+		Signature signature = Signature.getInstance("SHA1withRSA");
+		signature.initSign(mKeyPair.getPrivate());
+		signature.update(data.getBytes());
+		return Base64.encode(signature.sign());
+	}
+}
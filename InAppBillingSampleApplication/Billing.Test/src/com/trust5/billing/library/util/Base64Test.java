@@ -0,0 +1,54 @@
+package com.trust5.billing.library.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks that decoding characters directly gives the same answer as decoding the bytes of the string, which is how
+ * strings were decoded before.
+ */
+public class Base64Test extends TestCase {
+
+	@SmallTest
+	public void testAsciiIsDecodedTheSameWay() throws Exception {
+		assertDecodedTheSameWay("QUJD");
+		assertDecodedTheSameWay("QUI=");
+		assertDecodedTheSameWay("QUJD\nREVG");
+	}
+
+	/**
+	 * A no-break space is 0xc2 0xa0 in UTF-8, which crop to 'B' and a space: characters the alphabet accepts.
+	 */
+	@SmallTest
+	public void testNonAsciiIsDecodedFromItsBytes() throws Exception {
+		assertDecodedTheSameWay("QUJ\u00a0");
+		assertEquals("[65, 66, 65]", Arrays.toString(Base64.decode("QUJ\u00a0")));
+	}
+
+	@SmallTest
+	public void testNonAsciiThatCropsToBadBytesIsRejected() throws Exception {
+		try {
+			new Base64.Decoder().decode("QUJD\u00e9");
+			fail();
+		} catch (Base64DecoderException expected) {
+		}
+		try {
+			Base64.decode("QUJD\u00e9");
+			fail();
+		} catch (Base64DecoderException expected) {
+		}
+	}
+
+	private static void assertDecodedTheSameWay(String s) throws Exception {
+		byte[] expected = Base64.decode(s);
+		Base64.Decoder decoder = new Base64.Decoder();
+		int length = decoder.decode(s);
+		assertEquals(s, Arrays.toString(expected), Arrays.toString(Arrays.copyOf(decoder.getBuffer(), length)));
+
+		byte[] destination = new byte[Base64.maxDecodedLength(s.length()) + 2];
+		length = Base64.decode(s, 0, s.length(), destination, 2);
+		assertEquals(s, Arrays.toString(expected), Arrays.toString(Arrays.copyOfRange(destination, 2, 2 + length)));
+	}
+}
@@ -0,0 +1,186 @@
+package com.trust5.billing.library.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+/**
+ * Checks the {@link JsonPullParser} against well-formed and malformed documents, including the shapes of the signed
+ * data that Android Market sends.
+ */
+public class JsonPullParserTest extends TestCase {
+
+	@SmallTest
+	public void testReadsAnOrder() throws Exception {
+		JsonPullParser parser = new JsonPullParser("{\"nonce\":-3861217612374729343,\"orders\":[{\"notificationId\":" +
+				"\"abc\",\"purchaseState\":0,\"purchaseTime\":1290000000000,\"developerPayload\":null}]}");
+		parser.beginObject();
+		assertEquals("nonce", parser.nextName());
+		assertEquals(-3861217612374729343L, parser.nextLong());
+		assertEquals("orders", parser.nextName());
+		parser.beginArray();
+		parser.beginObject();
+		assertEquals("notificationId", parser.nextName());
+		assertEquals("abc", parser.nextString());
+		assertEquals("purchaseState", parser.nextName());
+		assertEquals(0, parser.nextInt());
+		assertEquals("purchaseTime", parser.nextName());
+		assertEquals(1290000000000L, parser.nextLong());
+		assertEquals("developerPayload", parser.nextName());
+		parser.nextNull();
+		assertFalse(parser.hasNext());
+		parser.endObject();
+		parser.endArray();
+		parser.endObject();
+		assertEquals(JsonPullParser.Token.END_DOCUMENT, parser.peek());
+	}
+
+	@SmallTest
+	public void testSkipsNestedValues() throws Exception {
+		JsonPullParser parser = new JsonPullParser("{\"skipped\":{\"a\":[1,[2,{\"b\":\"]}\"}],{}],\"c\":{\"d\":[]}}," +
+				"\"kept\":true}");
+		parser.beginObject();
+		assertEquals("skipped", parser.nextName());
+		parser.skipValue();
+		assertEquals("kept", parser.nextName());
+		assertTrue(parser.nextBoolean());
+		parser.endObject();
+		assertEquals(JsonPullParser.Token.END_DOCUMENT, parser.peek());
+	}
+
+	@SmallTest
+	public void testSkippingAnEndIsRejected() throws Exception {
+		JsonPullParser parser = new JsonPullParser("[]");
+		parser.beginArray();
+		try {
+			parser.skipValue();
+			fail();
+		} catch (JsonPullParserException expected) {
+		}
+	}
+
+	@SmallTest
+	public void testReadsEscapes() throws Exception {
+		JsonPullParser parser = new JsonPullParser("[\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\",\"\\u00e9\\u20AC\",\"plain\"]");
+		parser.beginArray();
+		assertEquals("a\"b\\c/d\b\f\n\r\t", parser.nextString());
+		assertEquals("\u00e9\u20ac", parser.nextString());
+		assertEquals("plain", parser.nextString());
+		parser.endArray();
+	}
+
+	@SmallTest
+	public void testMalformedEscapesAreRejected() throws Exception {
+		assertMalformedString("[\"\\x\"]");
+		assertMalformedString("[\"\\u00g0\"]");
+		assertMalformedString("[\"\\u+0e9\"]");
+		assertMalformedString("[\"\\u00e\"]");
+	}
+
+	@SmallTest
+	public void testReadsNumberForms() throws Exception {
+		JsonPullParser parser = new JsonPullParser("[0,-0,12,-12,1.5,-1.5e3,2E+2,3e-1,9223372036854775807]");
+		parser.beginArray();
+		assertEquals(0, parser.nextLong());
+		assertEquals(0, parser.nextLong());
+		assertEquals(12, parser.nextLong());
+		assertEquals(-12, parser.nextLong());
+		assertEquals("1.5", parser.nextString());
+		assertEquals(-1500, parser.nextLong());
+		assertEquals(200, parser.nextLong());
+		assertEquals("3e-1", parser.nextString());
+		assertEquals(Long.MAX_VALUE, parser.nextLong());
+		parser.endArray();
+	}
+
+	@SmallTest
+	public void testFractionsAreNotLongs() throws Exception {
+		JsonPullParser parser = new JsonPullParser("[1.5]");
+		parser.beginArray();
+		try {
+			parser.nextLong();
+			fail();
+		} catch (JsonPullParserException expected) {
+		}
+	}
+
+	@SmallTest
+	public void testMalformedNumbersAreRejectedWhetherReadOrSkipped() throws Exception {
+		String[] malformed = {"-", "01", "-01", "1.", ".5", "1e", "1e+", "1.5.5", "--1", "1-", "0x10", "12abc", "-Infinity",
+				"1{"};
+		for (String number : malformed) {
+			try {
+				JsonPullParser parser = new JsonPullParser("[" + number + "]");
+				parser.beginArray();
+				parser.skipValue();
+				fail("skipped " + number);
+			} catch (JsonPullParserException expected) {
+			}
+			try {
+				JsonPullParser parser = new JsonPullParser("[" + number + "]");
+				parser.beginArray();
+				parser.nextLong();
+				fail("read " + number);
+			} catch (JsonPullParserException expected) {
+			}
+		}
+	}
+
+	@SmallTest
+	public void testNextLongReadsNumbersInStrings() throws Exception {
+		JsonPullParser parser = new JsonPullParser("[\"42\",\"-7\",\"1e3\"]");
+		parser.beginArray();
+		assertEquals(42, parser.nextLong());
+		assertEquals(-7, parser.nextLong());
+		assertEquals(1000, parser.nextLong());
+		parser.endArray();
+
+		String[] notNumbers = {"", "abc", " 42", "42 ", "0x1p3", "1.5", "NaN", "Infinity"};
+		for (String text : notNumbers) {
+			parser = new JsonPullParser("[\"" + text + "\"]");
+			parser.beginArray();
+			try {
+				parser.nextLong();
+				fail("read \"" + text + "\"");
+			} catch (JsonPullParserException expected) {
+			}
+		}
+	}
+
+	@SmallTest
+	public void testTruncatedInputIsRejected() throws Exception {
+		String document = "{\"nonce\":12,\"orders\":[{\"productId\":\"gas\",\"purchaseState\":0,\"ok\":true}]}";
+		for (int length = 0; length < document.length(); length++) {
+			try {
+				JsonPullParser parser = new JsonPullParser(document.substring(0, length));
+				parser.skipValue();
+				assertEquals(JsonPullParser.Token.END_DOCUMENT, parser.peek());
+				fail("accepted " + document.substring(0, length));
+			} catch (JsonPullParserException expected) {
+			}
+		}
+		JsonPullParser parser = new JsonPullParser(document);
+		parser.skipValue();
+		assertEquals(JsonPullParser.Token.END_DOCUMENT, parser.peek());
+	}
+
+	@SmallTest
+	public void testTrailingDataIsRejected() throws Exception {
+		JsonPullParser parser = new JsonPullParser("{} {}");
+		parser.skipValue();
+		try {
+			parser.peek();
+			fail();
+		} catch (JsonPullParserException expected) {
+		}
+	}
+
+	private static void assertMalformedString(String document) throws Exception {
+		JsonPullParser parser = new JsonPullParser(document);
+		parser.beginArray();
+		try {
+			parser.nextString();
+			fail("read " + document);
+		} catch (JsonPullParserException expected) {
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.trust5.billing.library;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous billing request. It can be waited on with {@link #get()} or {@link #get(long,
+ * TimeUnit)}, or observed with {@link #addListener(Listener, Executor)}, so billing flows can be run in parallel, given
+ * a deadline or chained without going through {@link IPurchaseResponseCallback}.
+ * <p/>
+ * A future is completed exactly once, by the billing implementation calling {@link #complete(Object)} or {@link
+ * #completeExceptionally(Throwable)}, or by the caller calling {@link #cancel(boolean)}. Later attempts are ignored.
+ * Never call {@link #get()} on the main thread: the result is usually delivered there.
+ *
+ * @param <T> the type of the result
+ */
+public class BillingFuture<T> implements Future<T> {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final Object mLock = new Object();
+	private boolean mDone;
+	private boolean mCancelled;
+	private T mResult;
+	private Throwable mException;
+	private ArrayList<ListenerEntry<T>> mListeners;
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return The result if the future completed normally, or null if it has not completed yet or did not complete
+	 *         normally
+	 */
+	public T getNow() {
+		synchronized (mLock) {
+			return mDone && mException == null && !mCancelled ? mResult : null;
+		}
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	/**
+	 * Cancels the future. The billing request itself cannot be withdrawn once it has been sent; its result is
+	 * dropped.
+	 *
+	 * @param pMayInterruptIfRunning - Ignored
+	 * @return True if the future was cancelled by this call
+	 */
+	@Override
+	public boolean cancel(boolean pMayInterruptIfRunning) {
+		return finish(null, null, true);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		synchronized (mLock) {
+			return mCancelled;
+		}
+	}
+
+	@Override
+	public boolean isDone() {
+		synchronized (mLock) {
+			return mDone;
+		}
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		synchronized (mLock) {
+			while (!mDone) {
+				mLock.wait();
+			}
+			return getResult();
+		}
+	}
+
+	@Override
+	public T get(long pTimeout, TimeUnit pUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		long remaining = pUnit.toNanos(pTimeout);
+		long deadline = System.nanoTime() + remaining;
+		synchronized (mLock) {
+			while (!mDone) {
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+				remaining = deadline - System.nanoTime();
+			}
+			return getResult();
+		}
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Completes the future with a result.
+	 *
+	 * @return True if this call completed the future
+	 */
+	public boolean complete(T pResult) {
+		return finish(pResult, null, false);
+	}
+
+	/**
+	 * Completes the future with a failure; {@link #get()} throws it wrapped in an {@link ExecutionException}.
+	 *
+	 * @return True if this call completed the future
+	 */
+	public boolean completeExceptionally(Throwable pException) {
+		if (pException == null) {
+			throw new NullPointerException("exception is null");
+		}
+		return finish(null, pException, false);
+	}
+
+	/**
+	 * Runs the listener on the executor once the future completes, or right away if it already has. Listeners run in
+	 * the order they were added.
+	 *
+	 * @param pListener - Called with this future when it completes
+	 * @param pExecutor - Runs the listener, for example one that posts to a Handler
+	 */
+	public void addListener(Listener<T> pListener, Executor pExecutor) {
+		ListenerEntry<T> entry = new ListenerEntry<T>(this, pListener, pExecutor);
+		synchronized (mLock) {
+			if (!mDone) {
+				if (mListeners == null) {
+					mListeners = new ArrayList<ListenerEntry<T>>(2);
+				}
+				mListeners.add(entry);
+				return;
+			}
+		}
+		entry.dispatch();
+	}
+
+	private boolean finish(T pResult, Throwable pException, boolean pCancelled) {
+		ArrayList<ListenerEntry<T>> listeners;
+		synchronized (mLock) {
+			if (mDone) {
+				return false;
+			}
+			mDone = true;
+			mResult = pResult;
+			mException = pException;
+			mCancelled = pCancelled;
+			listeners = mListeners;
+			mListeners = null;
+			mLock.notifyAll();
+		}
+		if (listeners != null) {
+			for (ListenerEntry<T> entry : listeners) {
+				entry.dispatch();
+			}
+		}
+		return true;
+	}
+
+	private T getResult() throws ExecutionException {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+		if (mException != null) {
+			throw new ExecutionException(mException);
+		}
+		return mResult;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * Is told when a {@link BillingFuture} completes.
+	 */
+	public interface Listener<T> {
+		void onComplete(BillingFuture<T> pFuture);
+	}
+
+	private static class ListenerEntry<T> implements Runnable {
+		private final BillingFuture<T> mFuture;
+		private final Listener<T> mListener;
+		private final Executor mExecutor;
+
+		ListenerEntry(BillingFuture<T> pFuture, Listener<T> pListener, Executor pExecutor) {
+			mFuture = pFuture;
+			mListener = pListener;
+			mExecutor = pExecutor;
+		}
+
+		void dispatch() {
+			mExecutor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			mListener.onComplete(mFuture);
+		}
+	}
+}
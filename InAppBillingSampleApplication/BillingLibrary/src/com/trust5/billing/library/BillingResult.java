@@ -0,0 +1,116 @@
+package com.trust5.billing.library;
+
+/**
+ * The outcome of a billing request made through {@link IAsyncBilling}.
+ */
+public final class BillingResult {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final Status mStatus;
+	private final String mItemId;
+	private final PurchaseState mPurchaseState;
+	private final int mQuantity;
+	private final long mPurchaseTime;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pStatus - The response from the store
+	 * @param pItemId - The item the request was for, or null if it was not for an item
+	 */
+	public BillingResult(Status pStatus, String pItemId) {
+		this(pStatus, pItemId, null, 0, 0);
+	}
+
+	/**
+	 * @param pStatus        - The response from the store
+	 * @param pItemId        - The item the request was for
+	 * @param pPurchaseState - The state of the purchase, or null if the store did not report one
+	 * @param pQuantity      - The quantity of the item owned after the purchase
+	 * @param pPurchaseTime  - The time of the purchase, in milliseconds since the epoch
+	 */
+	public BillingResult(Status pStatus, String pItemId, PurchaseState pPurchaseState, int pQuantity,
+						 long pPurchaseTime) {
+		if (pStatus == null) {
+			throw new NullPointerException("status is null");
+		}
+		mStatus = pStatus;
+		mItemId = pItemId;
+		mPurchaseState = pPurchaseState;
+		mQuantity = pQuantity;
+		mPurchaseTime = pPurchaseTime;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public Status getStatus() {
+		return mStatus;
+	}
+
+	public String getItemId() {
+		return mItemId;
+	}
+
+	/**
+	 * @return The state of the purchase, or null if this is not the result of a completed purchase
+	 */
+	public PurchaseState getPurchaseState() {
+		return mPurchaseState;
+	}
+
+	public int getQuantity() {
+		return mQuantity;
+	}
+
+	public long getPurchaseTime() {
+		return mPurchaseTime;
+	}
+
+	/**
+	 * @return True if the store accepted the request and, for a purchase, the item was bought
+	 */
+	public boolean isSuccess() {
+		return mStatus == Status.OK && (mPurchaseState == null || mPurchaseState == PurchaseState.PURCHASED);
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public String toString() {
+		return "BillingResult{" + mStatus + (mItemId == null ? "" : ", " + mItemId) +
+				(mPurchaseState == null ? "" : ", " + mPurchaseState + " x" + mQuantity) + "}";
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * The response the store gave to a request.
+	 */
+	public enum Status {
+		OK,
+		USER_CANCELED,
+		SERVICE_UNAVAILABLE,
+		BILLING_UNAVAILABLE,
+		ITEM_UNAVAILABLE,
+		DEVELOPER_ERROR,
+		ERROR
+	}
+
+	/**
+	 * The state of a purchase once the store has charged, failed to charge or refunded it.
+	 */
+	public enum PurchaseState {
+		PURCHASED,
+		CANCELED,
+		REFUNDED
+	}
+}
@@ -0,0 +1,83 @@
+package com.trust5.billing.library;
+
+/**
+ * What the user owns of one item: how many have been bought and the state of the latest order for it.
+ */
+public final class Entitlement {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final String mSku;
+	private final int mQuantity;
+	private final BillingResult.PurchaseState mState;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pSku      - The item ID
+	 * @param pQuantity - The number of the item owned
+	 * @param pState    - The state of the latest order for the item, or null if it is not known
+	 */
+	public Entitlement(String pSku, int pQuantity, BillingResult.PurchaseState pState) {
+		if (pSku == null) {
+			throw new NullPointerException("sku is null");
+		}
+		mSku = pSku;
+		mQuantity = pQuantity;
+		mState = pState;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public String getSku() {
+		return mSku;
+	}
+
+	public int getQuantity() {
+		return mQuantity;
+	}
+
+	/**
+	 * @return The state of the latest order for the item, or null if it is not known
+	 */
+	public BillingResult.PurchaseState getState() {
+		return mState;
+	}
+
+	/**
+	 * @return True if at least one of the item is owned
+	 */
+	public boolean isOwned() {
+		return mQuantity > 0;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Entitlement)) {
+			return false;
+		}
+		Entitlement other = (Entitlement) o;
+		return mSku.equals(other.mSku) && mQuantity == other.mQuantity && mState == other.mState;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * mSku.hashCode() + mQuantity) + (mState == null ? 0 : mState.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return mSku + " x" + mQuantity + (mState == null ? "" : " (" + mState + ")");
+	}
+}
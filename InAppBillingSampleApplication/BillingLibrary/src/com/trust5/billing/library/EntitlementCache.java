@@ -0,0 +1,210 @@
+package com.trust5.billing.library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * The items the user owns, kept in memory so they can be checked from any thread without touching the database.
+ * <p/>
+ * The cache holds an immutable snapshot in a volatile field. Reads take the current snapshot and never lock; the
+ * billing implementation replaces the snapshot after it has written purchases to its own storage, and then tells the
+ * listeners which entitlements changed. Until {@link #isLoaded()} returns true the cache may be empty because it has
+ * not been read from storage yet.
+ */
+public class EntitlementCache {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private volatile Snapshot mSnapshot = new Snapshot(new HashMap<String, Entitlement>(), false);
+	private final Object mWriteLock = new Object();
+	private final CopyOnWriteArrayList<ListenerEntry> mListeners = new CopyOnWriteArrayList<ListenerEntry>();
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return True once the cache has been filled from storage
+	 */
+	public boolean isLoaded() {
+		return mSnapshot.mLoaded;
+	}
+
+	/**
+	 * @return The entitlement for the item, or null if the user has never bought it
+	 */
+	public Entitlement get(String pSku) {
+		return mSnapshot.mEntitlements.get(pSku);
+	}
+
+	/**
+	 * @return True if at least one of the item is owned
+	 */
+	public boolean isOwned(String pSku) {
+		Entitlement entitlement = mSnapshot.mEntitlements.get(pSku);
+		return entitlement != null && entitlement.isOwned();
+	}
+
+	/**
+	 * @return The number of the item owned
+	 */
+	public int getQuantity(String pSku) {
+		Entitlement entitlement = mSnapshot.mEntitlements.get(pSku);
+		return entitlement == null ? 0 : entitlement.getQuantity();
+	}
+
+	/**
+	 * @return An unmodifiable map from item ID to entitlement, which does not change when the cache does
+	 */
+	public Map<String, Entitlement> getAll() {
+		return mSnapshot.mEntitlements;
+	}
+
+	/**
+	 * @return An unmodifiable set of the IDs of the items owned, which does not change when the cache does
+	 */
+	public Set<String> getOwnedSkus() {
+		return mSnapshot.mOwnedSkus;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Replaces the contents of the cache with what was read from storage. Called by the billing implementation.
+	 *
+	 * @param pEntitlements - Every entitlement in storage
+	 */
+	public void load(Collection<Entitlement> pEntitlements) {
+		List<Entitlement> changed = new ArrayList<Entitlement>();
+		synchronized (mWriteLock) {
+			Map<String, Entitlement> previous = mSnapshot.mEntitlements;
+			HashMap<String, Entitlement> entitlements = new HashMap<String, Entitlement>();
+			for (Entitlement entitlement : pEntitlements) {
+				entitlements.put(entitlement.getSku(), entitlement);
+				if (!entitlement.equals(previous.get(entitlement.getSku()))) {
+					changed.add(entitlement);
+				}
+			}
+			for (Entitlement entitlement : previous.values()) {
+				if (!entitlements.containsKey(entitlement.getSku())) {
+					changed.add(new Entitlement(entitlement.getSku(), 0, entitlement.getState()));
+				}
+			}
+			mSnapshot = new Snapshot(entitlements, true);
+		}
+		notifyListeners(changed);
+	}
+
+	/**
+	 * Applies entitlements that have just been written to storage. Called by the billing implementation. When an item
+	 * appears more than once the last entry wins.
+	 *
+	 * @param pEntitlements - The new state of the items that changed
+	 */
+	public void putAll(Collection<Entitlement> pEntitlements) {
+		if (pEntitlements.isEmpty()) {
+			return;
+		}
+		List<Entitlement> changed = new ArrayList<Entitlement>(pEntitlements.size());
+		synchronized (mWriteLock) {
+			Snapshot snapshot = mSnapshot;
+			HashMap<String, Entitlement> entitlements = new HashMap<String, Entitlement>(snapshot.mEntitlements);
+			for (Entitlement entitlement : pEntitlements) {
+				if (!entitlement.equals(entitlements.put(entitlement.getSku(), entitlement))) {
+					changed.add(entitlement);
+				}
+			}
+			if (changed.isEmpty()) {
+				return;
+			}
+			mSnapshot = new Snapshot(entitlements, snapshot.mLoaded);
+		}
+		notifyListeners(changed);
+	}
+
+	/**
+	 * Runs the listener on the executor every time entitlements change.
+	 *
+	 * @param pListener - Told which entitlements changed
+	 * @param pExecutor - Runs the listener, for example one that posts to a Handler
+	 */
+	public void addListener(Listener pListener, Executor pExecutor) {
+		mListeners.add(new ListenerEntry(pListener, pExecutor));
+	}
+
+	public void removeListener(Listener pListener) {
+		for (ListenerEntry entry : mListeners) {
+			if (entry.mListener == pListener) {
+				mListeners.remove(entry);
+			}
+		}
+	}
+
+	private void notifyListeners(List<Entitlement> pChanged) {
+		if (pChanged.isEmpty()) {
+			return;
+		}
+		final List<Entitlement> changed = Collections.unmodifiableList(pChanged);
+		for (final ListenerEntry entry : mListeners) {
+			entry.mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					entry.mListener.onEntitlementsChanged(EntitlementCache.this, changed);
+				}
+			});
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * Is told when entitlements change.
+	 */
+	public interface Listener {
+		/**
+		 * @param pCache   - The cache, already holding the new state
+		 * @param pChanged - The new state of the items that changed; an item that is no longer owned has quantity 0
+		 */
+		void onEntitlementsChanged(EntitlementCache pCache, List<Entitlement> pChanged);
+	}
+
+	private static class ListenerEntry {
+		final Listener mListener;
+		final Executor mExecutor;
+
+		ListenerEntry(Listener pListener, Executor pExecutor) {
+			mListener = pListener;
+			mExecutor = pExecutor;
+		}
+	}
+
+	private static class Snapshot {
+		final Map<String, Entitlement> mEntitlements;
+		final Set<String> mOwnedSkus;
+		final boolean mLoaded;
+
+		Snapshot(HashMap<String, Entitlement> pEntitlements, boolean pLoaded) {
+			HashSet<String> owned = new HashSet<String>();
+			for (Entitlement entitlement : pEntitlements.values()) {
+				if (entitlement.isOwned()) {
+					owned.add(entitlement.getSku());
+				}
+			}
+			mEntitlements = Collections.unmodifiableMap(pEntitlements);
+			mOwnedSkus = Collections.unmodifiableSet(owned);
+			mLoaded = pLoaded;
+		}
+	}
+}
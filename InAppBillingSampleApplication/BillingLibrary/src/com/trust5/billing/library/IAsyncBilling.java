@@ -0,0 +1,67 @@
+package com.trust5.billing.library;
+
+/**
+ * The asynchronous counterpart of {@link IBilling}. Each method returns straight away with a {@link BillingFuture}
+ * that completes when the store has answered, so several requests can be outstanding at once and callers can wait
+ * with a deadline instead of routing every result through {@link IPurchaseResponseCallback}. The callback is still
+ * told about every result as well.
+ */
+public interface IAsyncBilling {
+
+	/**
+	 * @return Completes with true if billing is available
+	 */
+	BillingFuture<Boolean> checkBillingAvailableAsync();
+
+	/**
+	 * @return Completes with true if subscriptions are available
+	 */
+	BillingFuture<Boolean> checkSubscriptionsAvailableAsync();
+
+	/**
+	 * Offers an item to the user. The future completes once the store reports the state of the purchase, or earlier
+	 * with the store's response if the purchase could not go ahead (for example because the user backed out).
+	 *
+	 * @param pItemID  - The String value ID of the item to be purchased
+	 * @param pPayload - Developer payload sent with the purchase, may be null
+	 * @return Completes with the outcome of the purchase
+	 */
+	BillingFuture<BillingResult> buyItemAsync(String pItemID, String pPayload);
+
+	/**
+	 * Same as {@link #buyItemAsync(String, String)} for a subscription.
+	 *
+	 * @param pItemID  - The String value ID of the Subscription item
+	 * @param pPayload - Developer payload sent with the purchase, may be null
+	 * @return Completes with the outcome of the purchase
+	 */
+	BillingFuture<BillingResult> buySubscriptionAsync(String pItemID, String pPayload);
+
+	/**
+	 * Asks the store to send every purchase the user has made again.
+	 *
+	 * @return Completes with the store's response to the request. The restored purchases are reported to the callback
+	 *         as they arrive
+	 */
+	BillingFuture<BillingResult> restoreTransactionsAsync();
+
+	/**
+	 * Reads one page of the owned items from storage on a background thread, ordered by item ID. Each row carries only
+	 * the item ID, the quantity and the state of the latest order.
+	 *
+	 * @param pAfterItemID - The item ID of the last row of the previous page, or null for the first page
+	 * @param pLimit       - The most rows to return
+	 * @return Completes with the page
+	 */
+	BillingFuture<Page<Entitlement>> queryOwnedItemsAsync(String pAfterItemID, int pLimit);
+
+	/**
+	 * Reads one page of the purchase history from storage on a background thread, newest purchase first. Each order
+	 * appears once, in its latest state.
+	 *
+	 * @param pAfter - The last row of the previous page, or null for the first page
+	 * @param pLimit - The most rows to return
+	 * @return Completes with the page
+	 */
+	BillingFuture<Page<PurchaseRecord>> queryPurchaseHistoryAsync(PurchaseRecord pAfter, int pLimit);
+}
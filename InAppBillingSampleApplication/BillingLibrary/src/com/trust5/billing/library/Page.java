@@ -0,0 +1,60 @@
+package com.trust5.billing.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of rows read from the billing implementation's storage. A page is a copy: it does not change when the
+ * storage does, and it can be kept and read from any thread.
+ * <p/>
+ * Pages are keyset based. The next page is asked for with the last row of this one, so rows that are added or removed
+ * in between do not make the next page skip or repeat rows.
+ *
+ * @param <T> the type of the rows
+ */
+public final class Page<T> {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final List<T> mItems;
+	private final boolean mHasMore;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pItems   - The rows, in order
+	 * @param pHasMore - True if there are rows after the last one
+	 */
+	public Page(List<T> pItems, boolean pHasMore) {
+		mItems = Collections.unmodifiableList(new ArrayList<T>(pItems));
+		mHasMore = pHasMore;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return The rows, in order, in an unmodifiable list
+	 */
+	public List<T> getItems() {
+		return mItems;
+	}
+
+	/**
+	 * @return The last row, to ask for the next page with, or null if the page is empty
+	 */
+	public T getLast() {
+		return mItems.isEmpty() ? null : mItems.get(mItems.size() - 1);
+	}
+
+	/**
+	 * @return True if there are rows after the last one
+	 */
+	public boolean hasMore() {
+		return mHasMore;
+	}
+}
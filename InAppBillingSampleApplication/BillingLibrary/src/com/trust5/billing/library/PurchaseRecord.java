@@ -0,0 +1,99 @@
+package com.trust5.billing.library;
+
+/**
+ * One order from the purchase history, in its latest state.
+ */
+public final class PurchaseRecord {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final String mOrderId;
+	private final String mSku;
+	private final BillingResult.PurchaseState mState;
+	private final long mPurchaseTime;
+	private final String mDeveloperPayload;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pOrderId          - The order ID
+	 * @param pSku              - The item ID
+	 * @param pState            - The state of the order
+	 * @param pPurchaseTime     - When the item was bought, in milliseconds since the epoch
+	 * @param pDeveloperPayload - The payload sent with the purchase request, or null
+	 */
+	public PurchaseRecord(String pOrderId, String pSku, BillingResult.PurchaseState pState, long pPurchaseTime,
+						  String pDeveloperPayload) {
+		if (pOrderId == null) {
+			throw new NullPointerException("orderId is null");
+		}
+		mOrderId = pOrderId;
+		mSku = pSku;
+		mState = pState;
+		mPurchaseTime = pPurchaseTime;
+		mDeveloperPayload = pDeveloperPayload;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public String getOrderId() {
+		return mOrderId;
+	}
+
+	public String getSku() {
+		return mSku;
+	}
+
+	public BillingResult.PurchaseState getState() {
+		return mState;
+	}
+
+	/**
+	 * @return When the item was bought, in milliseconds since the epoch
+	 */
+	public long getPurchaseTime() {
+		return mPurchaseTime;
+	}
+
+	/**
+	 * @return The payload sent with the purchase request, or null
+	 */
+	public String getDeveloperPayload() {
+		return mDeveloperPayload;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PurchaseRecord)) {
+			return false;
+		}
+		PurchaseRecord other = (PurchaseRecord) o;
+		return mOrderId.equals(other.mOrderId) && equal(mSku, other.mSku) && mState == other.mState &&
+				mPurchaseTime == other.mPurchaseTime && equal(mDeveloperPayload, other.mDeveloperPayload);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * mOrderId.hashCode() + (int) (mPurchaseTime ^ (mPurchaseTime >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return mOrderId + ": " + mSku + " (" + mState + ")";
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,399 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+import com.trust5.billing.library.util.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of a purchase goes. Every stage of the pipeline is timed into a {@link Histogram}, errors are counted,
+ * and the queues the pipeline keeps can be read as gauges. Metrics are collected from the start unless
+ * {@link Consts#METRICS_ENABLED} is false, and can be switched on and off with {@link #setEnabled(boolean)}; while
+ * they are off a timed stage costs one volatile read and does not read the clock.
+ * <p/>
+ * Nothing leaves the process by itself. Set an {@link Exporter} and call {@link #export()} whenever the metrics should
+ * be sent somewhere, or read them directly with {@link #getTimer(Timer)}, {@link #getCounter(Counter)} and
+ * {@link #getGauge(Gauge)}.
+ */
+public final class BillingMetrics {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "BillingMetrics";
+
+	/**
+	 * The number of purchases waiting for their outcome that are remembered for {@link Timer#PURCHASE}. A purchase the
+	 * user walked away from is never completed, so the oldest are forgotten.
+	 */
+	private static final int MAX_OPEN_PURCHASES = 32;
+
+	/**
+	 * The timed stages. Durations are recorded in nanoseconds.
+	 */
+	public enum Timer {
+		/**
+		 * From binding to the MarketBillingService until it is connected.
+		 */
+		BIND,
+		/**
+		 * The CHECK_BILLING_SUPPORTED call to the MarketBillingService.
+		 */
+		CHECK_BILLING_SUPPORTED,
+		/**
+		 * The REQUEST_PURCHASE call to the MarketBillingService.
+		 */
+		REQUEST_PURCHASE,
+		/**
+		 * The GET_PURCHASE_INFORMATION call to the MarketBillingService.
+		 */
+		GET_PURCHASE_INFORMATION,
+		/**
+		 * The CONFIRM_NOTIFICATIONS call to the MarketBillingService.
+		 */
+		CONFIRM_NOTIFICATIONS,
+		/**
+		 * The RESTORE_TRANSACTIONS call to the MarketBillingService.
+		 */
+		RESTORE_TRANSACTIONS,
+		/**
+		 * Checking the signature of a PURCHASE_STATE_CHANGED message.
+		 */
+		VERIFY,
+		/**
+		 * Reading the orders out of a verified PURCHASE_STATE_CHANGED message and handing them to the database writer.
+		 */
+		PARSE,
+		/**
+		 * Journaling and storing one batch of purchase state changes, on the database writer.
+		 */
+		DATABASE_WRITE,
+		/**
+		 * From handing a purchase state change to an observer's dispatcher until its callback has returned.
+		 */
+		DISPATCH,
+		/**
+		 * From sending REQUEST_PURCHASE until the PURCHASED callback for that product and developer payload, including
+		 * the time the user spends on the buy page.
+		 */
+		PURCHASE
+	}
+
+	/**
+	 * The counted events.
+	 */
+	public enum Counter {
+		/**
+		 * A call to the MarketBillingService that failed because the remote service died.
+		 */
+		REMOTE_EXCEPTION,
+		/**
+		 * A response code other than RESULT_OK from Android Market.
+		 */
+		ERROR_RESPONSE_CODE,
+		/**
+		 * A PURCHASE_STATE_CHANGED message whose signature did not match.
+		 */
+		SIGNATURE_FAILURE,
+		/**
+		 * A PURCHASE_STATE_CHANGED message with a nonce that was not sent, or has expired.
+		 */
+		UNKNOWN_NONCE,
+		/**
+		 * A PURCHASE_STATE_CHANGED message that could not be read.
+		 */
+		MALFORMED_MESSAGE,
+		/**
+		 * A verified purchase state change.
+		 */
+		PURCHASE_STATE_CHANGE,
+		/**
+		 * A purchase that shared the request of the same purchase in flight instead of sending its own; see
+		 * {@link PlayBilling#setPurchaseCoalescing(PurchaseCoalescing)}.
+		 */
+		PURCHASE_COALESCED
+	}
+
+	/**
+	 * Values that are read when asked for, such as the length of a queue.
+	 */
+	public enum Gauge {
+		/**
+		 * Requests waiting for the connection to the MarketBillingService.
+		 */
+		PENDING_REQUESTS {
+			@Override
+			long read() {
+				return PlayBillingService.getPendingRequestCount();
+			}
+		},
+		/**
+		 * Requests sent to Android Market that are waiting for a response code.
+		 */
+		IN_FLIGHT_REQUESTS {
+			@Override
+			long read() {
+				return PlayBillingService.getSentRequests().getInFlightCount();
+			}
+		},
+		/**
+		 * Purchase updates waiting for the database writer.
+		 */
+		PERSISTENCE_QUEUE_DEPTH {
+			@Override
+			long read() {
+				return PurchasePersistenceExecutor.getQueueDepth();
+			}
+		},
+		/**
+		 * Nonces sent to Android Market that have not been answered yet.
+		 */
+		PENDING_NONCES {
+			@Override
+			long read() {
+				return Security.getNonces().size();
+			}
+		},
+		/**
+		 * Items the user owns.
+		 */
+		OWNED_ITEMS {
+			@Override
+			long read() {
+				return ResponseHandler.getEntitlementCache().getOwnedSkus().size();
+			}
+		};
+
+		abstract long read();
+	}
+
+	/**
+	 * Writes every metric to the log, one line each.
+	 */
+	public static final Exporter LOG_EXPORTER = new Exporter() {
+		@Override
+		public void exportTimer(Timer timer, Histogram histogram) {
+			Log.i(TAG, timer + ": count=" + histogram.getCount() +
+					" p50=" + histogram.getValueAtPercentile(50) / 1000 + "us" +
+					" p99=" + histogram.getValueAtPercentile(99) / 1000 + "us" +
+					" max=" + histogram.getMax() / 1000 + "us");
+		}
+
+		@Override
+		public void exportCounter(Counter counter, long value) {
+			Log.i(TAG, counter + ": " + value);
+		}
+
+		@Override
+		public void exportGauge(Gauge gauge, long value) {
+			Log.i(TAG, gauge + ": " + value);
+		}
+	};
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static volatile boolean sEnabled = Consts.METRICS_ENABLED;
+	private static volatile Exporter sExporter;
+
+	private static final Histogram[] sTimers = new Histogram[Timer.values().length];
+	private static final AtomicLongArray sCounters = new AtomicLongArray(Counter.values().length);
+
+	static {
+		for (int i = 0; i < sTimers.length; i++) {
+			sTimers[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * When each purchase waiting for its outcome was requested, by product ID and developer payload, oldest first.
+	 * Guarded by itself.
+	 */
+	private static final LinkedHashMap<String, Long> sOpenPurchases = new LinkedHashMap<String, Long>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_OPEN_PURCHASES;
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	private BillingMetrics() {
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return True if metrics are being collected
+	 */
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Starts or stops collecting metrics. What has been collected is kept.
+	 */
+	public static void setEnabled(boolean pEnabled) {
+		sEnabled = pEnabled;
+	}
+
+	/**
+	 * @param pExporter - Receives the metrics on every {@link #export()}, or null for none
+	 */
+	public static void setExporter(Exporter pExporter) {
+		sExporter = pExporter;
+	}
+
+	/**
+	 * @return The durations recorded for the stage; the histogram keeps filling as more are recorded
+	 */
+	public static Histogram getTimer(Timer pTimer) {
+		return sTimers[pTimer.ordinal()];
+	}
+
+	/**
+	 * @return The number of times the event happened
+	 */
+	public static long getCounter(Counter pCounter) {
+		return sCounters.get(pCounter.ordinal());
+	}
+
+	/**
+	 * @return The current value of the gauge
+	 */
+	public static long getGauge(Gauge pGauge) {
+		return pGauge.read();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Hands every timer, counter and gauge to the exporter, on the calling thread. Does nothing if there is no
+	 * exporter.
+	 */
+	public static void export() {
+		Exporter exporter = sExporter;
+		if (exporter == null) {
+			return;
+		}
+		for (Timer timer : Timer.values()) {
+			exporter.exportTimer(timer, getTimer(timer));
+		}
+		for (Counter counter : Counter.values()) {
+			exporter.exportCounter(counter, getCounter(counter));
+		}
+		for (Gauge gauge : Gauge.values()) {
+			exporter.exportGauge(gauge, gauge.read());
+		}
+	}
+
+	/**
+	 * Forgets every duration and count collected so far, for example after each export when the exporter wants the
+	 * metrics of an interval rather than of the whole process.
+	 */
+	public static void reset() {
+		for (Histogram histogram : sTimers) {
+			histogram.reset();
+		}
+		for (int i = 0; i < sCounters.length(); i++) {
+			sCounters.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return The start of a timed stage, to pass to {@link #stop(Timer, long)}; 0 if metrics are off
+	 */
+	static long start() {
+		return sEnabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the stage that began at {@code startNanos}, unless metrics were off when it began.
+	 */
+	static void stop(Timer timer, long startNanos) {
+		if (startNanos != 0) {
+			sTimers[timer.ordinal()].record(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Records a duration that was measured anyway.
+	 */
+	static void record(Timer timer, long nanos) {
+		if (sEnabled) {
+			sTimers[timer.ordinal()].record(nanos);
+		}
+	}
+
+	static void increment(Counter counter) {
+		if (sEnabled) {
+			sCounters.incrementAndGet(counter.ordinal());
+		}
+	}
+
+	/**
+	 * Starts timing {@link Timer#PURCHASE} for a purchase that is about to be requested.
+	 */
+	static void purchaseRequested(String productId, String developerPayload) {
+		if (sEnabled) {
+			long now = System.nanoTime();
+			synchronized (sOpenPurchases) {
+				sOpenPurchases.put(purchaseKey(productId, developerPayload), now);
+			}
+		}
+	}
+
+	/**
+	 * Stops timing a purchase without recording it, because the user did not buy it.
+	 */
+	static void purchaseAbandoned(String productId, String developerPayload) {
+		synchronized (sOpenPurchases) {
+			sOpenPurchases.remove(purchaseKey(productId, developerPayload));
+		}
+	}
+
+	/**
+	 * Records {@link Timer#PURCHASE} when a requested purchase has reached an observer as PURCHASED, the first time it
+	 * does. Any other outcome ends the timing without recording it.
+	 */
+	static void purchaseCompleted(Consts.PurchaseState purchaseState, String productId, String developerPayload) {
+		Long requested;
+		synchronized (sOpenPurchases) {
+			if (sOpenPurchases.isEmpty()) {
+				return;
+			}
+			requested = sOpenPurchases.remove(purchaseKey(productId, developerPayload));
+		}
+		if (requested != null && purchaseState == Consts.PurchaseState.PURCHASED) {
+			record(Timer.PURCHASE, System.nanoTime() - requested);
+		}
+	}
+
+	private static String purchaseKey(String productId, String developerPayload) {
+		return developerPayload == null ? productId : productId + '\n' + developerPayload;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * Receives the metrics on {@link #export()}, one at a time, on the thread that called it.
+	 */
+	public interface Exporter {
+		/**
+		 * @param histogram the live histogram, which must not be kept; read what is needed before returning
+		 */
+		void exportTimer(Timer timer, Histogram histogram);
+
+		void exportCounter(Counter counter, long value);
+
+		void exportGauge(Gauge gauge, long value);
+	}
+}
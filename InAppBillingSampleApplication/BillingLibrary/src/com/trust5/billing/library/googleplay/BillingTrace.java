@@ -0,0 +1,286 @@
+package com.trust5.billing.library.googleplay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last {@link Consts#TRACE_CAPACITY} things that happened to requests and purchases, for finding out afterwards
+ * why a purchase got stuck. Each event is three numbers in a ring of primitive longs: when it happened, what it was
+ * about (a request ID, a nonce, or the hash code of a notification, order or product ID) and one small argument.
+ * Recording formats nothing, allocates nothing and takes no lock, so tracing can stay on in release builds; it is
+ * controlled by {@link Consts#TRACE_ENABLED}.
+ * <p/>
+ * {@link #dump(File)} writes the events to a file, oldest first, and {@link #print(File, PrintWriter)} turns such a
+ * file into text. The file names the events it uses, so it can be read by a later version of the library.
+ */
+public final class BillingTrace {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final int MAGIC = 0x42545243; // "BTRC"
+	private static final int VERSION = 1;
+
+	/**
+	 * Each entry is the sequence number it was written with plus one, the time, the subject and the event and
+	 * argument. The sequence number is written last, so an entry that is being written while the ring is dumped is
+	 * recognised and skipped.
+	 */
+	private static final int ENTRY_LONGS = 4;
+
+	/**
+	 * What happened. The comment of each says what the subject and the argument are.
+	 */
+	public enum Event {
+		/**
+		 * Binding to the MarketBillingService. Argument: 1 if the bind was started, 0 if it failed.
+		 */
+		BIND,
+		/**
+		 * The MarketBillingService connected. Argument: how long the bind took, in milliseconds.
+		 */
+		CONNECTED,
+		/**
+		 * The remote service went away; Android connects it again.
+		 */
+		DISCONNECTED,
+		/**
+		 * A call to the MarketBillingService failed. Subject: the attempt. Argument: the delay before binding again, in
+		 * milliseconds.
+		 */
+		RECONNECT_SCHEDULED,
+		/**
+		 * The connection was given up on. Subject: the failed attempts. Argument: how many waiting requests were failed.
+		 */
+		RECONNECT_ABANDONED,
+		/**
+		 * The idle connection was unbound.
+		 */
+		UNBIND,
+		/**
+		 * A purchase shared the request of the same purchase in flight. Subject: the hash code of the product ID.
+		 */
+		PURCHASE_COALESCED,
+		/**
+		 * A request is waiting for the connection.
+		 */
+		REQUEST_QUEUED,
+		/**
+		 * A request was sent. Subject: the request ID, or -1 if it has none. Argument: the method and the response code.
+		 */
+		REQUEST_SENT,
+		/**
+		 * A request failed because the remote service died. Argument: the method.
+		 */
+		REMOTE_EXCEPTION,
+		/**
+		 * Android Market sent a response code. Subject: the request ID. Argument: the response code.
+		 */
+		RESPONSE_CODE,
+		/**
+		 * A request got no response code in time. Subject: the request ID.
+		 */
+		REQUEST_TIMED_OUT,
+		/**
+		 * An IN_APP_NOTIFY broadcast arrived. Subject: the hash code of the notification ID.
+		 */
+		NOTIFY,
+		/**
+		 * Notification IDs were sent in one GET_PURCHASE_INFORMATION request. Argument: how many.
+		 */
+		PURCHASE_INFORMATION_BATCH,
+		/**
+		 * A PURCHASE_STATE_CHANGED message was verified and read. Subject: its nonce. Argument: the number of orders.
+		 */
+		VERIFIED,
+		/**
+		 * A PURCHASE_STATE_CHANGED message's signature did not match.
+		 */
+		SIGNATURE_FAILURE,
+		/**
+		 * A PURCHASE_STATE_CHANGED message carried a nonce that was not sent or has expired. Subject: the nonce.
+		 */
+		UNKNOWN_NONCE,
+		/**
+		 * A PURCHASE_STATE_CHANGED message could not be read.
+		 */
+		MALFORMED_MESSAGE,
+		/**
+		 * A verified order. Subject: the hash code of the order ID. Argument: the purchase state.
+		 */
+		PURCHASE_STATE_CHANGE,
+		/**
+		 * Purchase state changes were journaled and stored. Argument: how many.
+		 */
+		PERSISTED,
+		/**
+		 * An observer was told about a purchase state change. Subject: the hash code of the product ID. Argument: the
+		 * purchase state.
+		 */
+		DISPATCHED,
+		/**
+		 * The service was stopped after its last request ran. Argument: the start ID.
+		 */
+		STOP_SELF
+	}
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static final int MASK = Consts.TRACE_CAPACITY - 1;
+	private static final AtomicLongArray sEntries = new AtomicLongArray(Consts.TRACE_CAPACITY * ENTRY_LONGS);
+	private static final AtomicLong sNext = new AtomicLong();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	private BillingTrace() {
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	static void record(Event event) {
+		record(event, 0, 0);
+	}
+
+	/**
+	 * @param subject what the event is about; see the event
+	 * @param arg     see the event
+	 */
+	static void record(Event event, long subject, int arg) {
+		if (!Consts.TRACE_ENABLED) {
+			return;
+		}
+		long sequence = sNext.getAndIncrement();
+		int base = (int) (sequence & MASK) * ENTRY_LONGS;
+		sEntries.lazySet(base, 0);
+		sEntries.lazySet(base + 1, System.nanoTime());
+		sEntries.lazySet(base + 2, subject);
+		sEntries.lazySet(base + 3, ((long) event.ordinal() << 32) | (arg & 0xFFFFFFFFL));
+		sEntries.lazySet(base, sequence + 1);
+	}
+
+	/**
+	 * Packs a request's method and the response code it was sent back for {@link Event#REQUEST_SENT}.
+	 */
+	static int methodAndCode(BillingMetrics.Timer method, int responseCode) {
+		return (method.ordinal() << 16) | (responseCode & 0xFFFF);
+	}
+
+	/**
+	 * Writes the events recorded so far to a file, oldest first. Events keep being recorded while it runs; the ones
+	 * that overtake the dump are left out.
+	 *
+	 * @param pFile - Where to write them, replacing anything there
+	 * @return The number of events written
+	 */
+	public static int dump(File pFile) throws IOException {
+		long end = sNext.get();
+		long start = Math.max(0, end - Consts.TRACE_CAPACITY);
+		long[] entries = new long[(int) (end - start) * (ENTRY_LONGS - 1)];
+		int count = 0;
+		for (long sequence = start; sequence < end; sequence++) {
+			int base = (int) (sequence & MASK) * ENTRY_LONGS;
+			long nanos = sEntries.get(base + 1);
+			long subject = sEntries.get(base + 2);
+			long eventAndArg = sEntries.get(base + 3);
+			if (sEntries.get(base) != sequence + 1) {
+				continue;
+			}
+			entries[count * 3] = nanos;
+			entries[count * 3 + 1] = subject;
+			entries[count * 3 + 2] = eventAndArg;
+			count++;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.nanoTime());
+			out.writeLong(System.currentTimeMillis());
+			Event[] events = Event.values();
+			out.writeInt(events.length);
+			for (Event event : events) {
+				out.writeUTF(event.name());
+			}
+			out.writeInt(count);
+			for (int i = 0; i < count * 3; i++) {
+				out.writeLong(entries[i]);
+			}
+		} finally {
+			out.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes a file made by {@link #dump(File)} as text, one event per line, with the wall clock time it happened at.
+	 */
+	public static void print(File pDump, PrintWriter pOut) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pDump)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a billing trace: " + pDump);
+			}
+			long dumpNanos = in.readLong();
+			long dumpMillis = in.readLong();
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = in.readUTF();
+			}
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long nanos = in.readLong();
+				long subject = in.readLong();
+				long eventAndArg = in.readLong();
+				int event = (int) (eventAndArg >>> 32);
+				int arg = (int) eventAndArg;
+				String name = event < names.length ? names[event] : "EVENT_" + event;
+				long millis = dumpMillis - (dumpNanos - nanos) / 1000000;
+				pOut.println(format.format(new Date(millis)) + " " + name + " " + subject + " " + describe(name, arg));
+			}
+		} finally {
+			in.close();
+		}
+		pOut.flush();
+	}
+
+	/**
+	 * Spells out the argument of the events that carry an enum in it.
+	 */
+	private static String describe(String event, int arg) {
+		if (Event.REQUEST_SENT.name().equals(event)) {
+			return method(arg >>> 16) + " " + Consts.ResponseCode.valueOf(arg & 0xFFFF);
+		}
+		if (Event.REMOTE_EXCEPTION.name().equals(event)) {
+			return method(arg);
+		}
+		if (Event.RESPONSE_CODE.name().equals(event)) {
+			return Consts.ResponseCode.valueOf(arg).name();
+		}
+		if (Event.PURCHASE_STATE_CHANGE.name().equals(event) || Event.DISPATCHED.name().equals(event)) {
+			return Consts.PurchaseState.valueOf(arg).name();
+		}
+		return String.valueOf(arg);
+	}
+
+	private static String method(int ordinal) {
+		BillingMetrics.Timer[] timers = BillingMetrics.Timer.values();
+		return ordinal >= 0 && ordinal < timers.length ? timers[ordinal].name() : String.valueOf(ordinal);
+	}
+}
@@ -57,6 +57,15 @@ class Consts {
 		}
 	}
 
+	// The ways the purchase history can be stored. SQLITE keeps it in the
+	// PurchaseDatabase. LOG appends each batch of orders to a file and keeps
+	// the quantities in memory, which suits applications that sell unmanaged
+	// items in very large numbers.
+	enum PurchaseStoreType {
+		SQLITE,
+		LOG
+	}
+
 	/**
 	 * This is the action we use to bind to the MarketBillingService.
 	 */
@@ -107,6 +116,106 @@ class Consts {
 	static final String ITEM_TYPE_INAPP = "inapp";
 	static final String ITEM_TYPE_SUBSCRIPTION = "subs";
 
+	// How long PlayBillingService waits for further IN_APP_NOTIFY broadcasts
+	// before sending their notification IDs in one GET_PURCHASE_INFORMATION
+	// request, and how many IDs it collects at most before sending early.
+	static final long PURCHASE_INFORMATION_BATCH_WINDOW_MILLIS = 250;
+	static final int PURCHASE_INFORMATION_MAX_BATCH_SIZE = 20;
+
+	// The number of tasks that may wait in the purchase writer's queue. Purchases
+	// submitted while it is full are merged into one task instead of waiting.
+	static final int PURCHASE_PERSISTENCE_QUEUE_CAPACITY = 256;
+
+	// The number of verified purchases from one PURCHASE_STATE_CHANGED message
+	// that are stored together in one database transaction.
+	static final int PURCHASE_INGEST_CHUNK_SIZE = 100;
+
+	// Where the purchase history is kept. Changing it does not move purchases
+	// that are already stored, so choose before the application is released.
+	static final PurchaseStoreType PURCHASE_STORE_TYPE = PurchaseStoreType.SQLITE;
+
+	// The log store is rewritten with only the latest record of each order
+	// once it holds at least this many records and more than twice as many
+	// records as orders.
+	static final int PURCHASE_LOG_COMPACTION_MIN_RECORDS = 1000;
+
+	// Whether every verified purchase and response code is also appended to
+	// the purchase journal, which keeps every state each order went through.
+	// It costs one more sync per batch of purchases.
+	static final boolean PURCHASE_JOURNAL_ENABLED = true;
+
+	// The number of orders written to the store together when it is rebuilt
+	// from the journal.
+	static final int PURCHASE_JOURNAL_REBUILD_BATCH_SIZE = 1000;
+
+	// The journal is rotated once it holds at least this many entries and
+	// more than twice as many entries as orders. The new journal starts with
+	// the latest state of every order; the old one is kept until the next
+	// rotation.
+	static final int PURCHASE_JOURNAL_ROTATION_MIN_ENTRIES = 10000;
+
+	// The number of owned items the owned items adapter reads at a time.
+	static final int OWNED_ITEMS_PAGE_SIZE = 50;
+
+	// How long a nonce sent with GET_PURCHASE_INFORMATION or
+	// RESTORE_TRANSACTIONS is accepted. Android Market sends a new
+	// notification for purchase information it could not deliver, so a
+	// nonce that expires only costs another round trip.
+	static final long NONCE_TTL_MILLIS = 60 * 60 * 1000L;
+
+	// Whether the nonces of unanswered requests are kept in a small file,
+	// so answers that arrive after the process was restarted are accepted.
+	static final boolean NONCE_PERSISTENCE_ENABLED = true;
+
+	// How long the connection to the MarketBillingService is kept after the
+	// last request, so a burst of requests binds only once.
+	static final long MARKET_BILLING_KEEP_ALIVE_MILLIS = 60 * 1000L;
+
+	// Whether PlayBilling binds to the MarketBillingService as soon as it is
+	// initialized, so the first request does not wait for the bind.
+	static final boolean MARKET_BILLING_WARM_UP = true;
+
+	// When a call to the MarketBillingService fails, the connection is bound
+	// again after the base delay, doubled with every failed attempt up to the
+	// maximum delay. Requests still waiting after the last attempt are failed
+	// with RESULT_SERVICE_UNAVAILABLE; the next request binds again.
+	static final long MARKET_BILLING_RECONNECT_BASE_DELAY_MILLIS = 1000L;
+	static final long MARKET_BILLING_RECONNECT_MAX_DELAY_MILLIS = 60 * 1000L;
+	static final int MARKET_BILLING_RECONNECT_MAX_ATTEMPTS = 5;
+
+	// How long a request that was sent to Android Market waits for its
+	// RESPONSE_CODE before it is dropped. A purchase request only gets its
+	// response code once the user leaves the buy page, so it waits longer.
+	static final long BILLING_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+	static final long PURCHASE_REQUEST_TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+	// How long a purchase that Android Market accepted with RESULT_OK waits
+	// for its PURCHASE_STATE_CHANGED before its future completes with ERROR.
+	// The outcome is still reported to the callback if it arrives later.
+	static final long PURCHASE_STATE_CHANGE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+	// Whether PlayBilling shares one request between purchases of the same
+	// item with the same developer payload, so a double tap does not open the
+	// buy page twice, and how long calls are shared for under WINDOW. It can
+	// be changed at run time with PlayBilling.setPurchaseCoalescing.
+	static final PurchaseCoalescing PURCHASE_COALESCING = PurchaseCoalescing.IN_FLIGHT;
+	static final long PURCHASE_COALESCING_WINDOW_MILLIS = 2000;
+
+	// The longest a request is shared under IN_FLIGHT, in case neither its
+	// response code nor its outcome ever arrives.
+	static final long PURCHASE_COALESCING_MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+	// Whether BillingMetrics collects timings and counts from the start.
+	// It can still be switched at run time; while it is off a timed stage
+	// does not read the clock.
+	static final boolean METRICS_ENABLED = true;
+
+	// Whether BillingTrace records what happens to requests and purchases,
+	// and how many of the latest events it keeps. Each event takes 32 bytes.
+	// The capacity must be a power of two.
+	static final boolean TRACE_ENABLED = true;
+	static final int TRACE_CAPACITY = 2048;
+
 	static final boolean DEBUG = true;
 
 	static final String SHARED_PREFS_NAME = "PlayBillingSharedPreferencesFile";
@@ -0,0 +1,166 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Context;
+import android.util.Log;
+import com.trust5.billing.library.BillingResult;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.EntitlementCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A small binary copy of the entitlement cache, kept in the application's files directory so that entitlements can be
+ * answered at startup before the {@link PurchaseStore} has been opened. The store stays the source of truth: the
+ * cache is filled from this file first and from the store once it is open.
+ * <p/>
+ * The file is rewritten whenever the cache changes. It is written to a temporary file and renamed over the old one, so
+ * a reader sees either the old or the new snapshot. A checksum guards against a file that was cut short; a file that
+ * fails it is ignored. Like the database, the file is not obfuscated.
+ */
+class EntitlementSnapshot implements EntitlementCache.Listener {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "EntitlementSnapshot";
+	private static final String FILE_NAME = "entitlements.snapshot";
+
+	/**
+	 * "ENT1"
+	 */
+	private static final int MAGIC = 0x454e5431;
+	private static final int VERSION = 1;
+	private static final int NO_STATE = -1;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final File mFile;
+	private final File mTempFile;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	EntitlementSnapshot(Context pContext) {
+		mFile = new File(pContext.getFilesDir(), FILE_NAME);
+		mTempFile = new File(pContext.getFilesDir(), FILE_NAME + ".tmp");
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void onEntitlementsChanged(EntitlementCache pCache, List<Entitlement> pChanged) {
+		write(pCache.getAll().values());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the entitlements in the file, or null if there is no file or it cannot be read
+	 */
+	List<Entitlement> read() {
+		if (!mFile.exists()) {
+			return null;
+		}
+		try {
+			byte[] bytes = readFully(mFile);
+			if (bytes.length < 8) {
+				throw new IOException("too short");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			in.skipBytes(bytes.length - 8);
+			if (in.readLong() != crc.getValue()) {
+				throw new IOException("checksum mismatch");
+			}
+
+			in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("unknown format");
+			}
+			int count = in.readInt();
+			BillingResult.PurchaseState[] states = BillingResult.PurchaseState.values();
+			List<Entitlement> entitlements = new ArrayList<Entitlement>(count);
+			for (int i = 0; i < count; i++) {
+				String sku = in.readUTF();
+				int quantity = in.readInt();
+				int state = in.readByte();
+				entitlements.add(new Entitlement(sku, quantity,
+						state >= 0 && state < states.length ? states[state] : null));
+			}
+			return entitlements;
+		} catch (IOException e) {
+			Log.w(TAG, "ignoring unreadable snapshot: " + e.getMessage());
+			mFile.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the file with the given entitlements.
+	 */
+	void write(Collection<Entitlement> pEntitlements) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + pEntitlements.size() * 32);
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(pEntitlements.size());
+			for (Entitlement entitlement : pEntitlements) {
+				out.writeUTF(entitlement.getSku());
+				out.writeInt(entitlement.getQuantity());
+				out.writeByte(entitlement.getState() == null ? NO_STATE : entitlement.getState().ordinal());
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeLong(crc.getValue());
+			out.flush();
+
+			FileOutputStream file = new FileOutputStream(mTempFile);
+			try {
+				bytes.writeTo(file);
+			} finally {
+				file.close();
+			}
+			if (!mTempFile.renameTo(mFile)) {
+				throw new IOException("could not rename " + mTempFile);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "failed to write snapshot", e);
+			mTempFile.delete();
+		}
+	}
+
+	private static byte[] readFully(File pFile) throws IOException {
+		FileInputStream in = new FileInputStream(pFile);
+		try {
+			byte[] bytes = new byte[(int) pFile.length()];
+			int offset = 0;
+			while (offset < bytes.length) {
+				int read = in.read(bytes, offset, bytes.length - offset);
+				if (read < 0) {
+					throw new IOException("file shrank while reading");
+				}
+				offset += read;
+			}
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of frames, shared by the stores that write their records sequentially. The file starts with a
+ * magic number and a version. Each frame is prefixed with its length and followed by a checksum, and is synced to disk
+ * before {@link #append(byte[])} returns, so a frame is either read back whole or, if the process died while it was
+ * being written, recognised and cut off the next time the file is opened.
+ * <p/>
+ * Not thread safe; the owner serialises access.
+ */
+class FramedLog {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "FramedLog";
+	private static final int HEADER_LENGTH = 8;
+
+	/**
+	 * The length prefix and the checksum.
+	 */
+	private static final int FRAME_OVERHEAD = 4 + 8;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final File mFile;
+	private final File mTempFile;
+	private final int mMagic;
+	private final int mVersion;
+	private final CRC32 mCrc = new CRC32();
+
+	private long mLength;
+	private FileOutputStream mOut;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pFile    the file
+	 * @param pMagic   identifies what the file holds
+	 * @param pVersion the version of the frame contents
+	 */
+	FramedLog(File pFile, int pMagic, int pVersion) {
+		mFile = pFile;
+		mTempFile = new File(pFile.getPath() + ".tmp");
+		mMagic = pMagic;
+		mVersion = pVersion;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * @return the length of the complete frames in the file, including the header
+	 */
+	long getLength() {
+		return mLength;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Reads every complete frame, in the order they were appended, then cuts off a frame that was only partly written
+	 * and opens the file for appending. A file that is missing or was not written by this class with the same magic
+	 * number and version is replaced with an empty one.
+	 *
+	 * @param pReader told about each frame
+	 */
+	void open(FrameReader pReader) throws IOException {
+		if (!mFile.exists() && mTempFile.exists()) {
+			// A rewrite that kept the previous file stopped between moving it away and renaming the new one.
+			Log.w(TAG, "finishing the rewrite of " + mFile);
+			if (!mTempFile.renameTo(mFile)) {
+				throw new IOException("could not rename " + mTempFile);
+			}
+		}
+		long fileLength = mFile.length();
+		if (fileLength < HEADER_LENGTH) {
+			writeEmpty();
+		}
+		else {
+			long goodLength = replay(pReader, fileLength);
+			if (goodLength < 0) {
+				Log.w(TAG, "replacing unreadable " + mFile);
+				writeEmpty();
+			}
+			else {
+				if (goodLength < fileLength) {
+					Log.w(TAG, "dropping " + (fileLength - goodLength) + " bytes of incomplete frames from " + mFile);
+					RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+					try {
+						file.setLength(goodLength);
+						file.getFD().sync();
+					} finally {
+						file.close();
+					}
+				}
+				mLength = goodLength;
+			}
+		}
+		mOut = new FileOutputStream(mFile, true);
+	}
+
+	/**
+	 * Reads every frame appended so far, in order. The log must be open.
+	 *
+	 * @param pReader told about each frame
+	 */
+	void read(FrameReader pReader) throws IOException {
+		replay(pReader, mLength);
+	}
+
+	/**
+	 * Appends one frame and syncs it to disk. If that fails, whatever part of the frame reached the file is cut off
+	 * again, so later frames are not hidden behind it.
+	 *
+	 * @param pFrame the contents of the frame
+	 */
+	void append(byte[] pFrame) throws IOException {
+		try {
+			mLength += writeFrame(mOut, pFrame);
+		} catch (IOException e) {
+			try {
+				mOut.getChannel().truncate(mLength);
+			} catch (IOException truncateException) {
+				Log.e(TAG, "failed to truncate " + mFile, truncateException);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces the whole file with the given frames. The new file is written next to the old one and renamed over it,
+	 * so if this fails the old file is kept and can still be appended to.
+	 *
+	 * @param pFrames the contents of the frames, produced one at a time
+	 */
+	void rewrite(Iterator<byte[]> pFrames) throws IOException {
+		rewrite(pFrames, null);
+	}
+
+	/**
+	 * Same as {@link #rewrite(Iterator)}, but the old file is moved to {@code pPrevious}, replacing what was there,
+	 * instead of being deleted.
+	 *
+	 * @param pPrevious where to keep the old file, or null to delete it
+	 */
+	void rewrite(Iterator<byte[]> pFrames, File pPrevious) throws IOException {
+		long length = HEADER_LENGTH;
+		try {
+			FileOutputStream out = new FileOutputStream(mTempFile);
+			try {
+				writeHeader(out);
+				while (pFrames.hasNext()) {
+					length += writeFrame(out, pFrames.next());
+				}
+			} finally {
+				out.close();
+			}
+			mOut.close();
+			if (pPrevious != null) {
+				pPrevious.delete();
+				if (!mFile.renameTo(pPrevious)) {
+					mOut = new FileOutputStream(mFile, true);
+					throw new IOException("could not rename " + mFile);
+				}
+			}
+			boolean renamed = mTempFile.renameTo(mFile);
+			mOut = new FileOutputStream(mFile, true);
+			if (!renamed) {
+				throw new IOException("could not rename " + mTempFile);
+			}
+		} catch (IOException e) {
+			mTempFile.delete();
+			throw e;
+		}
+		mLength = length;
+	}
+
+	void close() {
+		if (mOut == null) {
+			return;
+		}
+		try {
+			mOut.close();
+		} catch (IOException e) {
+			Log.w(TAG, "failed to close " + mFile, e);
+		}
+	}
+
+	/**
+	 * @return the length of the complete frames, or -1 if the header does not match
+	 */
+	private long replay(FrameReader pReader, long fileLength) throws IOException {
+		long goodLength = HEADER_LENGTH;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+		try {
+			if (in.readInt() != mMagic || in.readInt() != mVersion) {
+				return -1;
+			}
+			byte[] frame = new byte[0];
+			while (goodLength < fileLength) {
+				int length = in.readInt();
+				if (length < 0 || length > fileLength - goodLength - FRAME_OVERHEAD) {
+					break;
+				}
+				if (frame.length < length) {
+					frame = new byte[length];
+				}
+				in.readFully(frame, 0, length);
+				mCrc.reset();
+				mCrc.update(frame, 0, length);
+				if (in.readLong() != mCrc.getValue()) {
+					break;
+				}
+				pReader.onFrame(new DataInputStream(new ByteArrayInputStream(frame, 0, length)));
+				goodLength += FRAME_OVERHEAD + length;
+			}
+		} catch (EOFException e) {
+			// The last frame is incomplete.
+		} finally {
+			in.close();
+		}
+		return goodLength;
+	}
+
+	private void writeEmpty() throws IOException {
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			writeHeader(out);
+		} finally {
+			out.close();
+		}
+		mLength = HEADER_LENGTH;
+	}
+
+	private void writeHeader(FileOutputStream out) throws IOException {
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(mMagic);
+		header.writeInt(mVersion);
+		header.flush();
+		out.getFD().sync();
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	private int writeFrame(FileOutputStream out, byte[] frame) throws IOException {
+		mCrc.reset();
+		mCrc.update(frame);
+		long crc = mCrc.getValue();
+		byte[] buffer = new byte[FRAME_OVERHEAD + frame.length];
+		putInt(buffer, 0, frame.length);
+		System.arraycopy(frame, 0, buffer, 4, frame.length);
+		putInt(buffer, 4 + frame.length, (int) (crc >>> 32));
+		putInt(buffer, 8 + frame.length, (int) crc);
+		out.write(buffer);
+		out.getFD().sync();
+		return buffer.length;
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * Reads the frames of a log when it is opened.
+	 */
+	interface FrameReader {
+		/**
+		 * @param pFrame the contents of one frame; only valid until this returns
+		 */
+		void onFrame(DataInputStream pFrame) throws IOException;
+	}
+}
@@ -0,0 +1,319 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import com.android.vending.billing.IMarketBillingService;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The process wide connection to the MarketBillingService. It is bound from the application context, so it outlives
+ * the {@link PlayBillingService} instances that send requests through it, and it is kept for
+ * {@link Consts#MARKET_BILLING_KEEP_ALIVE_MILLIS} after the last request before it is unbound. A burst of purchases
+ * therefore binds once instead of once per request.
+ * <p/>
+ * {@link PlayBilling#initialize()} binds straight away (see {@link #warmUp()}), so the first request usually finds the
+ * connection ready instead of paying for the bind. If the remote service dies under a request the connection is bound
+ * again after a delay that doubles with every failed attempt, up to {@link Consts#MARKET_BILLING_RECONNECT_MAX_ATTEMPTS}
+ * attempts; a new request always starts again from the first attempt. After the last attempt the requests still
+ * waiting are failed with {@link Consts.ResponseCode#RESULT_SERVICE_UNAVAILABLE}.
+ * <p/>
+ * Callbacks run on the main thread; the other methods may be called from any thread.
+ */
+class MarketBillingConnection implements ServiceConnection {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "MarketBillingConnection";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static MarketBillingConnection sInstance;
+
+	private static final AtomicLong sBindCount = new AtomicLong();
+	private static final AtomicLong sReconnectCount = new AtomicLong();
+	private static volatile long sLastBindNanos = -1;
+	private static volatile long sMaxBindNanos = -1;
+	private static volatile long sTimeToFirstRequestNanos = -1;
+
+	private final Context mContext;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private volatile IMarketBillingService mService;
+
+	/**
+	 * True from a successful bindService until the matching unbindService. Android reconnects a bound connection by
+	 * itself when the remote service restarts.
+	 */
+	private boolean mBound;
+	private long mBindStartNanos;
+	private int mFailedAttempts;
+	private boolean mFirstRequestSent;
+
+	private final Runnable mIdleCheck = new Runnable() {
+		@Override
+		public void run() {
+			unbindIfIdle();
+		}
+	};
+
+	private final Runnable mReconnect = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (MarketBillingConnection.this) {
+				if (!mBound) {
+					sReconnectCount.incrementAndGet();
+					if (!bind()) {
+						scheduleReconnect();
+					}
+				}
+			}
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	private MarketBillingConnection(Context pContext) {
+		mContext = pContext;
+	}
+
+	/**
+	 * @return the process wide connection
+	 */
+	static synchronized MarketBillingConnection getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new MarketBillingConnection(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the connected service, or null if it is not connected
+	 */
+	IMarketBillingService getService() {
+		return mService;
+	}
+
+	/**
+	 * @return the number of times the connection was bound
+	 */
+	static long getBindCount() {
+		return sBindCount.get();
+	}
+
+	/**
+	 * @return the number of times the connection to the remote service was lost and had to be made again
+	 */
+	static long getReconnectCount() {
+		return sReconnectCount.get();
+	}
+
+	/**
+	 * @return how long the last bind took until the service was connected, or -1 if it has not been connected
+	 */
+	static long getLastBindNanos() {
+		return sLastBindNanos;
+	}
+
+	/**
+	 * @return the longest time a bind took until the service was connected, or -1 if it has not been connected
+	 */
+	static long getMaxBindNanos() {
+		return sMaxBindNanos;
+	}
+
+	/**
+	 * @return how long the first request sent on the latest connection waited for it, 0 if the connection was ready,
+	 *         or -1 if no request has been sent
+	 */
+	static long getTimeToFirstRequestNanos() {
+		return sTimeToFirstRequestNanos;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void onServiceConnected(ComponentName name, IBinder service) {
+		synchronized (this) {
+			long bindNanos = System.nanoTime() - mBindStartNanos;
+			sLastBindNanos = bindNanos;
+			if (bindNanos > sMaxBindNanos) {
+				sMaxBindNanos = bindNanos;
+			}
+			BillingMetrics.record(BillingMetrics.Timer.BIND, bindNanos);
+			BillingTrace.record(BillingTrace.Event.CONNECTED, 0, (int) (bindNanos / 1000000));
+			mService = IMarketBillingService.Stub.asInterface(service);
+			mFirstRequestSent = false;
+		}
+		PlayBillingService.runPendingRequests();
+		scheduleIdleCheck();
+	}
+
+	/**
+	 * The binding stays; Android connects it again once the remote service has restarted.
+	 */
+	@Override
+	public void onServiceDisconnected(ComponentName name) {
+		Log.w(TAG, "Billing service disconnected");
+		BillingTrace.record(BillingTrace.Event.DISCONNECTED);
+		sReconnectCount.incrementAndGet();
+		synchronized (this) {
+			mService = null;
+			mBindStartNanos = System.nanoTime();
+		}
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Binds now, so the first request does not wait for it. The connection is unbound again if no request is made within
+	 * the keep-alive window.
+	 */
+	void warmUp() {
+		if (connect()) {
+			scheduleIdleCheck();
+		}
+	}
+
+	/**
+	 * Binds if that has not happened yet. A pending reconnect is done straight away.
+	 *
+	 * @return true if the connection is bound or binding; false if the MarketBillingService could not be bound
+	 */
+	synchronized boolean connect() {
+		mHandler.removeCallbacks(mIdleCheck);
+		if (mBound) {
+			return true;
+		}
+		mHandler.removeCallbacks(mReconnect);
+		mFailedAttempts = 0;
+		return bind();
+	}
+
+	/**
+	 * Records that a request was sent, which keeps the connection alive for another keep-alive window.
+	 *
+	 * @param queuedNanos when the request started waiting for the connection, or 0 if it did not wait
+	 */
+	void onRequestSent(long queuedNanos) {
+		synchronized (this) {
+			// Binding can succeed every time while every call fails, so only a call that went through counts.
+			mFailedAttempts = 0;
+			if (!mFirstRequestSent) {
+				mFirstRequestSent = true;
+				sTimeToFirstRequestNanos = queuedNanos == 0 ? 0 : System.nanoTime() - queuedNanos;
+			}
+		}
+		scheduleIdleCheck();
+	}
+
+	/**
+	 * Called when a call to the remote service failed. The connection is dropped and bound again after the backoff
+	 * delay if requests are waiting for it.
+	 */
+	synchronized void onBinderDied() {
+		mService = null;
+		if (mBound) {
+			unbind();
+		}
+		scheduleReconnect();
+	}
+
+	private void scheduleReconnect() {
+		if (!PlayBillingService.hasPendingRequests()) {
+			return;
+		}
+		if (mFailedAttempts >= Consts.MARKET_BILLING_RECONNECT_MAX_ATTEMPTS) {
+			Log.e(TAG, "giving up on the billing service after " + mFailedAttempts + " attempts");
+			// Taken now, so requests made after this start a new connection instead of being failed with these.
+			final List<PlayBillingService.BillingRequest> requests = PlayBillingService.takePendingRequests();
+			BillingTrace.record(BillingTrace.Event.RECONNECT_ABANDONED, mFailedAttempts, requests.size());
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					PlayBillingService.failPendingRequests(requests, Consts.ResponseCode.RESULT_SERVICE_UNAVAILABLE);
+				}
+			});
+			return;
+		}
+		long delay = Math.min(Consts.MARKET_BILLING_RECONNECT_BASE_DELAY_MILLIS << mFailedAttempts,
+				Consts.MARKET_BILLING_RECONNECT_MAX_DELAY_MILLIS);
+		mFailedAttempts++;
+		BillingTrace.record(BillingTrace.Event.RECONNECT_SCHEDULED, mFailedAttempts, (int) delay);
+		mHandler.postDelayed(mReconnect, delay);
+	}
+
+	/**
+	 * Lets the connection be unbound once it has been idle for the keep-alive window, from now.
+	 */
+	void release() {
+		scheduleIdleCheck();
+	}
+
+	private void scheduleIdleCheck() {
+		mHandler.removeCallbacks(mIdleCheck);
+		mHandler.postDelayed(mIdleCheck, Consts.MARKET_BILLING_KEEP_ALIVE_MILLIS);
+	}
+
+	/**
+	 * Unbinds unless requests are still waiting for the connection or for a response code, in which case it checks
+	 * again after another keep-alive window.
+	 */
+	private synchronized void unbindIfIdle() {
+		if (!mBound) {
+			return;
+		}
+		if (PlayBillingService.hasPendingRequests() || PlayBillingService.getSentRequests().getInFlightCount() > 0) {
+			scheduleIdleCheck();
+			return;
+		}
+		BillingTrace.record(BillingTrace.Event.UNBIND);
+		mService = null;
+		unbind();
+	}
+
+	private boolean bind() {
+		mBindStartNanos = System.nanoTime();
+		try {
+			mBound = mContext.bindService(new Intent(Consts.MARKET_BILLING_SERVICE_ACTION), this,
+					Context.BIND_AUTO_CREATE);
+		} catch (SecurityException e) {
+			Log.e(TAG, "Security exception: " + e);
+			mBound = false;
+		}
+		BillingTrace.record(BillingTrace.Event.BIND, 0, mBound ? 1 : 0);
+		if (mBound) {
+			sBindCount.incrementAndGet();
+		}
+		else {
+			Log.e(TAG, "Could not bind to service.");
+		}
+		return mBound;
+	}
+
+	private void unbind() {
+		mBound = false;
+		try {
+			mContext.unbindService(this);
+		} catch (IllegalArgumentException e) {
+			// This might happen if the service was disconnected
+		}
+	}
+}
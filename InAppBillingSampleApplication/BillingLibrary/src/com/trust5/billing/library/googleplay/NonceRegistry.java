@@ -0,0 +1,361 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * The nonces sent to Android Market that have not been answered yet. Signed data is only accepted if it carries one of
+ * them, and each is forgotten once it has been used, so the same data cannot be replayed.
+ * <p/>
+ * The nonces are kept in an open-addressing table of primitive longs, with linear probing and backward-shift deletion,
+ * so a lookup allocates nothing. Each nonce expires a fixed time after it was added, because a request that Android
+ * Market never answers would otherwise keep its nonce forever; expired nonces are not known, and are dropped whenever
+ * the table would otherwise grow.
+ * <p/>
+ * Once {@link #attach(File, Executor)} has been called the nonces are also kept in that file, so a
+ * GET_PURCHASE_INFORMATION or RESTORE_TRANSACTIONS answer that arrives after the process was restarted is still
+ * accepted. A change only marks the table dirty and queues a write on the executor; the file is rewritten once for all
+ * the changes made before that write starts, so neither the caller nor the lock waits for the disk. The file is not
+ * synced to disk; it only has to survive the process, not the device. Zero is never a nonce, since it marks free slots
+ * and is what signed data without a nonce reads as.
+ * <p/>
+ * Thread safe.
+ */
+class NonceRegistry {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "NonceRegistry";
+	static final String FILE_NAME = "nonces";
+
+	/**
+	 * "NNCE"
+	 */
+	private static final int MAGIC = 0x4e4e4345;
+	private static final int VERSION = 1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final long mTtlMillis;
+
+	private long[] mNonces = new long[INITIAL_CAPACITY];
+	private long[] mExpiries = new long[INITIAL_CAPACITY];
+	private int mSize;
+	private long mExpiredCount;
+
+	private File mFile;
+	private File mTempFile;
+	private Executor mWriter;
+
+	/**
+	 * True from a change until the write it queued has taken the nonces to write.
+	 */
+	private boolean mFlushScheduled;
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pTtlMillis how long after it was added a nonce expires
+	 */
+	NonceRegistry(long pTtlMillis) {
+		mTtlMillis = pTtlMillis;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of nonces held, including expired ones that have not been dropped yet
+	 */
+	synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the number of nonces dropped because they expired before they were used
+	 */
+	synchronized long getExpiredCount() {
+		return mExpiredCount;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Starts keeping the nonces in the file, after reading back the ones a previous process left there that have not
+	 * expired. Later calls are ignored. The file is read here, so the nonces in it are known before the first answer is
+	 * checked; it is only ever written on {@code pWriter}.
+	 *
+	 * @param pFile   the file
+	 * @param pWriter runs the writes, one at a time and in order
+	 */
+	synchronized void attach(File pFile, Executor pWriter) {
+		if (mFile != null) {
+			return;
+		}
+		mFile = pFile;
+		mTempFile = new File(pFile.getPath() + ".tmp");
+		mWriter = pWriter;
+		if (pFile.exists()) {
+			read(System.currentTimeMillis());
+		}
+		markDirty();
+	}
+
+	/**
+	 * Adds a nonce that expires after the time to live.
+	 */
+	synchronized void add(long nonce) {
+		if (nonce == 0) {
+			return;
+		}
+		put(nonce, System.currentTimeMillis() + mTtlMillis);
+		markDirty();
+	}
+
+	/**
+	 * @return true if the nonce was added, has not been removed and has not expired
+	 */
+	synchronized boolean contains(long nonce) {
+		int slot = find(nonce);
+		if (slot < 0) {
+			return false;
+		}
+		if (mExpiries[slot] <= System.currentTimeMillis()) {
+			delete(slot);
+			mExpiredCount++;
+			markDirty();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets a nonce, once it has been used or its request has failed.
+	 */
+	synchronized void remove(long nonce) {
+		int slot = find(nonce);
+		if (slot >= 0) {
+			delete(slot);
+			markDirty();
+		}
+	}
+
+	private int find(long nonce) {
+		if (nonce == 0) {
+			return -1;
+		}
+		int mask = mNonces.length - 1;
+		for (int slot = hash(nonce) & mask; mNonces[slot] != 0; slot = (slot + 1) & mask) {
+			if (mNonces[slot] == nonce) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void put(long nonce, long expiry) {
+		int slot = find(nonce);
+		if (slot >= 0) {
+			mExpiries[slot] = expiry;
+			return;
+		}
+		if ((mSize + 1) * 2 > mNonces.length) {
+			dropExpired(System.currentTimeMillis());
+			if ((mSize + 1) * 2 > mNonces.length) {
+				rehash(mNonces.length * 2);
+			}
+		}
+		insert(nonce, expiry);
+	}
+
+	private void insert(long nonce, long expiry) {
+		int mask = mNonces.length - 1;
+		int slot = hash(nonce) & mask;
+		while (mNonces[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		mNonces[slot] = nonce;
+		mExpiries[slot] = expiry;
+		mSize++;
+	}
+
+	/**
+	 * Empties the slot and moves later entries of the same probe run back into it, so lookups never need tombstones.
+	 */
+	private void delete(int slot) {
+		int mask = mNonces.length - 1;
+		int free = slot;
+		int next = (free + 1) & mask;
+		while (mNonces[next] != 0) {
+			int home = hash(mNonces[next]) & mask;
+			// The entry may move to the free slot only if that does not put it before its home slot.
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				mNonces[free] = mNonces[next];
+				mExpiries[free] = mExpiries[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		mNonces[free] = 0;
+		mExpiries[free] = 0;
+		mSize--;
+	}
+
+	private void dropExpired(long now) {
+		long[] nonces = mNonces;
+		long[] expiries = mExpiries;
+		int live = 0;
+		for (int i = 0; i < nonces.length; i++) {
+			if (nonces[i] != 0 && expiries[i] > now) {
+				live++;
+			}
+		}
+		if (live == mSize) {
+			return;
+		}
+		mExpiredCount += mSize - live;
+		mNonces = new long[nonces.length];
+		mExpiries = new long[nonces.length];
+		mSize = 0;
+		for (int i = 0; i < nonces.length; i++) {
+			if (nonces[i] != 0 && expiries[i] > now) {
+				insert(nonces[i], expiries[i]);
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] nonces = mNonces;
+		long[] expiries = mExpiries;
+		mNonces = new long[capacity];
+		mExpiries = new long[capacity];
+		mSize = 0;
+		for (int i = 0; i < nonces.length; i++) {
+			if (nonces[i] != 0) {
+				insert(nonces[i], expiries[i]);
+			}
+		}
+	}
+
+	/**
+	 * Nonces are random, but the low bits are mixed with the high ones in case a caller's are not.
+	 */
+	private static int hash(long nonce) {
+		long h = nonce * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Adds the nonces in the file that have not expired. A file that cannot be read is ignored; the nonces in it are
+	 * lost, which only costs Android Market sending the notifications again.
+	 */
+	private void read(long now) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					Log.w(TAG, "ignoring unreadable " + mFile);
+					return;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					long nonce = in.readLong();
+					long expiry = in.readLong();
+					if (nonce != 0 && expiry > now) {
+						put(nonce, expiry);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			Log.w(TAG, "ignoring the end of truncated " + mFile);
+		} catch (IOException e) {
+			Log.w(TAG, "failed to read " + mFile, e);
+		}
+	}
+
+	/**
+	 * Queues a write of the file, unless one is already queued that has not taken the nonces yet.
+	 */
+	private void markDirty() {
+		if (mWriter == null || mFlushScheduled) {
+			return;
+		}
+		mFlushScheduled = true;
+		mWriter.execute(mFlush);
+	}
+
+	/**
+	 * Replaces the file with the nonces held now. Only the copy is made under the lock; the file is written without it.
+	 * The new file is written next to the old one and renamed over it, so the old one is kept if this fails. Runs on the
+	 * writer, so two writes never overlap.
+	 */
+	private void flush() {
+		byte[] contents;
+		synchronized (this) {
+			mFlushScheduled = false;
+			contents = toByteArray();
+		}
+		try {
+			FileOutputStream file = new FileOutputStream(mTempFile);
+			try {
+				file.write(contents);
+			} finally {
+				file.close();
+			}
+			if (!mTempFile.renameTo(mFile)) {
+				throw new IOException("could not rename " + mTempFile);
+			}
+		} catch (IOException e) {
+			mTempFile.delete();
+			Log.w(TAG, "failed to write " + mFile, e);
+		}
+	}
+
+	private byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + mSize * 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mSize);
+			for (int i = 0; i < mNonces.length; i++) {
+				if (mNonces[i] != 0) {
+					out.writeLong(mNonces[i]);
+					out.writeLong(mExpiries[i]);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// Only writes to memory.
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
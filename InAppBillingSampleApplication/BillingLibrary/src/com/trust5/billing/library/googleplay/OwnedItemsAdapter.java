@@ -0,0 +1,215 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+import com.trust5.billing.library.BillingFuture;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.EntitlementCache;
+import com.trust5.billing.library.Page;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Shows the owned items, ordered by item ID, with the quantity of each. Items are read a page at a time on the
+ * persistence thread, the first page straight away and each later one as the list scrolls near the end of what has
+ * been read. Purchases and refunds are applied to the rows already read as the {@link EntitlementCache} reports them,
+ * so nothing is read again after a purchase.
+ * <p/>
+ * Must be created and used on the main thread. Call {@link #close()} when it is no longer shown.
+ */
+public class OwnedItemsAdapter extends BaseAdapter implements EntitlementCache.Listener {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "OwnedItemsAdapter";
+
+	/**
+	 * How close to the last row read the list may scroll before the next page is asked for.
+	 */
+	private static final int PREFETCH_DISTANCE = 10;
+
+	private static final Comparator<Entitlement> SKU_ORDER = new Comparator<Entitlement>() {
+		@Override
+		public int compare(Entitlement lhs, Entitlement rhs) {
+			return lhs.getSku().compareTo(rhs.getSku());
+		}
+	};
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final PlayBilling mPlayBilling;
+	private final LayoutInflater mInflater;
+	private final int mLayout;
+	private final int mNameResourceID;
+	private final int mQuantityResourceID;
+
+	private final Handler mHandler = new Handler();
+	private final Executor mMainThreadExecutor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			mHandler.post(command);
+		}
+	};
+
+	/**
+	 * The rows read so far, ordered by item ID.
+	 */
+	private final ArrayList<Entitlement> mItems = new ArrayList<Entitlement>();
+	private boolean mHasMore = true;
+	private BillingFuture<Page<Entitlement>> mLoading;
+	private boolean mClosed;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pContext            - Used to inflate the rows
+	 * @param pPlayBilling        - Reads the pages
+	 * @param pLayout             - The layout of a row
+	 * @param pNameResourceID     - The TextView in the row that shows the item ID
+	 * @param pQuantityResourceID - The TextView in the row that shows the quantity
+	 */
+	OwnedItemsAdapter(Context pContext, PlayBilling pPlayBilling, int pLayout, int pNameResourceID,
+					  int pQuantityResourceID) {
+		mPlayBilling = pPlayBilling;
+		mInflater = LayoutInflater.from(pContext);
+		mLayout = pLayout;
+		mNameResourceID = pNameResourceID;
+		mQuantityResourceID = pQuantityResourceID;
+		pPlayBilling.getEntitlements().addListener(this, mMainThreadExecutor);
+		loadNextPage();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public int getCount() {
+		return mItems.size();
+	}
+
+	@Override
+	public Entitlement getItem(int position) {
+		return mItems.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View view = convertView;
+		if (view == null) {
+			view = mInflater.inflate(mLayout, parent, false);
+		}
+		Entitlement item = mItems.get(position);
+		((TextView) view.findViewById(mNameResourceID)).setText(item.getSku());
+		((TextView) view.findViewById(mQuantityResourceID)).setText(String.valueOf(item.getQuantity()));
+		if (position >= mItems.size() - PREFETCH_DISTANCE) {
+			loadNextPage();
+		}
+		return view;
+	}
+
+	/**
+	 * Applies the change to the rows read so far. An item after the last row read is left for its page, unless every
+	 * page has been read.
+	 */
+	@Override
+	public void onEntitlementsChanged(EntitlementCache pCache, List<Entitlement> pChanged) {
+		if (mClosed) {
+			return;
+		}
+		boolean changed = false;
+		for (Entitlement entitlement : pChanged) {
+			int index = Collections.binarySearch(mItems, entitlement, SKU_ORDER);
+			if (index >= 0) {
+				if (entitlement.isOwned()) {
+					mItems.set(index, entitlement);
+				}
+				else {
+					mItems.remove(index);
+				}
+				changed = true;
+			}
+			else if (entitlement.isOwned() && (!mHasMore || -index - 1 < mItems.size())) {
+				mItems.add(-index - 1, entitlement);
+				changed = true;
+			}
+		}
+		if (changed) {
+			notifyDataSetChanged();
+		}
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Stops listening for changes and drops a page that is still being read.
+	 */
+	public void close() {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		mPlayBilling.getEntitlements().removeListener(this);
+		if (mLoading != null) {
+			mLoading.cancel(false);
+			mLoading = null;
+		}
+	}
+
+	private void loadNextPage() {
+		if (mClosed || !mHasMore || mLoading != null) {
+			return;
+		}
+		String after = mItems.isEmpty() ? null : mItems.get(mItems.size() - 1).getSku();
+		mLoading = mPlayBilling.queryOwnedItemsAsync(after, Consts.OWNED_ITEMS_PAGE_SIZE);
+		mLoading.addListener(new BillingFuture.Listener<Page<Entitlement>>() {
+			@Override
+			public void onComplete(BillingFuture<Page<Entitlement>> pFuture) {
+				onPageLoaded(pFuture);
+			}
+		}, mMainThreadExecutor);
+	}
+
+	private void onPageLoaded(BillingFuture<Page<Entitlement>> pFuture) {
+		if (mClosed || pFuture != mLoading) {
+			return;
+		}
+		mLoading = null;
+		Page<Entitlement> page = pFuture.getNow();
+		if (page == null) {
+			// Asking again would most likely fail the same way.
+			Log.w(TAG, "failed to read owned items after " + mItems.size() + " rows");
+			mHasMore = false;
+			return;
+		}
+		// Rows a change notification already added are in the page too.
+		String last = mItems.isEmpty() ? null : mItems.get(mItems.size() - 1).getSku();
+		for (Entitlement item : page.getItems()) {
+			if (last == null || item.getSku().compareTo(last) > 0) {
+				mItems.add(item);
+			}
+		}
+		mHasMore = page.hasMore();
+		notifyDataSetChanged();
+	}
+}
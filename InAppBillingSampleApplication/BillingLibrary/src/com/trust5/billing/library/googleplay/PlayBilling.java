@@ -3,23 +3,31 @@ package com.trust5.billing.library.googleplay;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
-import android.util.Log;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
+import com.trust5.billing.library.BillingFuture;
+import com.trust5.billing.library.BillingResult;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.EntitlementCache;
+import com.trust5.billing.library.IAsyncBilling;
 import com.trust5.billing.library.IBilling;
 import com.trust5.billing.library.IPurchaseResponseCallback;
+import com.trust5.billing.library.Page;
+import com.trust5.billing.library.PurchaseRecord;
 
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by IntelliJ IDEA. User: Ruairi Date: 08/11/12 Time: 19:44
  */
-public class PlayBilling implements IBilling {
+public class PlayBilling implements IBilling, IAsyncBilling {
 	// ===========================================================
 	// Constants
 	// ===========================================================
@@ -37,9 +45,19 @@ public class PlayBilling implements IBilling {
 	private Handler mHandler;
 	private PlayBillingService mPlayBillingService;
 	private PlayBillingPurchaseObserver mPlayBillingPurchaseObserver;
-	private PurchaseDatabase mPurchaseDatabase;
-	private Cursor mOwnedItemsCursor;
-	private Set<String> mOwnedItems = new HashSet<String>();
+	private OwnedItemsAdapter mOwnedItemsAdapter;
+
+	/**
+	 * Purchases made through {@link #buyItemAsync(String, String)} whose outcome is not known yet, oldest first.
+	 */
+	private final ConcurrentLinkedQueue<PendingPurchase> mPendingPurchases = new ConcurrentLinkedQueue<PendingPurchase>();
+
+	/**
+	 * The purchases that later calls for the same item attach to, by {@link #purchaseKey(String, String, String)}.
+	 * Guarded by itself.
+	 */
+	private final HashMap<String, InFlightPurchase> mInFlightPurchases = new HashMap<String, InFlightPurchase>();
+	private volatile PurchaseCoalescing mPurchaseCoalescing = Consts.PURCHASE_COALESCING;
 
 	private Context mContext;
 	private IPurchaseResponseCallback mResponseCallback;
@@ -55,12 +73,250 @@ public class PlayBilling implements IBilling {
 	// Getter & Setter
 	// ===========================================================
 
-	public Cursor getOwnedItemsCursor() {
-		return mOwnedItemsCursor;
+	/**
+	 * @return The IDs of the items owned when this was called
+	 */
+	public Set<String> getOwnedItemsSet() {
+		return getEntitlements().getOwnedSkus();
+	}
+
+	/**
+	 * @return What the user owns. It can be read from any thread and takes listeners for changes, including refunds.
+	 */
+	public EntitlementCache getEntitlements() {
+		return ResponseHandler.getEntitlementCache();
 	}
 
-	public Set<String> getOwnedItemsSet() {
-		return mOwnedItems;
+	public PurchaseCoalescing getPurchaseCoalescing() {
+		return mPurchaseCoalescing;
+	}
+
+	/**
+	 * @param pPurchaseCoalescing - Whether repeated purchases of the same item and developer payload share one request.
+	 *                            Takes effect from the next purchase. The number of calls that shared a request is
+	 *                            counted as {@link BillingMetrics.Counter#PURCHASE_COALESCED}
+	 */
+	public void setPurchaseCoalescing(PurchaseCoalescing pPurchaseCoalescing) {
+		if (pPurchaseCoalescing == null) {
+			throw new NullPointerException("coalescing is null");
+		}
+		mPurchaseCoalescing = pPurchaseCoalescing;
+	}
+
+	/**
+	 * Configures how IN_APP_NOTIFY broadcasts are coalesced into GET_PURCHASE_INFORMATION requests.
+	 *
+	 * @param pWindowMillis  - How long to wait for more notifications after the first one arrives, 0 disables batching
+	 * @param pMaxBatchSize  - The number of notifications that sends the request before the window closes
+	 */
+	public static void setPurchaseInformationBatching(long pWindowMillis, int pMaxBatchSize) {
+		PurchaseInformationBatcher.configure(pWindowMillis, pMaxBatchSize);
+	}
+
+	/**
+	 * @return The number of GET_PURCHASE_INFORMATION requests sent since the process started
+	 */
+	public static long getPurchaseInformationRequestCount() {
+		return PurchaseInformationBatcher.getBatchCount();
+	}
+
+	/**
+	 * @return The number of notifications that were requested since the process started
+	 */
+	public static long getPurchaseInformationNotificationCount() {
+		return PurchaseInformationBatcher.getNotifyIdCount();
+	}
+
+	/**
+	 * @return The number of binder calls saved by sending several notifications in one request
+	 */
+	public static long getPurchaseInformationBinderCallsSaved() {
+		return PurchaseInformationBatcher.getSavedBinderCalls();
+	}
+
+	/**
+	 * @return The largest number of notifications sent in a single request
+	 */
+	public static int getLargestPurchaseInformationBatch() {
+		return PurchaseInformationBatcher.getLargestBatch();
+	}
+
+	/**
+	 * @return The number of purchase updates waiting to be written to the database
+	 */
+	public static int getPurchasePersistenceQueueDepth() {
+		return PurchasePersistenceExecutor.getQueueDepth();
+	}
+
+	/**
+	 * @return The number of purchase updates written to the database since the process started
+	 */
+	public static long getPersistedPurchaseCount() {
+		return PurchasePersistenceExecutor.getCompletedCount();
+	}
+
+	/**
+	 * @return The average time in nanoseconds between a purchase update being queued and it being written
+	 */
+	public static long getAveragePurchasePersistenceLatencyNanos() {
+		return PurchasePersistenceExecutor.getAverageLatencyNanos();
+	}
+
+	/**
+	 * @return The longest time in nanoseconds between a purchase update being queued and it being written
+	 */
+	public static long getMaxPurchasePersistenceLatencyNanos() {
+		return PurchasePersistenceExecutor.getMaxLatencyNanos();
+	}
+
+	/**
+	 * @return The number of purchase signatures checked since the process started
+	 */
+	public static long getSignatureVerificationCount() {
+		return Security.getVerifier().getVerificationCount();
+	}
+
+	/**
+	 * @return The number of purchase signatures that failed to verify since the process started
+	 */
+	public static long getSignatureVerificationFailureCount() {
+		return Security.getVerifier().getFailureCount();
+	}
+
+	/**
+	 * @return The average time in nanoseconds taken to check a purchase signature
+	 */
+	public static long getAverageSignatureVerificationNanos() {
+		return Security.getVerifier().getAverageNanos();
+	}
+
+	/**
+	 * @return The longest time in nanoseconds taken to check a purchase signature
+	 */
+	public static long getMaxSignatureVerificationNanos() {
+		return Security.getVerifier().getMaxNanos();
+	}
+
+	/**
+	 * @return The number of requests waiting for the connection to Android Market
+	 */
+	public static int getPendingRequestCount() {
+		return PlayBillingService.getPendingRequestCount();
+	}
+
+	/**
+	 * @return The number of requests sent to Android Market that are still waiting for a response code
+	 */
+	public static int getInFlightRequestCount() {
+		return PlayBillingService.getSentRequests().getInFlightCount();
+	}
+
+	/**
+	 * @return How long in milliseconds the oldest request sent to Android Market has been waiting for a response code
+	 */
+	public static long getOldestInFlightRequestAgeMillis() {
+		return PlayBillingService.getSentRequests().getOldestAgeMillis();
+	}
+
+	/**
+	 * @return The number of requests dropped because Android Market did not send a response code in time
+	 */
+	public static long getTimedOutRequestCount() {
+		return PlayBillingService.getSentRequests().getTimeoutCount();
+	}
+
+	/**
+	 * @return The number of nonces sent to Android Market that have not been answered yet
+	 */
+	public static int getPendingNonceCount() {
+		return Security.getNonces().size();
+	}
+
+	/**
+	 * @return The number of nonces that expired before Android Market answered their request
+	 */
+	public static long getExpiredNonceCount() {
+		return Security.getNonces().getExpiredCount();
+	}
+
+	/**
+	 * @return The number of times the MarketBillingService was bound
+	 */
+	public static long getMarketBillingBindCount() {
+		return MarketBillingConnection.getBindCount();
+	}
+
+	/**
+	 * @return The number of times the connection to the MarketBillingService was lost and made again
+	 */
+	public static long getMarketBillingReconnectCount() {
+		return MarketBillingConnection.getReconnectCount();
+	}
+
+	/**
+	 * @return How long in nanoseconds the last bind to the MarketBillingService took, or -1 if it never connected
+	 */
+	public static long getLastMarketBillingBindNanos() {
+		return MarketBillingConnection.getLastBindNanos();
+	}
+
+	/**
+	 * @return How long in nanoseconds the slowest bind to the MarketBillingService took, or -1 if it never connected
+	 */
+	public static long getMaxMarketBillingBindNanos() {
+		return MarketBillingConnection.getMaxBindNanos();
+	}
+
+	/**
+	 * @return How long in nanoseconds the first request on the current connection waited for it, or -1 if none was sent
+	 */
+	public static long getTimeToFirstRequestNanos() {
+		return MarketBillingConnection.getTimeToFirstRequestNanos();
+	}
+
+	/**
+	 * @return How long in nanoseconds the last call to {@link #initialize()} took
+	 */
+	public static long getInitializeNanos() {
+		return StartupMetrics.getInitializeNanos();
+	}
+
+	/**
+	 * @return How long in nanoseconds reading the entitlement snapshot took at startup
+	 */
+	public static long getEntitlementSnapshotReadNanos() {
+		return StartupMetrics.getSnapshotReadNanos();
+	}
+
+	/**
+	 * @return The number of entitlements read from the snapshot at startup, or -1 if there was no usable snapshot
+	 */
+	public static int getEntitlementSnapshotSize() {
+		return StartupMetrics.getSnapshotEntitlementCount();
+	}
+
+	/**
+	 * @return How long in nanoseconds after {@link #initialize()} started the entitlements had been read from the
+	 *         database, or -1 if they have not been read yet
+	 */
+	public static long getEntitlementDatabaseLoadNanos() {
+		return StartupMetrics.getDatabaseLoadNanos();
+	}
+
+	/**
+	 * @return How long opening the purchase database took on its background thread, including any schema upgrade, or
+	 *         -1 if it has not been opened
+	 */
+	public static long getPurchaseDatabaseOpenNanos() {
+		return PurchasePersistenceExecutor.getOpenNanos();
+	}
+
+	/**
+	 * @return How long the last rebuild of the purchase database from the purchase journal took, or -1 if there has not
+	 *         been one
+	 */
+	public static long getPurchaseJournalRebuildNanos() {
+		return PurchaseJournal.getLastRebuildNanos();
 	}
 
 	// ===========================================================
@@ -72,28 +328,35 @@ public class PlayBilling implements IBilling {
 	 */
 	@Override
 	public PlayBilling initialize() {
+		long start = System.nanoTime();
 		mHandler = new Handler();
 		mPlayBillingPurchaseObserver = new PlayBillingPurchaseObserver();
 		mPlayBillingService = new PlayBillingService();
 		mPlayBillingService.setContext(mContext);
-		mPurchaseDatabase = new PurchaseDatabase(mContext);
-
 
 		//TODO: Possibly move this to onStart or onResume
 		ResponseHandler.register(mPlayBillingPurchaseObserver);
-		initializeOwnedItems();
+		ResponseHandler.loadEntitlements(mContext, start);
+		if (Consts.MARKET_BILLING_WARM_UP) {
+			MarketBillingConnection.getInstance(mContext).warmUp();
+		}
 
+		StartupMetrics.recordInitialize(System.nanoTime() - start);
 		return this;
 	}
 
+	/**
+	 * Returns true without sending anything if the same purchase is already in flight; see
+	 * {@link #setPurchaseCoalescing(PurchaseCoalescing)}. The callback is told its outcome once.
+	 */
 	@Override
 	public boolean buyItem(String pItemID, String pPayload) {
-		return mPlayBillingService.requestPurchase(pItemID, Consts.ITEM_TYPE_INAPP, pPayload);
+		return isSent(requestPurchaseAsync(pItemID, Consts.ITEM_TYPE_INAPP, pPayload));
 	}
 
 	@Override
 	public boolean buySubscription(String pItemID, String pPayload) {
-		return mPlayBillingService.requestPurchase(pItemID, Consts.ITEM_TYPE_SUBSCRIPTION, pPayload);
+		return isSent(requestPurchaseAsync(pItemID, Consts.ITEM_TYPE_SUBSCRIPTION, pPayload));
 	}
 
 	/**
@@ -112,6 +375,55 @@ public class PlayBilling implements IBilling {
 		return mPlayBillingService.checkBillingSupported(Consts.ITEM_TYPE_SUBSCRIPTION);
 	}
 
+	@Override
+	public BillingFuture<Boolean> checkBillingAvailableAsync() {
+		return mPlayBillingService.checkBillingSupportedAsync(Consts.ITEM_TYPE_INAPP);
+	}
+
+	@Override
+	public BillingFuture<Boolean> checkSubscriptionsAvailableAsync() {
+		return mPlayBillingService.checkBillingSupportedAsync(Consts.ITEM_TYPE_SUBSCRIPTION);
+	}
+
+	/**
+	 * Returns the future of the same purchase if it is already in flight; see
+	 * {@link #setPurchaseCoalescing(PurchaseCoalescing)}.
+	 */
+	@Override
+	public BillingFuture<BillingResult> buyItemAsync(String pItemID, String pPayload) {
+		return requestPurchaseAsync(pItemID, Consts.ITEM_TYPE_INAPP, pPayload);
+	}
+
+	@Override
+	public BillingFuture<BillingResult> buySubscriptionAsync(String pItemID, String pPayload) {
+		return requestPurchaseAsync(pItemID, Consts.ITEM_TYPE_SUBSCRIPTION, pPayload);
+	}
+
+	@Override
+	public BillingFuture<BillingResult> restoreTransactionsAsync() {
+		return mPlayBillingService.restoreTransactionsAsync();
+	}
+
+	@Override
+	public BillingFuture<Page<Entitlement>> queryOwnedItemsAsync(final String pAfterItemID, int pLimit) {
+		return queryPageAsync(pLimit, new PageQuery<Entitlement>() {
+			@Override
+			public List<Entitlement> query(PurchaseStore pStore, int pLimit) {
+				return pStore.queryPurchasedItems(pAfterItemID, pLimit);
+			}
+		});
+	}
+
+	@Override
+	public BillingFuture<Page<PurchaseRecord>> queryPurchaseHistoryAsync(final PurchaseRecord pAfter, int pLimit) {
+		return queryPageAsync(pLimit, new PageQuery<PurchaseRecord>() {
+			@Override
+			public List<PurchaseRecord> query(PurchaseStore pStore, int pLimit) {
+				return pStore.queryPurchaseHistory(pAfter, pLimit);
+			}
+		});
+	}
+
 	/**
 	 * Should be called in Activity onDestroy()
 	 */
@@ -120,8 +432,20 @@ public class PlayBilling implements IBilling {
 		//TODO: Possibly move this to be called in onStop or onPause
 		ResponseHandler.unregister(mPlayBillingPurchaseObserver);
 
+		// Nothing will report the outcome of these purchases to this instance any more.
+		PendingPurchase pending;
+		while ((pending = mPendingPurchases.poll()) != null) {
+			pending.mFuture.cancel(false);
+		}
+		synchronized (mInFlightPurchases) {
+			mInFlightPurchases.clear();
+		}
 
-		mPurchaseDatabase.close();
+		// The store is shared by the whole process and stays open; only this instance's adapter is closed.
+		if (mOwnedItemsAdapter != null) {
+			mOwnedItemsAdapter.close();
+			mOwnedItemsAdapter = null;
+		}
 		mPlayBillingService.unbind();
 		mContext = null;
 	}
@@ -130,74 +454,190 @@ public class PlayBilling implements IBilling {
 	// Methods
 	// ===========================================================
 
-	public SimpleCursorAdapter getOwnedItemsAdapter(Context pContext, int layout, int pNameResourceID,
-													int pItemQuantityResourceID) {
-		String[] from = new String[]{PurchaseDatabase.PURCHASED_PRODUCT_ID_COL,
-				PurchaseDatabase.PURCHASED_QUANTITY_COL
-		};
-		int[] to = new int[]{pNameResourceID, pItemQuantityResourceID};
-		return new SimpleCursorAdapter(pContext, layout,
-				mOwnedItemsCursor, from, to);
+	private BillingFuture<BillingResult> requestPurchaseAsync(String pItemID, String pItemType, String pPayload) {
+		final BillingFuture<BillingResult> future = new BillingFuture<BillingResult>();
+		PurchaseCoalescing coalescing = mPurchaseCoalescing;
+		if (coalescing != PurchaseCoalescing.NONE) {
+			final String key = purchaseKey(pItemID, pItemType, pPayload);
+			long now = System.nanoTime();
+			BillingFuture<BillingResult> shared = null;
+			synchronized (mInFlightPurchases) {
+				InFlightPurchase inFlight = mInFlightPurchases.get(key);
+				if (inFlight != null && inFlight.isShared(coalescing, now)) {
+					shared = inFlight.mFuture;
+				}
+				else {
+					mInFlightPurchases.put(key, new InFlightPurchase(future, now));
+				}
+			}
+			if (shared != null) {
+				BillingMetrics.increment(BillingMetrics.Counter.PURCHASE_COALESCED);
+				BillingTrace.record(BillingTrace.Event.PURCHASE_COALESCED, pItemID.hashCode(), 0);
+				return shared;
+			}
+			future.addListener(new BillingFuture.Listener<BillingResult>() {
+				@Override
+				public void onComplete(BillingFuture<BillingResult> pFuture) {
+					forgetInFlightPurchase(key, pFuture);
+				}
+			}, PurchaseObserver.DIRECT_DISPATCHER);
+		}
+		final PendingPurchase pending = new PendingPurchase(pItemID, pPayload, future);
+		mPendingPurchases.add(pending);
+		future.addListener(new BillingFuture.Listener<BillingResult>() {
+			@Override
+			public void onComplete(BillingFuture<BillingResult> pFuture) {
+				mPendingPurchases.remove(pending);
+				mHandler.removeCallbacks(pending);
+			}
+		}, PurchaseObserver.DIRECT_DISPATCHER);
+		// A purchase that cannot be sent completes its future straight away, which forgets it.
+		mPlayBillingService.requestPurchase(pItemID, pItemType, pPayload, future);
+		return future;
 	}
 
 	/**
-	 * If the database has not been initialized, we send a RESTORE_TRANSACTIONS request to Android Market to get the list
-	 * of purchased items for this user. This happens if the application has just been installed or the user wiped data. We
-	 * do not want to do this on every startup, rather, we want to do only when the database needs to be initialized.
+	 * @return False if the purchase could not be sent because Android Market could not be reached
 	 */
-	private void restoreDatabase() {
-		SharedPreferences prefs = mContext.getSharedPreferences(Consts.SHARED_PREFS_NAME, Context.MODE_PRIVATE);
-		boolean initialized = prefs.getBoolean(DB_INITIALIZED, false);
-		if (!initialized) {
-			mPlayBillingService.restoreTransactions();
-			Toast.makeText(mContext, "Restoring transactions", Toast.LENGTH_LONG).show();
+	private static boolean isSent(BillingFuture<BillingResult> pFuture) {
+		BillingResult result = pFuture.getNow();
+		return result == null || result.getStatus() != BillingResult.Status.BILLING_UNAVAILABLE;
+	}
+
+	private static String purchaseKey(String pItemID, String pItemType, String pPayload) {
+		return pPayload == null ? pItemType + '\n' + pItemID : pItemType + '\n' + pItemID + '\n' + pPayload;
+	}
+
+	/**
+	 * Stops later purchases from sharing {@code pFuture}, if it is still the purchase in flight for {@code pKey}.
+	 */
+	private void forgetInFlightPurchase(String pKey, BillingFuture<BillingResult> pFuture) {
+		synchronized (mInFlightPurchases) {
+			InFlightPurchase inFlight = mInFlightPurchases.get(pKey);
+			if (inFlight != null && inFlight.mFuture == pFuture) {
+				mInFlightPurchases.remove(pKey);
+			}
 		}
 	}
 
 	/**
-	 * Creates a background thread that reads the database and initializes the set of owned items.
+	 * Marks the purchase as no longer showing its buy page, which ends {@link PurchaseCoalescing#IN_FLIGHT}.
 	 */
-	private void initializeOwnedItems() {
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				doInitializeOwnedItems();
+	private void buyPageClosed(PlayBillingService.RequestPurchase pRequest) {
+		String key = purchaseKey(pRequest.mProductId, pRequest.mProductType, pRequest.mDeveloperPayload);
+		synchronized (mInFlightPurchases) {
+			InFlightPurchase inFlight = mInFlightPurchases.get(key);
+			if (inFlight != null && inFlight.mFuture == pRequest.mFuture) {
+				inFlight.mBuyPageClosed = true;
 			}
-		}).start();
+		}
 	}
 
 	/**
-	 * Reads the set of purchased items from the database in a background thread and then adds those items to the set of
-	 * owned items in the main UI thread.
+	 * Gives up on the purchase of {@code pFuture} if its purchase state change does not arrive within
+	 * {@link Consts#PURCHASE_STATE_CHANGE_TIMEOUT_MILLIS}. Android Market has accepted it, so nothing else times it out.
 	 */
-	private void doInitializeOwnedItems() {
-		Cursor cursor = mPurchaseDatabase.queryAllPurchasedItems();
-		if (cursor == null) {
-			return;
+	private void expirePendingPurchase(BillingFuture<BillingResult> pFuture) {
+		for (PendingPurchase pending : mPendingPurchases) {
+			if (pending.mFuture == pFuture) {
+				mHandler.postDelayed(pending, Consts.PURCHASE_STATE_CHANGE_TIMEOUT_MILLIS);
+				return;
+			}
 		}
-		mOwnedItemsCursor = cursor;
-		final Set<String> ownedItems = new HashSet<String>();
-		try {
-			int productIdCol = cursor.getColumnIndexOrThrow(
-					PurchaseDatabase.PURCHASED_PRODUCT_ID_COL);
-			while (cursor.moveToNext()) {
-				String productId = cursor.getString(productIdCol);
-				ownedItems.add(productId);
+	}
+
+	/**
+	 * Completes the oldest asynchronous purchase of the item with the same developer payload, and forgets purchases
+	 * that were completed some other way.
+	 */
+	private void completePendingPurchase(String pItemId, String pPayload, Consts.PurchaseState pPurchaseState,
+										 int pQuantity, long pPurchaseTime) {
+		boolean completed = false;
+		Iterator<PendingPurchase> iterator = mPendingPurchases.iterator();
+		while (iterator.hasNext()) {
+			PendingPurchase pending = iterator.next();
+			if (pending.mFuture.isDone()) {
+				iterator.remove();
+			}
+			else if (!completed && pending.matches(pItemId, pPayload)) {
+				completed = pending.mFuture.complete(new BillingResult(BillingResult.Status.OK, pItemId,
+						PurchaseStore.toPurchaseState(pPurchaseState), pQuantity, pPurchaseTime));
+				iterator.remove();
 			}
+		}
+	}
 
-		} finally {
-			cursor.close();
+	/**
+	 * Rebuilds the purchase database from the purchase journal kept on the device, without asking Android Market. This
+	 * is much cheaper than {@link #restoreTransactionsAsync()}, but only knows about purchases made since the journal
+	 * was introduced. The database is rebuilt automatically at startup if it is found empty while the journal is not.
+	 * The owned items adapter is updated through the entitlement cache.
+	 *
+	 * @return A future that completes with the number of orders applied
+	 */
+	public BillingFuture<Integer> rebuildPurchasesFromJournal() {
+		BillingFuture<Integer> future = new BillingFuture<Integer>();
+		ResponseHandler.rebuildFromJournal(mContext, future);
+		return future;
+	}
+
+	/**
+	 * Creates the adapter for a list of the owned items. It reads them a page at a time as the list scrolls and is
+	 * closed by {@link #dispose()}. Must be called on the main thread after {@link #initialize()}.
+	 *
+	 * @param pContext                - Used to inflate the rows
+	 * @param layout                  - The layout of a row
+	 * @param pNameResourceID         - The TextView in the row that shows the item ID
+	 * @param pItemQuantityResourceID - The TextView in the row that shows the quantity
+	 */
+	public OwnedItemsAdapter getOwnedItemsAdapter(Context pContext, int layout, int pNameResourceID,
+												  int pItemQuantityResourceID) {
+		if (mOwnedItemsAdapter != null) {
+			mOwnedItemsAdapter.close();
 		}
+		mOwnedItemsAdapter = new OwnedItemsAdapter(pContext, this, layout, pNameResourceID, pItemQuantityResourceID);
+		return mOwnedItemsAdapter;
+	}
 
-		// We will add the set of owned items in a new Runnable that runs on
-		// the UI thread so that we don't need to synchronize access to
-		// mOwnedItems.
-		mHandler.post(new Runnable() {
+	/**
+	 * Runs the query on the persistence thread, once the store is open. One row more than the page holds is read to
+	 * tell whether there are more.
+	 */
+	private <T> BillingFuture<Page<T>> queryPageAsync(final int pLimit, final PageQuery<T> pQuery) {
+		if (pLimit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + pLimit);
+		}
+		final BillingFuture<Page<T>> future = new BillingFuture<Page<T>>();
+		PurchasePersistenceExecutor.getInstance(mContext).execute(new PurchasePersistenceExecutor.Task() {
 			@Override
-			public void run() {
-				mOwnedItems.addAll(ownedItems);
+			public void run(PurchaseStore store) {
+				if (future.isDone()) {
+					return;
+				}
+				try {
+					List<T> rows = pQuery.query(store, pLimit == Integer.MAX_VALUE ? pLimit : pLimit + 1);
+					boolean hasMore = rows.size() > pLimit;
+					future.complete(new Page<T>(hasMore ? rows.subList(0, pLimit) : rows, hasMore));
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
 			}
 		});
+		return future;
+	}
+
+	/**
+	 * If the database has not been initialized, we send a RESTORE_TRANSACTIONS request to Android Market to get the list
+	 * of purchased items for this user. This happens if the application has just been installed or the user wiped data. We
+	 * do not want to do this on every startup, rather, we want to do only when the database needs to be initialized.
+	 */
+	private void restoreDatabase() {
+		SharedPreferences prefs = mContext.getSharedPreferences(Consts.SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+		boolean initialized = prefs.getBoolean(DB_INITIALIZED, false);
+		if (!initialized) {
+			mPlayBillingService.restoreTransactions();
+			Toast.makeText(mContext, "Restoring transactions", Toast.LENGTH_LONG).show();
+		}
 	}
 
 	/**
@@ -222,18 +662,16 @@ public class PlayBilling implements IBilling {
 	// ===========================================================
 	/**
 	 * A {@link PurchaseObserver} is used to get callbacks when Android Market sends messages to this application so that
-	 * we can update the UI.
+	 * we can update the UI. Purchase state changes are handled on the database thread, where completing the pending
+	 * purchase is cheap; only the callbacks to the application are posted to the main thread.
 	 */
 	private class PlayBillingPurchaseObserver extends PurchaseObserver {
 		public PlayBillingPurchaseObserver() {
-			super(mContext, mHandler);
+			super(mContext, DIRECT_DISPATCHER);
 		}
 
 		@Override
 		public void onBillingSupported(boolean supported, String type) {
-			if (Consts.DEBUG) {
-				Log.i(TAG, "supported: " + supported);
-			}
 			if (type == null || type.equals(Consts.ITEM_TYPE_INAPP)) {
 				if (supported) {
 					restoreDatabase();
@@ -249,54 +687,51 @@ public class PlayBilling implements IBilling {
 		}
 
 		@Override
-		public void onPurchaseStateChange(Consts.PurchaseState purchaseState, String itemId,
-										  int quantity, long purchaseTime, String developerPayload) {
-			if (Consts.DEBUG) {
-				Log.i(TAG, "onPurchaseStateChange() itemId: " + itemId + " " + purchaseState);
-			}
-
-			if (developerPayload == null) {
-				Log.i(TAG, "ItemID=" + itemId + " : Purchase state=" + purchaseState.toString());
-			}
-			else {
-				Log.i(TAG, "ItemID=" + itemId + " : Purchase state=" + purchaseState + "\n\t" + developerPayload);
-			}
-
-			if (purchaseState == Consts.PurchaseState.PURCHASED) {
-				mOwnedItems.add(itemId);
-				mResponseCallback.onPurchaseSuccess(itemId, quantity, purchaseTime);
-				mOwnedItemsCursor.requery();
-			}
-			else if (purchaseState == Consts.PurchaseState.REFUNDED) {
-				mResponseCallback.onPurchaseRefunded(itemId, quantity, purchaseTime);
-			}
-			else if (purchaseState == Consts.PurchaseState.CANCELED) {
-				mResponseCallback.onPurchaseCancelled(itemId, quantity, purchaseTime);
-			}
+		public void onPurchaseStateChange(final Consts.PurchaseState purchaseState, final String itemId,
+										  final int quantity, final long purchaseTime, String developerPayload) {
+			completePendingPurchase(itemId, developerPayload, purchaseState, quantity, purchaseTime);
+
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (purchaseState == Consts.PurchaseState.PURCHASED) {
+						mResponseCallback.onPurchaseSuccess(itemId, quantity, purchaseTime);
+					}
+					else if (purchaseState == Consts.PurchaseState.REFUNDED) {
+						mResponseCallback.onPurchaseRefunded(itemId, quantity, purchaseTime);
+					}
+					else if (purchaseState == Consts.PurchaseState.CANCELED) {
+						mResponseCallback.onPurchaseCancelled(itemId, quantity, purchaseTime);
+					}
+				}
+			});
 		}
 
 		@Override
 		public void onRequestPurchaseResponse(PlayBillingService.RequestPurchase request,
 											  Consts.ResponseCode responseCode) {
-			if (Consts.DEBUG) {
-				Log.d(TAG, request.mProductId + ": " + responseCode);
+			if (request.getService() != mPlayBillingService) {
+				// Another instance made the request.
+				return;
+			}
+			if (request.mFuture != null) {
+				buyPageClosed(request);
+			}
+			// On RESULT_OK the future waits for the purchase state change, for a while.
+			if (request.mFuture != null && responseCode != Consts.ResponseCode.RESULT_OK) {
+				request.mFuture.complete(new BillingResult(PlayBillingService.toStatus(responseCode),
+						request.mProductId));
+			}
+			else if (request.mFuture != null) {
+				expirePendingPurchase(request.mFuture);
 			}
 			if (responseCode == Consts.ResponseCode.RESULT_OK) {
-				if (Consts.DEBUG) {
-					Log.i(TAG, "purchase was successfully sent to server");
-				}
 				mResponseCallback.onPurchaseSent(request.mProductId);
 			}
 			else if (responseCode == Consts.ResponseCode.RESULT_USER_CANCELED) {
-				if (Consts.DEBUG) {
-					Log.i(TAG, "user canceled purchase");
-				}
 				mResponseCallback.onPurchaseCancelled(request.mProductId, 0, new Date().getTime());
 			}
 			else {
-				if (Consts.DEBUG) {
-					Log.i(TAG, "purchase failed");
-				}
 				mResponseCallback.onPurchaseFail(request.mProductId, 0, new Date().getTime());
 			}
 		}
@@ -304,10 +739,10 @@ public class PlayBilling implements IBilling {
 		@Override
 		public void onRestoreTransactionsResponse(PlayBillingService.RestoreTransactions request,
 												  Consts.ResponseCode responseCode) {
+			if (request.getService() != mPlayBillingService) {
+				return;
+			}
 			if (responseCode == Consts.ResponseCode.RESULT_OK) {
-				if (Consts.DEBUG) {
-					Log.d(TAG, "completed RestoreTransactions request");
-				}
 				// Update the shared preferences so that we don't perform
 				// a RestoreTransactions again.
 				SharedPreferences prefs = mContext.getSharedPreferences(Consts.SHARED_PREFS_NAME,
@@ -319,11 +754,71 @@ public class PlayBilling implements IBilling {
 				mResponseCallback.onRestoreTransactionsSuccess();
 			}
 			else {
-				if (Consts.DEBUG) {
-					Log.d(TAG, "RestoreTransactions error: " + responseCode);
-				}
 				mResponseCallback.onRestoreTransactionsError();
 			}
 		}
 	}
+
+	/**
+	 * Reads one page of rows from the store.
+	 */
+	private interface PageQuery<T> {
+		/**
+		 * @param pStore - The open store
+		 * @param pLimit - The most rows to read
+		 */
+		List<T> query(PurchaseStore pStore, int pLimit);
+	}
+
+	/**
+	 * An asynchronous purchase waiting for its purchase state change. Running it gives up waiting.
+	 */
+	private static class PendingPurchase implements Runnable {
+		final String mItemId;
+		final String mPayload;
+		final BillingFuture<BillingResult> mFuture;
+
+		PendingPurchase(String pItemId, String pPayload, BillingFuture<BillingResult> pFuture) {
+			mItemId = pItemId;
+			mPayload = pPayload;
+			mFuture = pFuture;
+		}
+
+		boolean matches(String pItemId, String pPayload) {
+			return mItemId.equals(pItemId) && (mPayload == null ? pPayload == null : mPayload.equals(pPayload));
+		}
+
+		@Override
+		public void run() {
+			mFuture.complete(new BillingResult(BillingResult.Status.ERROR, mItemId));
+		}
+	}
+
+	/**
+	 * The purchase that later calls for the same item, item type and developer payload share.
+	 */
+	private static class InFlightPurchase {
+		final BillingFuture<BillingResult> mFuture;
+		final long mRequestedNanos;
+		/**
+		 * Set once the response code has arrived. Guarded by {@link #mInFlightPurchases}.
+		 */
+		boolean mBuyPageClosed;
+
+		InFlightPurchase(BillingFuture<BillingResult> pFuture, long pRequestedNanos) {
+			mFuture = pFuture;
+			mRequestedNanos = pRequestedNanos;
+		}
+
+		boolean isShared(PurchaseCoalescing pCoalescing, long pNow) {
+			if (mFuture.isDone()) {
+				return false;
+			}
+			long age = pNow - mRequestedNanos;
+			if (pCoalescing == PurchaseCoalescing.WINDOW) {
+				return age < TimeUnit.MILLISECONDS.toNanos(Consts.PURCHASE_COALESCING_WINDOW_MILLIS);
+			}
+			return !mBuyPageClosed && age < TimeUnit.MILLISECONDS.toNanos(Consts.PURCHASE_COALESCING_MAX_AGE_MILLIS);
+		}
+	}
 }
@@ -29,9 +29,7 @@ public class PlayBillingReceiver extends BroadcastReceiver {
 		}
 		else if (Consts.ACTION_NOTIFY.equals(action)) {
 			String notifyId = intent.getStringExtra(Consts.NOTIFICATION_ID);
-			if (Consts.DEBUG) {
-				Log.i(TAG, "notifyId: " + notifyId);
-			}
+			BillingTrace.record(BillingTrace.Event.NOTIFY, notifyId == null ? 0 : notifyId.hashCode(), 0);
 			notify(context, notifyId);
 		}
 		else if (Consts.ACTION_RESPONSE_CODE.equals(action)) {
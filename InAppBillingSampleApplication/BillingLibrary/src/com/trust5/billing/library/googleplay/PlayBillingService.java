@@ -2,54 +2,77 @@ package com.trust5.billing.library.googleplay;
 
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 import com.android.vending.billing.IMarketBillingService;
+import com.trust5.billing.library.BillingFuture;
+import com.trust5.billing.library.BillingResult;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by IntelliJ IDEA. User: Ruairi Date: 08/11/12 Time: 19:00
  */
-public class PlayBillingService extends Service implements ServiceConnection {
+public class PlayBillingService extends Service {
 	private static final String TAG = "PlayBillingService";
 
 	/**
-	 * The service connection to the remote MarketBillingService.
+	 * The list of requests that are pending while we are waiting for the connection to the MarketBillingService to be
+	 * established.
 	 */
-	private static IMarketBillingService mService;
+	private static final ConcurrentLinkedQueue<BillingRequest> mPendingRequests =
+			new ConcurrentLinkedQueue<BillingRequest>();
 
 	/**
-	 * The list of requests that are pending while we are waiting for the connection to the MarketBillingService to be
-	 * established.
+	 * The requests that we have sent to Android Market but for which we have not yet received a response code, indexed
+	 * by the request Id that each request receives when it executes. Requests that get no response code in time are
+	 * dropped.
 	 */
-	private static LinkedList<BillingRequest> mPendingRequests = new LinkedList<BillingRequest>();
+	private static final SentRequestRegistry mSentRequests = new SentRequestRegistry();
 
 	/**
-	 * The list of requests that we have sent to Android Market but for which we have not yet received a response code. The
-	 * HashMap is indexed by the request Id that each request receives when it executes.
+	 * Collects the notification IDs of IN_APP_NOTIFY broadcasts so that a burst of them is sent in a single
+	 * GET_PURCHASE_INFORMATION request.
 	 */
-	private static HashMap<Long, BillingRequest> mSentRequests =
-			new HashMap<Long, BillingRequest>();
+	private final PurchaseInformationBatcher mPurchaseInformationBatcher = new PurchaseInformationBatcher(
+			new PurchaseInformationBatcher.Sink() {
+				@Override
+				public void sendPurchaseInformationRequest(int startId, String[] notifyIds) {
+					getPurchaseInformation(startId, notifyIds);
+				}
+			});
 
 	/**
 	 * The base class for all requests that use the MarketBillingService. Each derived class overrides the run() method to
 	 * call the appropriate service interface.  If we are already connected to the MarketBillingService, then we call the
 	 * run() method directly. Otherwise, we bind to the service and save the request on a queue to be run later when the
-	 * service is connected.
+	 * service is connected. The connection is shared by every request; see {@link MarketBillingConnection}.
 	 */
 	abstract class BillingRequest {
 		private final int mStartId;
 		protected long mRequestId;
 
+		/**
+		 * The connected service, set just before {@link #run()}.
+		 */
+		protected IMarketBillingService mService;
+
+		/**
+		 * When the request started waiting for the connection, or 0 if it did not wait.
+		 */
+		private long mQueuedNanos;
+
+		/**
+		 * The method of the last call to the MarketBillingService, for tracing.
+		 */
+		private BillingMetrics.Timer mMethod;
+
 		public BillingRequest(int startId) {
 			mStartId = startId;
 		}
@@ -58,6 +81,13 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			return mStartId;
 		}
 
+		/**
+		 * @return the service that made the request, which tells the observers whose request it was
+		 */
+		PlayBillingService getService() {
+			return PlayBillingService.this;
+		}
+
 		/**
 		 * Run the request, starting the connection if necessary.
 		 *
@@ -68,9 +98,11 @@ public class PlayBillingService extends Service implements ServiceConnection {
 				return true;
 			}
 
-			if (bindToMarketBillingService()) {
+			if (getConnection().connect()) {
 				// Add a pending request to run when the service is connected.
+				mQueuedNanos = System.nanoTime();
 				mPendingRequests.add(this);
+				BillingTrace.record(BillingTrace.Event.REQUEST_QUEUED);
 				return true;
 			}
 			return false;
@@ -83,18 +115,15 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		 *         trying to use it
 		 */
 		public boolean runIfConnected() {
-			if (Consts.DEBUG) {
-				Log.d(TAG, getClass().getSimpleName());
-			}
+			MarketBillingConnection connection = getConnection();
+			mService = connection.getService();
 			if (mService != null) {
 				try {
 					mRequestId = run();
-					if (Consts.DEBUG) {
-						Log.d(TAG, "request id: " + mRequestId);
-					}
 					if (mRequestId >= 0) {
 						mSentRequests.put(mRequestId, this);
 					}
+					connection.onRequestSent(mQueuedNanos);
 					return true;
 				} catch (RemoteException e) {
 					onRemoteException(e);
@@ -111,7 +140,9 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		 */
 		protected void onRemoteException(RemoteException e) {
 			Log.w(TAG, "remote billing service crashed");
-			mService = null;
+			BillingMetrics.increment(BillingMetrics.Counter.REMOTE_EXCEPTION);
+			BillingTrace.record(BillingTrace.Event.REMOTE_EXCEPTION, 0, mMethod == null ? -1 : mMethod.ordinal());
+			getConnection().onBinderDied();
 		}
 
 		/**
@@ -129,6 +160,38 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		protected void responseCodeReceived(Consts.ResponseCode responseCode) {
 		}
 
+		/**
+		 * @return how long to wait for Android Market to send a response code for this request before giving up on it
+		 */
+		protected long getTimeoutMillis() {
+			return Consts.BILLING_REQUEST_TIMEOUT_MILLIS;
+		}
+
+		/**
+		 * This is called when no response code arrived for this request within {@link #getTimeoutMillis()}. The derived
+		 * class can override this to release anything it holds for the response.
+		 */
+		protected void onTimeout() {
+		}
+
+		/**
+		 * Sends the request to the MarketBillingService, timing the call as {@code timer} and tracing it.
+		 */
+		protected Bundle sendBillingRequest(BillingMetrics.Timer timer, Bundle request) throws RemoteException {
+			mMethod = timer;
+			long start = BillingMetrics.start();
+			Bundle response;
+			try {
+				response = mService.sendBillingRequest(request);
+			} finally {
+				BillingMetrics.stop(timer, start);
+			}
+			BillingTrace.record(BillingTrace.Event.REQUEST_SENT,
+					response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID, Consts.BILLING_RESPONSE_INVALID_REQUEST_ID),
+					BillingTrace.methodAndCode(timer, response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE)));
+			return response;
+		}
+
 		protected Bundle makeRequestBundle(String method) {
 			Bundle request = new Bundle();
 			request.putString(Consts.BILLING_REQUEST_METHOD, method);
@@ -136,14 +199,6 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			request.putString(Consts.BILLING_REQUEST_PACKAGE_NAME, getPackageName());
 			return request;
 		}
-
-		protected void logResponseCode(String method, Bundle response) {
-			Consts.ResponseCode responseCode = Consts.ResponseCode.valueOf(
-					response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE));
-			if (Consts.DEBUG) {
-				Log.e(TAG, method + " received " + responseCode.toString());
-			}
-		}
 	}
 
 	/**
@@ -155,6 +210,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 	 */
 	class CheckBillingSupported extends BillingRequest {
 		public String mProductType = null;
+		final BillingFuture<Boolean> mFuture;
 
 		/**
 		 * Legacy contrustor
@@ -168,6 +224,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			// service so we pass -1 as the startId to indicate that we should
 			// not stop this service after executing this request.
 			super(-1);
+			mFuture = null;
 		}
 
 		/**
@@ -181,8 +238,17 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		 *                 is being checked for.
 		 */
 		public CheckBillingSupported(String itemType) {
+			this(itemType, null);
+		}
+
+		/**
+		 * @param itemType Either Consts.ITEM_TYPE_INAPP or Consts.ITEM_TYPE_SUBSCRIPTION
+		 * @param future   completed with the answer, may be null
+		 */
+		CheckBillingSupported(String itemType, BillingFuture<Boolean> future) {
 			super(-1);
 			mProductType = itemType;
+			mFuture = future;
 		}
 
 		@Override
@@ -191,16 +257,28 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			if (mProductType != null) {
 				request.putString(Consts.BILLING_REQUEST_ITEM_TYPE, mProductType);
 			}
-			Bundle response = mService.sendBillingRequest(request);
+			Bundle response = sendBillingRequest(BillingMetrics.Timer.CHECK_BILLING_SUPPORTED, request);
 			int responseCode = response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE);
-			if (Consts.DEBUG) {
-				Log.i(TAG, "CheckBillingSupported response code: " +
-						Consts.ResponseCode.valueOf(responseCode));
-			}
 			boolean billingSupported = (responseCode == Consts.ResponseCode.RESULT_OK.ordinal());
 			ResponseHandler.checkBillingSupportedResponse(billingSupported, mProductType);
+			if (mFuture != null) {
+				mFuture.complete(billingSupported);
+			}
 			return Consts.BILLING_RESPONSE_INVALID_REQUEST_ID;
 		}
+
+		/**
+		 * Android Market answers this request straight away, so a response code only comes from {@link
+		 * #failPendingRequests(List, Consts.ResponseCode)}.
+		 */
+		@Override
+		protected void responseCodeReceived(Consts.ResponseCode responseCode) {
+			boolean billingSupported = responseCode == Consts.ResponseCode.RESULT_OK;
+			ResponseHandler.checkBillingSupportedResponse(billingSupported, mProductType);
+			if (mFuture != null) {
+				mFuture.complete(billingSupported);
+			}
+		}
 	}
 
 	/**
@@ -210,6 +288,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		public final String mProductId;
 		public final String mDeveloperPayload;
 		public final String mProductType;
+		final BillingFuture<BillingResult> mFuture;
 
 		/**
 		 * Constructor
@@ -220,6 +299,14 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		 * @param developerPayload Optional data.
 		 */
 		public RequestPurchase(String itemId, String itemType, String developerPayload) {
+			this(itemId, itemType, developerPayload, null);
+		}
+
+		/**
+		 * @param future completed by the {@link PurchaseObserver} once the outcome of the purchase is known, may be null
+		 */
+		RequestPurchase(String itemId, String itemType, String developerPayload,
+						BillingFuture<BillingResult> future) {
 			// This object is never created as a side effect of starting this
 			// service so we pass -1 as the startId to indicate that we should
 			// not stop this service after executing this request.
@@ -227,6 +314,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			mProductId = itemId;
 			mDeveloperPayload = developerPayload;
 			mProductType = itemType;
+			mFuture = future;
 		}
 
 		@Override
@@ -238,24 +326,60 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			if (mDeveloperPayload != null) {
 				request.putString(Consts.BILLING_REQUEST_DEVELOPER_PAYLOAD, mDeveloperPayload);
 			}
-			Bundle response = mService.sendBillingRequest(request);
+			BillingMetrics.purchaseRequested(mProductId, mDeveloperPayload);
+			Bundle response = sendBillingRequest(BillingMetrics.Timer.REQUEST_PURCHASE, request);
 			PendingIntent pendingIntent
 					= response.getParcelable(Consts.BILLING_RESPONSE_PURCHASE_INTENT);
+			// A request without a request ID is never matched to a response code and never times out, so its future
+			// is completed here.
 			if (pendingIntent == null) {
 				Log.e(TAG, "Error with requestPurchase");
+				BillingMetrics.purchaseAbandoned(mProductId, mDeveloperPayload);
+				Consts.ResponseCode responseCode = Consts.ResponseCode.valueOf(
+						response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE));
+				completeFuture(responseCode == Consts.ResponseCode.RESULT_OK ?
+						BillingResult.Status.ERROR : toStatus(responseCode));
 				return Consts.BILLING_RESPONSE_INVALID_REQUEST_ID;
 			}
 
 			Intent intent = new Intent();
 			ResponseHandler.buyPageIntentResponse(pendingIntent, intent);
-			return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
+			long requestId = response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
 					Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
+			if (requestId < 0) {
+				Log.e(TAG, "requestPurchase returned no request ID");
+				completeFuture(BillingResult.Status.ERROR);
+			}
+			return requestId;
 		}
 
 		@Override
 		protected void responseCodeReceived(Consts.ResponseCode responseCode) {
+			if (responseCode != Consts.ResponseCode.RESULT_OK) {
+				BillingMetrics.purchaseAbandoned(mProductId, mDeveloperPayload);
+			}
 			ResponseHandler.responseCodeReceived(PlayBillingService.this, this, responseCode);
 		}
+
+		/**
+		 * The response code only arrives once the user has left the buy page.
+		 */
+		@Override
+		protected long getTimeoutMillis() {
+			return Consts.PURCHASE_REQUEST_TIMEOUT_MILLIS;
+		}
+
+		@Override
+		protected void onTimeout() {
+			BillingMetrics.purchaseAbandoned(mProductId, mDeveloperPayload);
+			completeFuture(BillingResult.Status.ERROR);
+		}
+
+		private void completeFuture(BillingResult.Status status) {
+			if (mFuture != null) {
+				mFuture.complete(new BillingResult(status, mProductId));
+			}
+		}
 	}
 
 	/**
@@ -273,8 +397,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		protected long run() throws RemoteException {
 			Bundle request = makeRequestBundle("CONFIRM_NOTIFICATIONS");
 			request.putStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS, mNotifyIds);
-			Bundle response = mService.sendBillingRequest(request);
-			logResponseCode("confirmNotifications", response);
+			Bundle response = sendBillingRequest(BillingMetrics.Timer.CONFIRM_NOTIFICATIONS, request);
 			return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
 					Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
 		}
@@ -299,8 +422,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			Bundle request = makeRequestBundle("GET_PURCHASE_INFORMATION");
 			request.putLong(Consts.BILLING_REQUEST_NONCE, mNonce);
 			request.putStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS, mNotifyIds);
-			Bundle response = mService.sendBillingRequest(request);
-			logResponseCode("getPurchaseInformation", response);
+			Bundle response = sendBillingRequest(BillingMetrics.Timer.GET_PURCHASE_INFORMATION, request);
 			return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
 					Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
 		}
@@ -310,6 +432,11 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			super.onRemoteException(e);
 			Security.removeNonce(mNonce);
 		}
+
+		@Override
+		protected void onTimeout() {
+			Security.removeNonce(mNonce);
+		}
 	}
 
 	/**
@@ -317,12 +444,21 @@ public class PlayBillingService extends Service implements ServiceConnection {
 	 */
 	class RestoreTransactions extends BillingRequest {
 		long mNonce;
+		final BillingFuture<BillingResult> mFuture;
 
 		public RestoreTransactions() {
+			this(null);
+		}
+
+		/**
+		 * @param future completed with the response code, may be null
+		 */
+		RestoreTransactions(BillingFuture<BillingResult> future) {
 			// This object is never created as a side effect of starting this
 			// service so we pass -1 as the startId to indicate that we should
 			// not stop this service after executing this request.
 			super(-1);
+			mFuture = future;
 		}
 
 		@Override
@@ -331,8 +467,7 @@ public class PlayBillingService extends Service implements ServiceConnection {
 
 			Bundle request = makeRequestBundle("RESTORE_TRANSACTIONS");
 			request.putLong(Consts.BILLING_REQUEST_NONCE, mNonce);
-			Bundle response = mService.sendBillingRequest(request);
-			logResponseCode("restoreTransactions", response);
+			Bundle response = sendBillingRequest(BillingMetrics.Timer.RESTORE_TRANSACTIONS, request);
 			return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
 					Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
 		}
@@ -343,9 +478,20 @@ public class PlayBillingService extends Service implements ServiceConnection {
 			Security.removeNonce(mNonce);
 		}
 
+		@Override
+		protected void onTimeout() {
+			Security.removeNonce(mNonce);
+			if (mFuture != null) {
+				mFuture.complete(new BillingResult(BillingResult.Status.ERROR, null));
+			}
+		}
+
 		@Override
 		protected void responseCodeReceived(Consts.ResponseCode responseCode) {
 			ResponseHandler.responseCodeReceived(PlayBillingService.this, this, responseCode);
+			if (mFuture != null) {
+				mFuture.complete(new BillingResult(toStatus(responseCode), null));
+			}
 		}
 	}
 
@@ -353,8 +499,34 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		super();
 	}
 
+	/**
+	 * @return the requests that are waiting for a response code
+	 */
+	static SentRequestRegistry getSentRequests() {
+		return mSentRequests;
+	}
+
+	/**
+	 * @return the number of requests waiting for the connection to the MarketBillingService
+	 */
+	static int getPendingRequestCount() {
+		return mPendingRequests.size();
+	}
+
+	/**
+	 * @return true if requests are waiting for the connection to the MarketBillingService
+	 */
+	static boolean hasPendingRequests() {
+		return !mPendingRequests.isEmpty();
+	}
+
+	private MarketBillingConnection getConnection() {
+		return MarketBillingConnection.getInstance(this);
+	}
+
 	void setContext(Context context) {
 		attachBaseContext(context);
+		Security.persistNonces(this);
 	}
 
 	/**
@@ -365,8 +537,18 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		return null;
 	}
 
+	/**
+	 * Sends the notification IDs that are still being batched, so they are not lost with the service.
+	 */
+	@Override
+	public void onDestroy() {
+		mPurchaseInformationBatcher.flush();
+		super.onDestroy();
+	}
+
 	@Override
 	public void onStart(Intent intent, int startId) {
+		Security.persistNonces(this);
 		handleCommand(intent, startId);
 	}
 
@@ -379,16 +561,13 @@ public class PlayBillingService extends Service implements ServiceConnection {
 	 */
 	void handleCommand(Intent intent, int startId) {
 		String action = intent.getAction();
-		if (Consts.DEBUG) {
-			Log.i(TAG, "handleCommand() action: " + action);
-		}
 		if (Consts.ACTION_CONFIRM_NOTIFICATION.equals(action)) {
 			String[] notifyIds = intent.getStringArrayExtra(Consts.NOTIFICATION_ID);
 			confirmNotifications(startId, notifyIds);
 		}
 		else if (Consts.ACTION_GET_PURCHASE_INFORMATION.equals(action)) {
 			String notifyId = intent.getStringExtra(Consts.NOTIFICATION_ID);
-			getPurchaseInformation(startId, new String[]{notifyId});
+			mPurchaseInformationBatcher.add(startId, notifyId);
 		}
 		else if (Consts.ACTION_PURCHASE_STATE_CHANGED.equals(action)) {
 			String signedData = intent.getStringExtra(Consts.INAPP_SIGNED_DATA);
@@ -404,33 +583,6 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		}
 	}
 
-	/**
-	 * Binds to the MarketBillingService and returns true if the bind succeeded.
-	 *
-	 * @return true if the bind succeeded; false otherwise
-	 */
-	private boolean bindToMarketBillingService() {
-		try {
-			if (Consts.DEBUG) {
-				Log.i(TAG, "binding to Market billing service");
-			}
-			boolean bindResult = bindService(
-					new Intent(Consts.MARKET_BILLING_SERVICE_ACTION),
-					this,  // ServiceConnection.
-					Context.BIND_AUTO_CREATE);
-
-			if (bindResult) {
-				return true;
-			}
-			else {
-				Log.e(TAG, "Could not bind to service.");
-			}
-		} catch (SecurityException e) {
-			Log.e(TAG, "Security exception: " + e);
-		}
-		return false;
-	}
-
 	/**
 	 * Checks if in-app billing is supported. Assumes this is a one-time purchase.
 	 *
@@ -452,6 +604,21 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		return new CheckBillingSupported(itemType).runRequest();
 	}
 
+	/**
+	 * Checks if in-app billing is supported, without waiting for the answer.
+	 *
+	 * @param itemType Either Consts.ITEM_TYPE_INAPP or Consts.ITEM_TYPE_SUBSCRIPTION
+	 * @return a future that completes with true if supported; it completes with false straight away if there was an
+	 *         error connecting to Android Market
+	 */
+	BillingFuture<Boolean> checkBillingSupportedAsync(String itemType) {
+		BillingFuture<Boolean> future = new BillingFuture<Boolean>();
+		if (!new CheckBillingSupported(itemType, future).runRequest()) {
+			future.complete(false);
+		}
+		return future;
+	}
+
 	/**
 	 * Requests that the given item be offered to the user for purchase. When the purchase succeeds (or is canceled) the
 	 * {@link PlayBillingReceiver} receives an intent with the action {@link Consts#ACTION_NOTIFY}. Returns false if there
@@ -467,6 +634,20 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		return new RequestPurchase(productId, itemType, developerPayload).runRequest();
 	}
 
+	/**
+	 * Same as {@link #requestPurchase(String, String, String)}, but reports the outcome through {@code future}. The
+	 * future is completed here only if the request could not be sent, with RESULT_BILLING_UNAVAILABLE; otherwise the
+	 * {@link PurchaseObserver} completes it.
+	 */
+	boolean requestPurchase(String productId, String itemType, String developerPayload,
+							BillingFuture<BillingResult> future) {
+		if (new RequestPurchase(productId, itemType, developerPayload, future).runRequest()) {
+			return true;
+		}
+		future.complete(new BillingResult(BillingResult.Status.BILLING_UNAVAILABLE, productId));
+		return false;
+	}
+
 	/**
 	 * Requests transaction information for all managed items. Call this only when the application is first installed or
 	 * after a database wipe. Do NOT call this every time the application starts up.
@@ -477,6 +658,39 @@ public class PlayBillingService extends Service implements ServiceConnection {
 		return new RestoreTransactions().runRequest();
 	}
 
+	/**
+	 * Same as {@link #restoreTransactions()}, but returns a future that completes with the response code.
+	 */
+	BillingFuture<BillingResult> restoreTransactionsAsync() {
+		BillingFuture<BillingResult> future = new BillingFuture<BillingResult>();
+		if (!new RestoreTransactions(future).runRequest()) {
+			future.complete(new BillingResult(BillingResult.Status.BILLING_UNAVAILABLE, null));
+		}
+		return future;
+	}
+
+	/**
+	 * Converts a response code from Android Market to the status reported to the application.
+	 */
+	static BillingResult.Status toStatus(Consts.ResponseCode responseCode) {
+		switch (responseCode) {
+			case RESULT_OK:
+				return BillingResult.Status.OK;
+			case RESULT_USER_CANCELED:
+				return BillingResult.Status.USER_CANCELED;
+			case RESULT_SERVICE_UNAVAILABLE:
+				return BillingResult.Status.SERVICE_UNAVAILABLE;
+			case RESULT_BILLING_UNAVAILABLE:
+				return BillingResult.Status.BILLING_UNAVAILABLE;
+			case RESULT_ITEM_UNAVAILABLE:
+				return BillingResult.Status.ITEM_UNAVAILABLE;
+			case RESULT_DEVELOPER_ERROR:
+				return BillingResult.Status.DEVELOPER_ERROR;
+			default:
+				return BillingResult.Status.ERROR;
+		}
+	}
+
 	/**
 	 * Confirms receipt of a purchase state change. Each {@code notifyId} is an opaque identifier that came from the
 	 * server. This method sends those identifiers back to the MarketBillingService, which ACKs them to the server. Returns
@@ -506,34 +720,63 @@ public class PlayBillingService extends Service implements ServiceConnection {
 	}
 
 	/**
-	 * Verifies that the data was signed with the given signature, and calls {@link ResponseHandler#purchaseResponse(Context,
-	 * Consts.PurchaseState, String, String, long, String)} for each verified purchase.
+	 * Verifies that the data was signed with the given signature, and passes the verified purchases to {@link
+	 * ResponseHandler#purchaseResponses(Context, java.util.List)} in chunks of {@link
+	 * Consts#PURCHASE_INGEST_CHUNK_SIZE}, so the database writer can start on the first orders of a large response while
+	 * the rest are still being parsed. Each chunk is stored in one transaction.
+	 * <p/>
+	 * If the message turns out to be malformed after some chunks have been stored, none of its notifications are
+	 * confirmed, so Market sends the message again. Storing those orders a second time replaces them with the same
+	 * state, so the store ends up as if the message had only been received once.
 	 *
 	 * @param startId    an identifier for the invocation instance of this service
 	 * @param signedData the signed JSON string (signed, not encrypted)
 	 * @param signature  the signature for the data, signed with the private key
 	 */
 	private void purchaseStateChanged(int startId, String signedData, String signature) {
-		ArrayList<Security.VerifiedPurchase> purchases;
-		purchases = Security.verifyPurchase(signedData, signature);
-		if (purchases == null) {
+		PurchaseIngest ingest = new PurchaseIngest();
+		if (!Security.verifyPurchase(signedData, signature, ingest)) {
 			return;
 		}
+		ingest.flush();
 
-		ArrayList<String> notifyList = new ArrayList<String>();
-		for (Security.VerifiedPurchase vp : purchases) {
-			if (vp.notificationId != null) {
-				notifyList.add(vp.notificationId);
-			}
-			ResponseHandler.purchaseResponse(this, vp.purchaseState, vp.productId,
-					vp.orderId, vp.purchaseTime, vp.developerPayload);
-		}
+		ArrayList<String> notifyList = ingest.mNotifyIds;
 		if (!notifyList.isEmpty()) {
 			String[] notifyIds = notifyList.toArray(new String[notifyList.size()]);
 			confirmNotifications(startId, notifyIds);
 		}
 	}
 
+	/**
+	 * Collects verified purchases into chunks for the database writer and remembers their notification IDs so they can
+	 * be confirmed once the whole message has been read.
+	 */
+	private class PurchaseIngest implements Security.PurchaseConsumer {
+		final ArrayList<String> mNotifyIds = new ArrayList<String>();
+		private ArrayList<Security.VerifiedPurchase> mChunk = new ArrayList<Security.VerifiedPurchase>();
+
+		@Override
+		public void onPurchase(Security.VerifiedPurchase purchase) {
+			BillingMetrics.increment(BillingMetrics.Counter.PURCHASE_STATE_CHANGE);
+			BillingTrace.record(BillingTrace.Event.PURCHASE_STATE_CHANGE, purchase.orderId.hashCode(),
+					purchase.purchaseState.ordinal());
+			if (purchase.notificationId != null) {
+				mNotifyIds.add(purchase.notificationId);
+			}
+			mChunk.add(purchase);
+			if (mChunk.size() >= Consts.PURCHASE_INGEST_CHUNK_SIZE) {
+				flush();
+			}
+		}
+
+		void flush() {
+			if (!mChunk.isEmpty()) {
+				ResponseHandler.purchaseResponses(PlayBillingService.this, mChunk);
+				mChunk = new ArrayList<Security.VerifiedPurchase>();
+			}
+		}
+	}
+
 	/**
 	 * This is called when we receive a response code from Android Market for a request that we made. This is used for
 	 * reporting various errors and for acknowledging that an order was sent to the server. This is NOT used for any
@@ -545,83 +788,90 @@ public class PlayBillingService extends Service implements ServiceConnection {
 	 * @param responseCode a response code from Android Market to indicate the state of the request
 	 */
 	private void checkResponseCode(long requestId, Consts.ResponseCode responseCode) {
-		BillingRequest request = mSentRequests.get(requestId);
+		BillingRequest request = mSentRequests.remove(requestId);
+		BillingTrace.record(BillingTrace.Event.RESPONSE_CODE, requestId, responseCode.ordinal());
+		if (responseCode != Consts.ResponseCode.RESULT_OK) {
+			BillingMetrics.increment(BillingMetrics.Counter.ERROR_RESPONSE_CODE);
+		}
+		ResponseHandler.journalResponseCode(this, requestId,
+				request == null ? null : request.getClass().getSimpleName(), responseCode);
 		if (request != null) {
-			if (Consts.DEBUG) {
-				Log.d(TAG, request.getClass().getSimpleName() + ": " + responseCode);
-			}
 			request.responseCodeReceived(responseCode);
 		}
-		mSentRequests.remove(requestId);
 	}
 
 	/**
 	 * Runs any pending requests that are waiting for a connection to the service to be established.  This runs in the main
-	 * UI thread.
+	 * UI thread, when {@link MarketBillingConnection} is connected.
 	 */
-	private void runPendingRequests() {
-		int maxStartId = -1;
+	static void runPendingRequests() {
 		BillingRequest request;
 		while ((request = mPendingRequests.peek()) != null) {
 			if (request.runIfConnected()) {
 				// Remove the request
-				mPendingRequests.remove();
-
-				// Remember the largest startId, which is the most recent
-				// request to start this service.
-				if (maxStartId < request.getStartId()) {
-					maxStartId = request.getStartId();
-				}
+				mPendingRequests.poll();
+				releaseStart(request);
 			}
 			else {
-				// The service crashed, so restart it. Note that this leaves
-				// the current request on the queue.
-				bindToMarketBillingService();
+				// The service crashed. The connection binds again after a delay
+				// and runs the requests left on the queue.
 				return;
 			}
 		}
+	}
 
-		// If we get here then all the requests ran successfully.  If maxStartId
-		// is not -1, then one of the requests started the service, so we can
-		// stop it now.
-		if (maxStartId >= 0) {
-			if (Consts.DEBUG) {
-				Log.i(TAG, "stopping service, startId: " + maxStartId);
-			}
-			stopSelf(maxStartId);
+	/**
+	 * Takes the requests that are waiting for the connection off the queue, when {@link MarketBillingConnection} has
+	 * given up on binding it. Requests made after this call start a new connection.
+	 *
+	 * @return the requests, oldest first
+	 */
+	static List<BillingRequest> takePendingRequests() {
+		List<BillingRequest> requests = new ArrayList<BillingRequest>();
+		BillingRequest request;
+		while ((request = mPendingRequests.poll()) != null) {
+			requests.add(request);
 		}
+		return requests;
 	}
 
 	/**
-	 * This is called when we are connected to the MarketBillingService. This runs in the main UI thread.
+	 * Fails requests that will never be sent, as if Android Market had answered each with {@code responseCode}, which
+	 * completes their futures. This runs in the main UI thread.
+	 *
+	 * @param requests     the requests from {@link #takePendingRequests()}
+	 * @param responseCode the response code to fail them with
 	 */
-	@Override
-	public void onServiceConnected(ComponentName name, IBinder service) {
-		if (Consts.DEBUG) {
-			Log.d(TAG, "Billing service connected");
+	static void failPendingRequests(List<BillingRequest> requests, Consts.ResponseCode responseCode) {
+		for (BillingRequest request : requests) {
+			request.responseCodeReceived(responseCode);
+			releaseStart(request);
 		}
-		mService = IMarketBillingService.Stub.asInterface(service);
-		runPendingRequests();
 	}
 
 	/**
-	 * This is called when we are disconnected from the MarketBillingService.
+	 * A request that started its service no longer needs it running. Requests run in the order they started the
+	 * service, so the last one stops it; the connection stays for its keep-alive window. A batch of notification IDs
+	 * that is still waiting takes over the start ID and stops the service once it has been sent.
 	 */
-	@Override
-	public void onServiceDisconnected(ComponentName name) {
-		Log.w(TAG, "Billing service disconnected");
-		mService = null;
+	private static void releaseStart(BillingRequest request) {
+		if (request.getStartId() >= 0) {
+			PlayBillingService service = request.getService();
+			if (service.mPurchaseInformationBatcher.hasPending()) {
+				service.mPurchaseInformationBatcher.holdStart(request.getStartId());
+			}
+			else {
+				BillingTrace.record(BillingTrace.Event.STOP_SELF, 0, request.getStartId());
+				service.stopSelf(request.getStartId());
+			}
+		}
 	}
 
 	/**
-	 * Unbinds from the MarketBillingService. Call this when the application terminates to avoid leaking a
-	 * ServiceConnection.
+	 * Lets the connection to the MarketBillingService go once it has been idle for its keep-alive window. Call this
+	 * when the application terminates.
 	 */
 	void unbind() {
-		try {
-			unbindService(this);
-		} catch (IllegalArgumentException e) {
-			// This might happen if the service was disconnected
-		}
+		getConnection().release();
 	}
 }
@@ -0,0 +1,24 @@
+package com.trust5.billing.library.googleplay;
+
+/**
+ * Whether a purchase made through {@link PlayBilling} of an item that is already being bought, with the same developer
+ * payload, sends a request of its own or shares the outcome of the request that was sent. Every request opens the buy
+ * page again, so a double tap on a buy button, or two parts of the application buying the same item, would otherwise
+ * show it twice.
+ */
+public enum PurchaseCoalescing {
+	/**
+	 * Every call sends its own request.
+	 */
+	NONE,
+	/**
+	 * Calls within {@link Consts#PURCHASE_COALESCING_WINDOW_MILLIS} of the request that was sent share it, until its
+	 * outcome is known.
+	 */
+	WINDOW,
+	/**
+	 * Calls share the request that was sent until the user leaves its buy page, or its outcome is known, but never for
+	 * longer than {@link Consts#PURCHASE_COALESCING_MAX_AGE_MILLIS}.
+	 */
+	IN_FLIGHT
+}
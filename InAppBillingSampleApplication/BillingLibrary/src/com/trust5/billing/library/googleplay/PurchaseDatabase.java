@@ -20,20 +20,33 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.PurchaseRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * An trust5 database that records the state of each purchase. You should use an obfuscator before storing any
  * information to persistent storage. The obfuscator should use a key that is specific to the device and/or user.
  * Otherwise an attacker could copy a database full of valid purchases and distribute it to others.
+ * <p/>
+ * This is the default {@link PurchaseStore}.
  */
-class PurchaseDatabase {
+class PurchaseDatabase extends PurchaseStore {
 	private static final String TAG = "PurchaseDatabase";
 	private static final String DATABASE_NAME = "purchase.db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 3;
 	private static final String PURCHASE_HISTORY_TABLE_NAME = "history";
 	private static final String PURCHASED_ITEMS_TABLE_NAME = "purchased";
+	private static final String HISTORY_PRODUCT_ID_INDEX_NAME = "history_productId";
+	private static final String HISTORY_PURCHASE_TIME_INDEX_NAME = "history_purchaseTime";
 
 	// These are the column names for the purchase history table. We need a
 	// column named "_id" if we want to use a CursorAdapter. The primary key is
@@ -45,119 +58,188 @@ class PurchaseDatabase {
 	static final String HISTORY_PURCHASE_TIME_COL = "purchaseTime";
 	static final String HISTORY_DEVELOPER_PAYLOAD_COL = "developerPayload";
 
-	private static final String[] HISTORY_COLUMNS = {
-			HISTORY_ORDER_ID_COL, HISTORY_PRODUCT_ID_COL, HISTORY_STATE_COL,
-			HISTORY_PURCHASE_TIME_COL, HISTORY_DEVELOPER_PAYLOAD_COL
-	};
-
 	// These are the column names for the "purchased items" table.
 	static final String PURCHASED_PRODUCT_ID_COL = "_id";
 	static final String PURCHASED_QUANTITY_COL = "quantity";
 
-	private static final String[] PURCHASED_COLUMNS = {
-			PURCHASED_PRODUCT_ID_COL, PURCHASED_QUANTITY_COL
-	};
-
 	private SQLiteDatabase mDb;
 	private DatabaseHelper mDatabaseHelper;
 
+	/**
+	 * Opens the database, creating or upgrading it if needed. This does disk I/O, so it must not run on the main
+	 * thread; use {@link PurchasePersistenceExecutor#openStore()} to get the process wide store.
+	 */
 	PurchaseDatabase(Context context) {
 		mDatabaseHelper = new DatabaseHelper(context);
 		mDb = mDatabaseHelper.getWritableDatabase();
 	}
 
+	@Override
 	void close() {
 		mDatabaseHelper.close();
 	}
 
 	/**
-	 * Inserts a purchased product into the database. There may be multiple rows in the table for the same product if it
-	 * was purchased multiple times or if it was refunded.
+	 * Adds all the given purchases to the database in a single transaction and returns, for each purchase, the number
+	 * of times its product has been purchased once that purchase is applied. This is used for the batches of orders
+	 * delivered by a single PURCHASE_STATE_CHANGED message, which can hold thousands of orders after a
+	 * RESTORE_TRANSACTIONS request.
+	 * <p/>
+	 * Rather than recounting the history of every product after each order, the current quantity of a product is read
+	 * once from the "purchased items" table and then adjusted by the difference between the previous and the new state
+	 * of each order that is replaced.
 	 *
-	 * @param orderId          the order ID (matches the value in the product list)
-	 * @param productId        the product ID (sku)
-	 * @param state            the state of the purchase
-	 * @param purchaseTime     the purchase time (in milliseconds since the epoch)
-	 * @param developerPayload the developer provided "payload" associated with the order.
+	 * @param purchases the verified purchases, in the order they were received
+	 * @return the quantity of each purchase's product after that purchase, indexed like {@code purchases}
 	 */
-	private void insertOrder(String orderId, String productId, Consts.PurchaseState state,
-							 long purchaseTime, String developerPayload) {
-		ContentValues values = new ContentValues();
-		values.put(HISTORY_ORDER_ID_COL, orderId);
-		values.put(HISTORY_PRODUCT_ID_COL, productId);
-		values.put(HISTORY_STATE_COL, state.ordinal());
-		values.put(HISTORY_PURCHASE_TIME_COL, purchaseTime);
-		values.put(HISTORY_DEVELOPER_PAYLOAD_COL, developerPayload);
-		mDb.replace(PURCHASE_HISTORY_TABLE_NAME, null /* nullColumnHack */, values);
+	@Override
+	synchronized int[] updatePurchases(List<Security.VerifiedPurchase> purchases) {
+		int[] quantities = new int[purchases.size()];
+		if (purchases.isEmpty()) {
+			return quantities;
+		}
+		Map<String, Integer> productQuantities = new HashMap<String, Integer>();
+		SQLiteStatement selectOrderState = mDb.compileStatement("SELECT " + HISTORY_STATE_COL +
+				" FROM " + PURCHASE_HISTORY_TABLE_NAME + " WHERE " + HISTORY_ORDER_ID_COL + "=?");
+		SQLiteStatement selectQuantity = mDb.compileStatement("SELECT " + PURCHASED_QUANTITY_COL +
+				" FROM " + PURCHASED_ITEMS_TABLE_NAME + " WHERE " + PURCHASED_PRODUCT_ID_COL + "=?");
+		SQLiteStatement replaceOrder = mDb.compileStatement("INSERT OR REPLACE INTO " +
+				PURCHASE_HISTORY_TABLE_NAME + "(" + HISTORY_ORDER_ID_COL + ", " + HISTORY_PRODUCT_ID_COL + ", " +
+				HISTORY_STATE_COL + ", " + HISTORY_PURCHASE_TIME_COL + ", " + HISTORY_DEVELOPER_PAYLOAD_COL +
+				") VALUES (?, ?, ?, ?, ?)");
+		SQLiteStatement replaceItem = mDb.compileStatement("INSERT OR REPLACE INTO " +
+				PURCHASED_ITEMS_TABLE_NAME + "(" + PURCHASED_PRODUCT_ID_COL + ", " + PURCHASED_QUANTITY_COL +
+				") VALUES (?, ?)");
+		SQLiteStatement deleteItem = mDb.compileStatement("DELETE FROM " + PURCHASED_ITEMS_TABLE_NAME +
+				" WHERE " + PURCHASED_PRODUCT_ID_COL + "=?");
+		mDb.beginTransaction();
+		try {
+			for (int i = 0; i < quantities.length; i++) {
+				Security.VerifiedPurchase purchase = purchases.get(i);
+				Integer known = productQuantities.get(purchase.productId);
+				int quantity = known != null ? known : (int) queryLong(selectQuantity, purchase.productId, 0);
+				int previousState = (int) queryLong(selectOrderState, purchase.orderId, -1);
+				if (previousState >= 0 && isCounted(Consts.PurchaseState.valueOf(previousState))) {
+					quantity -= 1;
+				}
+				if (isCounted(purchase.purchaseState)) {
+					quantity += 1;
+				}
+
+				replaceOrder.bindString(1, purchase.orderId);
+				replaceOrder.bindString(2, purchase.productId);
+				replaceOrder.bindLong(3, purchase.purchaseState.ordinal());
+				replaceOrder.bindLong(4, purchase.purchaseTime);
+				if (purchase.developerPayload == null) {
+					replaceOrder.bindNull(5);
+				}
+				else {
+					replaceOrder.bindString(5, purchase.developerPayload);
+				}
+				replaceOrder.executeInsert();
+
+				productQuantities.put(purchase.productId, quantity);
+				quantities[i] = quantity;
+			}
+
+			// Update the "purchased items" table once per product
+			for (Map.Entry<String, Integer> entry : productQuantities.entrySet()) {
+				if (entry.getValue() == 0) {
+					deleteItem.bindString(1, entry.getKey());
+					deleteItem.execute();
+				}
+				else {
+					replaceItem.bindString(1, entry.getKey());
+					replaceItem.bindLong(2, entry.getValue());
+					replaceItem.executeInsert();
+				}
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			selectOrderState.close();
+			selectQuantity.close();
+			replaceOrder.close();
+			replaceItem.close();
+			deleteItem.close();
+		}
+		return quantities;
 	}
 
 	/**
-	 * Updates the quantity of the given product to the given value. If the given value is zero, then the product is
-	 * removed from the table.
+	 * Runs a single value query that takes one string argument.
 	 *
-	 * @param productId the product to update
-	 * @param quantity  the number of times the product has been purchased
+	 * @return the value of the first column of the first row, or {@code defaultValue} if there is no row
 	 */
-	private void updatePurchasedItem(String productId, int quantity) {
-		if (quantity == 0) {
-			mDb.delete(PURCHASED_ITEMS_TABLE_NAME, PURCHASED_PRODUCT_ID_COL + "=?",
-					new String[]{productId});
-			return;
+	private static long queryLong(SQLiteStatement statement, String arg, long defaultValue) {
+		statement.bindString(1, arg);
+		try {
+			return statement.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return defaultValue;
 		}
-		ContentValues values = new ContentValues();
-		values.put(PURCHASED_PRODUCT_ID_COL, productId);
-		values.put(PURCHASED_QUANTITY_COL, quantity);
-		mDb.replace(PURCHASED_ITEMS_TABLE_NAME, null /* nullColumnHack */, values);
 	}
 
 	/**
-	 * Adds the given purchase information to the database and returns the total number of times that the given product
-	 * has been purchased.
-	 *
-	 * @param orderId          a string identifying the order
-	 * @param productId        the product ID (sku)
-	 * @param purchaseState    the purchase state of the product
-	 * @param purchaseTime     the time the product was purchased, in milliseconds since the epoch (Jan 1, 1970)
-	 * @param developerPayload the developer provided "payload" associated with the order
-	 * @return the number of times the given product has been purchased.
+	 * Reads a page of owned items together with the state of the most recent order of each.
 	 */
-	synchronized int updatePurchase(String orderId, String productId,
-									Consts.PurchaseState purchaseState, long purchaseTime, String developerPayload) {
-		insertOrder(orderId, productId, purchaseState, purchaseTime, developerPayload);
-		Cursor cursor = mDb.query(PURCHASE_HISTORY_TABLE_NAME, HISTORY_COLUMNS,
-				HISTORY_PRODUCT_ID_COL + "=?", new String[]{productId}, null, null, null, null);
-		int quantity = 0;
+	@Override
+	List<Entitlement> queryPurchasedItems(String afterProductId, int limit) {
+		Cursor cursor = mDb.rawQuery("SELECT p." + PURCHASED_PRODUCT_ID_COL + ", p." + PURCHASED_QUANTITY_COL +
+				", (SELECT h." + HISTORY_STATE_COL + " FROM " + PURCHASE_HISTORY_TABLE_NAME + " h WHERE h." +
+				HISTORY_PRODUCT_ID_COL + "=p." + PURCHASED_PRODUCT_ID_COL + " ORDER BY h." +
+				HISTORY_PURCHASE_TIME_COL + " DESC, h." + HISTORY_ORDER_ID_COL + " DESC LIMIT 1) FROM " +
+				PURCHASED_ITEMS_TABLE_NAME + " p" +
+				(afterProductId == null ? "" : " WHERE p." + PURCHASED_PRODUCT_ID_COL + ">?") +
+				" ORDER BY p." + PURCHASED_PRODUCT_ID_COL + " LIMIT " + limit,
+				afterProductId == null ? null : new String[]{afterProductId});
+		List<Entitlement> entitlements = new ArrayList<Entitlement>();
+		if (cursor == null) {
+			return entitlements;
+		}
 		try {
-			if (cursor == null) {
-				return 0;
-			}
-			// Count the number of times the product was purchased
 			while (cursor.moveToNext()) {
-				int stateIndex = cursor.getInt(2);
-				Consts.PurchaseState state = Consts.PurchaseState.valueOf(stateIndex);
-				// Note that a refunded purchase is treated as a purchase. Such
-				// a friendly refund policy is nice for the user.
-				if (state == Consts.PurchaseState.PURCHASED || state == Consts.PurchaseState.REFUNDED) {
-					quantity += 1;
-				}
+				Consts.PurchaseState state = cursor.isNull(2) ? null : Consts.PurchaseState.valueOf(cursor.getInt(2));
+				entitlements.add(new Entitlement(cursor.getString(0), cursor.getInt(1),
+						state == null ? null : toPurchaseState(state)));
 			}
-
-			// Update the "purchased items" table
-			updatePurchasedItem(productId, quantity);
 		} finally {
-			if (cursor != null) {
-				cursor.close();
-			}
+			cursor.close();
 		}
-		return quantity;
+		return entitlements;
 	}
 
 	/**
-	 * Returns a cursor that can be used to read all the rows and columns of the "purchased items" table.
+	 * Reads a page of the history, newest first, using the index on purchase time and order ID.
 	 */
-	Cursor queryAllPurchasedItems() {
-		return mDb.query(PURCHASED_ITEMS_TABLE_NAME, PURCHASED_COLUMNS, null,
-				null, null, null, null);
+	@Override
+	List<PurchaseRecord> queryPurchaseHistory(PurchaseRecord after, int limit) {
+		String[] args = null;
+		String where = "";
+		if (after != null) {
+			String time = Long.toString(after.getPurchaseTime());
+			args = new String[]{time, time, after.getOrderId()};
+			where = " WHERE " + HISTORY_PURCHASE_TIME_COL + "<? OR (" + HISTORY_PURCHASE_TIME_COL + "=? AND " +
+					HISTORY_ORDER_ID_COL + "<?)";
+		}
+		Cursor cursor = mDb.rawQuery("SELECT " + HISTORY_ORDER_ID_COL + ", " + HISTORY_PRODUCT_ID_COL + ", " +
+				HISTORY_STATE_COL + ", " + HISTORY_PURCHASE_TIME_COL + ", " + HISTORY_DEVELOPER_PAYLOAD_COL +
+				" FROM " + PURCHASE_HISTORY_TABLE_NAME + where + " ORDER BY " + HISTORY_PURCHASE_TIME_COL + " DESC, " +
+				HISTORY_ORDER_ID_COL + " DESC LIMIT " + limit, args);
+		List<PurchaseRecord> records = new ArrayList<PurchaseRecord>();
+		if (cursor == null) {
+			return records;
+		}
+		try {
+			while (cursor.moveToNext()) {
+				records.add(new PurchaseRecord(cursor.getString(0), cursor.getString(1),
+						toPurchaseState(Consts.PurchaseState.valueOf(cursor.getInt(2))), cursor.getLong(3),
+						cursor.getString(4)));
+			}
+		} finally {
+			cursor.close();
+		}
+		return records;
 	}
 
 	/**
@@ -175,15 +257,28 @@ class PurchaseDatabase {
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// Production-quality upgrade code should modify the tables when
-			// the database version changes instead of dropping the tables and
-			// re-creating them.
-			if (newVersion != DATABASE_VERSION) {
-				Log.w(TAG, "Database upgrade from old: " + oldVersion + " to: " +
-						newVersion);
-				db.execSQL("DROP TABLE IF EXISTS " + PURCHASE_HISTORY_TABLE_NAME);
-				db.execSQL("DROP TABLE IF EXISTS " + PURCHASED_ITEMS_TABLE_NAME);
-				createPurchaseTable(db);
+			Log.w(TAG, "Database upgrade from old: " + oldVersion + " to: " + newVersion);
+			if (oldVersion < 2) {
+				// Version 2 keeps the quantities in the "purchased items" table
+				// up to date incrementally, so recount them once from the
+				// history to be sure they start out consistent.
+				db.beginTransaction();
+				try {
+					createHistoryProductIdIndex(db);
+					db.execSQL("DELETE FROM " + PURCHASED_ITEMS_TABLE_NAME);
+					db.execSQL("INSERT INTO " + PURCHASED_ITEMS_TABLE_NAME + "(" +
+							PURCHASED_PRODUCT_ID_COL + ", " + PURCHASED_QUANTITY_COL + ") SELECT " +
+							HISTORY_PRODUCT_ID_COL + ", COUNT(*) FROM " + PURCHASE_HISTORY_TABLE_NAME +
+							" WHERE " + HISTORY_STATE_COL + " IN (" + Consts.PurchaseState.PURCHASED.ordinal() + ", " +
+							Consts.PurchaseState.REFUNDED.ordinal() + ") GROUP BY " + HISTORY_PRODUCT_ID_COL);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+			if (oldVersion < 3) {
+				// Version 3 pages through the history by purchase time.
+				createHistoryPurchaseTimeIndex(db);
 			}
 		}
 
@@ -197,6 +292,18 @@ class PurchaseDatabase {
 			db.execSQL("CREATE TABLE " + PURCHASED_ITEMS_TABLE_NAME + "(" +
 					PURCHASED_PRODUCT_ID_COL + " TEXT PRIMARY KEY, " +
 					PURCHASED_QUANTITY_COL + " INTEGER)");
+			createHistoryProductIdIndex(db);
+			createHistoryPurchaseTimeIndex(db);
+		}
+
+		private void createHistoryProductIdIndex(SQLiteDatabase db) {
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + HISTORY_PRODUCT_ID_INDEX_NAME + " ON " +
+					PURCHASE_HISTORY_TABLE_NAME + "(" + HISTORY_PRODUCT_ID_COL + ")");
+		}
+
+		private void createHistoryPurchaseTimeIndex(SQLiteDatabase db) {
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + HISTORY_PURCHASE_TIME_INDEX_NAME + " ON " +
+					PURCHASE_HISTORY_TABLE_NAME + "(" + HISTORY_PURCHASE_TIME_COL + ", " + HISTORY_ORDER_ID_COL + ")");
 		}
 	}
 }
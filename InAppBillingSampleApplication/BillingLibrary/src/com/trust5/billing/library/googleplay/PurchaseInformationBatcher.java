@@ -0,0 +1,201 @@
+package com.trust5.billing.library.googleplay;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the notification IDs of a burst of IN_APP_NOTIFY broadcasts into a single GET_PURCHASE_INFORMATION
+ * request. The first notification ID opens a window of {@link #getWindowMillis()} milliseconds; every ID that arrives
+ * before the window closes, or before {@link #getMaxBatchSize()} IDs have been collected, is sent in the same request
+ * and therefore shares one binder call and one nonce.
+ * <p/>
+ * Instances are driven from the main thread by {@link PlayBillingService#handleCommand(android.content.Intent, int)}.
+ * While a batch is waiting the service must keep running: a request that finishes in the meantime hands its start ID to
+ * the batch through {@link #holdStart(int)} instead of stopping the service, and the batch is sent when the service is
+ * destroyed anyway.
+ * The configuration and the statistics are process wide so they can be set and read from {@link PlayBilling}.
+ */
+class PurchaseInformationBatcher {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "PurchaseInformationBatcher";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static volatile long sWindowMillis = Consts.PURCHASE_INFORMATION_BATCH_WINDOW_MILLIS;
+	private static volatile int sMaxBatchSize = Consts.PURCHASE_INFORMATION_MAX_BATCH_SIZE;
+
+	private static final AtomicLong sBatchCount = new AtomicLong();
+	private static final AtomicLong sNotifyIdCount = new AtomicLong();
+	private static final AtomicInteger sLargestBatch = new AtomicInteger();
+
+	private final Sink mSink;
+	private final ArrayList<String> mPendingNotifyIds = new ArrayList<String>();
+	private int mMaxStartId = -1;
+	private Handler mHandler;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	PurchaseInformationBatcher(Sink pSink) {
+		mSink = pSink;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @param pWindowMillis  how long to wait for more notification IDs after the first one arrives, 0 disables batching
+	 * @param pMaxBatchSize  the number of notification IDs that closes the window early
+	 */
+	static void configure(long pWindowMillis, int pMaxBatchSize) {
+		if (pWindowMillis < 0) {
+			throw new IllegalArgumentException("window must not be negative: " + pWindowMillis);
+		}
+		if (pMaxBatchSize < 1) {
+			throw new IllegalArgumentException("max batch size must be at least 1: " + pMaxBatchSize);
+		}
+		sWindowMillis = pWindowMillis;
+		sMaxBatchSize = pMaxBatchSize;
+	}
+
+	static long getWindowMillis() {
+		return sWindowMillis;
+	}
+
+	static int getMaxBatchSize() {
+		return sMaxBatchSize;
+	}
+
+	/**
+	 * @return the number of GET_PURCHASE_INFORMATION requests sent since the process started
+	 */
+	static long getBatchCount() {
+		return sBatchCount.get();
+	}
+
+	/**
+	 * @return the number of notification IDs sent since the process started
+	 */
+	static long getNotifyIdCount() {
+		return sNotifyIdCount.get();
+	}
+
+	/**
+	 * @return the number of binder calls avoided by sending several notification IDs per request
+	 */
+	static long getSavedBinderCalls() {
+		// A flush adds its IDs before it counts the batch, and every batch has at least one ID, so there are never
+		// more batches than IDs. Reading the batch count first keeps that true for the two reads, so a concurrent
+		// flush can only make the result too large by the IDs of the batch it has not counted yet, never negative.
+		long batches = sBatchCount.get();
+		return sNotifyIdCount.get() - batches;
+	}
+
+	/**
+	 * @return the largest number of notification IDs sent in a single request
+	 */
+	static int getLargestBatch() {
+		return sLargestBatch.get();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Queues a notification ID, sending the batch straight away if it is full or batching is disabled.
+	 *
+	 * @param startId  the identifier of the service invocation that delivered the notification ID
+	 * @param notifyId the notification ID
+	 */
+	void add(int startId, String notifyId) {
+		mPendingNotifyIds.add(notifyId);
+		if (mMaxStartId < startId) {
+			mMaxStartId = startId;
+		}
+
+		long window = sWindowMillis;
+		if (window == 0 || mPendingNotifyIds.size() >= sMaxBatchSize) {
+			flush();
+		}
+		else if (mPendingNotifyIds.size() == 1) {
+			if (mHandler == null) {
+				mHandler = new Handler();
+			}
+			mHandler.postDelayed(mFlushRunnable, window);
+		}
+	}
+
+	/**
+	 * @return true if notification IDs are waiting to be sent
+	 */
+	boolean hasPending() {
+		return !mPendingNotifyIds.isEmpty();
+	}
+
+	/**
+	 * Makes the batch stop the service with {@code startId} once it has been sent, in place of a request that finished
+	 * while the batch was waiting. The service is only stopped by the latest start ID, so it keeps running until then.
+	 *
+	 * @param startId the identifier of the service invocation that would otherwise have stopped the service
+	 */
+	void holdStart(int startId) {
+		if (mMaxStartId < startId) {
+			mMaxStartId = startId;
+		}
+	}
+
+	/**
+	 * Sends every queued notification ID in one request.
+	 */
+	void flush() {
+		if (mHandler != null) {
+			mHandler.removeCallbacks(mFlushRunnable);
+		}
+		int size = mPendingNotifyIds.size();
+		if (size == 0) {
+			return;
+		}
+		String[] notifyIds = mPendingNotifyIds.toArray(new String[size]);
+		int startId = mMaxStartId;
+		mPendingNotifyIds.clear();
+		mMaxStartId = -1;
+
+		// IDs before the batch; getSavedBinderCalls relies on it.
+		sNotifyIdCount.addAndGet(size);
+		sBatchCount.incrementAndGet();
+		int largest;
+		while (size > (largest = sLargestBatch.get())) {
+			if (sLargestBatch.compareAndSet(largest, size)) {
+				break;
+			}
+		}
+		BillingTrace.record(BillingTrace.Event.PURCHASE_INFORMATION_BATCH, 0, size);
+		mSink.sendPurchaseInformationRequest(startId, notifyIds);
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * Receives the coalesced batches.
+	 */
+	interface Sink {
+		void sendPurchaseInformationRequest(int startId, String[] notifyIds);
+	}
+}
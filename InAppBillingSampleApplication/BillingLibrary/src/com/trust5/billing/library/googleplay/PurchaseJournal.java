@@ -0,0 +1,399 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An append-only record of what Android Market told the application: every verified purchase, in the order it was
+ * received, and every response code. The {@link PurchaseStore} keeps only the latest state of each order, so an order
+ * that was PURCHASED and then REFUNDED leaves no trace of the purchase there; the journal keeps both, so what happened
+ * can be reconstructed without asking the server.
+ * <p/>
+ * The journal is also enough to rebuild the store, which is much cheaper than a RESTORE_TRANSACTIONS round trip; see
+ * {@link #rebuild(PurchaseStore)}. {@link PurchasePersistenceExecutor} owns the journal and only its writer thread uses
+ * it. Each append is one frame of a {@link FramedLog}. Failures are logged rather than thrown, so a journal that cannot
+ * be written never stops a purchase from being stored. Like the database, the file is not obfuscated.
+ * <p/>
+ * Once the journal holds at least {@link Consts#PURCHASE_JOURNAL_ROTATION_MIN_ENTRIES} entries and more than twice as
+ * many entries as orders, it is rotated: the file is kept as {@link #PREVIOUS_FILE_SUFFIX previous generation}, and a
+ * new journal is started with the latest state of every order, so it alone is still enough to rebuild the store. The
+ * states before that are only in the previous generation, which the next rotation replaces.
+ */
+class PurchaseJournal {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "PurchaseJournal";
+	static final String FILE_NAME = "purchases.journal";
+	static final String PREVIOUS_FILE_SUFFIX = ".previous";
+
+	/**
+	 * "PJNL"
+	 */
+	private static final int MAGIC = 0x504a4e4c;
+	private static final int VERSION = 1;
+
+	private static final byte TYPE_PURCHASE = 1;
+	private static final byte TYPE_RESPONSE_CODE = 2;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static volatile long sLastRebuildNanos = -1;
+
+	private final FramedLog mLog;
+	private long mPurchaseCount;
+	private long mEntryCount;
+
+	/**
+	 * The order IDs in the journal, to tell when it is mostly superseded states.
+	 */
+	private final HashSet<String> mOrderIds = new HashSet<String>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Opens the journal, creating it if needed. This reads the whole file to check it, so it must not run on the main
+	 * thread.
+	 *
+	 * @param pFile the journal file
+	 */
+	PurchaseJournal(File pFile) throws IOException {
+		mLog = new FramedLog(pFile, MAGIC, VERSION);
+		final Reader counter = new Reader() {
+			@Override
+			public void onPurchase(long journaledAt, Security.VerifiedPurchase purchase) {
+				mPurchaseCount++;
+				mOrderIds.add(purchase.orderId);
+			}
+
+			@Override
+			public void onResponseCode(long journaledAt, long requestId, String requestType,
+									   Consts.ResponseCode responseCode) {
+			}
+		};
+		mLog.open(new FramedLog.FrameReader() {
+			@Override
+			public void onFrame(DataInputStream pFrame) throws IOException {
+				int count = pFrame.readInt();
+				for (int i = 0; i < count; i++) {
+					readEntry(pFrame, counter);
+					mEntryCount++;
+				}
+			}
+		});
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of purchases in the journal, counting every state of every order
+	 */
+	long getPurchaseCount() {
+		return mPurchaseCount;
+	}
+
+	/**
+	 * @return how long the last {@link #rebuild(PurchaseStore)} took, or -1 if there has not been one
+	 */
+	static long getLastRebuildNanos() {
+		return sLastRebuildNanos;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Appends a batch of verified purchases, as one frame.
+	 */
+	void appendPurchases(List<Security.VerifiedPurchase> purchases) {
+		if (purchases.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + purchases.size() * 128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(purchases.size());
+			for (Security.VerifiedPurchase purchase : purchases) {
+				writePurchase(out, now, purchase);
+			}
+			out.flush();
+			mLog.append(bytes.toByteArray());
+			mPurchaseCount += purchases.size();
+			mEntryCount += purchases.size();
+			for (Security.VerifiedPurchase purchase : purchases) {
+				mOrderIds.add(purchase.orderId);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "failed to journal " + purchases.size() + " purchases", e);
+			return;
+		}
+		rotateIfNeeded();
+	}
+
+	/**
+	 * Appends a response code that Android Market sent for a request.
+	 *
+	 * @param requestId    the request ID Android Market assigned
+	 * @param requestType  the kind of request, or null if it was not known
+	 * @param responseCode the response code
+	 */
+	void appendResponseCode(long requestId, String requestType, Consts.ResponseCode responseCode) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(1);
+			out.writeByte(TYPE_RESPONSE_CODE);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(requestId);
+			writeNullableUTF(out, requestType);
+			out.writeByte(responseCode.ordinal());
+			out.flush();
+			mLog.append(bytes.toByteArray());
+			mEntryCount++;
+		} catch (IOException e) {
+			Log.e(TAG, "failed to journal response code " + responseCode + " for request " + requestId, e);
+			return;
+		}
+		rotateIfNeeded();
+	}
+
+	/**
+	 * Reads every entry, in the order it was appended.
+	 *
+	 * @param pReader told about each entry
+	 */
+	void read(final Reader pReader) throws IOException {
+		mLog.read(new FramedLog.FrameReader() {
+			@Override
+			public void onFrame(DataInputStream pFrame) throws IOException {
+				int count = pFrame.readInt();
+				for (int i = 0; i < count; i++) {
+					readEntry(pFrame, pReader);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records the latest state of every order in the journal in the store. Only the last entry of each order is
+	 * applied, since that is all the store keeps, and the orders are applied in large batches. Orders the store holds
+	 * that are not in the journal are left alone.
+	 *
+	 * @return the number of orders applied
+	 */
+	int rebuild(PurchaseStore store) throws IOException {
+		long start = System.nanoTime();
+		LinkedHashMap<String, Entry> latest = readLatest();
+
+		List<Security.VerifiedPurchase> batch =
+				new ArrayList<Security.VerifiedPurchase>(Consts.PURCHASE_JOURNAL_REBUILD_BATCH_SIZE);
+		Iterator<Entry> entries = latest.values().iterator();
+		while (entries.hasNext()) {
+			batch.add(entries.next().mPurchase);
+			if (batch.size() == Consts.PURCHASE_JOURNAL_REBUILD_BATCH_SIZE || !entries.hasNext()) {
+				store.updatePurchases(batch);
+				batch.clear();
+			}
+		}
+		sLastRebuildNanos = System.nanoTime() - start;
+		if (Consts.DEBUG) {
+			Log.d(TAG, "rebuilt " + latest.size() + " orders from " + mPurchaseCount + " journaled purchases in " +
+					sLastRebuildNanos / 1000000 + "ms");
+		}
+		return latest.size();
+	}
+
+	void close() {
+		mLog.close();
+	}
+
+	/**
+	 * @return the latest entry of every order, in the order those entries were journaled
+	 */
+	private LinkedHashMap<String, Entry> readLatest() throws IOException {
+		final LinkedHashMap<String, Entry> latest = new LinkedHashMap<String, Entry>();
+		read(new Reader() {
+			@Override
+			public void onPurchase(long journaledAt, Security.VerifiedPurchase purchase) {
+				// Removing first moves the order to where its latest state was journaled.
+				latest.remove(purchase.orderId);
+				latest.put(purchase.orderId, new Entry(journaledAt, purchase));
+			}
+
+			@Override
+			public void onResponseCode(long journaledAt, long requestId, String requestType,
+									   Consts.ResponseCode responseCode) {
+			}
+		});
+		return latest;
+	}
+
+	private void rotateIfNeeded() {
+		if (mEntryCount >= Consts.PURCHASE_JOURNAL_ROTATION_MIN_ENTRIES && mEntryCount > 2L * mOrderIds.size()) {
+			rotate();
+		}
+	}
+
+	/**
+	 * Starts a new journal with the latest entry of every order and keeps the current one as the previous generation.
+	 * If that fails the current journal is kept and appended to.
+	 */
+	private void rotate() {
+		long start = System.nanoTime();
+		final List<Entry> entries;
+		try {
+			entries = new ArrayList<Entry>(readLatest().values());
+			mLog.rewrite(new Iterator<byte[]>() {
+				private int mNext;
+
+				@Override
+				public boolean hasNext() {
+					return mNext < entries.size();
+				}
+
+				@Override
+				public byte[] next() {
+					int end = Math.min(mNext + Consts.PURCHASE_JOURNAL_REBUILD_BATCH_SIZE, entries.size());
+					try {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + (end - mNext) * 128);
+						DataOutputStream out = new DataOutputStream(bytes);
+						out.writeInt(end - mNext);
+						for (int i = mNext; i < end; i++) {
+							writePurchase(out, entries.get(i).mJournaledAt, entries.get(i).mPurchase);
+						}
+						out.flush();
+						return bytes.toByteArray();
+					} catch (IOException e) {
+						// Only writes to memory.
+						throw new IllegalStateException(e);
+					} finally {
+						mNext = end;
+					}
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			}, new File(mLog.getFile().getPath() + PREVIOUS_FILE_SUFFIX));
+		} catch (IOException e) {
+			Log.e(TAG, "failed to rotate " + mLog.getFile(), e);
+			return;
+		}
+		if (Consts.DEBUG) {
+			Log.d(TAG, "rotated " + mEntryCount + " entries to " + entries.size() + " in " +
+					(System.nanoTime() - start) / 1000000 + "ms");
+		}
+		mPurchaseCount = entries.size();
+		mEntryCount = entries.size();
+	}
+
+	private static void writePurchase(DataOutputStream out, long journaledAt, Security.VerifiedPurchase purchase)
+			throws IOException {
+		out.writeByte(TYPE_PURCHASE);
+		out.writeLong(journaledAt);
+		out.writeUTF(purchase.orderId);
+		out.writeUTF(purchase.productId);
+		out.writeByte(purchase.purchaseState.ordinal());
+		out.writeLong(purchase.purchaseTime);
+		writeNullableUTF(out, purchase.developerPayload);
+		writeNullableUTF(out, purchase.notificationId);
+	}
+
+	/**
+	 * @param pReader told about the entry, or null to skip it
+	 * @return the type of the entry
+	 */
+	private static byte readEntry(DataInputStream in, Reader pReader) throws IOException {
+		byte type = in.readByte();
+		long journaledAt = in.readLong();
+		if (type == TYPE_PURCHASE) {
+			String orderId = in.readUTF();
+			String productId = in.readUTF();
+			Consts.PurchaseState state = Consts.PurchaseState.valueOf(in.readByte());
+			long purchaseTime = in.readLong();
+			String developerPayload = readNullableUTF(in);
+			String notificationId = readNullableUTF(in);
+			if (pReader != null) {
+				pReader.onPurchase(journaledAt, new Security.VerifiedPurchase(state, notificationId, productId, orderId,
+						purchaseTime, developerPayload));
+			}
+		}
+		else if (type == TYPE_RESPONSE_CODE) {
+			long requestId = in.readLong();
+			String requestType = readNullableUTF(in);
+			Consts.ResponseCode responseCode = Consts.ResponseCode.valueOf(in.readByte());
+			if (pReader != null) {
+				pReader.onResponseCode(journaledAt, requestId, requestType, responseCode);
+			}
+		}
+		else {
+			throw new IOException("unknown entry type " + type);
+		}
+		return type;
+	}
+
+	private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullableUTF(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * A purchase and when it was journaled.
+	 */
+	private static class Entry {
+		final long mJournaledAt;
+		final Security.VerifiedPurchase mPurchase;
+
+		Entry(long pJournaledAt, Security.VerifiedPurchase pPurchase) {
+			mJournaledAt = pJournaledAt;
+			mPurchase = pPurchase;
+		}
+	}
+
+	/**
+	 * Is told about each entry of the journal, in order.
+	 */
+	interface Reader {
+		/**
+		 * @param journaledAt when the purchase was journaled, in milliseconds since the epoch
+		 * @param purchase    the purchase as it was verified
+		 */
+		void onPurchase(long journaledAt, Security.VerifiedPurchase purchase);
+
+		/**
+		 * @param journaledAt  when the response code was journaled, in milliseconds since the epoch
+		 * @param requestId    the request ID Android Market assigned
+		 * @param requestType  the kind of request, or null if it was not known
+		 * @param responseCode the response code
+		 */
+		void onResponseCode(long journaledAt, long requestId, String requestType, Consts.ResponseCode responseCode);
+	}
+}
@@ -0,0 +1,356 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.PurchaseRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@link PurchaseStore} that appends every batch of orders to a single file and keeps the orders and quantities in
+ * memory. Recording a batch costs one append and one sync however many products and orders it touches, so it suits
+ * applications that sell unmanaged items in very large numbers. The whole file is read back when the store is opened.
+ * <p/>
+ * Each batch is one frame of a {@link FramedLog}, so a batch that was only partly written when the process died is
+ * dropped on the next open. An order that is recorded again is superseded, not rewritten, so the file is compacted,
+ * rewritten with only the latest record of each order, once it has grown to more than twice the number of orders; see
+ * {@link Consts#PURCHASE_LOG_COMPACTION_MIN_RECORDS}.
+ * <p/>
+ * Both the purchased items and the history are kept sorted, so a page costs a lookup of its first row and the rows it
+ * returns, not a pass over every order.
+ * <p/>
+ * Like the database, the file is not obfuscated.
+ */
+class PurchaseLogStore extends PurchaseStore {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "PurchaseLogStore";
+	static final String FILE_NAME = "purchases.log";
+
+	/**
+	 * "PLOG"
+	 */
+	private static final int MAGIC = 0x504c4f47;
+	private static final int VERSION = 1;
+
+	/**
+	 * The number of orders in each frame written by a compaction.
+	 */
+	private static final int COMPACTION_FRAME_SIZE = 1000;
+
+	/**
+	 * The order of the purchase history: newest purchase time first, then by order ID, descending.
+	 */
+	private static final Comparator<Order> HISTORY_ORDER = new Comparator<Order>() {
+		@Override
+		public int compare(Order lhs, Order rhs) {
+			if (lhs.mPurchaseTime != rhs.mPurchaseTime) {
+				return lhs.mPurchaseTime > rhs.mPurchaseTime ? -1 : 1;
+			}
+			return rhs.mOrderId.compareTo(lhs.mOrderId);
+		}
+	};
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final FramedLog mLog;
+
+	/**
+	 * The latest record of every order, by order ID.
+	 */
+	private final HashMap<String, Order> mOrders = new HashMap<String, Order>();
+
+	/**
+	 * The latest record of every order, in the order of the purchase history.
+	 */
+	private final TreeSet<Order> mHistory = new TreeSet<Order>(HISTORY_ORDER);
+
+	/**
+	 * The order of every product that comes first in the purchase history, by product ID.
+	 */
+	private final HashMap<String, Order> mLatest = new HashMap<String, Order>();
+
+	/**
+	 * The quantity of every product with a quantity above zero, by product ID.
+	 */
+	private final TreeMap<String, Integer> mQuantities = new TreeMap<String, Integer>();
+
+	/**
+	 * The number of records in the file, including superseded ones.
+	 */
+	private int mRecordCount;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Opens the log, creating it if needed, and reads it into memory. This does disk I/O, so it must not run on the
+	 * main thread.
+	 *
+	 * @param pFile the log file
+	 */
+	PurchaseLogStore(File pFile) {
+		mLog = new FramedLog(pFile, MAGIC, VERSION);
+		try {
+			mLog.open(new FramedLog.FrameReader() {
+				@Override
+				public void onFrame(DataInputStream pFrame) throws IOException {
+					int count = pFrame.readInt();
+					for (int i = 0; i < count; i++) {
+						apply(readOrder(pFrame));
+					}
+					mRecordCount += count;
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot open " + pFile, e);
+		}
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	/**
+	 * Appends the batch as one frame and syncs it to disk before applying it in memory.
+	 */
+	@Override
+	synchronized int[] updatePurchases(List<Security.VerifiedPurchase> purchases) {
+		int[] quantities = new int[purchases.size()];
+		if (purchases.isEmpty()) {
+			return quantities;
+		}
+		List<Order> orders = new ArrayList<Order>(purchases.size());
+		for (Security.VerifiedPurchase purchase : purchases) {
+			orders.add(new Order(purchase.orderId, purchase.productId, purchase.purchaseState, purchase.purchaseTime,
+					purchase.developerPayload));
+		}
+		try {
+			mLog.append(encodeFrame(orders, 0, orders.size()));
+		} catch (IOException e) {
+			throw new IllegalStateException("failed to append to " + mLog.getFile(), e);
+		}
+
+		for (int i = 0; i < quantities.length; i++) {
+			quantities[i] = apply(orders.get(i));
+		}
+		mRecordCount += orders.size();
+		if (mRecordCount >= Consts.PURCHASE_LOG_COMPACTION_MIN_RECORDS && mRecordCount > 2 * mOrders.size()) {
+			compact();
+		}
+		return quantities;
+	}
+
+	@Override
+	synchronized List<Entitlement> queryPurchasedItems(String afterProductId, int limit) {
+		NavigableMap<String, Integer> items = afterProductId == null ? mQuantities :
+				mQuantities.tailMap(afterProductId, false);
+		List<Entitlement> entitlements = new ArrayList<Entitlement>(Math.min(limit, items.size()));
+		for (Map.Entry<String, Integer> entry : items.entrySet()) {
+			if (entitlements.size() == limit) {
+				break;
+			}
+			entitlements.add(new Entitlement(entry.getKey(), entry.getValue(),
+					toPurchaseState(mLatest.get(entry.getKey()).mState)));
+		}
+		return entitlements;
+	}
+
+	@Override
+	synchronized List<PurchaseRecord> queryPurchaseHistory(PurchaseRecord after, int limit) {
+		Iterable<Order> orders = after == null ? mHistory :
+				mHistory.tailSet(new Order(after.getOrderId(), null, null, after.getPurchaseTime(), null), false);
+		List<PurchaseRecord> records = new ArrayList<PurchaseRecord>(Math.min(limit, mHistory.size()));
+		for (Order order : orders) {
+			if (records.size() == limit) {
+				break;
+			}
+			records.add(new PurchaseRecord(order.mOrderId, order.mProductId, toPurchaseState(order.mState),
+					order.mPurchaseTime, order.mDeveloperPayload));
+		}
+		return records;
+	}
+
+	@Override
+	synchronized void close() {
+		mLog.close();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the number of records in the file, including superseded ones
+	 */
+	synchronized int getRecordCount() {
+		return mRecordCount;
+	}
+
+	/**
+	 * Replaces the order in memory and adjusts the quantities and latest orders of the products involved.
+	 *
+	 * @return the quantity of the order's product afterwards
+	 */
+	private int apply(Order order) {
+		Order previous = mOrders.put(order.mOrderId, order);
+		if (previous != null) {
+			mHistory.remove(previous);
+			if (isCounted(previous.mState)) {
+				addQuantity(previous.mProductId, -1);
+			}
+		}
+		mHistory.add(order);
+		if (isCounted(order.mState)) {
+			addQuantity(order.mProductId, 1);
+		}
+
+		if (previous != null && mLatest.get(previous.mProductId) == previous) {
+			// Usually the order is only changing state; otherwise another order of the product may now come first.
+			if (previous.mProductId.equals(order.mProductId) && HISTORY_ORDER.compare(order, previous) <= 0) {
+				mLatest.put(order.mProductId, order);
+			}
+			else {
+				mLatest.remove(previous.mProductId);
+				for (Order candidate : mHistory) {
+					if (candidate.mProductId.equals(previous.mProductId)) {
+						mLatest.put(previous.mProductId, candidate);
+						break;
+					}
+				}
+			}
+		}
+		Order latest = mLatest.get(order.mProductId);
+		if (latest == null || HISTORY_ORDER.compare(order, latest) < 0) {
+			mLatest.put(order.mProductId, order);
+		}
+		Integer quantity = mQuantities.get(order.mProductId);
+		return quantity == null ? 0 : quantity;
+	}
+
+	private void addQuantity(String productId, int delta) {
+		Integer quantity = mQuantities.get(productId);
+		int updated = (quantity == null ? 0 : quantity) + delta;
+		if (updated <= 0) {
+			mQuantities.remove(productId);
+		}
+		else {
+			mQuantities.put(productId, updated);
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the latest record of each order. If that fails the old log is kept and used.
+	 */
+	private void compact() {
+		long start = System.nanoTime();
+		final List<Order> orders = new ArrayList<Order>(mOrders.values());
+		try {
+			mLog.rewrite(new Iterator<byte[]>() {
+				private int mNext;
+
+				@Override
+				public boolean hasNext() {
+					return mNext < orders.size();
+				}
+
+				@Override
+				public byte[] next() {
+					int end = Math.min(mNext + COMPACTION_FRAME_SIZE, orders.size());
+					try {
+						return encodeFrame(orders, mNext, end);
+					} catch (IOException e) {
+						// Only writes to memory.
+						throw new IllegalStateException(e);
+					} finally {
+						mNext = end;
+					}
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			});
+		} catch (IOException e) {
+			Log.e(TAG, "failed to compact " + mLog.getFile(), e);
+			return;
+		}
+		if (Consts.DEBUG) {
+			Log.d(TAG, "compacted " + mRecordCount + " records to " + orders.size() + " in " +
+					(System.nanoTime() - start) / 1000000 + "ms");
+		}
+		mRecordCount = orders.size();
+	}
+
+	/**
+	 * @return the orders from {@code start} up to {@code end} as the contents of one frame
+	 */
+	private static byte[] encodeFrame(List<Order> orders, int start, int end) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + (end - start) * 96);
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeInt(end - start);
+		for (int i = start; i < end; i++) {
+			writeOrder(frame, orders.get(i));
+		}
+		frame.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeOrder(DataOutputStream out, Order order) throws IOException {
+		out.writeUTF(order.mOrderId);
+		out.writeUTF(order.mProductId);
+		out.writeByte(order.mState.ordinal());
+		out.writeLong(order.mPurchaseTime);
+		out.writeBoolean(order.mDeveloperPayload != null);
+		if (order.mDeveloperPayload != null) {
+			out.writeUTF(order.mDeveloperPayload);
+		}
+	}
+
+	private static Order readOrder(DataInputStream in) throws IOException {
+		String orderId = in.readUTF();
+		String productId = in.readUTF();
+		Consts.PurchaseState state = Consts.PurchaseState.valueOf(in.readByte());
+		long purchaseTime = in.readLong();
+		String developerPayload = in.readBoolean() ? in.readUTF() : null;
+		return new Order(orderId, productId, state, purchaseTime, developerPayload);
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class Order {
+		final String mOrderId;
+		final String mProductId;
+		final Consts.PurchaseState mState;
+		final long mPurchaseTime;
+		final String mDeveloperPayload;
+
+		Order(String pOrderId, String pProductId, Consts.PurchaseState pState, long pPurchaseTime,
+			  String pDeveloperPayload) {
+			mOrderId = pOrderId;
+			mProductId = pProductId;
+			mState = pState;
+			mPurchaseTime = pPurchaseTime;
+			mDeveloperPayload = pDeveloperPayload;
+		}
+	}
+}
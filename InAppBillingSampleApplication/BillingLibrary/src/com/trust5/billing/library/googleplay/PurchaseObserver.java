@@ -12,29 +12,83 @@ import android.os.Handler;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
 
 /**
  * An interface for observing changes related to purchases. The main application extends this class and registers an
  * instance of that derived class with {@link ResponseHandler}. The main application implements the callbacks {@link
  * #onBillingSupported(boolean, String)} and {@link #onPurchaseStateChange(Consts.PurchaseState, String, int, long,
  * String)}.  These methods are used to update the UI.
+ * <p/>
+ * Purchase state changes are reported on the thread that writes them to the database. The dispatcher chosen with
+ * {@link #setDispatcher(Executor)} decides where {@link #onPurchaseStateChange(Consts.PurchaseState, String, int, long,
+ * String)} runs from there: posted to a Handler, which is what {@link #PurchaseObserver(Context, Handler)} does, on any
+ * Executor, or on the database thread itself with {@link #DIRECT_DISPATCHER}.
  */
 public abstract class PurchaseObserver {
 	private static final String TAG = "PurchaseObserver";
+
+	/**
+	 * Runs {@link #onPurchaseStateChange(Consts.PurchaseState, String, int, long, String)} on the thread that wrote the
+	 * purchase to the database, straight away. Nothing is written while the callback runs, so it must be quick and
+	 * must not touch the UI.
+	 */
+	public static final Executor DIRECT_DISPATCHER = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
 	private final Context mContext;
-	private final Handler mHandler;
+	private volatile Executor mDispatcher;
 	private Method mStartIntentSender;
 	private Object[] mStartIntentSenderArgs = new Object[5];
 	private static final Class[] START_INTENT_SENDER_SIG = new Class[]{
 			IntentSender.class, Intent.class, int.class, int.class, int.class
 	};
 
+	/**
+	 * Creates an observer whose purchase state changes are posted to the handler, usually one for the UI thread.
+	 */
 	public PurchaseObserver(Context context, Handler handler) {
+		this(context, handlerDispatcher(handler));
+	}
+
+	/**
+	 * @param dispatcher runs {@link #onPurchaseStateChange(Consts.PurchaseState, String, int, long, String)}
+	 */
+	public PurchaseObserver(Context context, Executor dispatcher) {
 		mContext = context;
-		mHandler = handler;
+		mDispatcher = dispatcher;
 		initCompatibilityLayer();
 	}
 
+	/**
+	 * Changes where {@link #onPurchaseStateChange(Consts.PurchaseState, String, int, long, String)} runs. Changes
+	 * already handed to the old dispatcher still run there.
+	 *
+	 * @param dispatcher runs the callback; see {@link #DIRECT_DISPATCHER} and {@link #handlerDispatcher(Handler)}
+	 */
+	public void setDispatcher(Executor dispatcher) {
+		if (dispatcher == null) {
+			throw new NullPointerException("dispatcher is null");
+		}
+		mDispatcher = dispatcher;
+	}
+
+	/**
+	 * @return a dispatcher that posts callbacks to the handler
+	 */
+	public static Executor handlerDispatcher(final Handler handler) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				handler.post(command);
+			}
+		};
+	}
+
 	/**
 	 * This is the callback that is invoked when Android Market responds to the {@link
 	 * com.trust5.billing.library.googleplay.PlayBillingService#checkBillingSupported()} request.
@@ -124,8 +178,8 @@ public abstract class PurchaseObserver {
 	}
 
 	/**
-	 * Updates the UI after the database has been updated.  This method runs in a background thread so it has to post a
-	 * Runnable to run on the UI thread.
+	 * Reports a purchase state change after the database has been updated.  This method runs on the database thread, so
+	 * it hands the callback to the dispatcher.
 	 *
 	 * @param purchaseState the purchase state of the item
 	 * @param itemId        a string identifying the item
@@ -133,11 +187,15 @@ public abstract class PurchaseObserver {
 	 */
 	void postPurchaseStateChange(final Consts.PurchaseState purchaseState, final String itemId,
 								 final int quantity, final long purchaseTime, final String developerPayload) {
-		mHandler.post(new Runnable() {
+		final long posted = BillingMetrics.start();
+		mDispatcher.execute(new Runnable() {
 			@Override
 			public void run() {
 				onPurchaseStateChange(
 						purchaseState, itemId, quantity, purchaseTime, developerPayload);
+				BillingMetrics.stop(BillingMetrics.Timer.DISPATCH, posted);
+				BillingTrace.record(BillingTrace.Event.DISPATCHED, itemId.hashCode(), purchaseState.ordinal());
+				BillingMetrics.purchaseCompleted(purchaseState, itemId, developerPayload);
 			}
 		});
 	}
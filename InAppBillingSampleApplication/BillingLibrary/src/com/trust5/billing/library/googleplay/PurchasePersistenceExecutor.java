@@ -0,0 +1,365 @@
+package com.trust5.billing.library.googleplay;
+
+import android.content.Context;
+import android.util.Log;
+import com.trust5.billing.library.BillingFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single writer for the {@link PurchaseStore}. Purchase state changes are applied one at a time, in the order
+ * they were submitted, on one background thread that owns a shared store. Tasks are submitted from the main thread,
+ * so submitting never waits. The queue is bounded; when it is full, further tasks are held in an overflow list that the
+ * writer moves into the queue as it makes room, and a {@link MergeableTask} at the end of that list takes on the work
+ * of the ones submitted after it. A burst of purchases therefore becomes a few large transactions rather than
+ * thousands of queued ones, without dropping a purchase or reordering it.
+ * <p/>
+ * The store is the only one in the process. It is opened, and any schema created or upgraded, on the writer thread the
+ * first time a task needs it; other threads get it through {@link #openStore()} without waiting for the disk.
+ * <p/>
+ * Other small files that must not be written on the main thread, such as the {@link NonceRegistry}'s, are written on
+ * the same thread through {@link #execute(Runnable)}.
+ */
+class PurchasePersistenceExecutor implements Executor {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "PurchasePersistenceExecutor";
+
+	/**
+	 * How long the writer thread stays alive without work. The store stays open.
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static PurchasePersistenceExecutor sInstance;
+
+	private static final AtomicLong sSubmittedCount = new AtomicLong();
+	private static final AtomicLong sCompletedCount = new AtomicLong();
+	private static final AtomicLong sTotalLatencyNanos = new AtomicLong();
+	private static final AtomicLong sMaxLatencyNanos = new AtomicLong();
+	private static volatile long sOpenNanos = -1;
+
+	private final Context mContext;
+	private final ThreadPoolExecutor mExecutor;
+
+	/**
+	 * Submissions that did not fit in the queue, oldest first. While it is not empty, every new submission goes here too
+	 * so nothing overtakes it. Guarded by itself.
+	 */
+	private final LinkedList<Submission> mOverflow = new LinkedList<Submission>();
+
+	/**
+	 * Only touched on the writer thread.
+	 */
+	private PurchaseStore mStore;
+
+	/**
+	 * Only touched on the writer thread. Null until {@link #getJournal()} has opened it.
+	 */
+	private PurchaseJournal mJournal;
+	private boolean mJournalFailed;
+
+	/**
+	 * Completed on the writer thread once the store is open, or with the exception if opening failed. A failed future
+	 * is replaced by the next call to {@link #openStore()}, which tries again.
+	 */
+	private BillingFuture<PurchaseStore> mStoreFuture;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	/**
+	 * Everything but tests should use the process wide writer from {@link #getInstance(Context)}.
+	 */
+	PurchasePersistenceExecutor(Context pContext) {
+		mContext = pContext;
+		mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Consts.PURCHASE_PERSISTENCE_QUEUE_CAPACITY),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, TAG);
+					}
+				});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return the process wide writer
+	 */
+	static synchronized PurchasePersistenceExecutor getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new PurchasePersistenceExecutor(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of tasks waiting to be applied, counting merged ones once
+	 */
+	static int getQueueDepth() {
+		PurchasePersistenceExecutor instance;
+		synchronized (PurchasePersistenceExecutor.class) {
+			instance = sInstance;
+		}
+		return instance == null ? 0 : instance.getPendingCount();
+	}
+
+	/**
+	 * @return the number of tasks waiting to be applied by this writer, in the queue and in the overflow
+	 */
+	int getPendingCount() {
+		synchronized (mOverflow) {
+			return mExecutor.getQueue().size() + mOverflow.size();
+		}
+	}
+
+	/**
+	 * @return how long opening the store took on the writer thread, including any schema upgrade or log replay, or -1
+	 *         if it has not been opened
+	 */
+	static long getOpenNanos() {
+		return sOpenNanos;
+	}
+
+	static long getSubmittedCount() {
+		return sSubmittedCount.get();
+	}
+
+	static long getCompletedCount() {
+		return sCompletedCount.get();
+	}
+
+	/**
+	 * @return the average time between submitting a task and it finishing, in nanoseconds
+	 */
+	static long getAverageLatencyNanos() {
+		long completed = sCompletedCount.get();
+		return completed == 0 ? 0 : sTotalLatencyNanos.get() / completed;
+	}
+
+	/**
+	 * @return the longest time between submitting a task and it finishing, in nanoseconds
+	 */
+	static long getMaxLatencyNanos() {
+		return sMaxLatencyNanos.get();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Queues a task to run on the writer thread. Never blocks: if the queue is full the task waits in the overflow, or
+	 * is merged into the {@link MergeableTask} waiting there last.
+	 *
+	 * @param task the task to run
+	 */
+	void execute(Task task) {
+		sSubmittedCount.incrementAndGet();
+		submit(new Submission(task, null));
+	}
+
+	/**
+	 * Queues work that does not need the store to run on the writer thread. It is not counted as a persisted purchase.
+	 * Never blocks.
+	 *
+	 * @param runnable the work to run
+	 */
+	@Override
+	public void execute(Runnable runnable) {
+		submit(new Submission(null, runnable));
+	}
+
+	private void submit(Submission submission) {
+		synchronized (mOverflow) {
+			if (mOverflow.isEmpty()) {
+				try {
+					mExecutor.execute(submission);
+					return;
+				} catch (RejectedExecutionException e) {
+					// The queue is full; the writer drains the overflow once it has room.
+				}
+			}
+			else if (mOverflow.getLast().merge(submission)) {
+				return;
+			}
+			mOverflow.add(submission);
+		}
+	}
+
+	/**
+	 * Moves as much of the overflow into the queue as fits, oldest first. Called on the writer thread after each task,
+	 * so the thread is running and picks the moved tasks up before it can time out.
+	 */
+	private void drainOverflow() {
+		synchronized (mOverflow) {
+			while (!mOverflow.isEmpty() && mExecutor.getQueue().offer(mOverflow.getFirst())) {
+				mOverflow.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * Opens the shared store on the writer thread if that has not happened yet. Reads and writes should both go through
+	 * {@link #execute(Task)}, since not every store may be used from other threads.
+	 *
+	 * @return a future that completes with the open store
+	 */
+	BillingFuture<PurchaseStore> openStore() {
+		final BillingFuture<PurchaseStore> future;
+		synchronized (this) {
+			BillingFuture<PurchaseStore> current = mStoreFuture;
+			if (current != null && !(current.isDone() && current.getNow() == null)) {
+				return current;
+			}
+			future = new BillingFuture<PurchaseStore>();
+			mStoreFuture = future;
+		}
+		execute(new Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				future.complete(store);
+			}
+		});
+		return future;
+	}
+
+	private PurchaseStore getStore() {
+		if (mStore == null) {
+			long start = System.nanoTime();
+			try {
+				if (Consts.PURCHASE_STORE_TYPE == Consts.PurchaseStoreType.LOG) {
+					mStore = new PurchaseLogStore(new File(mContext.getFilesDir(), PurchaseLogStore.FILE_NAME));
+				}
+				else {
+					mStore = new PurchaseDatabase(mContext);
+				}
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					if (mStoreFuture != null) {
+						mStoreFuture.completeExceptionally(e);
+					}
+				}
+				throw e;
+			}
+			sOpenNanos = System.nanoTime() - start;
+		}
+		return mStore;
+	}
+
+	/**
+	 * Opens the purchase journal if that has not happened yet. Must only be called from a {@link Task}.
+	 *
+	 * @return the journal, or null if it is disabled or cannot be opened
+	 */
+	PurchaseJournal getJournal() {
+		if (mJournal == null && !mJournalFailed && Consts.PURCHASE_JOURNAL_ENABLED) {
+			try {
+				mJournal = new PurchaseJournal(new File(mContext.getFilesDir(), PurchaseJournal.FILE_NAME));
+			} catch (IOException e) {
+				Log.e(TAG, "failed to open the purchase journal", e);
+				mJournalFailed = true;
+			}
+		}
+		return mJournal;
+	}
+
+	private static void recordLatency(int count, long totalLatencyNanos, long latencyNanos) {
+		sCompletedCount.addAndGet(count);
+		sTotalLatencyNanos.addAndGet(totalLatencyNanos);
+		long max;
+		while (latencyNanos > (max = sMaxLatencyNanos.get())) {
+			if (sMaxLatencyNanos.compareAndSet(max, latencyNanos)) {
+				break;
+			}
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * A unit of work that runs on the writer thread with the shared store.
+	 */
+	interface Task {
+		void run(PurchaseStore store);
+	}
+
+	/**
+	 * A task that can take on the work of a task submitted after it while both are waiting in the overflow.
+	 */
+	interface MergeableTask extends Task {
+		/**
+		 * Called on the submitting thread, before this task has started.
+		 *
+		 * @param next a task submitted after this one
+		 * @return true if this task now also does the work of {@code next}, which will not be run
+		 */
+		boolean merge(MergeableTask next);
+	}
+
+	/**
+	 * A task or runnable on its way to the writer thread, with how many submissions it stands for once others have
+	 * been merged into it.
+	 */
+	private final class Submission implements Runnable {
+		private final Task mTask;
+		private final Runnable mRunnable;
+		private final long mSubmitted = System.nanoTime();
+		private int mCount = 1;
+		private long mSubmittedSum = mSubmitted;
+
+		Submission(Task task, Runnable runnable) {
+			mTask = task;
+			mRunnable = runnable;
+		}
+
+		boolean merge(Submission next) {
+			if (!(mTask instanceof MergeableTask) || !(next.mTask instanceof MergeableTask)
+					|| !((MergeableTask) mTask).merge((MergeableTask) next.mTask)) {
+				return false;
+			}
+			mCount += next.mCount;
+			mSubmittedSum += next.mSubmittedSum;
+			return true;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (mTask != null) {
+					mTask.run(getStore());
+				}
+				else {
+					mRunnable.run();
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, mTask != null ? "failed to persist purchase" : "failed to run " + mRunnable, e);
+			} finally {
+				if (mTask != null) {
+					long now = System.nanoTime();
+					recordLatency(mCount, mCount * now - mSubmittedSum, now - mSubmitted);
+				}
+				drainOverflow();
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.trust5.billing.library.googleplay;
+
+import com.trust5.billing.library.BillingResult;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.PurchaseRecord;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where the state of each purchase is recorded. {@link PurchasePersistenceExecutor} opens the store chosen by
+ * {@link Consts#PURCHASE_STORE_TYPE} and is the only caller; every method runs on its writer thread.
+ * <p/>
+ * Implementations must agree exactly on what they return:
+ * <ul>
+ * <li>An order is identified by its order ID. Recording an order that is already in the store replaces it.</li>
+ * <li>The quantity of a product is the number of its orders that are {@link Consts.PurchaseState#PURCHASED} or
+ * {@link Consts.PurchaseState#REFUNDED}.</li>
+ * <li>The purchased items are the products with a quantity above zero, ordered by product ID, each with the state of
+ * its order that comes first in the purchase history.</li>
+ * <li>The purchase history is every order in its latest state, newest purchase time first, and orders with the same
+ * purchase time by order ID, descending.</li>
+ * <li>Both are paged by key: a page starts after the last row of the previous one.</li>
+ * <li>A batch passed to {@link #updatePurchases(List)} is stored completely or not at all.</li>
+ * </ul>
+ */
+abstract class PurchaseStore {
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Adds the given purchase information to the store and returns the total number of times that the given product
+	 * has been purchased.
+	 *
+	 * @param orderId          a string identifying the order
+	 * @param productId        the product ID (sku)
+	 * @param purchaseState    the purchase state of the product
+	 * @param purchaseTime     the time the product was purchased, in milliseconds since the epoch (Jan 1, 1970)
+	 * @param developerPayload the developer provided "payload" associated with the order
+	 * @return the number of times the given product has been purchased.
+	 * @see #updatePurchases(List)
+	 */
+	int updatePurchase(String orderId, String productId, Consts.PurchaseState purchaseState, long purchaseTime,
+					   String developerPayload) {
+		List<Security.VerifiedPurchase> purchases = Collections.singletonList(new Security.VerifiedPurchase(
+				purchaseState, null, productId, orderId, purchaseTime, developerPayload));
+		return updatePurchases(purchases)[0];
+	}
+
+	/**
+	 * Adds all the given purchases to the store at once and returns, for each purchase, the number of times its
+	 * product has been purchased once that purchase is applied.
+	 *
+	 * @param purchases the verified purchases, in the order they were received
+	 * @return the quantity of each purchase's product after that purchase, indexed like {@code purchases}
+	 */
+	abstract int[] updatePurchases(List<Security.VerifiedPurchase> purchases);
+
+	/**
+	 * @return every product with a quantity above zero, ordered by product ID
+	 */
+	List<Entitlement> queryAllPurchasedItems() {
+		return queryPurchasedItems(null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads one page of the purchased items.
+	 *
+	 * @param afterProductId the product ID of the last item of the previous page, or null for the first page
+	 * @param limit          the most items to return
+	 * @return the products with a quantity above zero whose IDs sort after {@code afterProductId}, ordered by product ID
+	 */
+	abstract List<Entitlement> queryPurchasedItems(String afterProductId, int limit);
+
+	/**
+	 * Reads one page of the purchase history.
+	 *
+	 * @param after the last order of the previous page, or null for the first page
+	 * @param limit the most orders to return
+	 * @return the orders that come after {@code after}, newest first
+	 */
+	abstract List<PurchaseRecord> queryPurchaseHistory(PurchaseRecord after, int limit);
+
+	abstract void close();
+
+	/**
+	 * Note that a refunded purchase is treated as a purchase. Such a friendly refund policy is nice for the user.
+	 *
+	 * @return true if an order in the given state adds to the quantity of its product
+	 */
+	static boolean isCounted(Consts.PurchaseState state) {
+		return state == Consts.PurchaseState.PURCHASED || state == Consts.PurchaseState.REFUNDED;
+	}
+
+	/**
+	 * Converts a purchase state from Android Market to the state reported to the application.
+	 */
+	static BillingResult.PurchaseState toPurchaseState(Consts.PurchaseState purchaseState) {
+		switch (purchaseState) {
+			case PURCHASED:
+				return BillingResult.PurchaseState.PURCHASED;
+			case REFUNDED:
+				return BillingResult.PurchaseState.REFUNDED;
+			default:
+				return BillingResult.PurchaseState.CANCELED;
+		}
+	}
+}
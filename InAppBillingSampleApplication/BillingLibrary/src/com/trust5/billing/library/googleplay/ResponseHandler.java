@@ -6,6 +6,17 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
+import com.trust5.billing.library.BillingFuture;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.EntitlementCache;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class contains the methods that handle responses from Android Market.  The implementation of these methods is
@@ -23,27 +34,216 @@ class ResponseHandler {
 	}
 
 	/**
-	 * This is a static instance of {@link PurchaseObserver} that the application creates and registers with this class.
-	 * The PurchaseObserver is used for updating the UI if the UI is visible.
+	 * The {@link PurchaseObserver}s registered with this class, oldest first. The list is never changed, only replaced,
+	 * so reporting to the observers takes no lock. They are held weakly, so an observer whose owner went away without
+	 * unregistering it is dropped rather than kept alive.
+	 */
+	private static final AtomicReference<List<WeakReference<PurchaseObserver>>> sObservers =
+			new AtomicReference<List<WeakReference<PurchaseObserver>>>(
+					Collections.<WeakReference<PurchaseObserver>>emptyList());
+
+	/**
+	 * What the user owns. The database writer updates it after every write, before the observers are told.
+	 */
+	private static final EntitlementCache sEntitlementCache = new EntitlementCache();
+
+	static EntitlementCache getEntitlementCache() {
+		return sEntitlementCache;
+	}
+
+	/**
+	 * The on-disk copy of the entitlement cache, created by the first {@link #loadEntitlements(Context, long)}.
+	 */
+	private static EntitlementSnapshot sEntitlementSnapshot;
+
+	private static volatile boolean sEntitlementsLoadedFromDatabase;
+
+	/**
+	 * Fills the entitlement cache, unless the database has already been read in this process. The snapshot file is read
+	 * on the calling thread, so the cache can answer straight away; the database is then read on the database writer
+	 * and replaces what came from the snapshot. Purchases queued before that are in the database by the time it runs,
+	 * and purchases queued after it update the cache themselves.
+	 *
+	 * @param context    the context
+	 * @param startNanos when initialization started, for {@link StartupMetrics}
+	 */
+	static void loadEntitlements(Context context, final long startNanos) {
+		if (sEntitlementsLoadedFromDatabase) {
+			return;
+		}
+		synchronized (ResponseHandler.class) {
+			if (sEntitlementSnapshot == null) {
+				sEntitlementSnapshot = new EntitlementSnapshot(context.getApplicationContext());
+				// Purchases that arrived before the application started are newer than the snapshot.
+				if (sEntitlementCache.getAll().isEmpty()) {
+					long readStart = System.nanoTime();
+					List<Entitlement> entitlements = sEntitlementSnapshot.read();
+					if (entitlements != null) {
+						sEntitlementCache.load(entitlements);
+					}
+					StartupMetrics.recordSnapshotRead(System.nanoTime() - readStart,
+							entitlements == null ? -1 : entitlements.size());
+				}
+				// The cache only changes on the database writer, so the file is written there.
+				sEntitlementCache.addListener(sEntitlementSnapshot, new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						command.run();
+					}
+				});
+			}
+		}
+		final PurchasePersistenceExecutor executor = PurchasePersistenceExecutor.getInstance(context);
+		executor.execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				if (!sEntitlementsLoadedFromDatabase) {
+					List<Entitlement> entitlements = store.queryAllPurchasedItems();
+					// An empty history, not an empty list of owned items, means the store was lost or replaced: a
+					// user whose orders were all refunded owns nothing. Only then is the journal opened, which reads
+					// the whole file; otherwise it is opened by the first append.
+					if (store.queryPurchaseHistory(null, 1).isEmpty()) {
+						PurchaseJournal journal = executor.getJournal();
+						if (journal != null && journal.getPurchaseCount() > 0) {
+							Log.w(TAG, "purchase store is empty, rebuilding it from the journal");
+							entitlements = rebuildStore(store, journal);
+						}
+					}
+					sEntitlementCache.load(entitlements);
+					sEntitlementsLoadedFromDatabase = true;
+					StartupMetrics.recordDatabaseLoad(System.nanoTime() - startNanos);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the purchase store from the purchase journal, then reloads the entitlement cache from it. Purchases
+	 * queued before this are in the journal by the time it runs.
+	 *
+	 * @param context the context
+	 * @param future  completed with the number of orders applied, or with an exception if the journal could not be read
+	 */
+	static void rebuildFromJournal(Context context, final BillingFuture<Integer> future) {
+		final PurchasePersistenceExecutor executor = PurchasePersistenceExecutor.getInstance(context);
+		executor.execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				PurchaseJournal journal = executor.getJournal();
+				if (journal == null) {
+					future.completeExceptionally(new IllegalStateException("the purchase journal is not available"));
+					return;
+				}
+				try {
+					int orders = journal.rebuild(store);
+					sEntitlementCache.load(store.queryAllPurchasedItems());
+					sEntitlementsLoadedFromDatabase = true;
+					future.complete(orders);
+				} catch (IOException e) {
+					future.completeExceptionally(e);
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+					throw e;
+				}
+			}
+		});
+	}
+
+	private static List<Entitlement> rebuildStore(PurchaseStore store, PurchaseJournal journal) {
+		try {
+			journal.rebuild(store);
+		} catch (IOException e) {
+			Log.e(TAG, "failed to rebuild the purchase store from the journal", e);
+		}
+		return store.queryAllPurchasedItems();
+	}
+
+	/**
+	 * Appends a response code from Android Market to the purchase journal, on the database writer.
+	 *
+	 * @param context      the context
+	 * @param requestId    the request ID Android Market assigned
+	 * @param requestType  the kind of request, or null if it was not known
+	 * @param responseCode the response code
 	 */
-	private static PurchaseObserver sPurchaseObserver;
+	static void journalResponseCode(Context context, final long requestId, final String requestType,
+									final Consts.ResponseCode responseCode) {
+		if (!Consts.PURCHASE_JOURNAL_ENABLED) {
+			return;
+		}
+		final PurchasePersistenceExecutor executor = PurchasePersistenceExecutor.getInstance(context);
+		executor.execute(new PurchasePersistenceExecutor.Task() {
+			@Override
+			public void run(PurchaseStore store) {
+				PurchaseJournal journal = executor.getJournal();
+				if (journal != null) {
+					journal.appendResponseCode(requestId, requestType, responseCode);
+				}
+			}
+		});
+	}
 
 	/**
-	 * Registers an observer that updates the UI.
+	 * Registers an observer. Every registered observer is told about every response, each through its own dispatcher.
+	 * Only a weak reference is kept, so the caller must hold on to the observer for as long as it is registered.
 	 *
-	 * @param observer the observer to register
+	 * @param observer the observer to register; registering it again has no effect
 	 */
-	static synchronized void register(PurchaseObserver observer) {
-		sPurchaseObserver = observer;
+	static void register(PurchaseObserver observer) {
+		List<WeakReference<PurchaseObserver>> current;
+		List<WeakReference<PurchaseObserver>> updated;
+		do {
+			current = sObservers.get();
+			updated = new ArrayList<WeakReference<PurchaseObserver>>(current.size() + 1);
+			for (WeakReference<PurchaseObserver> reference : current) {
+				PurchaseObserver registered = reference.get();
+				if (registered == observer) {
+					return;
+				}
+				if (registered != null) {
+					updated.add(reference);
+				}
+			}
+			updated.add(new WeakReference<PurchaseObserver>(observer));
+		} while (!sObservers.compareAndSet(current, Collections.unmodifiableList(updated)));
 	}
 
 	/**
-	 * Unregisters a previously registered observer.
+	 * Unregisters a previously registered observer. Other observers stay registered.
 	 *
 	 * @param observer the previously registered observer.
 	 */
-	static synchronized void unregister(PurchaseObserver observer) {
-		sPurchaseObserver = null;
+	static void unregister(PurchaseObserver observer) {
+		List<WeakReference<PurchaseObserver>> current;
+		List<WeakReference<PurchaseObserver>> updated;
+		do {
+			current = sObservers.get();
+			updated = new ArrayList<WeakReference<PurchaseObserver>>(current.size());
+			for (WeakReference<PurchaseObserver> reference : current) {
+				PurchaseObserver registered = reference.get();
+				if (registered != null && registered != observer) {
+					updated.add(reference);
+				}
+			}
+		} while (!sObservers.compareAndSet(current, Collections.unmodifiableList(updated)));
+	}
+
+	/**
+	 * Any thread can register or unregister observers at any time, so each response is reported to the observers that
+	 * were registered when it arrived.
+	 *
+	 * @return the registered observers that are still reachable, oldest first
+	 */
+	private static List<PurchaseObserver> getObservers() {
+		List<WeakReference<PurchaseObserver>> references = sObservers.get();
+		List<PurchaseObserver> observers = new ArrayList<PurchaseObserver>(references.size());
+		for (WeakReference<PurchaseObserver> reference : references) {
+			PurchaseObserver observer = reference.get();
+			if (observer != null) {
+				observers.add(observer);
+			}
+		}
+		return observers;
 	}
 
 	/**
@@ -53,14 +253,15 @@ class ResponseHandler {
 	 * @param supported true if in-app billing is supported.
 	 */
 	static void checkBillingSupportedResponse(boolean supported, String type) {
-		if (sPurchaseObserver != null) {
-			sPurchaseObserver.onBillingSupported(supported, type);
+		for (PurchaseObserver observer : getObservers()) {
+			observer.onBillingSupported(supported, type);
 		}
 	}
 
 	/**
 	 * Starts a new activity for the user to buy an item for sale. This method forwards the intent on to the
 	 * PurchaseObserver (if it exists) because we need to start the activity on the activity stack of the application.
+	 * The buy page is started once, by the observer registered last, which belongs to the screen the user is on.
 	 *
 	 * @param pendingIntent a PendingIntent that we received from Android Market that will create the new buy page
 	 *                      activity
@@ -68,13 +269,14 @@ class ResponseHandler {
 	 *                      activity when it is created
 	 */
 	static void buyPageIntentResponse(PendingIntent pendingIntent, Intent intent) {
-		if (sPurchaseObserver == null) {
+		List<PurchaseObserver> observers = getObservers();
+		if (observers.isEmpty()) {
 			if (Consts.DEBUG) {
 				Log.d(TAG, "UI is not running");
 			}
 			return;
 		}
-		sPurchaseObserver.startBuyPageActivity(pendingIntent, intent);
+		observers.get(observers.size() - 1).startBuyPageActivity(pendingIntent, intent);
 	}
 
 	/**
@@ -96,28 +298,49 @@ class ResponseHandler {
 			final String orderId, final long purchaseTime, final String developerPayload) {
 
 		// Update the database with the purchase state. We shouldn't do that
-		// from the main thread so we do the work in a background thread.
+		// from the main thread so the work is queued on the single database
+		// writer, which applies purchases in the order they arrive.
 		// We don't update the UI here. We will update the UI after we update
 		// the database because we need to read and update the current quantity
 		// first.
-		new Thread(new Runnable() {
+		final PurchasePersistenceExecutor executor = PurchasePersistenceExecutor.getInstance(context);
+		executor.execute(new PurchasePersistenceExecutor.Task() {
 			@Override
-			public void run() {
-				PurchaseDatabase db = new PurchaseDatabase(context);
-				int quantity = db.updatePurchase(
+			public void run(PurchaseStore store) {
+				long start = BillingMetrics.start();
+				PurchaseJournal journal = executor.getJournal();
+				if (journal != null) {
+					journal.appendPurchases(Collections.singletonList(new Security.VerifiedPurchase(
+							purchaseState, null, productId, orderId, purchaseTime, developerPayload)));
+				}
+				int quantity = store.updatePurchase(
 						orderId, productId, purchaseState, purchaseTime, developerPayload);
-				db.close();
-
-				// This needs to be synchronized because the UI thread can change the
-				// value of sPurchaseObserver.
-				synchronized (ResponseHandler.class) {
-					if (sPurchaseObserver != null) {
-						sPurchaseObserver.postPurchaseStateChange(
-								purchaseState, productId, quantity, purchaseTime, developerPayload);
-					}
+				BillingMetrics.stop(BillingMetrics.Timer.DATABASE_WRITE, start);
+				BillingTrace.record(BillingTrace.Event.PERSISTED, 0, 1);
+				sEntitlementCache.putAll(Collections.singletonList(
+						new Entitlement(productId, quantity, PurchaseStore.toPurchaseState(purchaseState))));
+
+				for (PurchaseObserver observer : getObservers()) {
+					observer.postPurchaseStateChange(purchaseState, productId, quantity, purchaseTime,
+							developerPayload);
 				}
 			}
-		}).start();
+		});
+	}
+
+	/**
+	 * Notifies the application of a batch of purchase state changes delivered in one PURCHASE_STATE_CHANGED message.
+	 * The whole batch is written to the database in a single transaction, then each purchase is reported to the
+	 * observer in order, exactly as {@link #purchaseResponse(Context, Consts.PurchaseState, String, String, long,
+	 * String)} would report it. If the writer is behind, batches submitted after this one may be merged into its
+	 * transaction.
+	 *
+	 * @param context   the context
+	 * @param purchases the verified purchases
+	 */
+	static void purchaseResponses(Context context, List<Security.VerifiedPurchase> purchases) {
+		PurchasePersistenceExecutor executor = PurchasePersistenceExecutor.getInstance(context);
+		executor.execute(new PurchaseUpdate(executor, purchases));
 	}
 
 	/**
@@ -133,8 +356,8 @@ class ResponseHandler {
 	 */
 	static void responseCodeReceived(Context context, PlayBillingService.RequestPurchase request,
 									 Consts.ResponseCode responseCode) {
-		if (sPurchaseObserver != null) {
-			sPurchaseObserver.onRequestPurchaseResponse(request, responseCode);
+		for (PurchaseObserver observer : getObservers()) {
+			observer.onRequestPurchaseResponse(request, responseCode);
 		}
 	}
 
@@ -147,8 +370,66 @@ class ResponseHandler {
 	 */
 	static void responseCodeReceived(Context context, PlayBillingService.RestoreTransactions request,
 									 Consts.ResponseCode responseCode) {
-		if (sPurchaseObserver != null) {
-			sPurchaseObserver.onRestoreTransactionsResponse(request, responseCode);
+		for (PurchaseObserver observer : getObservers()) {
+			observer.onRestoreTransactionsResponse(request, responseCode);
+		}
+	}
+
+	/**
+	 * Stores a batch of purchases in one transaction and reports them. Batches that overflow the writer's queue are
+	 * appended to the one waiting last, so they share its transaction.
+	 */
+	private static class PurchaseUpdate implements PurchasePersistenceExecutor.MergeableTask {
+		private final PurchasePersistenceExecutor mExecutor;
+		private List<Security.VerifiedPurchase> mPurchases;
+		private boolean mMerged;
+
+		PurchaseUpdate(PurchasePersistenceExecutor executor, List<Security.VerifiedPurchase> purchases) {
+			mExecutor = executor;
+			mPurchases = purchases;
+		}
+
+		@Override
+		public boolean merge(PurchasePersistenceExecutor.MergeableTask next) {
+			if (!(next instanceof PurchaseUpdate)) {
+				return false;
+			}
+			if (!mMerged) {
+				// The caller's list is not ours to grow.
+				mPurchases = new ArrayList<Security.VerifiedPurchase>(mPurchases);
+				mMerged = true;
+			}
+			mPurchases.addAll(((PurchaseUpdate) next).mPurchases);
+			return true;
+		}
+
+		@Override
+		public void run(PurchaseStore store) {
+			List<Security.VerifiedPurchase> purchases = mPurchases;
+			// Journaled first, so the journal holds everything the store does.
+			long start = BillingMetrics.start();
+			PurchaseJournal journal = mExecutor.getJournal();
+			if (journal != null) {
+				journal.appendPurchases(purchases);
+			}
+			int[] quantities = store.updatePurchases(purchases);
+			BillingMetrics.stop(BillingMetrics.Timer.DATABASE_WRITE, start);
+			BillingTrace.record(BillingTrace.Event.PERSISTED, 0, quantities.length);
+			List<Entitlement> entitlements = new ArrayList<Entitlement>(quantities.length);
+			for (int i = 0; i < quantities.length; i++) {
+				Security.VerifiedPurchase vp = purchases.get(i);
+				entitlements.add(new Entitlement(vp.productId, quantities[i],
+						PurchaseStore.toPurchaseState(vp.purchaseState)));
+			}
+			sEntitlementCache.putAll(entitlements);
+
+			for (PurchaseObserver observer : getObservers()) {
+				for (int i = 0; i < quantities.length; i++) {
+					Security.VerifiedPurchase vp = purchases.get(i);
+					observer.postPurchaseStateChange(vp.purchaseState, vp.productId, quantities[i],
+							vp.purchaseTime, vp.developerPayload);
+				}
+			}
 		}
 	}
 }
@@ -2,19 +2,19 @@
 
 package com.trust5.billing.library.googleplay;
 
+import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 import com.trust5.billing.library.util.Base64;
 import com.trust5.billing.library.util.Base64DecoderException;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.trust5.billing.library.util.JsonPullParser;
+import com.trust5.billing.library.util.JsonPullParserException;
 
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
 
 /**
  * Security-related methods. For a secure implementation, all of this code should be implemented on a server that
@@ -29,13 +29,31 @@ class Security {
 	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 	private static final SecureRandom RANDOM = new SecureRandom();
 
+	/**
+	 * Compute your public key (that you got from the Android Market publisher site).
+	 * <p/>
+	 * Instead of just storing the entire literal string here embedded in the program,  construct the key at runtime from
+	 * pieces or use bit manipulation (for trust5, XOR with some other string) to hide the actual key.  The key itself is
+	 * not secret information, but we don't want to make it easy for an adversary to replace the public key with one of
+	 * their own and then fake messages from the server.
+	 */
+	// TODO: Put key here
+	private static final String BASE64_ENCODED_PUBLIC_KEY = "";
+
+	/**
+	 * Decodes {@link #BASE64_ENCODED_PUBLIC_KEY} once, on the first signed message, and reuses it for every message
+	 * after that.
+	 */
+	private static volatile SignatureVerifier sVerifier = new SignatureVerifier(BASE64_ENCODED_PUBLIC_KEY);
+
 	/**
 	 * This keeps track of the nonces that we generated and sent to the server.  We need to keep track of these until we
-	 * get back the purchase state and send a confirmation message back to Android Market. If we are killed and lose
-	 * this list of nonces, it is not fatal. Android Market will send us a new "notify" message and we will re-generate
-	 * a new nonce. This has to be "static" so that the {@link PlayBillingReceiver} can check if a nonce exists.
+	 * get back the purchase state and send a confirmation message back to Android Market. Once {@link
+	 * #persistNonces(File)} has been called they survive the process being killed; if they are lost anyway, it is not
+	 * fatal. Android Market will send us a new "notify" message and we will re-generate a new nonce. This has to be
+	 * "static" so that the {@link PlayBillingReceiver} can check if a nonce exists.
 	 */
-	private static HashSet<Long> sKnownNonces = new HashSet<Long>();
+	private static final NonceRegistry sKnownNonces = new NonceRegistry(Consts.NONCE_TTL_MILLIS);
 
 	/**
 	 * A class to hold the verified purchase information.
@@ -63,7 +81,10 @@ class Security {
 	 * Generates a nonce (a random number used once).
 	 */
 	static long generateNonce() {
-		long nonce = RANDOM.nextLong();
+		long nonce;
+		do {
+			nonce = RANDOM.nextLong();
+		} while (nonce == 0);
 		sKnownNonces.add(nonce);
 		return nonce;
 	}
@@ -76,6 +97,31 @@ class Security {
 		return sKnownNonces.contains(nonce);
 	}
 
+	/**
+	 * Keeps the nonces in a file in the application's files directory from now on, after reading back the ones a
+	 * previous process left there. The file is written on the {@link PurchasePersistenceExecutor}. Only the first call
+	 * has an effect, and only if {@link Consts#NONCE_PERSISTENCE_ENABLED}.
+	 *
+	 * @param context the application's context
+	 */
+	static void persistNonces(Context context) {
+		if (Consts.NONCE_PERSISTENCE_ENABLED) {
+			sKnownNonces.attach(new File(context.getFilesDir(), NonceRegistry.FILE_NAME),
+					PurchasePersistenceExecutor.getInstance(context));
+		}
+	}
+
+	static NonceRegistry getNonces() {
+		return sKnownNonces;
+	}
+
+	/**
+	 * Receives verified purchases one at a time, in the order they appear in the signed data.
+	 */
+	interface PurchaseConsumer {
+		void onPurchase(VerifiedPurchase purchase);
+	}
+
 	/**
 	 * Verifies that the data was signed with the given signature, and returns the list of verified purchases. The data
 	 * is in JSON format and contains a nonce (number used once) that we generated and that was signed (as part of the
@@ -85,95 +131,210 @@ class Security {
 	 *
 	 * @param signedData the signed JSON string (signed, not encrypted)
 	 * @param signature  the signature for the data, signed with the private key
+	 * @return the verified purchases, or null if the data could not be verified
+	 * @see #verifyPurchase(String, String, PurchaseConsumer)
 	 */
 	static ArrayList<VerifiedPurchase> verifyPurchase(String signedData, String signature) {
+		final ArrayList<VerifiedPurchase> purchases = new ArrayList<VerifiedPurchase>();
+		boolean verified = verifyPurchase(signedData, signature, new PurchaseConsumer() {
+			@Override
+			public void onPurchase(VerifiedPurchase purchase) {
+				purchases.add(purchase);
+			}
+		});
+		return verified ? purchases : null;
+	}
+
+	/**
+	 * Verifies that the data was signed with the given signature and hands each verified purchase to {@code consumer}
+	 * as soon as it has been read. The signed data is parsed with a pull parser rather than built into a JSON tree, so
+	 * the consumer can start storing the first orders of a large RESTORE_TRANSACTIONS response while the rest are still
+	 * being read.
+	 * <p/>
+	 * Orders are only passed on once the nonce has been checked. The server writes the nonce before the orders; if it
+	 * does not, the orders are held back until the nonce has been read. If the data turns out to be malformed part way
+	 * through, the orders already passed on are not withdrawn and false is returned. The nonce is kept in that case, so
+	 * the same message is accepted when Market sends it again; the consumer must therefore cope with receiving an
+	 * order again, which {@link PurchaseStore} does by replacing it.
+	 *
+	 * @param signedData the signed JSON string (signed, not encrypted)
+	 * @param signature  the signature for the data, signed with the private key
+	 * @param consumer   receives the verified purchases
+	 * @return true if the whole message was verified and read
+	 */
+	static boolean verifyPurchase(String signedData, String signature, PurchaseConsumer consumer) {
+		return verifyPurchase(sVerifier, signedData, signature, consumer);
+	}
+
+	/**
+	 * Same as {@link #verifyPurchase(String, String, PurchaseConsumer)}, but checks the signature with {@code verifier}
+	 * instead of the application key. Used by the benchmarks, which sign their payloads with a generated key.
+	 */
+	static boolean verifyPurchase(SignatureVerifier verifier, String signedData, String signature,
+			PurchaseConsumer consumer) {
 		if (signedData == null) {
 			Log.e(TAG, "data is null");
-			return null;
-		}
-		if (Consts.DEBUG) {
-			Log.i(TAG, "signedData: " + signedData);
+			return false;
 		}
 		boolean verified = false;
 		if (!TextUtils.isEmpty(signature)) {
-			/**
-			 * Compute your public key (that you got from the Android Market publisher site).
-			 *
-			 * Instead of just storing the entire literal string here embedded in the
-			 * program,  construct the key at runtime from pieces or
-			 * use bit manipulation (for trust5, XOR with some other string) to hide
-			 * the actual key.  The key itself is not secret information, but we don't
-			 * want to make it easy for an adversary to replace the public key with one
-			 * of their own and then fake messages from the server.
-			 *
-			 * Generally, encryption keys / passwords should only be kept in memory
-			 * long enough to perform the operation they need to perform.
-			 */
-			// TODO: Put key here
-			String base64EncodedPublicKey = "";
-			PublicKey key = Security.generatePublicKey(base64EncodedPublicKey);
-			verified = Security.verify(key, signedData, signature);
+			verified = verifier.verify(signedData, signature);
 			if (!verified) {
 				Log.w(TAG, "signature does not match data.");
-				return null;
+				BillingMetrics.increment(BillingMetrics.Counter.SIGNATURE_FAILURE);
+				BillingTrace.record(BillingTrace.Event.SIGNATURE_FAILURE);
+				return false;
 			}
 		}
 
-		JSONObject jObject;
-		JSONArray jTransactionsArray = null;
-		int numTransactions = 0;
+		// The nonce might be missing if the user backed out of the buy page.
 		long nonce = 0L;
+		boolean nonceRead = false;
+		int orders = 0;
+		ArrayList<VerifiedPurchase> heldBack = null;
+		long parseStart = BillingMetrics.start();
+		JsonPullParser parser = new JsonPullParser(signedData);
 		try {
-			jObject = new JSONObject(signedData);
-
-			// The nonce might be null if the user backed out of the buy page.
-			nonce = jObject.optLong("nonce");
-			jTransactionsArray = jObject.optJSONArray("orders");
-			if (jTransactionsArray != null) {
-				numTransactions = jTransactionsArray.length();
+			parser.beginObject();
+			while (parser.hasNext()) {
+				String name = parser.nextName();
+				if ("nonce".equals(name) && parser.peek() != JsonPullParser.Token.NULL) {
+					nonce = parser.nextLong();
+					nonceRead = true;
+					if (!Security.isNonceKnown(nonce)) {
+						Log.w(TAG, "Nonce not found: " + nonce);
+						BillingMetrics.increment(BillingMetrics.Counter.UNKNOWN_NONCE);
+						BillingTrace.record(BillingTrace.Event.UNKNOWN_NONCE, nonce, 0);
+						return false;
+					}
+				}
+				else if ("orders".equals(name) && parser.peek() == JsonPullParser.Token.BEGIN_ARRAY) {
+					parser.beginArray();
+					while (parser.hasNext()) {
+						VerifiedPurchase purchase = readOrder(parser, verified);
+						if (purchase == null) {
+							continue;
+						}
+						orders++;
+						if (nonceRead) {
+							consumer.onPurchase(purchase);
+						}
+						else {
+							if (heldBack == null) {
+								heldBack = new ArrayList<VerifiedPurchase>();
+							}
+							heldBack.add(purchase);
+						}
+					}
+					parser.endArray();
+				}
+				else {
+					parser.skipValue();
+				}
 			}
-		} catch (JSONException e) {
-			return null;
+			parser.endObject();
+		} catch (JsonPullParserException e) {
+			Log.e(TAG, "JSON exception: ", e);
+			BillingMetrics.increment(BillingMetrics.Counter.MALFORMED_MESSAGE);
+			BillingTrace.record(BillingTrace.Event.MALFORMED_MESSAGE);
+			return false;
 		}
 
-		if (!Security.isNonceKnown(nonce)) {
+		if (!nonceRead && !Security.isNonceKnown(nonce)) {
 			Log.w(TAG, "Nonce not found: " + nonce);
-			return null;
+			BillingMetrics.increment(BillingMetrics.Counter.UNKNOWN_NONCE);
+			BillingTrace.record(BillingTrace.Event.UNKNOWN_NONCE, nonce, 0);
+			return false;
+		}
+		if (heldBack != null) {
+			for (VerifiedPurchase purchase : heldBack) {
+				consumer.onPurchase(purchase);
+			}
 		}
+		removeNonce(nonce);
+		BillingMetrics.stop(BillingMetrics.Timer.PARSE, parseStart);
+		BillingTrace.record(BillingTrace.Event.VERIFIED, nonce, orders);
+		return true;
+	}
 
-		ArrayList<VerifiedPurchase> purchases = new ArrayList<VerifiedPurchase>();
-		try {
-			for (int i = 0; i < numTransactions; i++) {
-				JSONObject jElement = jTransactionsArray.getJSONObject(i);
-				int response = jElement.getInt("purchaseState");
-				Consts.PurchaseState purchaseState = Consts.PurchaseState.valueOf(response);
-				String productId = jElement.getString("productId");
-				String packageName = jElement.getString("packageName");
-				long purchaseTime = jElement.getLong("purchaseTime");
-				String orderId = jElement.optString("orderId", "");
-				String notifyId = null;
-				if (jElement.has("notificationId")) {
-					notifyId = jElement.getString("notificationId");
-				}
-				String developerPayload = jElement.optString("developerPayload", null);
+	/**
+	 * Reads one element of the "orders" array.
+	 *
+	 * @param verified true if the signature of the message was checked
+	 * @return the purchase, or null if it is a purchase that cannot be trusted because the message was not signed
+	 * @throws JsonPullParserException if the order is malformed or a required field is missing
+	 */
+	private static VerifiedPurchase readOrder(JsonPullParser parser, boolean verified)
+			throws JsonPullParserException {
+		int response = -1;
+		String productId = null;
+		String packageName = null;
+		long purchaseTime = 0L;
+		boolean hasPurchaseTime = false;
+		String orderId = "";
+		String notifyId = null;
+		String developerPayload = null;
 
-				// If the purchase state is PURCHASED, then we require a
-				// verified nonce.
-				if (purchaseState == Consts.PurchaseState.PURCHASED && !verified) {
-					continue;
-				}
-				purchases.add(new VerifiedPurchase(purchaseState, notifyId, productId,
-						orderId, purchaseTime, developerPayload));
+		parser.beginObject();
+		while (parser.hasNext()) {
+			String name = parser.nextName();
+			if (parser.peek() == JsonPullParser.Token.NULL) {
+				parser.nextNull();
 			}
-		} catch (JSONException e) {
-			Log.e(TAG, "JSON exception: ", e);
-			return null;
-		} catch (NullPointerException e) {
-			Log.e(TAG, "Null exception: ", e);
+			else if ("purchaseState".equals(name)) {
+				response = parser.nextInt();
+			}
+			else if ("productId".equals(name)) {
+				productId = parser.nextString();
+			}
+			else if ("packageName".equals(name)) {
+				packageName = parser.nextString();
+			}
+			else if ("purchaseTime".equals(name)) {
+				purchaseTime = parser.nextLong();
+				hasPurchaseTime = true;
+			}
+			else if ("orderId".equals(name)) {
+				orderId = parser.nextString();
+			}
+			else if ("notificationId".equals(name)) {
+				notifyId = parser.nextString();
+			}
+			else if ("developerPayload".equals(name)) {
+				developerPayload = parser.nextString();
+			}
+			else {
+				parser.skipValue();
+			}
+		}
+		parser.endObject();
+
+		if (response < 0 || productId == null || packageName == null || !hasPurchaseTime) {
+			throw new JsonPullParserException("order is missing a required field");
+		}
+		Consts.PurchaseState purchaseState = Consts.PurchaseState.valueOf(response);
+
+		// If the purchase state is PURCHASED, then we require a
+		// verified nonce.
+		if (purchaseState == Consts.PurchaseState.PURCHASED && !verified) {
 			return null;
 		}
-		removeNonce(nonce);
-		return purchases;
+		return new VerifiedPurchase(purchaseState, notifyId, productId, orderId, purchaseTime, developerPayload);
+	}
+
+	/**
+	 * @return the verifier used for purchase state changes, for reporting its statistics
+	 */
+	static SignatureVerifier getVerifier() {
+		return sVerifier;
+	}
+
+	/**
+	 * Replaces the verifier used for purchase state changes. Used by the load test, whose fake Market signs with a
+	 * generated key instead of the application's.
+	 */
+	static void setVerifier(SignatureVerifier verifier) {
+		sVerifier = verifier;
 	}
 
 	/**
@@ -208,9 +369,6 @@ class Security {
 	 * @return true if the data and signature match
 	 */
 	static boolean verify(PublicKey publicKey, String signedData, String signature) {
-		if (Consts.DEBUG) {
-			Log.i(TAG, "signature: " + signature);
-		}
 		Signature sig;
 		try {
 			sig = Signature.getInstance(SIGNATURE_ALGORITHM);
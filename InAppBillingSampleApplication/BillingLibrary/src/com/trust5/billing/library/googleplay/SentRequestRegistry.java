@@ -0,0 +1,257 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The requests that have been sent to Android Market and are waiting for a RESPONSE_CODE, indexed by the request ID
+ * that each request receives when it executes. Requests are added from the main thread and looked up from the intents
+ * that the {@link PlayBillingReceiver} forwards, so the table is only touched while holding the registry's lock.
+ * <p/>
+ * The IDs are kept in an open addressing table of primitive longs, so neither a lookup nor an insert boxes the key or
+ * allocates an entry. Every request carries a deadline; a request whose RESPONSE_CODE has not arrived by then is removed
+ * and told through {@link PlayBillingService.BillingRequest#onTimeout()}, so requests that never get an answer do not
+ * stay in memory for the life of the process. Expired requests are removed whenever the registry is used.
+ */
+class SentRequestRegistry {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "SentRequestRegistry";
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final AtomicLong mTimeoutCount = new AtomicLong();
+
+	private long[] mKeys = new long[INITIAL_CAPACITY];
+	private PlayBillingService.BillingRequest[] mRequests = new PlayBillingService.BillingRequest[INITIAL_CAPACITY];
+	private long[] mSentNanos = new long[INITIAL_CAPACITY];
+	private long[] mDeadlineNanos = new long[INITIAL_CAPACITY];
+	private int mSize;
+
+	/**
+	 * The earliest deadline in the table, so that expired requests are only looked for when one can exist.
+	 */
+	private long mNextDeadlineNanos = Long.MAX_VALUE;
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of requests waiting for a response code
+	 */
+	int getInFlightCount() {
+		evictExpired();
+		synchronized (this) {
+			return mSize;
+		}
+	}
+
+	/**
+	 * @return how long the oldest request has been waiting for a response code, in milliseconds, or 0 if none is waiting
+	 */
+	long getOldestAgeMillis() {
+		evictExpired();
+		long now = System.nanoTime();
+		long oldest = 0;
+		synchronized (this) {
+			for (int i = 0; i < mRequests.length; i++) {
+				if (mRequests[i] != null) {
+					oldest = Math.max(oldest, now - mSentNanos[i]);
+				}
+			}
+		}
+		return TimeUnit.NANOSECONDS.toMillis(oldest);
+	}
+
+	/**
+	 * @return the number of requests that were removed because their response code did not arrive in time
+	 */
+	long getTimeoutCount() {
+		return mTimeoutCount.get();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Adds a request that has just been sent. It is removed again after {@link
+	 * PlayBillingService.BillingRequest#getTimeoutMillis()} if no response code arrives for it.
+	 *
+	 * @param requestId the request ID returned by the MarketBillingService
+	 * @param request   the request
+	 */
+	void put(long requestId, PlayBillingService.BillingRequest request) {
+		long now = System.nanoTime();
+		long deadline = now + TimeUnit.MILLISECONDS.toNanos(request.getTimeoutMillis());
+		ArrayList<PlayBillingService.BillingRequest> expired;
+		synchronized (this) {
+			expired = removeExpired(now);
+			if ((mSize + 1) * 4 > mKeys.length * 3) {
+				resize(mKeys.length * 2);
+			}
+			int i = indexOf(requestId);
+			if (mRequests[i] == null) {
+				mSize++;
+			}
+			mKeys[i] = requestId;
+			mRequests[i] = request;
+			mSentNanos[i] = now;
+			mDeadlineNanos[i] = deadline;
+			mNextDeadlineNanos = Math.min(mNextDeadlineNanos, deadline);
+		}
+		notifyTimeouts(expired);
+	}
+
+	/**
+	 * Removes the request with the given ID.
+	 *
+	 * @param requestId the request ID from a RESPONSE_CODE intent
+	 * @return the request, or null if it is not known or has already timed out
+	 */
+	PlayBillingService.BillingRequest remove(long requestId) {
+		PlayBillingService.BillingRequest request;
+		ArrayList<PlayBillingService.BillingRequest> expired;
+		synchronized (this) {
+			expired = removeExpired(System.nanoTime());
+			int i = indexOf(requestId);
+			request = mRequests[i];
+			if (request != null) {
+				removeAt(i);
+			}
+		}
+		notifyTimeouts(expired);
+		return request;
+	}
+
+	/**
+	 * Removes every request whose deadline has passed.
+	 */
+	void evictExpired() {
+		ArrayList<PlayBillingService.BillingRequest> expired;
+		synchronized (this) {
+			expired = removeExpired(System.nanoTime());
+		}
+		notifyTimeouts(expired);
+	}
+
+	/**
+	 * @return the slot that holds {@code requestId}, or the empty slot where it would go
+	 */
+	private int indexOf(long requestId) {
+		int mask = mKeys.length - 1;
+		int i = hash(requestId) & mask;
+		while (mRequests[i] != null && mKeys[i] != requestId) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Empties slot {@code i} and moves later entries of the same probe run back, so that lookups never need to step
+	 * over deleted slots.
+	 */
+	private void removeAt(int i) {
+		int mask = mKeys.length - 1;
+		mRequests[i] = null;
+		mSize--;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (mRequests[j] == null) {
+				return;
+			}
+			int home = hash(mKeys[j]) & mask;
+			// Move the entry at j into the hole at i unless its home slot lies cyclically in (i, j].
+			boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!stays) {
+				mKeys[i] = mKeys[j];
+				mRequests[i] = mRequests[j];
+				mSentNanos[i] = mSentNanos[j];
+				mDeadlineNanos[i] = mDeadlineNanos[j];
+				mRequests[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] keys = mKeys;
+		PlayBillingService.BillingRequest[] requests = mRequests;
+		long[] sent = mSentNanos;
+		long[] deadlines = mDeadlineNanos;
+		mKeys = new long[capacity];
+		mRequests = new PlayBillingService.BillingRequest[capacity];
+		mSentNanos = new long[capacity];
+		mDeadlineNanos = new long[capacity];
+		for (int i = 0; i < requests.length; i++) {
+			if (requests[i] != null) {
+				int j = indexOf(keys[i]);
+				mKeys[j] = keys[i];
+				mRequests[j] = requests[i];
+				mSentNanos[j] = sent[i];
+				mDeadlineNanos[j] = deadlines[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the requests that were removed, or null if none had expired
+	 */
+	private ArrayList<PlayBillingService.BillingRequest> removeExpired(long now) {
+		if (mSize == 0 || now - mNextDeadlineNanos < 0) {
+			return null;
+		}
+		ArrayList<PlayBillingService.BillingRequest> expired = null;
+		long nextDeadline = Long.MAX_VALUE;
+		int i = 0;
+		while (i < mRequests.length) {
+			if (mRequests[i] != null && now - mDeadlineNanos[i] >= 0) {
+				if (expired == null) {
+					expired = new ArrayList<PlayBillingService.BillingRequest>();
+				}
+				expired.add(mRequests[i]);
+				// removeAt may move a later entry into slot i, so look at it again.
+				removeAt(i);
+				continue;
+			}
+			if (mRequests[i] != null) {
+				nextDeadline = Math.min(nextDeadline, mDeadlineNanos[i]);
+			}
+			i++;
+		}
+		mNextDeadlineNanos = nextDeadline;
+		return expired;
+	}
+
+	/**
+	 * Tells the requests that timed out. Called without holding the lock, because a request may call back into the
+	 * library.
+	 */
+	private void notifyTimeouts(ArrayList<PlayBillingService.BillingRequest> expired) {
+		if (expired == null) {
+			return;
+		}
+		for (PlayBillingService.BillingRequest request : expired) {
+			mTimeoutCount.incrementAndGet();
+			BillingTrace.record(BillingTrace.Event.REQUEST_TIMED_OUT, request.mRequestId, 0);
+			Log.w(TAG, request.getClass().getSimpleName() + " got no response code in " +
+					request.getTimeoutMillis() + " ms");
+			request.onTimeout();
+		}
+	}
+
+	private static int hash(long key) {
+		// Request IDs are handed out in sequence; spread them so that runs do not cluster.
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
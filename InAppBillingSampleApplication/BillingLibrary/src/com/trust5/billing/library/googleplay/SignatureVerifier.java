@@ -0,0 +1,233 @@
+package com.trust5.billing.library.googleplay;
+
+import android.util.Log;
+import com.trust5.billing.library.util.Base64;
+import com.trust5.billing.library.util.Base64DecoderException;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies server signatures against one public key. The Base64-encoded key is decoded and parsed the first time it is
+ * needed and then kept, and every thread keeps its own {@link Signature} instance already initialized with that key,
+ * so a verification costs no more than hashing the data and checking the signature. Each thread also reuses its own
+ * buffers for the signed data and the decoded signature, so verifying a message does not create garbage. Signed data
+ * larger than {@link #MAX_REUSED_DATA_LENGTH}, such as a big RESTORE_TRANSACTIONS answer, gets an array of its own
+ * instead, so one large message does not stay pinned to the thread for the life of the process.
+ */
+class SignatureVerifier {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final String TAG = "SignatureVerifier";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+	/**
+	 * The largest signed data, in bytes, that is encoded into a thread's reused buffer. An answer for a handful of
+	 * orders is well below it.
+	 */
+	static final int MAX_REUSED_DATA_LENGTH = 8 * 1024;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final String mEncodedPublicKey;
+	private final Object mPublicKeyLock = new Object();
+	private volatile PublicKey mPublicKey;
+
+	private final ThreadLocal<ThreadState> mThreadState = new ThreadLocal<ThreadState>() {
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState();
+		}
+	};
+
+	private final AtomicLong mVerificationCount = new AtomicLong();
+	private final AtomicLong mFailureCount = new AtomicLong();
+	private final AtomicLong mTotalNanos = new AtomicLong();
+	private final AtomicLong mMaxNanos = new AtomicLong();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pEncodedPublicKey the Base64-encoded public key, which is not decoded until the first verification
+	 */
+	SignatureVerifier(String pEncodedPublicKey) {
+		mEncodedPublicKey = pEncodedPublicKey;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the decoded public key
+	 * @throws IllegalArgumentException if the encoded key is invalid
+	 */
+	PublicKey getPublicKey() {
+		PublicKey key = mPublicKey;
+		if (key == null) {
+			synchronized (mPublicKeyLock) {
+				key = mPublicKey;
+				if (key == null) {
+					key = Security.generatePublicKey(mEncodedPublicKey);
+					mPublicKey = key;
+				}
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * @return the number of signatures checked, whether they matched or not
+	 */
+	long getVerificationCount() {
+		return mVerificationCount.get();
+	}
+
+	/**
+	 * @return the number of signatures that did not match or could not be checked
+	 */
+	long getFailureCount() {
+		return mFailureCount.get();
+	}
+
+	long getAverageNanos() {
+		long count = mVerificationCount.get();
+		return count == 0 ? 0 : mTotalNanos.get() / count;
+	}
+
+	long getMaxNanos() {
+		return mMaxNanos.get();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Verifies that the signature from the server matches the computed signature on the data.
+	 *
+	 * @param signedData signed data from server
+	 * @param signature  server signature, Base64-encoded
+	 * @return true if the data and signature match
+	 */
+	boolean verify(String signedData, String signature) {
+		long start = System.nanoTime();
+		boolean verified = false;
+		ThreadState state = mThreadState.get();
+		try {
+			Signature sig = state.getSignature();
+			// Decode the signature before feeding any data in, so a malformed one leaves the instance untouched.
+			int signatureLength = state.mDecoder.decode(signature);
+			int dataLength = state.encode(signedData);
+			sig.update(state.mEncoded, 0, dataLength);
+			verified = sig.verify(state.mDecoder.getBuffer(), 0, signatureLength);
+			if (!verified) {
+				Log.e(TAG, "Signature verification failed.");
+			}
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(TAG, "NoSuchAlgorithmException.");
+		} catch (InvalidKeyException e) {
+			Log.e(TAG, "Invalid key specification.");
+		} catch (SignatureException e) {
+			// The instance may have been left part way through an update.
+			state.mSignature = null;
+			Log.e(TAG, "Signature exception.");
+		} catch (Base64DecoderException e) {
+			Log.e(TAG, "Base64 decoding failed.");
+		} finally {
+			state.mEncoded = null;
+			record(System.nanoTime() - start, verified);
+		}
+		return verified;
+	}
+
+	private void record(long nanos, boolean verified) {
+		BillingMetrics.record(BillingMetrics.Timer.VERIFY, nanos);
+		mVerificationCount.incrementAndGet();
+		if (!verified) {
+			mFailureCount.incrementAndGet();
+		}
+		mTotalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = mMaxNanos.get())) {
+			if (mMaxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * The objects a thread reuses for every verification.
+	 */
+	private class ThreadState {
+		/**
+		 * A {@link Signature} resets to the state it was in after {@link Signature#initVerify(PublicKey)} once {@link
+		 * Signature#verify(byte[])} returns, so it can be reused.
+		 */
+		Signature mSignature;
+		final Base64.Decoder mDecoder = new Base64.Decoder();
+
+		/**
+		 * The reused buffer, which never grows beyond {@link #MAX_REUSED_DATA_LENGTH}.
+		 */
+		byte[] mData = new byte[0];
+
+		/**
+		 * What the last {@link #encode(String)} wrote to: {@link #mData}, or an array of its own. Only set during a
+		 * verification.
+		 */
+		byte[] mEncoded;
+
+		Signature getSignature() throws NoSuchAlgorithmException, InvalidKeyException {
+			if (mSignature == null) {
+				Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+				sig.initVerify(getPublicKey());
+				mSignature = sig;
+			}
+			return mSignature;
+		}
+
+		/**
+		 * Writes the bytes of {@code data} to {@link #mEncoded}. Signed data from the server is almost always ASCII,
+		 * which is copied straight into the reused buffer if it fits under the cap; anything else is converted with
+		 * {@link String#getBytes()} as before.
+		 *
+		 * @return the number of bytes written
+		 */
+		int encode(String data) {
+			int length = data.length();
+			byte[] buffer;
+			if (length > MAX_REUSED_DATA_LENGTH) {
+				buffer = new byte[length];
+			}
+			else {
+				if (mData.length < length) {
+					mData = new byte[length];
+				}
+				buffer = mData;
+			}
+			for (int i = 0; i < length; i++) {
+				char c = data.charAt(i);
+				if (c >= 0x80) {
+					mEncoded = data.getBytes();
+					return mEncoded.length;
+				}
+				buffer[i] = (byte) c;
+			}
+			mEncoded = buffer;
+			return length;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.trust5.billing.library.googleplay;
+
+/**
+ * Timings of the most recent {@link PlayBilling#initialize()}, for finding out how long the application waits before
+ * it can answer entitlement checks.
+ */
+class StartupMetrics {
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private static volatile long sInitializeNanos;
+	private static volatile long sSnapshotReadNanos;
+	private static volatile int sSnapshotEntitlementCount = -1;
+	private static volatile long sDatabaseLoadNanos = -1;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	private StartupMetrics() {
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return how long initialize() took on the calling thread
+	 */
+	static long getInitializeNanos() {
+		return sInitializeNanos;
+	}
+
+	/**
+	 * @return how long reading the entitlement snapshot took, 0 if it was not read
+	 */
+	static long getSnapshotReadNanos() {
+		return sSnapshotReadNanos;
+	}
+
+	/**
+	 * @return the number of entitlements read from the snapshot, or -1 if there was no usable snapshot
+	 */
+	static int getSnapshotEntitlementCount() {
+		return sSnapshotEntitlementCount;
+	}
+
+	/**
+	 * @return the time from the start of initialize() until the entitlements had been read from the database, or -1 if
+	 *         that has not happened yet
+	 */
+	static long getDatabaseLoadNanos() {
+		return sDatabaseLoadNanos;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	static void recordInitialize(long pNanos) {
+		sInitializeNanos = pNanos;
+	}
+
+	static void recordSnapshotRead(long pNanos, int pEntitlementCount) {
+		sSnapshotReadNanos = pNanos;
+		sSnapshotEntitlementCount = pEntitlementCount;
+	}
+
+	static void recordDatabaseLoad(long pNanos) {
+		sDatabaseLoadNanos = pNanos;
+	}
+}
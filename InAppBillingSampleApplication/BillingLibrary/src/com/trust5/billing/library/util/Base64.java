@@ -14,6 +14,8 @@
 
 package com.trust5.billing.library.util;
 
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -36,6 +38,10 @@ package com.trust5.billing.library.util;
  * back.
  * <p/>
  * <p>Note {@link CharBase64} is a GWT-compatible implementation of this class.
+ * <p/>
+ * <p>Besides the methods that return a new array, there are overloads that write into a caller supplied array or
+ * {@link ByteBuffer} and return the number of bytes written, and a reusable {@link Decoder}, so data can be converted
+ * without creating garbage.
  */
 public class Base64 {
 	/**
@@ -348,63 +354,124 @@ public class Base64 {
 	}
 
 
-	/* ********  D E C O D I N G   M E T H O D S  ******** */
+	/**
+	 * @param len the number of bytes to encode
+	 * @return the number of bytes {@link #encode(byte[], int, int, byte[], boolean, byte[], int)} writes for {@code len}
+	 *         bytes with padding, which is an upper bound without padding
+	 */
+	public static int encodedLength(int len) {
+		return (len + 2) / 3 * 4;
+	}
 
+	/**
+	 * Encodes a byte array into Base64 notation, without line breaks, writing the result into <var>destination</var>.
+	 *
+	 * @param source      the data to convert
+	 * @param off         offset in array where conversion should begin
+	 * @param len         length of data to convert
+	 * @param doPadding   is {@code true} to pad result with '=' chars if it does not fall on 3 byte boundaries
+	 * @param destination the array to hold the conversion
+	 * @param destOffset  the index where output will be put
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if there are fewer than {@link #encodedLength(int)} bytes after
+	 *                                  <var>destOffset</var>
+	 */
+	public static int encode(byte[] source, int off, int len, boolean doPadding, byte[] destination, int destOffset) {
+		return encode(source, off, len, ALPHABET, doPadding, destination, destOffset, destination.length - destOffset);
+	}
 
 	/**
-	 * Decodes four bytes from array <var>source</var> and writes the resulting bytes (up to three of them) to
-	 * <var>destination</var>. The source and destination arrays can be manipulated anywhere along their length by
-	 * specifying <var>srcOffset</var> and <var>destOffset</var>. This method does not check to make sure your arrays are
-	 * large enough to accommodate <var>srcOffset</var> + 4 for the <var>source</var> array or <var>destOffset</var> + 3
-	 * for the <var>destination</var> array. This method returns the actual number of bytes that were converted from the
-	 * Base64 encoding.
+	 * Encodes a byte array into Base64 notation, without line breaks, writing the result into <var>destination</var>.
 	 *
-	 * @param source      the array to convert
-	 * @param srcOffset   the index where conversion begins
+	 * @param source      the data to convert
+	 * @param off         offset in array where conversion should begin
+	 * @param len         length of data to convert
+	 * @param alphabet    the encoding alphabet
+	 * @param doPadding   is {@code true} to pad result with '=' chars if it does not fall on 3 byte boundaries
 	 * @param destination the array to hold the conversion
 	 * @param destOffset  the index where output will be put
-	 * @param decodabet   the decodabet for decoding Base64 content
-	 * @return the number of decoded bytes converted
-	 * @since 1.3
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if there are fewer than {@link #encodedLength(int)} bytes after
+	 *                                  <var>destOffset</var>
 	 */
-	private static int decode4to3(byte[] source, int srcOffset,
-								  byte[] destination, int destOffset, byte[] decodabet) {
-		// Example: Dk==
-		if (source[srcOffset + 2] == EQUALS_SIGN) {
-			int outBuff =
-					((decodabet[source[srcOffset]] << 24) >>> 6)
-							| ((decodabet[source[srcOffset + 1]] << 24) >>> 12);
+	public static int encode(byte[] source, int off, int len, byte[] alphabet, boolean doPadding,
+							 byte[] destination, int destOffset) {
+		return encode(source, off, len, alphabet, doPadding, destination, destOffset,
+				destination.length - destOffset);
+	}
 
-			destination[destOffset] = (byte) (outBuff >>> 16);
-			return 1;
+	/**
+	 * Encodes the remaining bytes of <var>source</var> into Base64 notation, without line breaks, writing the result to
+	 * <var>destination</var>. Both buffers' positions are advanced. Buffers that are not backed by an array are copied
+	 * through a temporary array.
+	 *
+	 * @param source      the data to convert
+	 * @param doPadding   is {@code true} to pad result with '=' chars if it does not fall on 3 byte boundaries
+	 * @param destination the buffer to hold the conversion
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if <var>destination</var> has fewer than {@link #encodedLength(int)} bytes
+	 *                                  remaining
+	 */
+	public static int encode(ByteBuffer source, boolean doPadding, ByteBuffer destination) {
+		int len = source.remaining();
+		byte[] in;
+		int inOffset;
+		if (source.hasArray()) {
+			in = source.array();
+			inOffset = source.arrayOffset() + source.position();
 		}
-		else if (source[srcOffset + 3] == EQUALS_SIGN) {
-			// Example: DkL=
-			int outBuff =
-					((decodabet[source[srcOffset]] << 24) >>> 6)
-							| ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-							| ((decodabet[source[srcOffset + 2]] << 24) >>> 18);
-
-			destination[destOffset] = (byte) (outBuff >>> 16);
-			destination[destOffset + 1] = (byte) (outBuff >>> 8);
-			return 2;
+		else {
+			in = new byte[len];
+			inOffset = 0;
+			source.duplicate().get(in);
+		}
+		int written;
+		if (destination.hasArray()) {
+			written = encode(in, inOffset, len, ALPHABET, doPadding, destination.array(),
+					destination.arrayOffset() + destination.position(), destination.remaining());
+			destination.position(destination.position() + written);
 		}
 		else {
-			// Example: DkLE
-			int outBuff =
-					((decodabet[source[srcOffset]] << 24) >>> 6)
-							| ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-							| ((decodabet[source[srcOffset + 2]] << 24) >>> 18)
-							| ((decodabet[source[srcOffset + 3]] << 24) >>> 24);
-
-			destination[destOffset] = (byte) (outBuff >> 16);
-			destination[destOffset + 1] = (byte) (outBuff >> 8);
-			destination[destOffset + 2] = (byte) (outBuff);
-			return 3;
+			if (destination.remaining() < encodedLength(len)) {
+				throw new IllegalArgumentException("destination too small");
+			}
+			byte[] out = new byte[encodedLength(len)];
+			written = encode(in, inOffset, len, ALPHABET, doPadding, out, 0, out.length);
+			destination.put(out, 0, written);
 		}
-	} // end decodeToBytes
+		source.position(source.position() + len);
+		return written;
+	}
+
+	private static int encode(byte[] source, int off, int len, byte[] alphabet, boolean doPadding,
+							  byte[] destination, int destOffset, int destLength) {
+		if (destLength < encodedLength(len)) {
+			throw new IllegalArgumentException("destination too small: " + destLength + " < " + encodedLength(len));
+		}
+		int d = 0;
+		int e = destOffset;
+		int len2 = len - 2;
+		for (; d < len2; d += 3, e += 4) {
+			int inBuff =
+					((source[d + off] << 24) >>> 8)
+							| ((source[d + 1 + off] << 24) >>> 16)
+							| ((source[d + 2 + off] << 24) >>> 24);
+			destination[e] = alphabet[(inBuff >>> 18)];
+			destination[e + 1] = alphabet[(inBuff >>> 12) & 0x3f];
+			destination[e + 2] = alphabet[(inBuff >>> 6) & 0x3f];
+			destination[e + 3] = alphabet[(inBuff) & 0x3f];
+		}
+		if (d < len) {
+			int remaining = len - d;
+			encode3to4(source, d + off, remaining, destination, e, alphabet);
+			e += doPadding ? 4 : remaining + 1;
+		}
+		return e - destOffset;
+	}
 
 
+	/* ********  D E C O D I N G   M E T H O D S  ******** */
+
 	/**
 	 * Decodes data from Base64 notation.
 	 *
@@ -492,17 +559,101 @@ public class Base64 {
 	 */
 	public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
 			throws Base64DecoderException {
-		int len34 = len * 3 / 4;
-		byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-		int outBuffPosn = 0;
+		byte[] outBuff = new byte[maxDecodedLength(len)];
+		int outBuffPosn = decode(source, null, off, len, decodabet, outBuff, 0, outBuff.length);
+		byte[] out = new byte[outBuffPosn];
+		System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+		return out;
+	}
+
+	/**
+	 * @param len the number of Base64 characters to decode
+	 * @return the largest number of bytes that {@code len} characters can decode to
+	 */
+	public static int maxDecodedLength(int len) {
+		return (len + 3) / 4 * 3;
+	}
+
+	/**
+	 * Decodes Base64 content in byte array format into <var>destination</var>.
+	 *
+	 * @param source      the Base64 encoded data
+	 * @param off         the offset of where to begin decoding
+	 * @param len         the length of characters to decode
+	 * @param destination the array to hold the decoded data
+	 * @param destOffset  the index where output will be put
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if there are fewer than {@link #maxDecodedLength(int)} bytes after
+	 *                                  <var>destOffset</var>
+	 */
+	public static int decode(byte[] source, int off, int len, byte[] destination, int destOffset)
+			throws Base64DecoderException {
+		return decode(source, null, off, len, DECODABET, destination, destOffset, destination.length - destOffset);
+	}
+
+	/**
+	 * Decodes Base64 characters into <var>destination</var> without first copying them to a byte array.
+	 *
+	 * @param s           the Base64 encoded data
+	 * @param off         the offset of where to begin decoding
+	 * @param len         the length of characters to decode
+	 * @param destination the array to hold the decoded data
+	 * @param destOffset  the index where output will be put
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if there are fewer than {@link #maxDecodedLength(int)} bytes after
+	 *                                  <var>destOffset</var>
+	 */
+	public static int decode(CharSequence s, int off, int len, byte[] destination, int destOffset)
+			throws Base64DecoderException {
+		return decode(null, s, off, len, DECODABET, destination, destOffset, destination.length - destOffset);
+	}
+
+	/**
+	 * Decodes Base64 characters into <var>destination</var>, advancing its position. Buffers that are not backed by an
+	 * array are filled through a temporary array; use a {@link Decoder} to avoid it.
+	 *
+	 * @param s           the Base64 encoded data
+	 * @param destination the buffer to hold the decoded data
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if <var>destination</var> has fewer than {@link #maxDecodedLength(int)} bytes
+	 *                                  remaining
+	 */
+	public static int decode(CharSequence s, ByteBuffer destination) throws Base64DecoderException {
+		if (destination.hasArray()) {
+			int written = decode(null, s, 0, s.length(), DECODABET, destination.array(),
+					destination.arrayOffset() + destination.position(), destination.remaining());
+			destination.position(destination.position() + written);
+			return written;
+		}
+		return new Decoder().decode(s, destination);
+	}
 
-		byte[] b4 = new byte[4];
+	/**
+	 * Decodes Base64 content from either a byte array or a CharSequence. Only one of <var>bytes</var> and
+	 * <var>chars</var> is used.
+	 *
+	 * @return the number of bytes written to <var>destination</var>
+	 */
+	private static int decode(byte[] bytes, CharSequence chars, int off, int len, byte[] decodabet,
+							  byte[] destination, int destOffset, int destLength) throws Base64DecoderException {
+		if (destLength < maxDecodedLength(len)) {
+			throw new IllegalArgumentException("destination too small: " + destLength + " < " + maxDecodedLength(len));
+		}
+		int outBuffPosn = destOffset;
+
+		// The 6-bit values of the current group of four characters
+		int inBuff = 0;
 		int b4Posn = 0;
 		int i = 0;
 		byte sbiCrop = 0;
 		byte sbiDecode = 0;
 		for (i = 0; i < len; i++) {
-			sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
+			int c = bytes != null ? bytes[i + off] : chars.charAt(i + off);
+			if (c > 0x7f) {
+				// Only characters get here, since bytes are signed.
+				return decodeBytesOf(chars, off, len, decodabet, destination, destOffset, destLength);
+			}
+			sbiCrop = (byte) (c & 0x7f); // Only the low seven bits
 			sbiDecode = decodabet[sbiCrop];
 
 			if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
@@ -511,7 +662,8 @@ public class Base64 {
 					// and must be the last byte[s] in the encoded value
 					if (sbiCrop == EQUALS_SIGN) {
 						int bytesLeft = len - i;
-						byte lastByte = (byte) (source[len - 1 + off] & 0x7f);
+						int last = bytes != null ? bytes[len - 1 + off] : chars.charAt(len - 1 + off);
+						byte lastByte = (byte) (last & 0x7f);
 						if (b4Posn == 0 || b4Posn == 1) {
 							throw new Base64DecoderException(
 									"invalid padding byte '=' at byte offset " + i);
@@ -529,36 +681,152 @@ public class Base64 {
 						break;
 					}
 
-					b4[b4Posn++] = sbiCrop;
-					if (b4Posn == 4) {
-						outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+					inBuff = (inBuff << 6) | sbiDecode;
+					if (++b4Posn == 4) {
+						destination[outBuffPosn++] = (byte) (inBuff >> 16);
+						destination[outBuffPosn++] = (byte) (inBuff >> 8);
+						destination[outBuffPosn++] = (byte) (inBuff);
+						inBuff = 0;
 						b4Posn = 0;
 					}
 				}
 			}
 			else {
 				throw new Base64DecoderException("Bad Base64 input character at " + i
-						+ ": " + source[i + off] + "(decimal)");
+						+ ": " + c + "(decimal)");
 			}
 		}
 
 		// Because web safe encoding allows non padding base64 encodes, we
-		// need to pad the rest of the b4 buffer with equal signs when
-		// b4Posn != 0.  There can be at most 2 equal signs at the end of
-		// four characters, so the b4 buffer must have two or three
-		// characters.  This also catches the case where the input is
-		// padded with EQUALS_SIGN
-		if (b4Posn != 0) {
-			if (b4Posn == 1) {
-				throw new Base64DecoderException("single trailing character at offset "
-						+ (len - 1));
+		// need to decode what is left of the last group of four characters
+		// as if it were padded with equal signs.  There can be at most 2
+		// equal signs at the end of four characters, so the group must have
+		// two or three characters.  This also catches the case where the
+		// input is padded with EQUALS_SIGN
+		if (b4Posn == 1) {
+			throw new Base64DecoderException("single trailing character at offset "
+					+ (len - 1));
+		}
+		else if (b4Posn == 2) {
+			// Example: Dk==
+			destination[outBuffPosn++] = (byte) (inBuff >> 4);
+		}
+		else if (b4Posn == 3) {
+			// Example: DkL=
+			destination[outBuffPosn++] = (byte) (inBuff >> 10);
+			destination[outBuffPosn++] = (byte) (inBuff >> 2);
+		}
+		return outBuffPosn - destOffset;
+	}
+
+	/**
+	 * Decodes non-ASCII characters the way they were decoded before characters could be read directly: from their
+	 * bytes in the default encoding, each cropped to its low seven bits like any other byte.
+	 *
+	 * @return the number of bytes written to <var>destination</var>
+	 */
+	private static int decodeBytesOf(CharSequence chars, int off, int len, byte[] decodabet, byte[] destination,
+									 int destOffset, int destLength) throws Base64DecoderException {
+		byte[] source = chars.subSequence(off, off + len).toString().getBytes();
+		byte[] decoded = decode(source, 0, source.length, decodabet);
+		if (decoded.length > destLength) {
+			throw new IllegalArgumentException("destination too small: " + destLength + " < " + decoded.length);
+		}
+		System.arraycopy(decoded, 0, destination, destOffset, decoded.length);
+		return decoded.length;
+	}
+
+	/**
+	 * A reusable Base64 decoder. It keeps a scratch buffer that only grows, so once it has seen the largest input it
+	 * will be given, decoding allocates nothing. Instances are not thread safe; keep one per thread.
+	 */
+	public static final class Decoder {
+		private final byte[] mDecodabet;
+		private byte[] mBuffer = new byte[0];
+
+		public Decoder() {
+			this(false);
+		}
+
+		/**
+		 * @param webSafe true to decode the web safe alphabet, which uses '-' instead of '+' and '_' instead of '/'
+		 */
+		public Decoder(boolean webSafe) {
+			mDecodabet = webSafe ? WEBSAFE_DECODABET : DECODABET;
+		}
+
+		/**
+		 * Decodes into the scratch buffer returned by {@link #getBuffer()}. The contents are overwritten by the next call.
+		 *
+		 * @param s the Base64 encoded data
+		 * @return the number of decoded bytes at the start of {@link #getBuffer()}
+		 */
+		public int decode(CharSequence s) throws Base64DecoderException {
+			int len = s.length();
+			ensureCapacity(maxDecodedLength(len));
+			return Base64.decode(null, s, 0, len, mDecodabet, mBuffer, 0, mBuffer.length);
+		}
+
+		/**
+		 * Decodes into the scratch buffer returned by {@link #getBuffer()}. The contents are overwritten by the next call.
+		 *
+		 * @param source the Base64 encoded data
+		 * @param off    the offset of where to begin decoding
+		 * @param len    the length of characters to decode
+		 * @return the number of decoded bytes at the start of {@link #getBuffer()}
+		 */
+		public int decode(byte[] source, int off, int len) throws Base64DecoderException {
+			ensureCapacity(maxDecodedLength(len));
+			return Base64.decode(source, null, off, len, mDecodabet, mBuffer, 0, mBuffer.length);
+		}
+
+		/**
+		 * @return the number of bytes written to <var>destination</var>
+		 * @throws IllegalArgumentException if there are fewer than {@link #maxDecodedLength(int)} bytes after
+		 *                                  <var>destOffset</var>
+		 */
+		public int decode(CharSequence s, byte[] destination, int destOffset) throws Base64DecoderException {
+			return Base64.decode(null, s, 0, s.length(), mDecodabet, destination, destOffset,
+					destination.length - destOffset);
+		}
+
+		/**
+		 * Decodes into <var>destination</var>, advancing its position. Direct buffers are filled from the scratch
+		 * buffer.
+		 *
+		 * @return the number of bytes written to <var>destination</var>
+		 * @throws IllegalArgumentException if <var>destination</var> has fewer than {@link #maxDecodedLength(int)}
+		 *                                  bytes remaining
+		 */
+		public int decode(CharSequence s, ByteBuffer destination) throws Base64DecoderException {
+			int len = s.length();
+			int written;
+			if (destination.hasArray()) {
+				written = Base64.decode(null, s, 0, len, mDecodabet, destination.array(),
+						destination.arrayOffset() + destination.position(), destination.remaining());
+				destination.position(destination.position() + written);
 			}
-			b4[b4Posn++] = EQUALS_SIGN;
-			outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+			else {
+				if (destination.remaining() < maxDecodedLength(len)) {
+					throw new IllegalArgumentException("destination too small");
+				}
+				written = decode(s);
+				destination.put(mBuffer, 0, written);
+			}
+			return written;
 		}
 
-		byte[] out = new byte[outBuffPosn];
-		System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
-		return out;
+		/**
+		 * @return the scratch buffer filled by {@link #decode(CharSequence)} and {@link #decode(byte[], int, int)}
+		 */
+		public byte[] getBuffer() {
+			return mBuffer;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (mBuffer.length < capacity) {
+				mBuffer = new byte[capacity];
+			}
+		}
 	}
 }
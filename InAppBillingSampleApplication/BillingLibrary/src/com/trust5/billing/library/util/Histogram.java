@@ -0,0 +1,135 @@
+package com.trust5.billing.library.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as durations in nanoseconds, in the style of HdrHistogram. Values below 32
+ * are counted exactly; above that every power of two is split into 16 buckets, so a percentile is never off by more
+ * than about 6% however large the values get, and the histogram stays the same small size however many values it has
+ * seen. Values from {@link #HIGHEST_TRACKABLE_VALUE} up are counted in the last bucket; {@link #getMax()} is exact.
+ * <p/>
+ * Recording takes no lock and allocates nothing, so any number of threads may record at once. Reads are not atomic
+ * with respect to concurrent recording, which may make them off by the values recorded while they ran.
+ */
+public class Histogram {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/**
+	 * 2^45 nanoseconds is a little under ten hours.
+	 */
+	public static final long HIGHEST_TRACKABLE_VALUE = (1L << 45) - 1;
+
+	private static final int BUCKET_COUNT = indexOf(HIGHEST_TRACKABLE_VALUE) + 1;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return The number of values recorded
+	 */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return The largest value recorded, or 0 if none was
+	 */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * @return The mean of the values recorded, or 0 if none was
+	 */
+	public long getMean() {
+		long count = mCount.get();
+		return count == 0 ? 0 : mTotal.get() / count;
+	}
+
+	/**
+	 * @param pPercentile - Between 0 and 100
+	 * @return The value that the given percentage of the recorded values are at or below, rounded up to the top of its
+	 *         bucket but never above {@link #getMax()}; 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double pPercentile) {
+		long count = mCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, pPercentile)) / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mCounts.get(i);
+			if (seen >= target) {
+				return i == BUCKET_COUNT - 1 ? mMax.get() : Math.min(highestValueAt(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	public void record(long pValue) {
+		long value = Math.max(0, pValue);
+		mCounts.incrementAndGet(indexOf(Math.min(value, HIGHEST_TRACKABLE_VALUE)));
+		mTotal.addAndGet(value);
+		long max;
+		while (value > (max = mMax.get())) {
+			if (mMax.compareAndSet(max, value)) {
+				break;
+			}
+		}
+		mCount.incrementAndGet();
+	}
+
+	/**
+	 * Forgets every value recorded so far.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mCounts.set(i, 0);
+		}
+		mCount.set(0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+
+	/**
+	 * Values below twice the sub-bucket count have a bucket each. Above that, a value whose highest bit is bit
+	 * {@code SUB_BUCKET_BITS + shift} goes to the bucket for its top {@code SUB_BUCKET_BITS + 1} bits.
+	 */
+	private static int indexOf(long value) {
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		if (shift <= 0) {
+			return (int) value;
+		}
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	private static long highestValueAt(int index) {
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		if (shift <= 0) {
+			return index;
+		}
+		long top = index - ((long) shift << SUB_BUCKET_BITS);
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,587 @@
+package com.trust5.billing.library.util;
+
+/**
+ * A small pull parser for JSON held in a String. Values are read one token at a time in document order, so a large
+ * document can be processed without first building a tree of objects for it. Only the values that are actually read
+ * are turned into Strings; numbers are parsed in place and skipped values are never copied.
+ * <p/>
+ * The API mirrors {@code android.util.JsonReader}, which is not available before API level 11:
+ * <pre>
+ * parser.beginObject();
+ * while (parser.hasNext()) {
+ *     String name = parser.nextName();
+ *     if ("id".equals(name)) {
+ *         id = parser.nextLong();
+ *     } else {
+ *         parser.skipValue();
+ *     }
+ * }
+ * parser.endObject();
+ * </pre>
+ * Numbers must follow the JSON grammar, which is checked when they are peeked, whether they are then read or skipped.
+ * Instances are not thread safe.
+ */
+public class JsonPullParser {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/**
+	 * The kinds of token the parser can return from {@link #peek()}.
+	 */
+	public enum Token {
+		BEGIN_ARRAY,
+		END_ARRAY,
+		BEGIN_OBJECT,
+		END_OBJECT,
+		NAME,
+		STRING,
+		NUMBER,
+		BOOLEAN,
+		NULL,
+		END_DOCUMENT
+	}
+
+	private static final int SCOPE_EMPTY_ARRAY = 0;
+	private static final int SCOPE_NONEMPTY_ARRAY = 1;
+	private static final int SCOPE_EMPTY_OBJECT = 2;
+	private static final int SCOPE_DANGLING_NAME = 3;
+	private static final int SCOPE_NONEMPTY_OBJECT = 4;
+	private static final int SCOPE_EMPTY_DOCUMENT = 5;
+	private static final int SCOPE_NONEMPTY_DOCUMENT = 6;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+	private final String mIn;
+	private final int mLength;
+	private int mPos;
+
+	private int[] mStack = new int[16];
+	private int mStackSize;
+
+	/**
+	 * The token at {@link #mPos}, or null if it has not been peeked yet. For names, strings and literals {@link #mPos}
+	 * points at the first character of the value (after the opening quote for names and strings).
+	 */
+	private Token mPeeked;
+
+	private StringBuilder mBuilder;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+	public JsonPullParser(String pIn) {
+		mIn = pIn;
+		mLength = pIn.length();
+		mStack[mStackSize++] = SCOPE_EMPTY_DOCUMENT;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the type of the next token without consuming it
+	 */
+	public Token peek() throws JsonPullParserException {
+		if (mPeeked != null) {
+			return mPeeked;
+		}
+		int scope = mStack[mStackSize - 1];
+		switch (scope) {
+			case SCOPE_EMPTY_ARRAY:
+			case SCOPE_NONEMPTY_ARRAY: {
+				mStack[mStackSize - 1] = SCOPE_NONEMPTY_ARRAY;
+				int c = nextNonWhitespace();
+				if (c == ']') {
+					return mPeeked = Token.END_ARRAY;
+				}
+				if (scope == SCOPE_NONEMPTY_ARRAY) {
+					if (c != ',') {
+						throw syntaxError("expected ',' or ']'");
+					}
+				}
+				else if (c != -1) {
+					// Nothing was consumed at the end of the input, so there is nothing to step back over.
+					mPos--;
+				}
+				return mPeeked = readValue();
+			}
+			case SCOPE_EMPTY_OBJECT:
+			case SCOPE_NONEMPTY_OBJECT: {
+				int c = nextNonWhitespace();
+				if (c == '}') {
+					return mPeeked = Token.END_OBJECT;
+				}
+				if (scope == SCOPE_NONEMPTY_OBJECT) {
+					if (c != ',') {
+						throw syntaxError("expected ',' or '}'");
+					}
+					c = nextNonWhitespace();
+				}
+				if (c != '"') {
+					throw syntaxError("expected a name");
+				}
+				mStack[mStackSize - 1] = SCOPE_DANGLING_NAME;
+				return mPeeked = Token.NAME;
+			}
+			case SCOPE_DANGLING_NAME: {
+				if (nextNonWhitespace() != ':') {
+					throw syntaxError("expected ':'");
+				}
+				mStack[mStackSize - 1] = SCOPE_NONEMPTY_OBJECT;
+				return mPeeked = readValue();
+			}
+			case SCOPE_EMPTY_DOCUMENT: {
+				mStack[mStackSize - 1] = SCOPE_NONEMPTY_DOCUMENT;
+				return mPeeked = readValue();
+			}
+			default: {
+				if (nextNonWhitespace() != -1) {
+					throw syntaxError("expected end of document");
+				}
+				return mPeeked = Token.END_DOCUMENT;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the current array or object has another element
+	 */
+	public boolean hasNext() throws JsonPullParserException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	public void beginArray() throws JsonPullParserException {
+		expect(Token.BEGIN_ARRAY);
+		push(SCOPE_EMPTY_ARRAY);
+	}
+
+	public void endArray() throws JsonPullParserException {
+		expect(Token.END_ARRAY);
+		mStackSize--;
+	}
+
+	public void beginObject() throws JsonPullParserException {
+		expect(Token.BEGIN_OBJECT);
+		push(SCOPE_EMPTY_OBJECT);
+	}
+
+	public void endObject() throws JsonPullParserException {
+		expect(Token.END_OBJECT);
+		mStackSize--;
+	}
+
+	/**
+	 * @return the name of the next property of the current object
+	 */
+	public String nextName() throws JsonPullParserException {
+		expect(Token.NAME);
+		return readString();
+	}
+
+	/**
+	 * @return the next value as a String; numbers and booleans are returned as they appear in the document
+	 */
+	public String nextString() throws JsonPullParserException {
+		Token token = peek();
+		if (token == Token.STRING) {
+			mPeeked = null;
+			return readString();
+		}
+		if (token == Token.NUMBER || token == Token.BOOLEAN) {
+			mPeeked = null;
+			int start = mPos;
+			mPos = literalEnd(start);
+			return mIn.substring(start, mPos);
+		}
+		throw syntaxError("expected a string but was " + token);
+	}
+
+	/**
+	 * @return the next value as a long; strings holding a JSON number with an integral value are accepted
+	 */
+	public long nextLong() throws JsonPullParserException {
+		Token token = peek();
+		String text;
+		if (token == Token.NUMBER) {
+			mPeeked = null;
+			int start = mPos;
+			mPos = literalEnd(start);
+			long value = parseLong(start, mPos);
+			if (value != Long.MIN_VALUE) {
+				return value;
+			}
+			text = mIn.substring(start, mPos);
+		}
+		else if (token == Token.STRING) {
+			mPeeked = null;
+			text = readString();
+			if (!isNumber(text, 0, text.length())) {
+				throw syntaxError("expected a number but was " + text);
+			}
+		}
+		else {
+			throw syntaxError("expected a number but was " + token);
+		}
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			try {
+				double d = Double.parseDouble(text);
+				long value = (long) d;
+				if (value != d) {
+					throw syntaxError("expected a long but was " + text);
+				}
+				return value;
+			} catch (NumberFormatException e2) {
+				throw syntaxError("expected a number but was " + text);
+			}
+		}
+	}
+
+	/**
+	 * @return the next value as an int; strings holding a number are accepted
+	 */
+	public int nextInt() throws JsonPullParserException {
+		long value = nextLong();
+		if (value != (int) value) {
+			throw syntaxError("expected an int but was " + value);
+		}
+		return (int) value;
+	}
+
+	public boolean nextBoolean() throws JsonPullParserException {
+		expect(Token.BOOLEAN);
+		boolean value = mIn.charAt(mPos) == 't';
+		mPos += value ? 4 : 5;
+		return value;
+	}
+
+	public void nextNull() throws JsonPullParserException {
+		expect(Token.NULL);
+		mPos += 4;
+	}
+
+	/**
+	 * Skips the next value, including everything nested in it.
+	 */
+	public void skipValue() throws JsonPullParserException {
+		int depth = 0;
+		do {
+			Token token = peek();
+			mPeeked = null;
+			switch (token) {
+				case BEGIN_ARRAY:
+					push(SCOPE_EMPTY_ARRAY);
+					depth++;
+					break;
+				case BEGIN_OBJECT:
+					push(SCOPE_EMPTY_OBJECT);
+					depth++;
+					break;
+				case END_ARRAY:
+				case END_OBJECT:
+					if (depth == 0) {
+						throw syntaxError("expected a value but was " + token);
+					}
+					mStackSize--;
+					depth--;
+					break;
+				case NAME:
+				case STRING:
+					skipString();
+					break;
+				case NUMBER:
+				case BOOLEAN:
+				case NULL:
+					mPos = literalEnd(mPos);
+					break;
+				default:
+					throw syntaxError("unexpected " + token);
+			}
+		} while (depth > 0);
+	}
+
+	private void expect(Token expected) throws JsonPullParserException {
+		Token token = peek();
+		if (token != expected) {
+			throw syntaxError("expected " + expected + " but was " + token);
+		}
+		mPeeked = null;
+	}
+
+	private void push(int scope) {
+		if (mStackSize == mStack.length) {
+			int[] stack = new int[mStackSize * 2];
+			System.arraycopy(mStack, 0, stack, 0, mStackSize);
+			mStack = stack;
+		}
+		mStack[mStackSize++] = scope;
+	}
+
+	/**
+	 * Classifies the value starting at the next non-whitespace character. Names and strings are left positioned after
+	 * their opening quote, everything else at its first character.
+	 */
+	private Token readValue() throws JsonPullParserException {
+		int c = nextNonWhitespace();
+		switch (c) {
+			case '{':
+				return Token.BEGIN_OBJECT;
+			case '[':
+				return Token.BEGIN_ARRAY;
+			case '"':
+				return Token.STRING;
+			case 't':
+				mPos--;
+				expectLiteral("true");
+				return Token.BOOLEAN;
+			case 'f':
+				mPos--;
+				expectLiteral("false");
+				return Token.BOOLEAN;
+			case 'n':
+				mPos--;
+				expectLiteral("null");
+				return Token.NULL;
+			case -1:
+				throw syntaxError("unexpected end of document");
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					mPos--;
+					if (!isNumber(mIn, mPos, literalEnd(mPos))) {
+						throw syntaxError("malformed number " + mIn.substring(mPos, literalEnd(mPos)));
+					}
+					return Token.NUMBER;
+				}
+				throw syntaxError("unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private void expectLiteral(String literal) throws JsonPullParserException {
+		if (!mIn.startsWith(literal, mPos) || literalEnd(mPos) != mPos + literal.length()) {
+			throw syntaxError("expected " + literal);
+		}
+	}
+
+	/**
+	 * @return the index just past the unquoted literal starting at {@code start}
+	 */
+	private int literalEnd(int start) {
+		int i = start;
+		while (i < mLength) {
+			char c = mIn.charAt(i);
+			if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return true if the text between {@code start} and {@code end} is a JSON number: an optional minus sign, an
+	 *         integer part without leading zeros, an optional fraction and an optional exponent
+	 */
+	private static boolean isNumber(String s, int start, int end) {
+		int i = start;
+		if (i < end && s.charAt(i) == '-') {
+			i++;
+		}
+		if (i < end && s.charAt(i) == '0') {
+			i++;
+		}
+		else {
+			int digits = i;
+			i = skipDigits(s, i, end);
+			if (i == digits) {
+				return false;
+			}
+		}
+		if (i < end && s.charAt(i) == '.') {
+			int digits = ++i;
+			i = skipDigits(s, i, end);
+			if (i == digits) {
+				return false;
+			}
+		}
+		if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			i++;
+			if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			int digits = i;
+			i = skipDigits(s, i, end);
+			if (i == digits) {
+				return false;
+			}
+		}
+		return i == end;
+	}
+
+	private static int skipDigits(String s, int start, int end) {
+		int i = start;
+		while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Parses a plain integer without allocating.
+	 *
+	 * @return the value, or {@link Long#MIN_VALUE} if the text is not a plain integer that fits in a long
+	 */
+	private long parseLong(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && mIn.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		if (i == end || end - i > 18) {
+			return Long.MIN_VALUE;
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			char c = mIn.charAt(i);
+			if (c < '0' || c > '9') {
+				return Long.MIN_VALUE;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads a string whose opening quote has been consumed, leaving the position after the closing quote.
+	 */
+	private String readString() throws JsonPullParserException {
+		int start = mPos;
+		for (int i = start; i < mLength; i++) {
+			char c = mIn.charAt(i);
+			if (c == '"') {
+				mPos = i + 1;
+				return mIn.substring(start, i);
+			}
+			if (c == '\\') {
+				return readEscapedString(start, i);
+			}
+		}
+		throw syntaxError("unterminated string");
+	}
+
+	private String readEscapedString(int start, int firstEscape) throws JsonPullParserException {
+		if (mBuilder == null) {
+			mBuilder = new StringBuilder();
+		}
+		StringBuilder builder = mBuilder;
+		builder.setLength(0);
+		builder.append(mIn, start, firstEscape);
+		int i = firstEscape;
+		while (i < mLength) {
+			char c = mIn.charAt(i++);
+			if (c == '"') {
+				mPos = i;
+				return builder.toString();
+			}
+			if (c != '\\') {
+				builder.append(c);
+				continue;
+			}
+			if (i == mLength) {
+				break;
+			}
+			char escaped = mIn.charAt(i++);
+			switch (escaped) {
+				case 'b':
+					builder.append('\b');
+					break;
+				case 'f':
+					builder.append('\f');
+					break;
+				case 'n':
+					builder.append('\n');
+					break;
+				case 'r':
+					builder.append('\r');
+					break;
+				case 't':
+					builder.append('\t');
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					builder.append(escaped);
+					break;
+				case 'u':
+					if (i + 4 > mLength) {
+						throw syntaxError("unterminated escape sequence");
+					}
+					int value = 0;
+					for (int end = i + 4; i < end; i++) {
+						int digit = hexDigit(mIn.charAt(i));
+						if (digit < 0) {
+							throw syntaxError("invalid escape sequence");
+						}
+						value = (value << 4) | digit;
+					}
+					builder.append((char) value);
+					break;
+				default:
+					throw syntaxError("invalid escape sequence \\" + escaped);
+			}
+		}
+		throw syntaxError("unterminated string");
+	}
+
+	/**
+	 * @return the value of an ASCII hex digit, or -1
+	 */
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	private void skipString() throws JsonPullParserException {
+		for (int i = mPos; i < mLength; i++) {
+			char c = mIn.charAt(i);
+			if (c == '\\') {
+				i++;
+			}
+			else if (c == '"') {
+				mPos = i + 1;
+				return;
+			}
+		}
+		throw syntaxError("unterminated string");
+	}
+
+	/**
+	 * @return the next non-whitespace character, consuming it, or -1 at the end of the input
+	 */
+	private int nextNonWhitespace() {
+		while (mPos < mLength) {
+			char c = mIn.charAt(mPos++);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private JsonPullParserException syntaxError(String message) {
+		return new JsonPullParserException(message + " at character " + mPos);
+	}
+}
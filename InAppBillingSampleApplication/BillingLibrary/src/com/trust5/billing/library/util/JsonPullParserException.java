@@ -0,0 +1,16 @@
+package com.trust5.billing.library.util;
+
+/**
+ * Exception thrown when {@link JsonPullParser} meets malformed JSON or a value of an unexpected type.
+ */
+public class JsonPullParserException extends Exception {
+	public JsonPullParserException() {
+		super();
+	}
+
+	public JsonPullParserException(String s) {
+		super(s);
+	}
+
+	private static final long serialVersionUID = 1L;
+}
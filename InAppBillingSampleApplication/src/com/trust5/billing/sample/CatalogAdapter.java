@@ -4,9 +4,7 @@ import android.content.Context;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
-
-import java.util.HashSet;
-import java.util.Set;
+import com.trust5.billing.library.EntitlementCache;
 
 /**
  * An adapter used for displaying a catalog of products.  If a product is managed by Android Market and already
@@ -22,7 +20,7 @@ public class CatalogAdapter extends ArrayAdapter<String> {
 	// Fields
 	// ===========================================================
 	private Catalog.CatalogEntry[] mCatalog;
-	private Set<String> mOwnedItems = new HashSet<String>();
+	private EntitlementCache mEntitlements;
 	private boolean mIsSubscriptionsSupported = false;
 
 	// ===========================================================
@@ -40,8 +38,8 @@ public class CatalogAdapter extends ArrayAdapter<String> {
 	// ===========================================================
 	// Getter & Setter
 	// ===========================================================
-	public void setOwnedItems(Set<String> ownedItems) {
-		mOwnedItems = ownedItems;
+	public void setEntitlements(EntitlementCache entitlements) {
+		mEntitlements = entitlements;
 		notifyDataSetChanged();
 	}
 
@@ -63,7 +61,8 @@ public class CatalogAdapter extends ArrayAdapter<String> {
 		// If the item at the given list position is not purchasable,
 		// then prevent the list item from being selected.
 		Catalog.CatalogEntry entry = mCatalog[position];
-		return !(entry.managed == Catalog.Managed.MANAGED && mOwnedItems.contains(entry.sku)) && !(entry.managed == Catalog.Managed.SUBSCRIPTION && !mIsSubscriptionsSupported);
+		boolean owned = mEntitlements != null && mEntitlements.isOwned(entry.sku);
+		return !(entry.managed == Catalog.Managed.MANAGED && owned) && !(entry.managed == Catalog.Managed.SUBSCRIPTION && !mIsSubscriptionsSupported);
 	}
 
 	@Override
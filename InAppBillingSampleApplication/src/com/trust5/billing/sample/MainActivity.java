@@ -6,19 +6,24 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Html;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.util.Log;
 import android.view.View;
 import android.widget.*;
+import com.trust5.billing.library.Entitlement;
+import com.trust5.billing.library.EntitlementCache;
 import com.trust5.billing.library.IPurchaseResponseCallback;
+import com.trust5.billing.library.googleplay.OwnedItemsAdapter;
 import com.trust5.billing.library.googleplay.PlayBilling;
 
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends Activity implements View.OnClickListener,
 		AdapterView.OnItemSelectedListener {
@@ -47,7 +52,7 @@ public class MainActivity extends Activity implements View.OnClickListener,
 	private TextView mLogTextView;
 	private Spinner mSelectItemSpinner;
 	private ListView mOwnedItemsTable;
-	private SimpleCursorAdapter mOwnedItemsAdapter;
+	private OwnedItemsAdapter mOwnedItemsAdapter;
 
 	private String mItemName;
 	private String mSku;
@@ -57,6 +62,29 @@ public class MainActivity extends Activity implements View.OnClickListener,
 	private PlayBilling mPlayBilling;
 	private IPurchaseResponseCallback mPurchaseResponseCallback;
 
+	/**
+	 * Runs entitlement change notifications on the UI thread.
+	 */
+	private final Executor mUiExecutor = new Executor() {
+		private final Handler mHandler = new Handler();
+
+		@Override
+		public void execute(Runnable command) {
+			mHandler.post(command);
+		}
+	};
+
+	/**
+	 * Grays out managed items in the catalog as soon as they are owned, and makes them selectable again if they are
+	 * refunded away.
+	 */
+	private final EntitlementCache.Listener mEntitlementListener = new EntitlementCache.Listener() {
+		@Override
+		public void onEntitlementsChanged(EntitlementCache cache, List<Entitlement> changed) {
+			mCatalogAdapter.notifyDataSetChanged();
+		}
+	};
+
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -94,6 +122,7 @@ public class MainActivity extends Activity implements View.OnClickListener,
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		mPlayBilling.getEntitlements().removeListener(mEntitlementListener);
 		mPlayBilling.dispose();
 	}
 
@@ -195,12 +224,12 @@ public class MainActivity extends Activity implements View.OnClickListener,
 
 		mSelectItemSpinner = (Spinner) findViewById(R.id.item_choices);
 		mCatalogAdapter = new CatalogAdapter(this, Catalog.CATALOG);
+		mCatalogAdapter.setEntitlements(mPlayBilling.getEntitlements());
+		mPlayBilling.getEntitlements().addListener(mEntitlementListener, mUiExecutor);
 		mSelectItemSpinner.setAdapter(mCatalogAdapter);
 		mSelectItemSpinner.setOnItemSelectedListener(this);
 
-		Cursor ownedItems = mPlayBilling.getOwnedItemsCursor();
-
-		startManagingCursor(ownedItems);
+		// PlayBilling fills the adapter once the purchase database has been read, and closes the cursor in dispose().
 		mOwnedItemsAdapter = mPlayBilling.getOwnedItemsAdapter(this, R.layout.item_row, R.id.item_name,
 				R.id.item_quantity);
 		mOwnedItemsTable = (ListView) findViewById(R.id.owned_items);
@@ -321,7 +350,6 @@ public class MainActivity extends Activity implements View.OnClickListener,
 					mEditSubscriptionsButton.setVisibility(View.VISIBLE);
 				}
 			}
-			mCatalogAdapter.setOwnedItems(mPlayBilling.getOwnedItemsSet());
 		}
 
 		@Override